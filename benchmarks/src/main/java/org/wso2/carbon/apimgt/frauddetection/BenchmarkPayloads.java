@@ -0,0 +1,80 @@
+/*
+ *  Copyright WSO2 Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.wso2.carbon.apimgt.frauddetection;
+
+/**
+ * Synthetic transaction payloads, shaped like the sample request in the README.
+ */
+public class BenchmarkPayloads {
+
+    private static final String PADDING_VALUE =
+            "Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor incididunt ut labore.";
+
+    private BenchmarkPayloads() {
+    }
+
+    /**
+     * Returns a transaction of roughly the given size in bytes. Anything over the size of the sample is made up of
+     * unmapped 'metadata' members placed before the mapped fields.
+     */
+    public static String transaction(int size) {
+        return transaction(size, "3a6077e0-2b82-432a-bce2-d2910d7aec74", 3772822463100050L, "5500");
+    }
+
+    public static String transaction(int size, String id, long creditCardNumber, String amount) {
+        return transaction(size, id, creditCardNumber, amount, 1);
+    }
+
+    /**
+     * Returns a transaction with the given number of entries in its 'transactions' array, each for a different item.
+     */
+    public static String transaction(int size, String id, long creditCardNumber, String amount, int itemCount) {
+
+        StringBuilder builder = new StringBuilder(Math.max(size, 1024) + 256);
+        builder.append("{\"metadata\":{");
+        int padding = 0;
+        while (builder.length() + 1024 < size) {
+            if (padding > 0) {
+                builder.append(',');
+            }
+            builder.append("\"note").append(padding++).append("\":\"").append(PADDING_VALUE).append('"');
+        }
+        builder.append("},");
+
+        builder.append("\"id\":\"").append(id).append("\",")
+               .append("\"intent\":\"sale\",")
+               .append("\"payer\":{\"email\":\"betsy@buyer.com\",\"payment_method\":\"credit_card\",")
+               .append("\"funding_instruments\":[{\"credit_card\":{\"number\":\"").append(creditCardNumber).append("\",")
+               .append("\"type\":\"visa\",\"expire_month\":11,\"expire_year\":2018,\"cvv2\":\"874\",")
+               .append("\"first_name\":\"Betsy\",\"last_name\":\"Buyer\",")
+               .append("\"billing_address\":{\"line1\":\"2313 Grand Manor\",\"city\":\"Cleopatra\",\"state\":\"NY\",")
+               .append("\"postal_code\":\"13961-1041\",\"country_code\":\"USA\"}}}]},")
+               .append("\"shipment\":{\"shipping_address\":{\"line1\":\"2313 Grand Manor\",\"city\":\"Cleopatra\",")
+               .append("\"state\":\"NY\",\"postal_code\":\"13961-1041\",\"country_code\":\"USA\"}},")
+               .append("\"transactions\":[");
+        for (int item = 0; item < itemCount; item++) {
+            if (item > 0) {
+                builder.append(',');
+            }
+            builder.append("{\"amount\":{\"total\":\"").append(amount).append("\",\"currency\":\"USD\",")
+                   .append("\"details\":{\"subtotal\":\"7.41\",\"tax\":\"0.03\",\"shipping\":\"0.03\"}},")
+                   .append("\"order\":{\"item_number\":\"I").append(10 + item).append("\",\"quantity\":1},")
+                   .append("\"description\":\"This is the payment transaction description.\"}");
+        }
+        builder.append("]}");
+        return builder.toString();
+    }
+}
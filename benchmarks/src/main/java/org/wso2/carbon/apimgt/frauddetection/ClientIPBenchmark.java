@@ -0,0 +1,95 @@
+/*
+ *  Copyright WSO2 Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.wso2.carbon.apimgt.frauddetection;
+
+import org.apache.synapse.MessageContext;
+import org.apache.synapse.core.axis2.Axis2MessageContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures ClientIPResolver.resolve for a direct call, a single load balancer hop and IPv4 and IPv6 chains of proxies,
+ * with the default trusted proxies and with thousands of trusted CIDR blocks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClientIPBenchmark {
+
+    @Param({"none", "single", "chain", "ipv6-chain"})
+    public String forwardedFor;
+
+    @Param({"0", "4096"})
+    public int extraTrustedProxies;
+
+    private MessageContext messageContext;
+    private ClientIPResolver resolver;
+
+    @Setup
+    public void setUp() {
+
+        // Transport headers are case insensitive, as in the pass-through transport.
+        Map<String, String> transportHeaders = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        if ("single".equals(forwardedFor)) {
+            transportHeaders.put("X-Forwarded-For", "203.0.113.195");
+        } else if ("chain".equals(forwardedFor)) {
+            transportHeaders.put("X-Forwarded-For", "203.0.113.195, 70.41.3.18, 150.172.238.178, 10.0.0.12, 10.0.0.1");
+        } else if ("ipv6-chain".equals(forwardedFor)) {
+            transportHeaders.put("X-Forwarded-For", "2001:db8:85a3::8a2e:370:7334, fd00::12, fd00::1");
+        }
+
+        // Extra blocks are half IPv4 /24s and half IPv6 /48s, none of which hold the client.
+        StringBuilder trustedProxies = new StringBuilder(ClientIPResolver.DEFAULT_TRUSTED_PROXIES);
+        Random random = new Random(42);
+        for (int i = 0; i < extraTrustedProxies; i++) {
+            if ((i & 1) == 0) {
+                trustedProxies.append(String.format(",%d.%d.%d.0/24", 11 + random.nextInt(150), random.nextInt(256),
+                                                    random.nextInt(256)));
+            } else {
+                trustedProxies.append(String.format(",2a%02x:%x:%x::/48", random.nextInt(256), random.nextInt(65536),
+                                                    random.nextInt(65536)));
+            }
+        }
+        resolver = new ClientIPResolver(CidrTrie.compile(trustedProxies.toString()), false);
+
+        org.apache.axis2.context.MessageContext axis2MessageContext = new org.apache.axis2.context.MessageContext();
+        axis2MessageContext.setProperty(org.apache.axis2.context.MessageContext.TRANSPORT_HEADERS, transportHeaders);
+        axis2MessageContext.setProperty(org.apache.axis2.context.MessageContext.REMOTE_ADDR, "192.168.1.10");
+        messageContext = new Axis2MessageContext(axis2MessageContext, null, null);
+    }
+
+    @Benchmark
+    public String getClientIPAddress() {
+        return resolver.resolve(messageContext);
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ *  Copyright WSO2 Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.wso2.carbon.apimgt.frauddetection;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.TSerializer;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.wso2.carbon.databridge.commons.Event;
+import org.wso2.carbon.databridge.commons.thrift.data.ThriftEventBundle;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures putting a batch of transaction events on the wire in the plain and the compact encoding, per event, and
+ * prints the bytes per event of each encoding at setup. The plain encoding is what the databridge thrift agent sends,
+ * i.e. every event's attributes in a Thrift event bundle, while the compact encoding sends the block as a single event.
+ * Both bundles are serialized with the binary protocol of the agent, so the time covers the whole conversion on the
+ * publisher side. The transactions come from a fixed set of customers, so the dictionary attributes repeat.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncodingBenchmark {
+
+    static final int BATCH_SIZE = 100;
+    private static final int BATCH_COUNT = 64;
+    private static final int CUSTOMER_COUNT = 2000;
+    private static final int ITEM_COUNT = 500;
+    private static final String[] CURRENCIES = {"USD", "EUR", "GBP"};
+    private static final String STREAM_ID = "transactionStream:1.0.0";
+    private static final String COMPACT_STREAM_ID = "transactionStream" + CompactEventCodec.COMPACT_STREAM_SUFFIX + ":1.0.0";
+
+    @Param({"plain", "compact", "compact-deflate"})
+    public String encoding;
+
+    private final List<List<Event>> batches = new ArrayList<List<Event>>();
+    private final String sessionId = UUID.randomUUID().toString();
+    private CompactEventCodec.Encoder encoder;
+    private TSerializer serializer;
+    private int next;
+
+    @Setup
+    public void setUp() throws TException {
+
+        Random random = new Random(42);
+        long timestamp = System.currentTimeMillis();
+        for (int i = 0; i < BATCH_COUNT; i++) {
+            List<Event> batch = new ArrayList<Event>(BATCH_SIZE);
+            for (int j = 0; j < BATCH_SIZE; j++) {
+                int customer = random.nextInt(CUSTOMER_COUNT);
+                String address = String.format("%d Grand Manor, Cleopatra, NY, %05d-1041, USA", customer, customer % 100000);
+                timestamp += random.nextInt(5);
+                batch.add(new Event(null, timestamp, null, null, new Object[]{
+                        UUID.randomUUID().toString(), 4000000000000000L + customer, random.nextInt(1000000) / 100.0,
+                        CURRENCIES[customer % CURRENCIES.length], "customer" + customer + "@buyer.com", address, address,
+                        "203.0." + (customer >> 8) + "." + (customer & 0xFF), "I" + random.nextInt(ITEM_COUNT),
+                        1 + random.nextInt(5), timestamp}));
+            }
+            batches.add(batch);
+        }
+
+        if (!"plain".equals(encoding)) {
+            DataPublisherConfig config = new DataPublisherConfig();
+            config.setEventEncoding(CompactEventCodec.ENCODING_COMPACT);
+            config.setEventCompression("compact-deflate".equals(encoding) ? CompactEventCodec.COMPRESSION_DEFLATE :
+                                               CompactEventCodec.COMPRESSION_NONE);
+            encoder = CompactEventCodec.createEncoder(config);
+        }
+        serializer = new TSerializer(new TBinaryProtocol.Factory());
+
+        // The first pass fills the dictionaries, the second is what a long lived connection sends.
+        long bytes = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            bytes = 0;
+            for (List<Event> batch : batches) {
+                bytes += serializer.serialize(toBundle(batch)).length;
+            }
+        }
+        System.out.println(String.format("%n%s : %.1f bytes/event", encoding, (double) bytes / (BATCH_COUNT * BATCH_SIZE)));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public byte[] encodeBatch() throws TException {
+        List<Event> batch = batches.get(next++ & (BATCH_COUNT - 1));
+        return serializer.serialize(toBundle(batch));
+    }
+
+    private ThriftEventBundle toBundle(List<Event> batch) {
+
+        ThriftEventBundle bundle = new ThriftEventBundle();
+        bundle.setSessionId(sessionId);
+        if (encoder == null) {
+            for (Event event : batch) {
+                addEvent(bundle, STREAM_ID, event.getTimeStamp(), event.getPayloadData());
+            }
+            bundle.setEventNum(batch.size());
+        } else {
+            addEvent(bundle, COMPACT_STREAM_ID, System.currentTimeMillis(), new Object[]{encoder.encode(batch)});
+            bundle.setEventNum(1);
+        }
+        return bundle;
+    }
+
+    /**
+     * Adds the event the way the agent's event converter does, with the attributes in a list per type.
+     */
+    private static void addEvent(ThriftEventBundle bundle, String streamId, long timestamp, Object[] payload) {
+
+        bundle.addToStringAttributeList(streamId);
+        bundle.addToLongAttributeList(timestamp);
+        for (Object value : payload) {
+            if (value instanceof String) {
+                bundle.addToStringAttributeList((String) value);
+            } else if (value instanceof Long) {
+                bundle.addToLongAttributeList((Long) value);
+            } else if (value instanceof Integer) {
+                bundle.addToIntAttributeList((Integer) value);
+            } else if (value instanceof Double) {
+                bundle.addToDoubleAttributeList((Double) value);
+            } else if (value instanceof Boolean) {
+                bundle.addToBoolAttributeList((Boolean) value);
+            }
+        }
+    }
+}
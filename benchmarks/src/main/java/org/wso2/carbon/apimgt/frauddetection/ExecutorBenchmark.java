@@ -0,0 +1,216 @@
+/*
+ *  Copyright WSO2 Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.wso2.carbon.apimgt.frauddetection;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the platform and the virtual publisher executor modes against slow DAS endpoints, with many publishes in
+ * flight at once. Each publish to a stub endpoint blocks for a fixed latency, the way a call to a slow receiver does,
+ * so the throughput is bounded by the number of publishes in flight divided by the latency.
+ *
+ * In the platform mode, 'inFlight' publisher threads each flush their own batches. In the virtual mode, a single
+ * publisher thread hands the batches to virtual threads, and each endpoint takes up to 'inFlight' / 'endpoints' of
+ * them at a time. Run each mode in a JVM of its own, as the peak thread count and memory are reported.
+ *
+ * Options, each given as '-name value' :
+ * mode (platform or virtual, default virtual), inFlight (default 10000), latency (ms per publish, default 100),
+ * events (default 1000000), endpoints (default 1), batchSize (default 1), producers (default 4).
+ */
+public class ExecutorBenchmark {
+
+    private static final long SAMPLE_INTERVAL_MILLIS = 100;
+    private static final long DRAIN_TIMEOUT_MILLIS = 300000;
+
+    public static void main(String[] args) throws Exception {
+
+        Map<String, String> options = parseOptions(args);
+        String mode = get(options, "mode", TransactionDataPublisher.EXECUTOR_VIRTUAL);
+        int inFlight = Integer.parseInt(get(options, "inFlight", "10000"));
+        long latencyMillis = Long.parseLong(get(options, "latency", "100"));
+        final int events = Integer.parseInt(get(options, "events", "1000000"));
+        int endpointCount = Integer.parseInt(get(options, "endpoints", "1"));
+        int batchSize = Integer.parseInt(get(options, "batchSize", "1"));
+        int producers = Integer.parseInt(get(options, "producers", "4"));
+
+        DataPublisherConfig config = new DataPublisherConfig();
+        config.setPublisherExecutor(mode);
+        config.setPublishBatchSize(batchSize);
+        config.setPublishQueueSize(Math.max(65536, inFlight * batchSize * 2));
+        config.setPublishQueueOverflowPolicy("block");
+        config.setPublishQueueBlockTimeoutMillis(DRAIN_TIMEOUT_MILLIS);
+        if (TransactionDataPublisher.isVirtualExecutor(config)) {
+            config.setPublisherThreadCount(1);
+            config.setEndpointMaxConcurrency(Math.max(1, inFlight / endpointCount));
+        } else {
+            config.setPublisherThreadCount(inFlight);
+        }
+
+        StubDasEndpoint[] endpoints = new StubDasEndpoint[endpointCount];
+        for (int i = 0; i < endpointCount; i++) {
+            endpoints[i] = new StubDasEndpoint(String.format("tcp://das-%d:7611", i), config);
+            endpoints[i].setLatencyMillis(latencyMillis);
+        }
+
+        System.out.println(String.format("Publishing %d events in the %s mode, %d in flight, %d ms per publish. " +
+                                         "Virtual threads available : %s.", events, mode, inFlight, latencyMillis,
+                                         VirtualThreads.isAvailable()));
+
+        final Sampler sampler = new Sampler();
+        Thread samplerThread = new Thread(sampler, "executor-benchmark-sampler");
+        samplerThread.setDaemon(true);
+        samplerThread.start();
+
+        long start = System.nanoTime();
+        final TransactionDataPublisher publisher = new TransactionDataPublisher();
+        publisher.init(config, endpoints);
+        long startupNanos = System.nanoTime() - start;
+
+        final CountDownLatch done = new CountDownLatch(producers);
+        final int eventsPerProducer = events / producers;
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            new Thread(new Runnable() {
+                public void run() {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    for (int i = 0; i < eventsPerProducer; i++) {
+                        publisher.publish(new Object[]{"txn-" + producer + "-" + i,
+                                random.nextLong(1000000000000000L, 9999999999999999L), 5500.0, "USD", "betsy@buyer.com",
+                                "2313 Grand Manor, Cleopatra, NY, 13961-1041, USA",
+                                "2313 Grand Manor, Cleopatra, NY, 13961-1041, USA", "203.0.113.195", "I0010", 1,
+                                System.currentTimeMillis()});
+                    }
+                    done.countDown();
+                }
+            }, "executor-benchmark-producer-" + p).start();
+        }
+        done.await();
+
+        long expected = (long) eventsPerProducer * producers;
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MILLIS;
+        while (publishedCount(endpoints) < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        long runNanos = System.nanoTime() - start;
+        long published = publishedCount(endpoints);
+        sampler.stop();
+
+        double seconds = runNanos / 1e9;
+        System.out.println();
+        System.out.println(String.format("Events published        : %d of %d", published, expected));
+        System.out.println(String.format("Throughput              : %.0f events/s (at most %.0f/s for %d in flight)",
+                                         published / seconds, inFlight * batchSize * 1000.0 / latencyMillis, inFlight));
+        System.out.println(String.format("Publisher start-up      : %.1f ms", startupNanos / 1e6));
+        System.out.println(String.format("Peak platform threads   : %d", sampler.peakThreadCount));
+        System.out.println(String.format("Peak heap used          : %.1f MB", sampler.peakHeapBytes / 1048576.0));
+        System.out.println(String.format("Peak resident set size  : %s", sampler.peakResidentKilobytes > 0 ?
+                String.format("%.1f MB", sampler.peakResidentKilobytes / 1024.0) : "not available"));
+        System.out.println(String.format("Publisher metrics       : %s", publisher.getMetricsSnapshot()));
+
+        publisher.shutdown();
+        System.exit(0);
+    }
+
+    private static long publishedCount(StubDasEndpoint[] endpoints) {
+        long count = 0;
+        for (StubDasEndpoint endpoint : endpoints) {
+            count += endpoint.getPublishedCount();
+        }
+        return count;
+    }
+
+    /**
+     * Records the peak platform thread count, heap use and, on Linux, resident set size while the benchmark runs.
+     * Virtual threads are not platform threads, so they are not counted, but their stacks are on the heap.
+     */
+    private static class Sampler implements Runnable {
+
+        private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        private final MemoryMXBean memoryMXBean = ManagementFactory.getMemoryMXBean();
+        private volatile boolean running = true;
+        private volatile int peakThreadCount;
+        private volatile long peakHeapBytes;
+        private volatile long peakResidentKilobytes;
+
+        public void run() {
+            while (running) {
+                sample();
+                try {
+                    Thread.sleep(SAMPLE_INTERVAL_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private void stop() {
+            running = false;
+            sample();
+        }
+
+        private synchronized void sample() {
+            peakThreadCount = Math.max(peakThreadCount, threadMXBean.getThreadCount());
+            peakHeapBytes = Math.max(peakHeapBytes, memoryMXBean.getHeapMemoryUsage().getUsed());
+            peakResidentKilobytes = Math.max(peakResidentKilobytes, readResidentKilobytes());
+        }
+
+        private static long readResidentKilobytes() {
+            try {
+                BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"));
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        if (line.startsWith("VmRSS:")) {
+                            return Long.parseLong(line.substring(6).replace("kB", "").trim());
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+            } catch (IOException e) {
+                // Not on Linux.
+            }
+            return 0;
+        }
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+
+        Map<String, String> options = new HashMap<String, String>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("-")) {
+                throw new IllegalArgumentException("Expected an option name but found : " + args[i]);
+            }
+            options.put(args[i].substring(1), args[i + 1]);
+        }
+        return options;
+    }
+
+    private static String get(Map<String, String> options, String name, String defaultValue) {
+        String value = options.get(name);
+        return value != null ? value : defaultValue;
+    }
+}
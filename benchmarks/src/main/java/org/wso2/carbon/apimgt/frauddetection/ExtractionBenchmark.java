@@ -0,0 +1,106 @@
+/*
+ *  Copyright WSO2 Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.wso2.carbon.apimgt.frauddetection;
+
+import org.apache.axiom.om.OMElement;
+import org.apache.synapse.commons.json.JsonUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of building the transaction stream payload from a request body, for the Axiom and the streaming
+ * extraction modes, at several payload sizes and numbers of transaction entries.
+ *
+ * The payloads are the README sample padded with unmapped members placed before the mapped ones, so both modes have
+ * to get past the padding to find the fields.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExtractionBenchmark {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * The approximate payload size in bytes.
+     */
+    @Param({"1024", "16384", "262144"})
+    public int payloadSize;
+
+    /**
+     * The number of entries in the 'transactions' array, each of which becomes a stream payload.
+     */
+    @Param({"1", "16"})
+    public int itemCount;
+
+    private ExtractionPlan plan;
+    private StreamingPayloadExtractor streamingPayloadExtractor;
+    private byte[] payload;
+
+    private final ThreadLocal<ExtractedValues> extractedValues = new ThreadLocal<ExtractedValues>() {
+        @Override
+        protected ExtractedValues initialValue() {
+            return new ExtractedValues(plan.getFieldCount(), 256);
+        }
+    };
+
+    @Setup
+    public void setUp() {
+        plan = ExtractionPlan.compile(ExtractionPlan.DEFAULT_MAPPING, ExtractionPlan.DEFAULT_FAN_OUT_PATH);
+        streamingPayloadExtractor = new StreamingPayloadExtractor(plan);
+        payload = BenchmarkPayloads.transaction(payloadSize, "3a6077e0-2b82-432a-bce2-d2910d7aec74", 3772822463100050L,
+                                                "5500", itemCount).getBytes(UTF_8);
+    }
+
+    @Benchmark
+    public Object[][] om() throws Exception {
+        OMElement transactionInfoPayload = JsonUtil.toXml(new ByteArrayInputStream(payload), false);
+        ExtractedValues values = values();
+        plan.extract(transactionInfoPayload, values);
+        return plan.buildPayloads(values, "127.0.0.1");
+    }
+
+    @Benchmark
+    public Object[][] streaming() throws IOException {
+        ExtractedValues values = values();
+        streamingPayloadExtractor.extract(new InputStreamReader(new ByteArrayInputStream(payload), UTF_8), values);
+        return plan.buildPayloads(values, "127.0.0.1");
+    }
+
+    private ExtractedValues values() {
+        ExtractedValues values = extractedValues.get();
+        values.clear();
+        return values;
+    }
+}
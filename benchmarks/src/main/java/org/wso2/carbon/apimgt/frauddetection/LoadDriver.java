@@ -0,0 +1,314 @@
+/*
+ *  Copyright WSO2 Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.wso2.carbon.apimgt.frauddetection;
+
+import org.apache.axiom.om.OMAbstractFactory;
+import org.apache.axis2.AxisFault;
+import org.apache.synapse.MessageContext;
+import org.apache.synapse.commons.json.JsonUtil;
+import org.apache.synapse.core.axis2.Axis2MessageContext;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Pushes synthetic transactions through TransactionDataPublishingHandler at a target rate, against a stand-in DAS
+ * receiver, and reports the sustained throughput and the handler latency.
+ *
+ * Requests are issued on a fixed schedule. The latency of a request is measured from the time it was due, not from the
+ * time it was sent, so a stalled handler shows up in the percentiles instead of lowering the request rate.
+ *
+ * Options, each given as '-name value' :
+ * rate (requests/s, default 5000), duration (s, default 30), warmup (s, default 5), threads (default 4),
+ * payloadSize (bytes, default 1024), port (default 17611), latency (ms per bundle, default 0),
+ * errorRate (0..1, default 0), disconnectEvery (s, default 0 = never), disconnectFor (ms, default 2000),
+ * and any publisher property from the properties file, such as publishQueueOverflowPolicy or spillDirectory.
+ */
+public class LoadDriver {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    static final String KEY_STORE_PASSWORD = "stand-in";
+    private static final long DRAIN_TIMEOUT_MILLIS = 30000;
+
+    private static final String[] DRIVER_OPTIONS = {"rate", "duration", "warmup", "threads", "payloadSize", "port",
+            "latency", "errorRate", "disconnectEvery", "disconnectFor"};
+
+    public static void main(String[] args) throws Exception {
+
+        Map<String, String> options = parseOptions(args);
+        int rate = Integer.parseInt(get(options, "rate", "5000"));
+        int durationSeconds = Integer.parseInt(get(options, "duration", "30"));
+        int warmupSeconds = Integer.parseInt(get(options, "warmup", "5"));
+        int threads = Integer.parseInt(get(options, "threads", "4"));
+        int payloadSize = Integer.parseInt(get(options, "payloadSize", "1024"));
+        int port = Integer.parseInt(get(options, "port", "17611"));
+
+        File workDirectory = File.createTempFile("fraud-detection-load", "");
+        if (!workDirectory.delete() || !workDirectory.mkdirs()) {
+            throw new IOException("Cannot create the working directory " + workDirectory);
+        }
+
+        // The agent authenticates over SSL, so the receiver needs a key store, which the agent has to trust.
+        File keyStore = createKeyStore(workDirectory);
+        System.setProperty("javax.net.ssl.trustStore", keyStore.getAbsolutePath());
+        System.setProperty("javax.net.ssl.trustStorePassword", KEY_STORE_PASSWORD);
+
+        StandInDasReceiver receiver = new StandInDasReceiver("localhost", port, keyStore.getAbsolutePath(),
+                                                             KEY_STORE_PASSWORD);
+        receiver.setLatencyMillis(Long.parseLong(get(options, "latency", "0")));
+        receiver.setErrorRate(Double.parseDouble(get(options, "errorRate", "0")));
+        receiver.start();
+
+        System.setProperty(TransactionDataPublishingHandler.CONFIG_FILE_PROPERTY,
+                           writeConfig(workDirectory, port, options).getAbsolutePath());
+        TransactionDataPublishingHandler handler = new TransactionDataPublishingHandler();
+        handler.init(null);
+
+        TransactionDataPublisher publisher = handler.getTransactionDataPublisher();
+        long readyDeadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MILLIS;
+        while (!publisher.isReady() && System.currentTimeMillis() < readyDeadline) {
+            Thread.sleep(100);
+        }
+        if (!publisher.isReady()) {
+            throw new IllegalStateException("The publisher did not connect to the stand-in DAS receiver");
+        }
+
+        long disconnectEverySeconds = Long.parseLong(get(options, "disconnectEvery", "0"));
+        if (disconnectEverySeconds > 0) {
+            receiver.scheduleDisconnects(TimeUnit.SECONDS.toMillis(disconnectEverySeconds),
+                                         Long.parseLong(get(options, "disconnectFor", "2000")));
+        }
+
+        byte[][] payloads = createPayloads(256, payloadSize);
+
+        System.out.println(String.format("Warming up for %d s at %d requests/s.", warmupSeconds, rate));
+        run(handler, payloads, rate, threads, warmupSeconds);
+
+        long receivedBefore = receiver.getReceivedEventCount();
+        long droppedBefore = publisher.getDroppedEventCount();
+        System.out.println(String.format("Running for %d s at %d requests/s on %d threads.", durationSeconds, rate, threads));
+        long start = System.nanoTime();
+        Result result = run(handler, payloads, rate, threads, durationSeconds);
+        long runNanos = System.nanoTime() - start;
+        long receivedAtEnd = receiver.getReceivedEventCount();
+
+        // Wait for the queued events to reach the receiver before the totals are taken.
+        long drainDeadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MILLIS;
+        while (publisher.getQueueDepth() > 0 && System.currentTimeMillis() < drainDeadline) {
+            Thread.sleep(50);
+        }
+        Thread.sleep(1000);
+        long drainNanos = System.nanoTime() - start;
+
+        long received = receiver.getReceivedEventCount() - receivedBefore;
+        double runSeconds = runNanos / 1e9;
+
+        System.out.println();
+        System.out.println(String.format("Requests sent          : %d (%.0f/s)", result.count, result.count / runSeconds));
+        System.out.println(String.format("Events received by DAS : %d (%.0f/s during the run, %.0f/s including the drain)",
+                                         received, (receivedAtEnd - receivedBefore) / runSeconds, received / (drainNanos / 1e9)));
+        System.out.println(String.format("Events dropped         : %d", publisher.getDroppedEventCount() - droppedBefore));
+        System.out.println(String.format("Events still spilled   : %d", publisher.getSpilledEventCount()));
+        System.out.println(String.format("Events rejected by DAS : %d", receiver.getRejectedEventCount()));
+        System.out.println(String.format("DAS disconnects        : %d", receiver.getDisconnectCount()));
+        System.out.println(String.format("Events not decodable   : %d", receiver.getUndecodableEventCount()));
+        System.out.println(String.format("Handler latency (us)   : p50 %.1f, p90 %.1f, p99 %.1f, p99.9 %.1f, max %.1f",
+                                         result.percentile(50), result.percentile(90), result.percentile(99),
+                                         result.percentile(99.9), result.percentile(100)));
+        System.out.println(String.format("Publisher metrics      : %s", publisher.getMetricsSnapshot()));
+
+        handler.destroy();
+        receiver.shutdown();
+        System.exit(0);
+    }
+
+    /**
+     * Runs the handler at the given rate, split evenly over the threads, and returns the latencies of all the requests.
+     */
+    private static Result run(final TransactionDataPublishingHandler handler, final byte[][] payloads, int rate,
+                              int threads, int durationSeconds) throws InterruptedException {
+
+        final long intervalNanos = TimeUnit.SECONDS.toNanos(1) * threads / rate;
+        final int requestsPerThread = rate * durationSeconds / threads;
+        final long[][] latencies = new long[threads][requestsPerThread];
+        final CountDownLatch done = new CountDownLatch(threads);
+        final long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(10);
+
+        for (int t = 0; t < threads; t++) {
+            final long[] threadLatencies = latencies[t];
+            final long offset = intervalNanos * t / threads;
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < requestsPerThread; i++) {
+                            long due = start + offset + intervalNanos * i;
+                            long wait = due - System.nanoTime();
+                            if (wait > 0) {
+                                LockSupport.parkNanos(wait);
+                            }
+
+                            MessageContext messageContext = createMessageContext(
+                                    payloads[ThreadLocalRandom.current().nextInt(payloads.length)]);
+                            handler.handleRequest(messageContext);
+                            threadLatencies[i] = System.nanoTime() - due;
+                        }
+                    } catch (AxisFault e) {
+                        e.printStackTrace();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "load-driver-" + t);
+            thread.start();
+        }
+        done.await();
+
+        long[] all = new long[requestsPerThread * threads];
+        for (int t = 0; t < threads; t++) {
+            System.arraycopy(latencies[t], 0, all, t * requestsPerThread, requestsPerThread);
+        }
+        Arrays.sort(all);
+        return new Result(all);
+    }
+
+    /**
+     * Builds a request the way the pass-through transport leaves it once the JSON message builder has run.
+     */
+    private static MessageContext createMessageContext(byte[] payload) throws AxisFault {
+
+        org.apache.axis2.context.MessageContext axis2MessageContext = new org.apache.axis2.context.MessageContext();
+        axis2MessageContext.setEnvelope(OMAbstractFactory.getSOAP11Factory().getDefaultEnvelope());
+
+        Map<String, String> transportHeaders = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        transportHeaders.put("X-Forwarded-For", String.format("%d.%d.%d.%d, 10.0.0.1", random.nextInt(1, 224),
+                                                              random.nextInt(256), random.nextInt(256), random.nextInt(1, 255)));
+        axis2MessageContext.setProperty(org.apache.axis2.context.MessageContext.TRANSPORT_HEADERS, transportHeaders);
+
+        JsonUtil.getNewJsonPayload(axis2MessageContext, new ByteArrayInputStream(payload), true, true);
+        return new Axis2MessageContext(axis2MessageContext, null, null);
+    }
+
+    private static byte[][] createPayloads(int count, int payloadSize) {
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        byte[][] payloads = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            String amount = String.valueOf(random.nextInt(1, 10000));
+            payloads[i] = BenchmarkPayloads.transaction(payloadSize, "txn-" + i,
+                                                        random.nextLong(1000000000000000L, 9999999999999999L),
+                                                        amount).getBytes(UTF_8);
+        }
+        return payloads;
+    }
+
+    static File writeConfig(File workDirectory, int port, Map<String, String> options) throws IOException {
+
+        Properties properties = new Properties();
+        properties.setProperty("dasHost", "localhost");
+        properties.setProperty("dasPort", String.valueOf(port));
+        properties.setProperty("dasUsername", "admin");
+        properties.setProperty("dasPassword", "admin");
+        properties.setProperty("streamName", "transactionStream");
+        properties.setProperty("streamVersion", "1.0.0");
+        properties.setProperty("reconnectInitialBackoffMillis", "200");
+        properties.setProperty("reconnectMaxBackoffMillis", "2000");
+
+        Map<String, String> publisherOptions = new HashMap<String, String>(options);
+        publisherOptions.keySet().removeAll(Arrays.asList(DRIVER_OPTIONS));
+        properties.putAll(publisherOptions);
+
+        File configFile = new File(workDirectory, "fraud-detection.properties");
+        OutputStream outputStream = new FileOutputStream(configFile);
+        try {
+            properties.store(outputStream, "Load driver");
+        } finally {
+            outputStream.close();
+        }
+        return configFile;
+    }
+
+    /**
+     * Creates a self-signed key store for localhost with the JDK keytool.
+     */
+    static File createKeyStore(File workDirectory) throws IOException, InterruptedException {
+
+        File keyStore = new File(workDirectory, "stand-in-das.jks");
+        String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "stand-in-das", "-keyalg", "RSA",
+                                             "-keysize", "2048", "-validity", "1", "-dname", "CN=localhost",
+                                             "-storetype", "JKS", "-keystore", keyStore.getAbsolutePath(),
+                                             "-storepass", KEY_STORE_PASSWORD, "-keypass", KEY_STORE_PASSWORD)
+                .inheritIO().start();
+        if (process.waitFor() != 0) {
+            throw new IOException("Cannot create the key store with " + keytool);
+        }
+        return keyStore;
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+
+        Map<String, String> options = new HashMap<String, String>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("-")) {
+                throw new IllegalArgumentException("Expected an option name but found : " + args[i]);
+            }
+            options.put(args[i].substring(1), args[i + 1]);
+        }
+        return options;
+    }
+
+    private static String get(Map<String, String> options, String name, String defaultValue) {
+        String value = options.get(name);
+        return value != null ? value : defaultValue;
+    }
+
+    private static class Result {
+
+        private final long[] sortedLatencies;
+        private final int count;
+
+        private Result(long[] sortedLatencies) {
+            this.sortedLatencies = sortedLatencies;
+            this.count = sortedLatencies.length;
+        }
+
+        /**
+         * Returns the given latency percentile in microseconds.
+         */
+        private double percentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100 * count) - 1;
+            return sortedLatencies[Math.max(0, Math.min(index, count - 1))] / 1000.0;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ *  Copyright WSO2 Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.wso2.carbon.apimgt.frauddetection;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures what the metrics add to a request: timing the four pipeline stages and counting one event, with every
+ * request timed and with the default sampling.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsBenchmark {
+
+    @Param({"true", "false"})
+    public boolean enabled;
+
+    @Param({"1", "8"})
+    public int sampleInterval;
+
+    private PublisherMetrics metrics;
+
+    @Setup
+    public void setUp() {
+        metrics = new PublisherMetrics();
+        metrics.setEnabled(enabled);
+        metrics.setSampleInterval(sampleInterval);
+    }
+
+    @Benchmark
+    public long recordEvent() {
+        long nanos = metrics.startTimer();
+        nanos = metrics.recordClientIPResolution(nanos);
+        nanos = metrics.recordMessageBuild(nanos);
+        nanos = metrics.recordFieldExtraction(nanos);
+        nanos = metrics.recordPublish(metrics.resumeTimer());
+        metrics.onPublished();
+        return nanos;
+    }
+}
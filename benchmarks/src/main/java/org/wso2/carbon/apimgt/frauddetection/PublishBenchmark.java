@@ -0,0 +1,105 @@
+/*
+ *  Copyright WSO2 Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.wso2.carbon.apimgt.frauddetection;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures TransactionDataPublisher.publish, i.e. the part of the request thread's work that hands the event over to
+ * the publisher threads. The events are drained by stub endpoints, so only the queue and the publisher threads are
+ * measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PublishBenchmark {
+
+    @Param({"drop-newest", "block"})
+    public String overflowPolicy;
+
+    @Param({"1", "3"})
+    public int endpointCount;
+
+    private TransactionDataPublisher publisher;
+
+    /**
+     * Payloads are built per thread up front, so only the publishing is measured.
+     */
+    @State(Scope.Thread)
+    public static class Payloads {
+
+        private final Object[][] payloads = new Object[1024][];
+        private int next;
+
+        @Setup
+        public void setUp() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < payloads.length; i++) {
+                payloads[i] = new Object[]{"txn-" + i, random.nextLong(1000000000000000L, 9999999999999999L), 5500.0,
+                        "USD", "betsy@buyer.com", "2313 Grand Manor, Cleopatra, NY, 13961-1041, USA",
+                        "2313 Grand Manor, Cleopatra, NY, 13961-1041, USA", "203.0.113.195", "I0010", 1,
+                        System.currentTimeMillis()};
+            }
+        }
+
+        Object[] next() {
+            return payloads[next++ & (payloads.length - 1)];
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+
+        DataPublisherConfig config = new DataPublisherConfig();
+        config.setPublishQueueOverflowPolicy(overflowPolicy);
+
+        DasEndpoint[] endpoints = new DasEndpoint[endpointCount];
+        for (int i = 0; i < endpointCount; i++) {
+            endpoints[i] = new StubDasEndpoint(String.format("tcp://das-%d:7611", i), config);
+        }
+
+        publisher = new TransactionDataPublisher();
+        publisher.init(config, endpoints);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        publisher.shutdown();
+    }
+
+    @Benchmark
+    public void publish(Payloads payloads) {
+        publisher.publish(payloads.next());
+    }
+}
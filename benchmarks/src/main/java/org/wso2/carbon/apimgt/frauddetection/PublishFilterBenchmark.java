@@ -0,0 +1,100 @@
+/*
+ *  Copyright WSO2 Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.wso2.carbon.apimgt.frauddetection;
+
+import org.apache.synapse.MessageContext;
+import org.apache.synapse.core.axis2.Axis2MessageContext;
+import org.apache.synapse.rest.RESTConstants;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures PublishFilter.accept for a health check which is skipped by path, a read which is skipped by method and a
+ * payment which is published by its method, path and content type, with a few filters and with the most filters which
+ * can be defined.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PublishFilterBenchmark {
+
+    @Param({"health", "read", "payment"})
+    public String request;
+
+    @Param({"4", "64"})
+    public int filterCount;
+
+    private MessageContext messageContext;
+    private PublishFilter publishFilter;
+
+    @Setup
+    public void setUp() {
+
+        // Filler filters on other resources go first, so the matching ones are found through the trie and the masks.
+        StringBuilder filters = new StringBuilder();
+        for (int i = 0; i < filterCount - 3; i++) {
+            filters.append(String.format("resource%d=skip:method=POST|PUT,path=/resource%d/*/items/**,header.X-Resource=%d;",
+                                         i, i, i));
+        }
+        filters.append("health=skip:path=/health|/status/**;");
+        filters.append("reads=skip:method=GET|HEAD|OPTIONS;");
+        filters.append("payments=publish:method=POST,path=/payments|/payments/*/capture,contentType=application/json");
+
+        DataPublisherConfig config = new DataPublisherConfig();
+        config.setPublishFilters(filters.toString());
+        config.setPublishFilterDefault(PublishFilter.ACTION_SKIP);
+        publishFilter = PublishFilter.create(config, new PublisherMetrics());
+
+        // Transport headers are case insensitive, as in the pass-through transport.
+        Map<String, String> transportHeaders = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        transportHeaders.put("Content-Type", "application/json; charset=UTF-8");
+        org.apache.axis2.context.MessageContext axis2MessageContext = new org.apache.axis2.context.MessageContext();
+        axis2MessageContext.setProperty(org.apache.axis2.context.MessageContext.TRANSPORT_HEADERS, transportHeaders);
+        messageContext = new Axis2MessageContext(axis2MessageContext, null, null);
+
+        if ("health".equals(request)) {
+            messageContext.setProperty(RESTConstants.REST_METHOD, "GET");
+            messageContext.setProperty(RESTConstants.REST_SUB_REQUEST_PATH, "/health");
+        } else if ("read".equals(request)) {
+            messageContext.setProperty(RESTConstants.REST_METHOD, "GET");
+            messageContext.setProperty(RESTConstants.REST_SUB_REQUEST_PATH, "/payments/4711?expand=items");
+        } else {
+            messageContext.setProperty(RESTConstants.REST_METHOD, "POST");
+            messageContext.setProperty(RESTConstants.REST_SUB_REQUEST_PATH, "/payments/4711/capture");
+        }
+    }
+
+    @Benchmark
+    public boolean accept() {
+        return publishFilter.accept(messageContext);
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ *  Copyright WSO2 Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.wso2.carbon.apimgt.frauddetection;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Writes a capture of synthetic transactions and replays it with TransactionReplayer against a stand-in DAS receiver,
+ * then reports the events per second received.
+ *
+ * Options, each given as '-name value' :
+ * requests (default 2000000), payloadSize (bytes, default 1024), itemCount (entries per request, default 1),
+ * port (default 17611), parallelism (default the number of cores), chunkSize (bytes, default 262144),
+ * and any publisher property from the properties file, such as publishBatchSize or eventEncoding.
+ */
+public class ReplayDriver {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final long DRAIN_TIMEOUT_MILLIS = 30000;
+
+    private static final String[] DRIVER_OPTIONS = {"requests", "payloadSize", "itemCount", "port", "parallelism",
+            "chunkSize"};
+
+    public static void main(String[] args) throws Exception {
+
+        Map<String, String> options = parseOptions(args);
+        int requests = Integer.parseInt(get(options, "requests", "2000000"));
+        int payloadSize = Integer.parseInt(get(options, "payloadSize", "1024"));
+        int itemCount = Integer.parseInt(get(options, "itemCount", "1"));
+        int port = Integer.parseInt(get(options, "port", "17611"));
+        String parallelism = get(options, "parallelism", String.valueOf(Runtime.getRuntime().availableProcessors()));
+        String chunkSize = get(options, "chunkSize", "262144");
+
+        File workDirectory = File.createTempFile("fraud-detection-replay", "");
+        if (!workDirectory.delete() || !workDirectory.mkdirs()) {
+            throw new IOException("Cannot create the working directory " + workDirectory);
+        }
+
+        File keyStore = LoadDriver.createKeyStore(workDirectory);
+        System.setProperty("javax.net.ssl.trustStore", keyStore.getAbsolutePath());
+        System.setProperty("javax.net.ssl.trustStorePassword", LoadDriver.KEY_STORE_PASSWORD);
+
+        StandInDasReceiver receiver = new StandInDasReceiver("localhost", port, keyStore.getAbsolutePath(),
+                                                             LoadDriver.KEY_STORE_PASSWORD);
+        receiver.start();
+
+        Map<String, String> publisherOptions = new HashMap<String, String>(options);
+        publisherOptions.keySet().removeAll(Arrays.asList(DRIVER_OPTIONS));
+        File configFile = LoadDriver.writeConfig(workDirectory, port, publisherOptions);
+
+        File capture = new File(workDirectory, "capture.ndjson");
+        System.out.println(String.format("Writing %d requests of %d bytes to %s.", requests, payloadSize, capture));
+        writeCapture(capture, requests, payloadSize, itemCount);
+        long expectedEvents = (long) requests * itemCount;
+
+        System.out.println(String.format("Replaying %d MB on %s threads.", capture.length() / (1024 * 1024), parallelism));
+        long start = System.nanoTime();
+        TransactionReplayer.main(new String[]{"-config", configFile.getAbsolutePath(), "-parallelism", parallelism,
+                                              "-chunkSize", chunkSize, capture.getAbsolutePath()});
+        long drainDeadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MILLIS;
+        while (receiver.getReceivedEventCount() < expectedEvents && System.currentTimeMillis() < drainDeadline) {
+            Thread.sleep(10);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        long received = receiver.getReceivedEventCount();
+        System.out.println();
+        System.out.println(String.format("Events received by DAS : %d of %d (%.0f/s)", received, expectedEvents,
+                                         received / seconds));
+        System.out.println(String.format("Replay throughput      : %.1f MB/s", capture.length() / seconds / (1024 * 1024)));
+        System.out.println(String.format("Events rejected by DAS : %d", receiver.getRejectedEventCount()));
+        System.out.println(String.format("Events not decodable   : %d", receiver.getUndecodableEventCount()));
+
+        receiver.shutdown();
+        System.exit(0);
+    }
+
+    /**
+     * Writes the requests one per line, cycling through a set of distinct transactions.
+     */
+    private static void writeCapture(File capture, int requests, int payloadSize, int itemCount) throws IOException {
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        byte[][] payloads = new byte[1024][];
+        for (int i = 0; i < payloads.length; i++) {
+            payloads[i] = BenchmarkPayloads.transaction(payloadSize, "txn-" + i,
+                                                        random.nextLong(1000000000000000L, 9999999999999999L),
+                                                        String.valueOf(random.nextInt(1, 10000)), itemCount).getBytes(UTF_8);
+        }
+
+        OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(capture), 1024 * 1024);
+        try {
+            for (int i = 0; i < requests; i++) {
+                outputStream.write(payloads[i % payloads.length]);
+                outputStream.write('\n');
+            }
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+
+        Map<String, String> options = new HashMap<String, String>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("-")) {
+                throw new IllegalArgumentException("Expected an option name but found : " + args[i]);
+            }
+            options.put(args[i].substring(1), args[i + 1]);
+        }
+        return options;
+    }
+
+    private static String get(Map<String, String> options, String name, String defaultValue) {
+        String value = options.get(name);
+        return value != null ? value : defaultValue;
+    }
+}
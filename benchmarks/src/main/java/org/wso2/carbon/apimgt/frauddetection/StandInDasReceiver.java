@@ -0,0 +1,315 @@
+/*
+ *  Copyright WSO2 Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.wso2.carbon.apimgt.frauddetection;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.thrift.server.TServer;
+import org.apache.thrift.server.TThreadPoolServer;
+import org.apache.thrift.transport.TSSLTransportFactory;
+import org.apache.thrift.transport.TServerSocket;
+import org.apache.thrift.transport.TServerTransport;
+import org.apache.thrift.transport.TTransportException;
+import org.wso2.carbon.databridge.commons.thrift.data.ThriftEventBundle;
+import org.wso2.carbon.databridge.commons.thrift.exception.ThriftAuthenticationException;
+import org.wso2.carbon.databridge.commons.thrift.exception.ThriftSessionExpiredException;
+import org.wso2.carbon.databridge.commons.thrift.exception.ThriftUndefinedEventTypeException;
+import org.wso2.carbon.databridge.commons.thrift.service.general.ThriftEventTransmissionService;
+import org.wso2.carbon.databridge.commons.thrift.service.secure.ThriftSecureEventTransmissionService;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A stand-in for the DAS Thrift receiver, for running the publisher without a DAS server.
+ *
+ * It serves the authentication service on the SSL port (receiver port + 100) and the event service on the receiver
+ * port, which is what the databridge thrift agent talks to. Every user is accepted and every stream is reported as
+ * defined. The received events are only counted, except that blocks of the compact stream are decoded to count the
+ * transactions in them. Latency, rejected bundles and disconnects can be injected.
+ */
+public class StandInDasReceiver {
+
+    private static final Log log = LogFactory.getLog(StandInDasReceiver.class);
+
+    private static final int SECURE_PORT_OFFSET = 100;
+    private static final int CLIENT_TIMEOUT_MILLIS = 30000;
+
+    private final String host;
+    private final int port;
+    private final String keyStorePath;
+    private final String keyStorePassword;
+    private final ReceiverService service = new ReceiverService();
+    private final Set<String> sessions = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService scheduler;
+
+    private final AtomicLong receivedEventCount = new AtomicLong();
+    private final AtomicLong receivedBundleCount = new AtomicLong();
+    private final AtomicLong rejectedEventCount = new AtomicLong();
+    private final AtomicLong disconnectCount = new AtomicLong();
+    private final CompactEventCodec.Decoder compactDecoder = new CompactEventCodec.Decoder();
+    private final CompactEventCodec.EventHandler discardingHandler = new CompactEventCodec.EventHandler() {
+        public void handle(long timestamp, Object[] payload) {
+        }
+    };
+
+    private volatile long latencyMillis;
+    private volatile double errorRate;
+
+    private TServer server;
+    private TServer secureServer;
+
+    public StandInDasReceiver(String host, int port, String keyStorePath, String keyStorePassword) {
+        this.host = host;
+        this.port = port;
+        this.keyStorePath = keyStorePath;
+        this.keyStorePassword = keyStorePassword;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "stand-in-das-scheduler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Sets the time each event bundle is held before it is acknowledged.
+     */
+    public void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * Sets the share of event bundles, between 0 and 1, which are rejected as being of an undefined stream.
+     */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    public synchronized void start() throws TTransportException, UnknownHostException {
+
+        TServerTransport serverTransport = new TServerSocket(new InetSocketAddress(host, port));
+        server = new TThreadPoolServer(new TThreadPoolServer.Args(serverTransport).processor(
+                new ThriftEventTransmissionService.Processor(service)));
+
+        TSSLTransportFactory.TSSLTransportParameters sslParameters = new TSSLTransportFactory.TSSLTransportParameters();
+        sslParameters.setKeyStore(keyStorePath, keyStorePassword);
+        TServerTransport secureServerTransport = TSSLTransportFactory.getServerSocket(
+                port + SECURE_PORT_OFFSET, CLIENT_TIMEOUT_MILLIS, InetAddress.getByName(host), sslParameters);
+        secureServer = new TThreadPoolServer(new TThreadPoolServer.Args(secureServerTransport).processor(
+                new ThriftSecureEventTransmissionService.Processor(service)));
+
+        serve(server, "stand-in-das-receiver");
+        serve(secureServer, "stand-in-das-authenticator");
+        log.info(String.format("Stand-in DAS receiver is listening on %s:%d (SSL %d).", host, port, port + SECURE_PORT_OFFSET));
+    }
+
+    public synchronized void stop() {
+
+        if (server != null) {
+            server.stop();
+            server = null;
+        }
+        if (secureServer != null) {
+            secureServer.stop();
+            secureServer = null;
+        }
+        sessions.clear();
+    }
+
+    /**
+     * Closes the listeners and drops all the sessions, then starts listening again after the given time. Publishers
+     * see this as the receiver going away.
+     */
+    public void disconnect(long downtimeMillis) {
+
+        stop();
+        disconnectCount.incrementAndGet();
+        log.info(String.format("Stand-in DAS receiver is down for %d ms.", downtimeMillis));
+
+        scheduler.schedule(new Runnable() {
+            public void run() {
+                try {
+                    start();
+                } catch (TTransportException e) {
+                    log.error("Cannot restart the stand-in DAS receiver", e);
+                } catch (UnknownHostException e) {
+                    log.error("Cannot restart the stand-in DAS receiver", e);
+                }
+            }
+        }, downtimeMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Disconnects every given period, for the given time.
+     */
+    public void scheduleDisconnects(long periodMillis, final long downtimeMillis) {
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                disconnect(downtimeMillis);
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+        stop();
+    }
+
+    public long getReceivedEventCount() {
+        return receivedEventCount.get();
+    }
+
+    public long getReceivedBundleCount() {
+        return receivedBundleCount.get();
+    }
+
+    public long getRejectedEventCount() {
+        return rejectedEventCount.get();
+    }
+
+    public long getDisconnectCount() {
+        return disconnectCount.get();
+    }
+
+    /**
+     * Returns the number of transactions in compact blocks which could not be decoded, as a block they depend on was
+     * lost.
+     */
+    public long getUndecodableEventCount() {
+        return compactDecoder.getUndecodableEventCount();
+    }
+
+    /**
+     * Returns the number of transactions in the bundle. The stand-in does not know the layout of the streams, so it
+     * only decodes bundles which hold nothing but compact events, whose only strings are the stream id and the block.
+     */
+    private int countTransactions(ThriftEventBundle eventBundle) {
+
+        List<String> strings = eventBundle.getStringAttributeList();
+        if (strings == null || strings.size() != 2 * eventBundle.getEventNum()) {
+            return eventBundle.getEventNum();
+        }
+        for (int i = 0; i < strings.size(); i += 2) {
+            if (!isCompactStreamId(strings.get(i))) {
+                return eventBundle.getEventNum();
+            }
+        }
+
+        int count = 0;
+        for (int i = 0; i < strings.size(); i += 2) {
+            count += compactDecoder.decode(strings.get(i + 1), discardingHandler);
+        }
+        return count;
+    }
+
+    private static boolean isCompactStreamId(String streamId) {
+        int separator = streamId.lastIndexOf(':');
+        return separator > 0 && streamId.substring(0, separator).endsWith(CompactEventCodec.COMPACT_STREAM_SUFFIX);
+    }
+
+    private void serve(final TServer server, String threadName) {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                server.serve();
+            }
+        }, threadName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Implements both the authentication and the event service, as DAS does.
+     */
+    private class ReceiverService implements ThriftEventTransmissionService.Iface,
+                                             ThriftSecureEventTransmissionService.Iface {
+
+        public String connect(String userName, String password) throws ThriftAuthenticationException {
+            String sessionId = UUID.randomUUID().toString();
+            sessions.add(sessionId);
+            return sessionId;
+        }
+
+        public void disconnect(String sessionId) {
+            sessions.remove(sessionId);
+        }
+
+        public String defineStream(String sessionId, String streamDefinition) throws ThriftSessionExpiredException {
+            checkSession(sessionId);
+            // Only the name and version matter for the stream id, which is all the publisher needs.
+            return String.valueOf(streamDefinition.hashCode());
+        }
+
+        public String findStreamId(String sessionId, String streamName, String streamVersion)
+                throws ThriftSessionExpiredException {
+            checkSession(sessionId);
+            return streamName + ":" + streamVersion;
+        }
+
+        public void publish(ThriftEventBundle eventBundle)
+                throws ThriftUndefinedEventTypeException, ThriftSessionExpiredException {
+
+            checkSession(eventBundle.getSessionId());
+
+            long latency = latencyMillis;
+            if (latency > 0) {
+                try {
+                    Thread.sleep(latency);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            double rate = errorRate;
+            if (rate > 0 && ThreadLocalRandom.current().nextDouble() < rate) {
+                rejectedEventCount.addAndGet(eventBundle.getEventNum());
+                throw new ThriftUndefinedEventTypeException("Rejected by the stand-in DAS receiver");
+            }
+
+            receivedBundleCount.incrementAndGet();
+            receivedEventCount.addAndGet(countTransactions(eventBundle));
+        }
+
+        public boolean deleteStreamById(String sessionId, String streamId) throws ThriftSessionExpiredException {
+            checkSession(sessionId);
+            return true;
+        }
+
+        public boolean deleteStreamByNameVersion(String sessionId, String streamName, String streamVersion)
+                throws ThriftSessionExpiredException {
+            checkSession(sessionId);
+            return true;
+        }
+
+        private void checkSession(String sessionId) throws ThriftSessionExpiredException {
+            if (!sessions.contains(sessionId)) {
+                throw new ThriftSessionExpiredException("Session " + sessionId + " is not known");
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ *  Copyright WSO2 Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.wso2.carbon.apimgt.frauddetection;
+
+import org.wso2.carbon.databridge.commons.Event;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A DAS endpoint that is always available and only counts the events it is given, so the publisher can be measured
+ * without a receiver. It can hold each publishing thread for a while, to stand in for a slow receiver.
+ */
+public class StubDasEndpoint extends DasEndpoint {
+
+    private final AtomicLong publishedCount = new AtomicLong();
+    private volatile long latencyMillis;
+
+    public StubDasEndpoint(String receiverUrl, DataPublisherConfig config) {
+        super(receiverUrl, config, null);
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return true;
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public void stop() {
+    }
+
+    /**
+     * Sets the time each publish call blocks for, as a call to a slow receiver would.
+     */
+    public void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    @Override
+    public void publish(Event transactionEvent) {
+        long latency = latencyMillis;
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        publishedCount.incrementAndGet();
+    }
+
+    public long getPublishedCount() {
+        return publishedCount.get();
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ *  Copyright WSO2 Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.wso2.carbon.apimgt.frauddetection;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.synapse.MessageContext;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes a representative sample of the transactions while DAS falls behind, instead of letting the latency grow
+ * until the publish queue overflows and drops events at random.
+ *
+ * The sampling rate follows an AIMD loop. Once per interval it is cut by a factor if the publish queue is fuller than
+ * allowed, or if it is not empty and the last batch reached DAS later than the latency SLO after it was published.
+ * Otherwise it is raised by a fixed step, up to 1. Whether a request is kept is decided once for all its transactions.
+ *
+ * Requests with a transaction above the amount threshold, and requests of flagged cards are always kept. A card is
+ * flagged when one of its requests breaks a velocity rule, and stays flagged for the flagged card window. Every kept
+ * transaction carries its sampling weight in its $samplingWeight attributes: 1 / rate, or 1 if it was always kept, so
+ * DAS aggregates can be scaled back up.
+ */
+public class AdaptiveSampler {
+
+    private static final Log log = LogFactory.getLog(AdaptiveSampler.class);
+
+    private static final int FLAGGED_CARD_CAPACITY = 65536;
+
+    private final ExtractionPlan plan;
+    private final PublisherRegistry.Entry publisherEntry;
+    private final PublisherMetrics metrics;
+
+    private final long latencySloMillis;
+    private final double maxQueueFill;
+    private final long intervalNanos;
+    private final double minRate;
+    private final double rateIncrease;
+    private final double rateDecrease;
+
+    private final int amountIndex;
+    private final double keepAmountAbove;
+    private final int cardIndex;
+    private final DuplicateFilter flaggedCards;
+
+    private volatile double rate = 1;
+    private final AtomicLong nextUpdateNanos;
+
+    private AdaptiveSampler(DataPublisherConfig config, ExtractionPlan plan, PublisherRegistry.Entry publisherEntry) {
+
+        this.plan = plan;
+        this.publisherEntry = publisherEntry;
+        this.metrics = publisherEntry.getPublisher().getMetrics();
+
+        this.latencySloMillis = config.getSamplingLatencySloMillis();
+        this.maxQueueFill = config.getSamplingMaxQueueFill();
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, config.getSamplingIntervalMillis()));
+        this.minRate = config.getSamplingMinRate();
+        this.rateIncrease = config.getSamplingRateIncrease();
+        this.rateDecrease = config.getSamplingRateDecrease();
+        this.nextUpdateNanos = new AtomicLong(System.nanoTime() + intervalNanos);
+
+        this.keepAmountAbove = config.getSamplingKeepAmountAbove();
+        this.amountIndex = keepAmountAbove > 0 ? plan.getAttributeIndex(config.getSamplingAmountAttribute()) : -1;
+        if (keepAmountAbove > 0 && amountIndex < 0) {
+            log.warn(String.format("Unknown sampling amount attribute '%s'. Transactions are not kept by their amount.",
+                                   config.getSamplingAmountAttribute()));
+        }
+        this.cardIndex = plan.getAttributeIndex(config.getVelocityCardAttribute());
+        this.flaggedCards = cardIndex >= 0 && config.getSamplingFlaggedCardMillis() > 0 ?
+                new DuplicateFilter(FLAGGED_CARD_CAPACITY, config.getSamplingFlaggedCardMillis()) : null;
+    }
+
+    /**
+     * Returns a sampler if sampling is enabled in the config, or null. Throws IllegalArgumentException if the rates are
+     * out of range.
+     */
+    public static AdaptiveSampler create(DataPublisherConfig config, ExtractionPlan plan,
+                                         PublisherRegistry.Entry publisherEntry) {
+
+        if (!config.isSamplingEnabled()) {
+            return null;
+        }
+        if (!(config.getSamplingMinRate() > 0 && config.getSamplingMinRate() <= 1)) {
+            throw new IllegalArgumentException(String.format("Invalid 'samplingMinRate' value : %s", config.getSamplingMinRate()));
+        }
+        if (!(config.getSamplingRateDecrease() > 0 && config.getSamplingRateDecrease() < 1)) {
+            throw new IllegalArgumentException(String.format("Invalid 'samplingRateDecrease' value : %s",
+                                                             config.getSamplingRateDecrease()));
+        }
+        if (!(config.getSamplingRateIncrease() > 0)) {
+            throw new IllegalArgumentException(String.format("Invalid 'samplingRateIncrease' value : %s",
+                                                             config.getSamplingRateIncrease()));
+        }
+
+        if (!plan.usesSamplingWeight()) {
+            log.warn(String.format("Transactions are sampled, but no stream attribute is mapped to %s.",
+                                   ExtractionPlan.SOURCE_SAMPLING_WEIGHT));
+        }
+        return new AdaptiveSampler(config, plan, publisherEntry);
+    }
+
+    /**
+     * Returns whether the transactions of the request are published, and sets their sampling weight if they are. Call
+     * after the velocity rules, so a violation is seen.
+     */
+    public boolean sample(MessageContext messageContext, Object[][] transactionStreamPayloads) {
+
+        updateRate(System.nanoTime());
+        double currentRate = rate;
+
+        double weight;
+        if (isAlwaysKept(messageContext, transactionStreamPayloads)) {
+            weight = 1;
+        } else if (currentRate >= 1 || ThreadLocalRandom.current().nextDouble() < currentRate) {
+            weight = 1 / currentRate;
+        } else {
+            metrics.onSampledOut(transactionStreamPayloads.length);
+            return false;
+        }
+
+        for (Object[] payload : transactionStreamPayloads) {
+            plan.setSamplingWeight(payload, weight);
+        }
+        return true;
+    }
+
+    public double getRate() {
+        return rate;
+    }
+
+    private boolean isAlwaysKept(MessageContext messageContext, Object[][] transactionStreamPayloads) {
+
+        Object card = cardIndex >= 0 ? transactionStreamPayloads[0][cardIndex] : null;
+        boolean flagged = card != null && flaggedCards != null;
+        if (messageContext.getProperty(VelocityRules.VIOLATION_PROPERTY) != null) {
+            if (flagged) {
+                // Flags the card, unless it is flagged already.
+                flaggedCards.isDuplicate(card, System.currentTimeMillis());
+            }
+            return true;
+        }
+        if (flagged && flaggedCards.contains(card, System.currentTimeMillis())) {
+            return true;
+        }
+
+        if (amountIndex >= 0) {
+            for (Object[] payload : transactionStreamPayloads) {
+                Object amount = payload[amountIndex];
+                if (amount instanceof Number && ((Number) amount).doubleValue() > keepAmountAbove) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Moves the rate once per interval. Only the thread which claims the interval updates it.
+     */
+    private void updateRate(long nowNanos) {
+
+        long next = nextUpdateNanos.get();
+        if (nowNanos - next < 0 || !nextUpdateNanos.compareAndSet(next, nowNanos + intervalNanos)) {
+            return;
+        }
+
+        TransactionDataPublisher publisher = publisherEntry.getPublisher();
+        int queueDepth = publisher.getQueueDepth();
+        boolean behind = queueDepth > maxQueueFill * publisher.getQueueCapacity() ||
+                (queueDepth > 0 && publisher.getDeliveryLatencyMillis() > latencySloMillis);
+
+        double oldRate = rate;
+        double newRate = behind ? Math.max(minRate, oldRate * rateDecrease) : Math.min(1, oldRate + rateIncrease);
+        rate = newRate;
+
+        if (oldRate >= 1 && newRate < 1) {
+            log.warn(String.format("DAS is falling behind. Publishing a sample of %.1f%% of the transactions.", newRate * 100));
+        } else if (oldRate < 1 && newRate >= 1) {
+            log.info("DAS has caught up. Publishing all the transactions.");
+        } else if (log.isDebugEnabled() && oldRate != newRate) {
+            log.debug(String.format("Sampling rate changed from %.3f to %.3f.", oldRate, newRate));
+        }
+    }
+}
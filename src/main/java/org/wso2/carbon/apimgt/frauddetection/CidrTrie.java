@@ -0,0 +1,353 @@
+/*
+ *  Copyright WSO2 Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.wso2.carbon.apimgt.frauddetection;
+
+import java.util.Arrays;
+
+/**
+ * A binary prefix trie over CIDR blocks, compiled once and then only read. IPv4 addresses are held as IPv4-mapped IPv6
+ * addresses, so both families share the trie and a lookup takes at most 128 steps whatever the number of blocks.
+ *
+ * Addresses are parsed straight from the characters of a string into two longs, without regular expressions or
+ * splitting.
+ */
+public final class CidrTrie {
+
+    private static final long IPV4_MAPPED_PREFIX = 0xFFFF00000000L;
+
+    // The zero and one child of node n are at 2n and 2n + 1. Node 0 is the root, so 0 also means "no child".
+    private int[] children = new int[128];
+    private boolean[] terminal = new boolean[64];
+    private int nodeCount = 1;
+
+    // IPv4 lookups start at the node of the IPv4-mapped prefix, rather than walking its 96 bits every time.
+    private int ipv4Root;
+    private boolean ipv4Covered;
+
+    private CidrTrie() {
+    }
+
+    /**
+     * Compiles a comma separated list of CIDR blocks, e.g. "10.0.0.0/8, 2001:db8::/32". A block without a prefix length
+     * is a single address. Throws IllegalArgumentException for an invalid block.
+     */
+    public static CidrTrie compile(String cidrList) {
+
+        CidrTrie trie = new CidrTrie();
+        long[] address = new long[2];
+        if (cidrList == null) {
+            return trie;
+        }
+
+        int start = 0;
+        while (start <= cidrList.length()) {
+            int end = cidrList.indexOf(',', start);
+            if (end < 0) {
+                end = cidrList.length();
+            }
+            int blockStart = skipWhitespace(cidrList, start, end);
+            int blockEnd = trimWhitespace(cidrList, blockStart, end);
+            if (blockStart < blockEnd) {
+                trie.insert(cidrList, blockStart, blockEnd, address);
+            }
+            start = end + 1;
+        }
+        trie.children = Arrays.copyOf(trie.children, trie.nodeCount * 2);
+        trie.terminal = Arrays.copyOf(trie.terminal, trie.nodeCount);
+        trie.findIPv4Root();
+        return trie;
+    }
+
+    public boolean isEmpty() {
+        return nodeCount == 1 && !terminal[0];
+    }
+
+    /**
+     * Returns whether the address, given as the two longs filled in by parseAddress, is in one of the blocks.
+     */
+    public boolean contains(long high, long low) {
+
+        if (high == 0 && (low >>> 32) == 0xFFFF) {
+            return ipv4Covered || (ipv4Root != 0 && contains(ipv4Root, low << 32, 0, 32));
+        }
+        return contains(0, high, low, 128);
+    }
+
+    /**
+     * Walks the given number of bits of the address, most significant first, from the given node.
+     */
+    private boolean contains(int node, long high, long low, int bits) {
+
+        for (int bit = 0; bit < bits; bit++) {
+            if (terminal[node]) {
+                return true;
+            }
+            long word = bit < 64 ? high : low;
+            node = children[2 * node + (int) ((word << (bit & 63)) >>> 63)];
+            if (node == 0) {
+                return false;
+            }
+        }
+        return terminal[node];
+    }
+
+    private void findIPv4Root() {
+
+        int node = 0;
+        for (int bit = 0; bit < 96; bit++) {
+            if (terminal[node]) {
+                ipv4Covered = true;
+                return;
+            }
+            node = children[2 * node + (bit >= 80 ? 1 : 0)];
+            if (node == 0) {
+                return;
+            }
+        }
+        ipv4Root = node;
+    }
+
+    /**
+     * Parses the IPv4 or IPv6 address in value[start, end) into address[0] (high 64 bits) and address[1] (low 64 bits),
+     * mapping IPv4 addresses into IPv6. Brackets and a port, as in "[2001:db8::1]:443" or "192.0.2.1:8080", and an IPv6
+     * zone are ignored. Returns false if it is not an address.
+     */
+    public static boolean parseAddress(String value, int start, int end, long[] address) {
+
+        if (start >= end) {
+            return false;
+        }
+
+        if (value.charAt(start) == '[') {
+            int closing = value.indexOf(']', start);
+            if (closing < 0 || closing >= end || (closing + 1 < end && value.charAt(closing + 1) != ':')) {
+                return false;
+            }
+            return parseIPv6(value, start + 1, closing, address);
+        }
+
+        int firstColon = value.indexOf(':', start);
+        if (firstColon < 0 || firstColon >= end) {
+            return parseIPv4(value, start, end, address);
+        }
+        // A single colon after dotted digits is an IPv4 address with a port.
+        int secondColon = value.indexOf(':', firstColon + 1);
+        if ((secondColon < 0 || secondColon >= end) && value.lastIndexOf('.', firstColon) >= start) {
+            return parseIPv4(value, start, firstColon, address);
+        }
+        return parseIPv6(value, start, end, address);
+    }
+
+    private void insert(String cidrList, int start, int end, long[] address) {
+
+        int slash = cidrList.indexOf('/', start);
+        int addressEnd = slash >= 0 && slash < end ? slash : end;
+        if (!parseAddress(cidrList, start, addressEnd, address)) {
+            throw new IllegalArgumentException(String.format("Invalid CIDR block : '%s'", cidrList.substring(start, end)));
+        }
+
+        int colon = cidrList.indexOf(':', start);
+        boolean ipv4 = colon < 0 || colon >= addressEnd;
+        int maxPrefixLength = ipv4 ? 32 : 128;
+        int prefixLength = maxPrefixLength;
+        if (addressEnd < end) {
+            prefixLength = parseNumber(cidrList, addressEnd + 1, end, 10);
+            if (prefixLength < 0 || prefixLength > maxPrefixLength) {
+                throw new IllegalArgumentException(String.format("Invalid CIDR block : '%s'", cidrList.substring(start, end)));
+            }
+        }
+        if (ipv4) {
+            prefixLength += 96;
+        }
+
+        int node = 0;
+        for (int bit = 0; bit < prefixLength; bit++) {
+            long word = bit < 64 ? address[0] : address[1];
+            int slot = 2 * node + (int) ((word << (bit & 63)) >>> 63);
+            if (children[slot] == 0) {
+                // newNode may grow the array, so it is called before the array is indexed.
+                int child = newNode();
+                children[slot] = child;
+            }
+            node = children[slot];
+        }
+        terminal[node] = true;
+    }
+
+    private int newNode() {
+        if (nodeCount == terminal.length) {
+            children = Arrays.copyOf(children, nodeCount * 4);
+            terminal = Arrays.copyOf(terminal, nodeCount * 2);
+        }
+        return nodeCount++;
+    }
+
+    private static boolean parseIPv4(String value, int start, int end, long[] address) {
+
+        long ipv4 = parseIPv4Bits(value, start, end);
+        if (ipv4 < 0) {
+            return false;
+        }
+        address[0] = 0;
+        address[1] = IPV4_MAPPED_PREFIX | ipv4;
+        return true;
+    }
+
+    /**
+     * Returns the 32 bits of the dotted quad, or -1 if it is not one.
+     */
+    private static long parseIPv4Bits(String value, int start, int end) {
+
+        long bits = 0;
+        int octets = 0;
+        int octetStart = start;
+        for (int i = start; i <= end; i++) {
+            if (i == end || value.charAt(i) == '.') {
+                if (i - octetStart > 3) {
+                    return -1;
+                }
+                int octet = parseNumber(value, octetStart, i, 10);
+                if (octet < 0 || octet > 255) {
+                    return -1;
+                }
+                bits = (bits << 8) | octet;
+                octets++;
+                octetStart = i + 1;
+            }
+        }
+        return octets == 4 ? bits : -1;
+    }
+
+    private static boolean parseIPv6(String value, int start, int end, long[] address) {
+
+        int zone = value.indexOf('%', start);
+        if (zone >= 0 && zone < end) {
+            end = zone;
+        }
+        address[0] = 0;
+        address[1] = 0;
+
+        int compressed = value.indexOf("::", start);
+        if (compressed < 0 || compressed >= end - 1) {
+            return parseGroups(value, start, end, 0, true, address) == 8;
+        }
+
+        // The groups after "::" are aligned to the end, and the ones it stands for stay zero.
+        int tailCount = countGroups(value, compressed + 2, end);
+        int headCount = parseGroups(value, start, compressed, 0, false, address);
+        if (headCount < 0 || headCount + tailCount > 7) {
+            return false;
+        }
+        return parseGroups(value, compressed + 2, end, 8 - tailCount, true, address) == tailCount;
+    }
+
+    /**
+     * Parses the colon separated 16 bit groups in value[start, end) into the address, from the given group position on,
+     * and returns the number of groups, or -1 if they are invalid. The last group may be an embedded IPv4 address,
+     * which takes two positions.
+     */
+    private static int parseGroups(String value, int start, int end, int position, boolean allowIPv4, long[] address) {
+
+        int count = 0;
+        int groupStart = start;
+        while (groupStart < end) {
+            int groupEnd = value.indexOf(':', groupStart);
+            if (groupEnd < 0 || groupEnd > end) {
+                groupEnd = end;
+            }
+
+            if (groupEnd == end && allowIPv4 && value.indexOf('.', groupStart) >= 0 && value.indexOf('.', groupStart) < end) {
+                long ipv4 = parseIPv4Bits(value, groupStart, end);
+                if (ipv4 < 0 || position + count > 6) {
+                    return -1;
+                }
+                setGroup(address, position + count++, ipv4 >>> 16);
+                setGroup(address, position + count++, ipv4 & 0xFFFF);
+                return count;
+            }
+
+            if (groupEnd - groupStart > 4 || position + count > 7) {
+                return -1;
+            }
+            int group = parseNumber(value, groupStart, groupEnd, 16);
+            if (group < 0) {
+                return -1;
+            }
+            setGroup(address, position + count++, group);
+
+            if (groupEnd == end - 1) {
+                // A trailing colon.
+                return -1;
+            }
+            groupStart = groupEnd + 1;
+        }
+        return count;
+    }
+
+    private static int countGroups(String value, int start, int end) {
+
+        if (start >= end) {
+            return 0;
+        }
+        int count = 1;
+        int lastColon = start - 1;
+        for (int i = start; i < end; i++) {
+            if (value.charAt(i) == ':') {
+                count++;
+                lastColon = i;
+            }
+        }
+        int dot = value.indexOf('.', lastColon + 1);
+        return dot >= 0 && dot < end ? count + 1 : count;
+    }
+
+    private static void setGroup(long[] address, int position, long bits) {
+        address[position >> 2] |= bits << (16 * (3 - (position & 3)));
+    }
+
+    /**
+     * Returns the number in value[start, end) in the given radix, or -1 if it is empty, too long or not a number.
+     */
+    private static int parseNumber(String value, int start, int end, int radix) {
+
+        if (start >= end || end - start > 5) {
+            return -1;
+        }
+        int number = 0;
+        for (int i = start; i < end; i++) {
+            int digit = Character.digit(value.charAt(i), radix);
+            if (digit < 0) {
+                return -1;
+            }
+            number = number * radix + digit;
+        }
+        return number;
+    }
+
+    static int skipWhitespace(String value, int start, int end) {
+        while (start < end && value.charAt(start) <= ' ') {
+            start++;
+        }
+        return start;
+    }
+
+    static int trimWhitespace(String value, int start, int end) {
+        while (end > start && value.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        return end;
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ *  Copyright WSO2 Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.wso2.carbon.apimgt.frauddetection;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tracks the health of the DAS connection.
+ *
+ * CLOSED : Events are published.
+ * OPEN : The connection has failed. A reconnect is scheduled after a jittered exponential backoff.
+ * HALF_OPEN : A reconnect attempt is in progress. It either closes the circuit or opens it again with a longer backoff.
+ *
+ * Request threads only read the state. Transitions happen on the publisher and reconnect threads.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final AtomicReference<State> state = new AtomicReference<State>(State.OPEN);
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final Random random = new Random();
+    private int failedAttempts;
+
+    public CircuitBreaker(long initialBackoffMillis, long maxBackoffMillis) {
+        this.initialBackoffMillis = Math.max(1, initialBackoffMillis);
+        this.maxBackoffMillis = Math.max(this.initialBackoffMillis, maxBackoffMillis);
+    }
+
+    public State getState() {
+        return state.get();
+    }
+
+    public boolean isClosed() {
+        return state.get() == State.CLOSED;
+    }
+
+    /**
+     * Moves a closed circuit to OPEN. Returns true only for the caller which made the transition, which is then
+     * responsible for scheduling the reconnect.
+     */
+    public boolean trip() {
+        return state.compareAndSet(State.CLOSED, State.OPEN);
+    }
+
+    /**
+     * Marks the start of a reconnect attempt.
+     */
+    public void attempt() {
+        state.set(State.HALF_OPEN);
+    }
+
+    public synchronized void onSuccess() {
+        failedAttempts = 0;
+        state.set(State.CLOSED);
+    }
+
+    public synchronized void onFailure() {
+        failedAttempts++;
+        state.set(State.OPEN);
+    }
+
+    /**
+     * Returns the delay before the next reconnect attempt. The delay doubles with every failed attempt up to the
+     * maximum, and a random half of it is jittered so that gateway nodes do not reconnect in lockstep.
+     */
+    public synchronized long nextBackoffMillis() {
+
+        long backoff = initialBackoffMillis << Math.min(failedAttempts, 30);
+        if (backoff <= 0 || backoff > maxBackoffMillis) {
+            backoff = maxBackoffMillis;
+        }
+
+        long half = backoff / 2;
+        return half + (long) (random.nextDouble() * (backoff - half));
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ *  Copyright WSO2 Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.wso2.carbon.apimgt.frauddetection;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.synapse.MessageContext;
+import org.apache.synapse.core.axis2.Axis2MessageContext;
+
+import java.util.Map;
+
+/**
+ * Resolves the client IP of a request. The 'X-Forwarded-For' header is only believed as far as trusted proxies wrote
+ * it: if the request comes from a trusted proxy, the hops are walked from the right past the trusted proxies, and the
+ * first other hop is the client. Anything to the left of it could have been sent by the client itself.
+ */
+public class ClientIPResolver {
+
+    private static final Log log = LogFactory.getLog(ClientIPResolver.class);
+
+    public static final String DEFAULT_TRUSTED_PROXIES = "10.0.0.0/8,172.16.0.0/12,192.168.0.0/16,127.0.0.0/8,::1/128,fc00::/7";
+
+    private static final String HTTP_HEADER_X_FORWARDED_FOR = "X-Forwarded-For";
+    private static final String HTTP_HEADER_MOCK_CLIENT_IP = "Fraud-Detection-Mock-Client-IP";
+
+    private final CidrTrie trustedProxies;
+    private final boolean mockClientIPEnabled;
+
+    public ClientIPResolver(CidrTrie trustedProxies, boolean mockClientIPEnabled) {
+        this.trustedProxies = trustedProxies;
+        this.mockClientIPEnabled = mockClientIPEnabled;
+    }
+
+    /**
+     * Creates the resolver of the given config. Throws IllegalArgumentException if a trusted proxy CIDR block is invalid.
+     */
+    public static ClientIPResolver create(DataPublisherConfig config) {
+
+        CidrTrie trustedProxies = CidrTrie.compile(config.getTrustedProxies());
+        if (config.isMockClientIPEnabled()) {
+            log.warn(String.format("The client IP can be set by the '%s' header. Do not enable this in production.",
+                                   HTTP_HEADER_MOCK_CLIENT_IP));
+        }
+        return new ClientIPResolver(trustedProxies, config.isMockClientIPEnabled());
+    }
+
+    public String resolve(MessageContext messageContext) {
+
+        org.apache.axis2.context.MessageContext axis2MessageContext = ((Axis2MessageContext) messageContext).getAxis2MessageContext();
+        Map<String, String> transportHeaders  = (Map) axis2MessageContext.getProperty(org.apache.axis2.context.MessageContext.TRANSPORT_HEADERS);
+
+        if (mockClientIPEnabled) {
+            String mockClientIP = transportHeaders.get(HTTP_HEADER_MOCK_CLIENT_IP);
+            if (mockClientIP != null && !mockClientIP.isEmpty()) {
+                if(log.isDebugEnabled()){
+                    log.debug(String.format("Retrieved the client IP '%s' from the HTTP header '%s'", mockClientIP, HTTP_HEADER_MOCK_CLIENT_IP));
+                }
+                return mockClientIP;
+            }
+        }
+
+        String remoteAddress = (String) axis2MessageContext.getProperty(org.apache.axis2.context.MessageContext.REMOTE_ADDR);
+        String xForwardedForHeaderValue = transportHeaders.get(HTTP_HEADER_X_FORWARDED_FOR);
+        long[] address = new long[2];
+        if (xForwardedForHeaderValue == null || xForwardedForHeaderValue.isEmpty() || !isTrustedProxy(remoteAddress, address)) {
+            if(log.isDebugEnabled()){
+                log.debug(String.format("Retrieved the client IP '%s' from the property '%s'", remoteAddress,
+                                        org.apache.axis2.context.MessageContext.REMOTE_ADDR));
+            }
+            return remoteAddress;
+        }
+
+        String clientIPAddress = getFirstUntrustedHop(xForwardedForHeaderValue, address);
+        if(log.isDebugEnabled()){
+            log.debug(String.format("Retrieved the client IP '%s' from the HTTP header '%s'", clientIPAddress, HTTP_HEADER_X_FORWARDED_FOR));
+        }
+        return clientIPAddress != null ? clientIPAddress : remoteAddress;
+    }
+
+    /**
+     * Returns the rightmost hop which is not a trusted proxy, or the leftmost hop if they all are. A hop which is not an
+     * address counts as untrusted.
+     */
+    String getFirstUntrustedHop(String xForwardedFor, long[] address) {
+
+        int leftmostStart = -1;
+        int leftmostEnd = -1;
+        int end = xForwardedFor.length();
+        while (true) {
+            int separator = xForwardedFor.lastIndexOf(',', end - 1);
+            int hopStart = CidrTrie.skipWhitespace(xForwardedFor, separator + 1, end);
+            int hopEnd = CidrTrie.trimWhitespace(xForwardedFor, hopStart, end);
+            if (hopStart < hopEnd) {
+                if (!CidrTrie.parseAddress(xForwardedFor, hopStart, hopEnd, address) ||
+                        !trustedProxies.contains(address[0], address[1])) {
+                    return xForwardedFor.substring(hopStart, hopEnd);
+                }
+                leftmostStart = hopStart;
+                leftmostEnd = hopEnd;
+            }
+            if (separator < 0) {
+                break;
+            }
+            end = separator;
+        }
+        return leftmostStart >= 0 ? xForwardedFor.substring(leftmostStart, leftmostEnd) : null;
+    }
+
+    private boolean isTrustedProxy(String remoteAddress, long[] address) {
+
+        // Without a peer address, e.g. on a local transport, nothing vouches for the header.
+        return remoteAddress != null &&
+               CidrTrie.parseAddress(remoteAddress, 0, remoteAddress.length(), address) &&
+               trustedProxies.contains(address[0], address[1]);
+    }
+}
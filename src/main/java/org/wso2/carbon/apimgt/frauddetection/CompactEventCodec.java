@@ -0,0 +1,630 @@
+/*
+ *  Copyright WSO2 Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.wso2.carbon.apimgt.frauddetection;
+
+import org.apache.axiom.util.base64.Base64Utils;
+import org.wso2.carbon.databridge.commons.Event;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A compact encoding for batches of transaction events. A batch is encoded into a block, which is sent as the single
+ * STRING attribute of one event on the compact stream, i.e. the transaction stream name with the ".compact" suffix.
+ *
+ * Values of the dictionary attributes, which repeat heavily across transactions, are sent once and then referred to by
+ * a small id. The dictionaries live for an epoch, which an encoder starts when it is created, i.e. for every connection,
+ * and again every DICTIONARY_RESET_BLOCKS blocks so a lost block cannot spoil the rest of a long lived connection. The
+ * body of a block can be deflated.
+ *
+ * A block is laid out as below. Integers are unsigned LEB128 varints, and signed ones are zigzag encoded first.
+ *
+ *   version (1 byte), flags (1 byte, bit 0 set if the body is deflated), epoch (8 bytes), sequence in the epoch,
+ *   body length, body.
+ *   body : event count, then per event the timestamp as the difference to the previous one (to 0 for the first), the
+ *   attribute count, and a tag and value per attribute.
+ *
+ * Dictionary entries carry their id, so a decoder which missed a block fails on references to the entries it missed
+ * instead of decoding the wrong values.
+ */
+public final class CompactEventCodec {
+
+    public static final String COMPACT_STREAM_SUFFIX = ".compact";
+    public static final String ENCODING_PLAIN = "plain";
+    public static final String ENCODING_COMPACT = "compact";
+    public static final String COMPRESSION_NONE = "none";
+    public static final String COMPRESSION_DEFLATE = "deflate";
+
+    static final int DICTIONARY_RESET_BLOCKS = 1024;
+    static final int MAX_DICTIONARY_SIZE = 4096;
+
+    private static final int VERSION = 1;
+    private static final int FLAG_DEFLATED = 1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int TAG_NULL = 0;
+    private static final int TAG_STRING = 1;
+    private static final int TAG_STRING_DEFINITION = 2;
+    private static final int TAG_STRING_REFERENCE = 3;
+    private static final int TAG_LONG = 4;
+    private static final int TAG_INT = 5;
+    private static final int TAG_DOUBLE = 6;
+    private static final int TAG_FLOAT = 7;
+    private static final int TAG_TRUE = 8;
+    private static final int TAG_FALSE = 9;
+
+    private CompactEventCodec() {
+    }
+
+    /**
+     * Returns whether the config sends events in the compact encoding. Throws IllegalArgumentException if the
+     * 'eventEncoding' or 'eventCompression' value is not known.
+     */
+    public static boolean isCompact(DataPublisherConfig config) {
+
+        String encoding = config.getEventEncoding() != null ? config.getEventEncoding().trim() : ENCODING_PLAIN;
+        if (ENCODING_PLAIN.equalsIgnoreCase(encoding)) {
+            return false;
+        }
+        if (!ENCODING_COMPACT.equalsIgnoreCase(encoding)) {
+            throw new IllegalArgumentException(String.format("Unknown 'eventEncoding' value : '%s'", encoding));
+        }
+        isDeflated(config);
+        return true;
+    }
+
+    /**
+     * Throws IllegalArgumentException if the 'eventEncoding' or 'eventCompression' value of the config is not known.
+     */
+    public static void validate(DataPublisherConfig config) {
+        isCompact(config);
+    }
+
+    /**
+     * Returns a new encoder for a connection of the given config.
+     */
+    public static Encoder createEncoder(DataPublisherConfig config) {
+
+        Set<String> dictionaryAttributeNames = new HashSet<String>();
+        if (config.getCompactDictionaryAttributes() != null) {
+            for (String name : config.getCompactDictionaryAttributes().split(",")) {
+                if (!name.trim().isEmpty()) {
+                    dictionaryAttributeNames.add(name.trim());
+                }
+            }
+        }
+        return new Encoder(config.getStreamAttributeNames(), dictionaryAttributeNames, isDeflated(config));
+    }
+
+    private static boolean isDeflated(DataPublisherConfig config) {
+
+        String compression = config.getEventCompression() != null ? config.getEventCompression().trim() : COMPRESSION_NONE;
+        if (COMPRESSION_NONE.equalsIgnoreCase(compression)) {
+            return false;
+        }
+        if (!COMPRESSION_DEFLATE.equalsIgnoreCase(compression)) {
+            throw new IllegalArgumentException(String.format("Unknown 'eventCompression' value : '%s'", compression));
+        }
+        return true;
+    }
+
+    /**
+     * Encodes batches for one connection. An encoder is not thread safe, and its blocks have to be sent in the order
+     * they were encoded.
+     */
+    public static final class Encoder {
+
+        private final boolean[] dictionaryAttributes;
+        private final boolean deflate;
+        private final List<Map<String, Integer>> dictionaries;
+        private final ByteWriter body = new ByteWriter(4096);
+        private final ByteWriter block = new ByteWriter(4096);
+        private final Deflater deflater;
+        private byte[] deflated = new byte[4096];
+
+        private long epoch;
+        private long sequence;
+
+        /**
+         * Creates an encoder for the given stream attributes. The values of the named dictionary attributes are
+         * dictionary coded.
+         */
+        public Encoder(String[] attributeNames, Collection<String> dictionaryAttributeNames, boolean deflate) {
+
+            this.dictionaryAttributes = new boolean[attributeNames.length];
+            this.dictionaries = new ArrayList<Map<String, Integer>>(attributeNames.length);
+            for (int i = 0; i < attributeNames.length; i++) {
+                dictionaryAttributes[i] = dictionaryAttributeNames.contains(attributeNames[i]);
+                dictionaries.add(dictionaryAttributes[i] ? new HashMap<String, Integer>() : null);
+            }
+            this.deflate = deflate;
+            this.deflater = deflate ? new Deflater(Deflater.BEST_SPEED) : null;
+            startEpoch();
+        }
+
+        /**
+         * Encodes the events into a block.
+         */
+        public String encode(List<Event> events) {
+
+            if (sequence == DICTIONARY_RESET_BLOCKS) {
+                startEpoch();
+            }
+
+            body.reset();
+            body.writeVarint(events.size());
+            long previousTimestamp = 0;
+            for (Event event : events) {
+                body.writeVarint(zigzag(event.getTimeStamp() - previousTimestamp));
+                previousTimestamp = event.getTimeStamp();
+
+                Object[] payload = event.getPayloadData();
+                body.writeVarint(payload.length);
+                for (int i = 0; i < payload.length; i++) {
+                    writeValue(payload[i], i < dictionaryAttributes.length && dictionaryAttributes[i] ? dictionaries.get(i) : null);
+                }
+            }
+
+            block.reset();
+            block.writeByte(VERSION);
+            block.writeByte(deflate ? FLAG_DEFLATED : 0);
+            block.writeLong(epoch);
+            block.writeVarint(sequence++);
+            block.writeVarint(body.size);
+            if (deflate) {
+                deflater.reset();
+                deflater.setInput(body.bytes, 0, body.size);
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int length = deflater.deflate(deflated);
+                    block.writeBytes(deflated, 0, length);
+                }
+            } else {
+                block.writeBytes(body.bytes, 0, body.size);
+            }
+            return Base64Utils.encode(block.bytes, 0, block.size);
+        }
+
+        private void writeValue(Object value, Map<String, Integer> dictionary) {
+
+            if (value == null) {
+                body.writeByte(TAG_NULL);
+            } else if (value instanceof String) {
+                String string = (String) value;
+                Integer id = dictionary != null ? dictionary.get(string) : null;
+                if (id != null) {
+                    body.writeByte(TAG_STRING_REFERENCE);
+                    body.writeVarint(id);
+                } else if (dictionary != null && dictionary.size() < MAX_DICTIONARY_SIZE) {
+                    id = dictionary.size();
+                    dictionary.put(string, id);
+                    body.writeByte(TAG_STRING_DEFINITION);
+                    body.writeVarint(id);
+                    body.writeString(string);
+                } else {
+                    body.writeByte(TAG_STRING);
+                    body.writeString(string);
+                }
+            } else if (value instanceof Long) {
+                body.writeByte(TAG_LONG);
+                body.writeVarint(zigzag((Long) value));
+            } else if (value instanceof Integer) {
+                body.writeByte(TAG_INT);
+                body.writeVarint(zigzag((Integer) value));
+            } else if (value instanceof Double) {
+                body.writeByte(TAG_DOUBLE);
+                body.writeLong(Double.doubleToLongBits((Double) value));
+            } else if (value instanceof Float) {
+                body.writeByte(TAG_FLOAT);
+                body.writeInt(Float.floatToIntBits((Float) value));
+            } else if (value instanceof Boolean) {
+                body.writeByte((Boolean) value ? TAG_TRUE : TAG_FALSE);
+            } else {
+                body.writeByte(TAG_STRING);
+                body.writeString(value.toString());
+            }
+        }
+
+        /**
+         * Starts a new epoch. Call this if a block could not be sent, as the later blocks may refer to its entries.
+         */
+        public void reset() {
+            startEpoch();
+        }
+
+        private void startEpoch() {
+            epoch = UUID.randomUUID().getMostSignificantBits();
+            sequence = 0;
+            for (Map<String, Integer> dictionary : dictionaries) {
+                if (dictionary != null) {
+                    dictionary.clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * Receives the events decoded from a block.
+     */
+    public interface EventHandler {
+
+        void handle(long timestamp, Object[] payload);
+    }
+
+    /**
+     * Decodes the blocks of any number of encoders. Blocks of an epoch may arrive out of order within a small window.
+     * Blocks which cannot be decoded, because a block they depend on was lost, are counted and skipped. Blocks whose
+     * body is truncated or corrupted are skipped too. They are counted if their event count can still be read.
+     */
+    public static final class Decoder {
+
+        static final int REORDER_WINDOW = 16;
+        private static final int MAX_EPOCHS = 256;
+        // The most a deflated stream can expand, which bounds the body length a deflated block can declare.
+        private static final int MAX_DEFLATE_RATIO = 1032;
+
+        private static final class EpochState {
+
+            private long expectedSequence;
+            private final TreeMap<Long, byte[]> pendingBlocks = new TreeMap<Long, byte[]>();
+            private final Map<Integer, List<String>> dictionaries = new HashMap<Integer, List<String>>();
+        }
+
+        private final Map<Long, EpochState> epochs = new LinkedHashMap<Long, EpochState>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, EpochState> eldest) {
+                return size() > MAX_EPOCHS;
+            }
+        };
+        private final Inflater inflater = new Inflater();
+        private long decodedEventCount;
+        private long undecodableEventCount;
+
+        /**
+         * Decodes a block, and the blocks it was holding back for it, and returns the number of events handed over.
+         * Throws IllegalArgumentException if the block is not a compact block.
+         */
+        public synchronized int decode(String encodedBlock, EventHandler handler) {
+
+            byte[] block = Base64Utils.decode(encodedBlock);
+            ByteReader reader = new ByteReader(block, 0, block.length);
+            if (reader.readByte() != VERSION) {
+                throw new IllegalArgumentException("Unknown compact block version");
+            }
+            reader.readByte();
+            long epoch = reader.readLong();
+            long sequence = reader.readVarint();
+
+            EpochState state = epochs.get(epoch);
+            if (state == null) {
+                state = new EpochState();
+                epochs.put(epoch, state);
+            }
+
+            if (sequence < state.expectedSequence) {
+                undecodableEventCount += countEvents(block);
+                return 0;
+            }
+            state.pendingBlocks.put(sequence, block);
+
+            // Give up on a missing block once too many later blocks are waiting for it.
+            if (state.pendingBlocks.size() > REORDER_WINDOW && !state.pendingBlocks.containsKey(state.expectedSequence)) {
+                state.expectedSequence = state.pendingBlocks.firstKey();
+            }
+
+            int count = 0;
+            byte[] next;
+            while ((next = state.pendingBlocks.remove(state.expectedSequence)) != null) {
+                state.expectedSequence++;
+                count += decodeBlock(next, state, handler);
+            }
+            return count;
+        }
+
+        public synchronized long getDecodedEventCount() {
+            return decodedEventCount;
+        }
+
+        public synchronized long getUndecodableEventCount() {
+            return undecodableEventCount;
+        }
+
+        private int decodeBlock(byte[] block, EpochState state, EventHandler handler) {
+
+            ByteReader body;
+            int eventCount;
+            try {
+                body = readBody(block);
+                eventCount = body.readLength();
+            } catch (DataFormatException e) {
+                return 0;
+            } catch (IllegalArgumentException e) {
+                return 0;
+            }
+
+            List<Object[]> payloads = new ArrayList<Object[]>(eventCount);
+            long[] timestamps = new long[eventCount];
+            long timestamp = 0;
+            try {
+                for (int i = 0; i < eventCount; i++) {
+                    timestamp += unzigzag(body.readVarint());
+                    timestamps[i] = timestamp;
+                    Object[] payload = new Object[body.readLength()];
+                    for (int j = 0; j < payload.length; j++) {
+                        payload[j] = readValue(body, state, j);
+                    }
+                    payloads.add(payload);
+                }
+            } catch (IllegalStateException e) {
+                // A reference to a dictionary entry of a lost block.
+                undecodableEventCount += eventCount;
+                return 0;
+            } catch (IllegalArgumentException e) {
+                // A truncated or corrupted body.
+                undecodableEventCount += eventCount;
+                return 0;
+            }
+
+            for (int i = 0; i < eventCount; i++) {
+                handler.handle(timestamps[i], payloads.get(i));
+            }
+            decodedEventCount += eventCount;
+            return eventCount;
+        }
+
+        private ByteReader readBody(byte[] block) throws DataFormatException {
+
+            ByteReader header = new ByteReader(block, 0, block.length);
+            header.readByte();
+            int flags = header.readByte();
+            header.readLong();
+            header.readVarint();
+            long bodyLength = header.readVarint();
+            int blockBodyLength = block.length - header.position;
+
+            if ((flags & FLAG_DEFLATED) == 0) {
+                if (bodyLength < 0 || bodyLength > blockBodyLength) {
+                    throw new DataFormatException("Truncated compact block");
+                }
+                return new ByteReader(block, header.position, (int) bodyLength);
+            }
+            if (bodyLength < 0 || bodyLength > (long) blockBodyLength * MAX_DEFLATE_RATIO) {
+                throw new DataFormatException("Malformed body length in compact block");
+            }
+            byte[] body = new byte[(int) bodyLength];
+            inflater.reset();
+            inflater.setInput(block, header.position, blockBodyLength);
+            int length = 0;
+            while (length < body.length && !inflater.finished()) {
+                int inflated = inflater.inflate(body, length, body.length - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Truncated compact block");
+                }
+                length += inflated;
+            }
+            return new ByteReader(body, 0, length);
+        }
+
+        private int countEvents(byte[] block) {
+            try {
+                return readBody(block).readLength();
+            } catch (DataFormatException e) {
+                return 0;
+            } catch (IllegalArgumentException e) {
+                return 0;
+            }
+        }
+
+        private Object readValue(ByteReader reader, EpochState state, int attributeIndex) {
+
+            int tag = reader.readByte();
+            switch (tag) {
+                case TAG_NULL:
+                    return null;
+                case TAG_STRING:
+                    return reader.readString();
+                case TAG_STRING_DEFINITION: {
+                    long id = reader.readVarint();
+                    if (id < 0 || id >= MAX_DICTIONARY_SIZE) {
+                        throw new IllegalArgumentException(String.format("Dictionary entry %d out of range", id));
+                    }
+                    String value = reader.readString();
+                    List<String> dictionary = state.dictionaries.get(attributeIndex);
+                    if (dictionary == null) {
+                        dictionary = new ArrayList<String>();
+                        state.dictionaries.put(attributeIndex, dictionary);
+                    }
+                    while (dictionary.size() <= id) {
+                        dictionary.add(null);
+                    }
+                    dictionary.set((int) id, value);
+                    return value;
+                }
+                case TAG_STRING_REFERENCE: {
+                    long id = reader.readVarint();
+                    List<String> dictionary = state.dictionaries.get(attributeIndex);
+                    String value = dictionary != null && id >= 0 && id < dictionary.size() ? dictionary.get((int) id) : null;
+                    if (value == null) {
+                        throw new IllegalStateException(String.format("Unknown dictionary entry %d of attribute %d", id,
+                                                                      attributeIndex));
+                    }
+                    return value;
+                }
+                case TAG_LONG:
+                    return unzigzag(reader.readVarint());
+                case TAG_INT:
+                    return (int) unzigzag(reader.readVarint());
+                case TAG_DOUBLE:
+                    return Double.longBitsToDouble(reader.readLong());
+                case TAG_FLOAT:
+                    return Float.intBitsToFloat(reader.readInt());
+                case TAG_TRUE:
+                    return Boolean.TRUE;
+                case TAG_FALSE:
+                    return Boolean.FALSE;
+                default:
+                    throw new IllegalArgumentException(String.format("Unknown compact value tag %d", tag));
+            }
+        }
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static final class ByteWriter {
+
+        private byte[] bytes;
+        private int size;
+
+        private ByteWriter(int capacity) {
+            bytes = new byte[capacity];
+        }
+
+        private void reset() {
+            size = 0;
+        }
+
+        private void ensureCapacity(int extra) {
+            if (size + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+            }
+        }
+
+        private void writeByte(int value) {
+            ensureCapacity(1);
+            bytes[size++] = (byte) value;
+        }
+
+        private void writeVarint(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        private void writeInt(int value) {
+            ensureCapacity(4);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                bytes[size++] = (byte) (value >>> shift);
+            }
+        }
+
+        private void writeLong(long value) {
+            ensureCapacity(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                bytes[size++] = (byte) (value >>> shift);
+            }
+        }
+
+        private void writeBytes(byte[] source, int offset, int length) {
+            ensureCapacity(length);
+            System.arraycopy(source, offset, bytes, size, length);
+            size += length;
+        }
+
+        private void writeString(String value) {
+            byte[] utf8 = value.getBytes(UTF_8);
+            writeVarint(utf8.length);
+            writeBytes(utf8, 0, utf8.length);
+        }
+    }
+
+    private static final class ByteReader {
+
+        private final byte[] bytes;
+        private final int limit;
+        private int position;
+
+        private ByteReader(byte[] bytes, int offset, int length) {
+            this.bytes = bytes;
+            this.position = offset;
+            this.limit = offset + length;
+        }
+
+        private int readByte() {
+            if (position >= limit) {
+                throw new IllegalArgumentException("Truncated compact block");
+            }
+            return bytes[position++] & 0xFF;
+        }
+
+        private long readVarint() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint in compact block");
+        }
+
+        private int readInt() {
+            int value = 0;
+            for (int i = 0; i < 4; i++) {
+                value = (value << 8) | readByte();
+            }
+            return value;
+        }
+
+        private long readLong() {
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | readByte();
+            }
+            return value;
+        }
+
+        /**
+         * Reads a count or a length, which cannot be more than the bytes left, as every item takes at least one.
+         */
+        private int readLength() {
+            long length = readVarint();
+            if (length < 0 || length > limit - position) {
+                throw new IllegalArgumentException("Truncated compact block");
+            }
+            return (int) length;
+        }
+
+        private String readString() {
+            int length = readLength();
+            String value = new String(bytes, position, length, UTF_8);
+            position += length;
+            return value;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ *  Copyright WSO2 Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.wso2.carbon.apimgt.frauddetection;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a file for changes on a daemon thread. Editors and deployment tools often write a file in several steps, so
+ * the listener is called once the file has been quiet for a short while.
+ */
+public class ConfigFileWatcher {
+
+    private static final Log log = LogFactory.getLog(ConfigFileWatcher.class);
+
+    private static final long QUIET_PERIOD_MILLIS = 500;
+
+    /**
+     * Called on the watcher thread after the file has changed.
+     */
+    public interface ChangeListener {
+
+        void onChange(File file);
+    }
+
+    private final File file;
+    private final ChangeListener listener;
+    private final WatchService watchService;
+    private final Thread watcherThread;
+
+    public ConfigFileWatcher(File file, ChangeListener listener) throws IOException {
+
+        this.file = file.getAbsoluteFile();
+        this.listener = listener;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.file.getParentFile().toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                                                    StandardWatchEventKinds.ENTRY_MODIFY);
+
+        watcherThread = new Thread(new Runnable() {
+            public void run() {
+                watch();
+            }
+        }, "fraud-detection-config-watcher");
+        watcherThread.setDaemon(true);
+    }
+
+    public void start() {
+        watcherThread.start();
+        log.info(String.format("Watching '%s' for changes.", file));
+    }
+
+    public void stop() {
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            log.warn("Cannot close the config file watcher.", e);
+        }
+        watcherThread.interrupt();
+    }
+
+    private void watch() {
+
+        try {
+            while (true) {
+                if (!isFileChanged(watchService.take())) {
+                    continue;
+                }
+
+                // Wait for the writes to settle, so a half written file is not picked up.
+                WatchKey key;
+                while ((key = watchService.poll(QUIET_PERIOD_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                    isFileChanged(key);
+                }
+
+                try {
+                    listener.onChange(file);
+                } catch (RuntimeException e) {
+                    log.error(String.format("Cannot apply the changes of '%s'.", file), e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            // The watcher has been stopped.
+        }
+    }
+
+    /**
+     * Returns whether the events of the key are about the watched file, and resets the key.
+     */
+    private boolean isFileChanged(WatchKey key) {
+
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            Object context = event.context();
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW ||
+                    (context instanceof Path && file.getName().equals(((Path) context).getFileName().toString()))) {
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ *  Copyright WSO2 Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.wso2.carbon.apimgt.frauddetection;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Routes events to DAS endpoints by consistent hashing on a partition key, so that all the events of a key land on
+ * the same analytics node.
+ *
+ * Every endpoint is placed on the ring at a number of virtual node positions. A key goes to the first available
+ * endpoint clockwise from its hash. When an endpoint is down, only its keys move on to the next endpoint on the ring.
+ */
+public class ConsistentHashRing {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final DasEndpoint[] endpoints;
+    private final long[] positions;
+    private final int[] owners;
+
+    public ConsistentHashRing(DasEndpoint[] endpoints, int virtualNodes) {
+
+        this.endpoints = endpoints;
+
+        int size = endpoints.length * virtualNodes;
+        long[][] nodes = new long[size][];
+        for (int i = 0; i < endpoints.length; i++) {
+            for (int v = 0; v < virtualNodes; v++) {
+                nodes[i * virtualNodes + v] = new long[]{hash(endpoints[i].getReceiverUrl() + "#" + v), i};
+            }
+        }
+
+        Arrays.sort(nodes, new Comparator<long[]>() {
+            public int compare(long[] a, long[] b) {
+                return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+            }
+        });
+
+        this.positions = new long[size];
+        this.owners = new int[size];
+        for (int i = 0; i < size; i++) {
+            positions[i] = nodes[i][0];
+            owners[i] = (int) nodes[i][1];
+        }
+    }
+
+    /**
+     * Returns the available endpoint owning the key, or null if no endpoint is available.
+     */
+    public DasEndpoint select(Object key) {
+
+        if (endpoints.length == 1) {
+            return endpoints[0].isAvailable() ? endpoints[0] : null;
+        }
+
+        int index = Arrays.binarySearch(positions, hash(key));
+        if (index < 0) {
+            index = -index - 1;
+        }
+
+        for (int i = 0; i < positions.length; i++) {
+            DasEndpoint endpoint = endpoints[owners[(index + i) % positions.length]];
+            if (endpoint.isAvailable()) {
+                return endpoint;
+            }
+        }
+        return null;
+    }
+
+    public DasEndpoint[] getEndpoints() {
+        return endpoints;
+    }
+
+    static long hash(Object key) {
+
+        if (key == null) {
+            return 0;
+        }
+        if (key instanceof Long || key instanceof Integer) {
+            return mix(((Number) key).longValue());
+        }
+
+        // FNV-1a over the UTF-8 bytes, then mixed so that similar keys spread over the ring.
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.toString().getBytes(UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+}
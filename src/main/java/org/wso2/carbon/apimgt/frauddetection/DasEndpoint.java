@@ -0,0 +1,424 @@
+/*
+ *  Copyright WSO2 Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.wso2.carbon.apimgt.frauddetection;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.databridge.agent.thrift.DataPublisher;
+import org.wso2.carbon.databridge.agent.thrift.exception.AgentException;
+import org.wso2.carbon.databridge.commons.Event;
+import org.wso2.carbon.databridge.commons.exception.AuthenticationException;
+import org.wso2.carbon.databridge.commons.exception.TransportException;
+
+import java.net.MalformedURLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single DAS receiver, with its own connection and circuit breaker.
+ */
+public class DasEndpoint {
+
+    private static final Log log = LogFactory.getLog(DasEndpoint.class);
+
+    private final String receiverUrl;
+    private final String username;
+    private final String password;
+    private final String streamName;
+    private final String streamVersion;
+    private final CircuitBreaker circuitBreaker;
+    private final ScheduledExecutorService reconnectExecutor;
+
+    private final DataPublisherConfig compactConfig;
+    private final StreamIdCache streamIdCache;
+    private final String streamDefinition;
+    private String cachedStreamId;
+    private String cachedCompactStreamId;
+    // Set until the first connection, made with the cached stream ids, has succeeded or failed.
+    private volatile boolean starting;
+    // Limits the batches published to this endpoint at the same time. Only set in the virtual executor mode.
+    private Semaphore publishPermits;
+
+    // Replaced as a whole, so a publish always pairs a connection with its own stream ids.
+    private volatile Connection connection;
+
+    /**
+     * Told when the endpoint has connected and its circuit is closed again.
+     */
+    public interface ConnectionListener {
+        void onConnected(DasEndpoint endpoint);
+    }
+
+    private volatile ConnectionListener connectionListener;
+
+    /**
+     * A connection to the receiver, with the id of the stream and, with the compact encoding, its compact stream.
+     */
+    private static final class Connection {
+
+        private final DataPublisher dataPublisher;
+        private final String streamId;
+        private final CompactStream compactStream;
+
+        private Connection(DataPublisher dataPublisher, String streamId, CompactStream compactStream) {
+            this.dataPublisher = dataPublisher;
+            this.streamId = streamId;
+            this.compactStream = compactStream;
+        }
+    }
+
+    /**
+     * The compact stream of a connection, and the encoder of its blocks.
+     */
+    private static final class CompactStream {
+
+        private final String streamId;
+        private final CompactEventCodec.Encoder encoder;
+
+        private CompactStream(String streamId, CompactEventCodec.Encoder encoder) {
+            this.streamId = streamId;
+            this.encoder = encoder;
+        }
+    }
+
+    public DasEndpoint(String receiverUrl, DataPublisherConfig config, ScheduledExecutorService reconnectExecutor) {
+        this.receiverUrl = receiverUrl;
+        this.username = config.getDasUsername();
+        this.password = config.getDasPassword();
+        this.streamName = config.getStreamName();
+        this.streamVersion = config.getStreamVersion();
+        this.circuitBreaker = new CircuitBreaker(config.getReconnectInitialBackoffMillis(), config.getReconnectMaxBackoffMillis());
+        this.reconnectExecutor = reconnectExecutor;
+        this.compactConfig = CompactEventCodec.isCompact(config) ? config : null;
+        this.streamIdCache = StreamIdCache.create(config);
+        this.streamDefinition = Arrays.toString(config.getStreamAttributeNames());
+
+        if(streamIdCache != null){
+            cachedStreamId = streamIdCache.get(receiverUrl, username, streamName, streamVersion, streamDefinition);
+            if(compactConfig != null){
+                cachedCompactStreamId = streamIdCache.get(receiverUrl, username, getCompactStreamName(), streamVersion,
+                                                          streamDefinition);
+            }
+            starting = cachedStreamId != null && (compactConfig == null || cachedCompactStreamId != null);
+        }
+    }
+
+    public String getReceiverUrl() {
+        return receiverUrl;
+    }
+
+    public String getStreamId() {
+        Connection currentConnection = connection;
+        return currentConnection != null ? currentConnection.streamId : null;
+    }
+
+    public boolean isAvailable() {
+        return circuitBreaker.isClosed();
+    }
+
+    public CircuitBreaker.State getState() {
+        return circuitBreaker.getState();
+    }
+
+    /**
+     * Returns whether the stream ids are known from the cache and the first connection is still being made, so events
+     * can be accepted for this endpoint although it is not available yet.
+     */
+    public boolean isStarting() {
+        return starting;
+    }
+
+    /**
+     * Connects to the receiver, and keeps retrying in the background if it cannot be reached.
+     */
+    public void start() {
+        if(connect()){
+            log.info(String.format("Connected to DAS at '%s'.", receiverUrl));
+        }else{
+            scheduleReconnect();
+        }
+    }
+
+    public void stop() {
+        Connection currentConnection = connection;
+        if(currentConnection != null){
+            currentConnection.dataPublisher.stop();
+        }
+    }
+
+    /**
+     * Limits the number of threads publishing to this endpoint at the same time. Called before the publisher threads
+     * are started.
+     */
+    void limitConcurrency(int maxConcurrency) {
+        publishPermits = new Semaphore(maxConcurrency);
+    }
+
+    void setConnectionListener(ConnectionListener connectionListener) {
+        this.connectionListener = connectionListener;
+    }
+
+    void acquirePublishPermit() {
+        if(publishPermits != null){
+            publishPermits.acquireUninterruptibly();
+        }
+    }
+
+    void releasePublishPermit() {
+        if(publishPermits != null){
+            publishPermits.release();
+        }
+    }
+
+    /**
+     * Publishes the event on the current connection. A failure of a connection which has been replaced meanwhile, e.g.
+     * because it was stopped by a reconnect, is not a failure of the endpoint, so the event is published again on the
+     * new one.
+     */
+    public void publish(Event transactionEvent) throws AgentException {
+
+        Connection currentConnection = connection;
+        while(true){
+            transactionEvent.setStreamId(currentConnection.streamId);
+            try {
+                currentConnection.dataPublisher.publish(transactionEvent);
+                return;
+            } catch (AgentException e) {
+                currentConnection = getReplacement(currentConnection, e);
+            }
+        }
+    }
+
+    /**
+     * Publishes the events as one block on the compact stream. Blocks are encoded and handed to the connection in the
+     * same order, so the receiver sees the dictionary entries before the references to them. Like publish(Event), a
+     * block which fails on a replaced connection is encoded and published again on the new one.
+     */
+    public void publishCompact(List<Event> transactionEvents) throws AgentException {
+
+        Connection currentConnection = connection;
+        while(true){
+            CompactStream currentCompactStream = currentConnection.compactStream;
+            synchronized (currentCompactStream) {
+                String block = currentCompactStream.encoder.encode(transactionEvents);
+                try {
+                    currentConnection.dataPublisher.publish(new Event(currentCompactStream.streamId,
+                                                                      System.currentTimeMillis(), null, null,
+                                                                      new Object[]{block}));
+                    return;
+                } catch (AgentException e) {
+                    currentCompactStream.encoder.reset();
+                    currentConnection = getReplacement(currentConnection, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the connection which has replaced the given failed one, or rethrows its failure if it is still current.
+     */
+    private Connection getReplacement(Connection failedConnection, AgentException e) throws AgentException {
+
+        Connection currentConnection = connection;
+        if(currentConnection == failedConnection){
+            throw e;
+        }
+        if(log.isDebugEnabled()){
+            log.debug(String.format("Publishing to DAS at '%s' failed on a replaced connection. Publishing on the new one.",
+                                    receiverUrl));
+        }
+        return currentConnection;
+    }
+
+    /**
+     * Called by the publisher threads when the receiver rejects an event. Only the first failure opens the circuit and
+     * schedules a reconnect.
+     */
+    public void onPublishFailure(AgentException e) {
+
+        if(circuitBreaker.trip()){
+            log.error(String.format("Cannot publish transaction stream payload to DAS at '%s'. Publishing to it is suspended until it is reachable.",
+                                    receiverUrl), e);
+            circuitBreaker.onFailure();
+            scheduleReconnect();
+        }
+    }
+
+    /**
+     * Opens a new connection to DAS and swaps it in. Runs on the initializing thread or the reconnect thread, never on
+     * a request thread. The first connection uses the cached stream ids, if any, and checks them in the background.
+     */
+    private boolean connect() {
+
+        boolean fromCache = starting;
+        circuitBreaker.attempt();
+        try {
+            DataPublisher newDataPublisher = new DataPublisher(receiverUrl, username, password);
+            String newStreamId = fromCache ? cachedStreamId : findStreamId(newDataPublisher, streamName);
+
+            if(newStreamId == null){
+                newDataPublisher.stop();
+                circuitBreaker.onFailure();
+                return false;
+            }
+
+            CompactStream newCompactStream = null;
+            if(compactConfig != null){
+                String compactStreamId = fromCache ? cachedCompactStreamId :
+                        findStreamId(newDataPublisher, getCompactStreamName());
+                if(compactStreamId == null){
+                    newDataPublisher.stop();
+                    circuitBreaker.onFailure();
+                    return false;
+                }
+                // A new connection starts a new epoch, so the receiver never depends on blocks sent on the old one.
+                newCompactStream = new CompactStream(compactStreamId, CompactEventCodec.createEncoder(compactConfig));
+            }
+
+            Connection oldConnection;
+            synchronized (this){
+                oldConnection = connection;
+                connection = new Connection(newDataPublisher, newStreamId, newCompactStream);
+            }
+            circuitBreaker.onSuccess();
+
+            // Publishes still in flight on the old connection fail over to the new one.
+            if(oldConnection != null){
+                oldConnection.dataPublisher.stop();
+            }
+            if(fromCache){
+                scheduleVerification(newDataPublisher);
+            }
+            ConnectionListener currentConnectionListener = connectionListener;
+            if(currentConnectionListener != null){
+                currentConnectionListener.onConnected(this);
+            }
+            return true;
+
+        } catch (MalformedURLException e) {
+            logConnectionError(e);
+        } catch (AgentException e) {
+            logConnectionError(e);
+        } catch (AuthenticationException e) {
+            logConnectionError(e);
+        } catch (TransportException e) {
+            logConnectionError(e);
+        } finally {
+            starting = false;
+        }
+
+        circuitBreaker.onFailure();
+        return false;
+    }
+
+    /**
+     * Looks the stream up in DAS and caches its id. Returns null if the stream is not defined.
+     */
+    private String findStreamId(DataPublisher connection, String name) throws AgentException {
+
+        String foundStreamId = connection.findStreamId(name, streamVersion);
+        if(foundStreamId == null){
+            log.error(String.format("Stream '%s:%s' is not defined in DAS at '%s'.", name, streamVersion, receiverUrl));
+        }else if(streamIdCache != null){
+            streamIdCache.put(receiverUrl, username, name, streamVersion, streamDefinition, foundStreamId);
+        }
+        return foundStreamId;
+    }
+
+    /**
+     * Checks the cached stream ids on the connection made with them. A changed id, e.g. of a stream defined again, is
+     * swapped in. If a stream is gone, the circuit is opened, and reconnecting reports it.
+     */
+    private void scheduleVerification(final DataPublisher verifiedDataPublisher) {
+
+        try {
+            reconnectExecutor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        String verifiedStreamId = findStreamId(verifiedDataPublisher, streamName);
+                        String verifiedCompactStreamId = compactConfig != null && verifiedStreamId != null ?
+                                findStreamId(verifiedDataPublisher, getCompactStreamName()) : null;
+
+                        if(verifiedStreamId == null || (compactConfig != null && verifiedCompactStreamId == null)){
+                            if(circuitBreaker.trip()){
+                                circuitBreaker.onFailure();
+                                scheduleReconnect();
+                            }
+                            return;
+                        }
+                        synchronized (DasEndpoint.this){
+                            Connection current = connection;
+                            // A reconnect since has looked the streams up anyway.
+                            if(current == null || current.dataPublisher != verifiedDataPublisher){
+                                return;
+                            }
+                            String newStreamId = current.streamId;
+                            CompactStream newCompactStream = current.compactStream;
+                            if(!verifiedStreamId.equals(current.streamId)){
+                                log.warn(String.format("The id of stream '%s:%s' in DAS at '%s' has changed since it was cached.",
+                                                       streamName, streamVersion, receiverUrl));
+                                newStreamId = verifiedStreamId;
+                            }
+                            if(compactConfig != null && !verifiedCompactStreamId.equals(current.compactStream.streamId)){
+                                newCompactStream = new CompactStream(verifiedCompactStreamId,
+                                                                     CompactEventCodec.createEncoder(compactConfig));
+                            }
+                            if(newStreamId != current.streamId || newCompactStream != current.compactStream){
+                                connection = new Connection(verifiedDataPublisher, newStreamId, newCompactStream);
+                            }
+                        }
+                    } catch (AgentException e) {
+                        log.warn(String.format("Cannot check the cached stream ids against DAS at '%s'.", receiverUrl), e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.debug("The cached stream ids were not checked as the publisher is shutting down.");
+        }
+    }
+
+    private String getCompactStreamName() {
+        return streamName + CompactEventCodec.COMPACT_STREAM_SUFFIX;
+    }
+
+    private void scheduleReconnect() {
+
+        long backoffMillis = circuitBreaker.nextBackoffMillis();
+        log.info(String.format("Reconnecting to DAS at '%s' in %d ms.", receiverUrl, backoffMillis));
+
+        try {
+            reconnectExecutor.schedule(new Runnable() {
+                public void run() {
+                    if(connect()){
+                        log.info(String.format("Reconnected to DAS at '%s'.", receiverUrl));
+                    }else{
+                        scheduleReconnect();
+                    }
+                }
+            }, backoffMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            log.debug("Reconnect was not scheduled as the publisher is shutting down.");
+        }
+    }
+
+    private void logConnectionError(Exception e) {
+        log.error(String.format("Cannot connect to DAS at '%s'.", receiverUrl), e);
+    }
+}
@@ -10,6 +10,65 @@ public class DataPublisherConfig {
     private String dasPassword;
     private String streamName;
     private String streamVersion;
+    private String payloadExtractionMode;
+    private String streamMapping = ExtractionPlan.DEFAULT_MAPPING;
+    private int publishQueueSize = 8192;
+    private String publishQueueOverflowPolicy = "drop-newest";
+    private long publishQueueBlockTimeoutMillis = 10;
+    private int publisherThreadCount = 1;
+    private String publisherExecutor = TransactionDataPublisher.EXECUTOR_PLATFORM;
+    private int endpointMaxConcurrency = 64;
+    private int publishBatchSize = 100;
+    private long publishBatchTimeoutMillis = 100;
+    private String spillDirectory;
+    private int spillSegmentSize = 16 * 1024 * 1024;
+    private int spillMaxSegments = 16;
+    private long reconnectInitialBackoffMillis = 1000;
+    private long reconnectMaxBackoffMillis = 60000;
+    private String dasEndpoints;
+    private String partitionKey = "creditCardNumber";
+    private int partitionVirtualNodes = 128;
+    private boolean metricsEnabled = true;
+    private int metricsSampleInterval = PublisherMetrics.DEFAULT_SAMPLE_INTERVAL;
+    private long deduplicationWindowMillis;
+    private int deduplicationCapacity = 262144;
+    private String deduplicationKey = "transactionId";
+    private int velocityMaxPerCard;
+    private int velocityMaxPerIP;
+    private long velocityWindowMillis = 60000;
+    private int velocityBucketCount = 6;
+    private String velocityAction = "flag";
+    private int velocityCapacity = 1048576;
+    private boolean velocityOffHeap = true;
+    private String velocityCardAttribute = "creditCardNumber";
+    private String velocityIPAttribute = "ip";
+    private String publishOn = ResponseCorrelator.PUBLISH_ON_REQUEST;
+    private long responseTimeoutMillis = 120000;
+    private int pendingResponseCapacity = 131072;
+    private String eventEncoding = CompactEventCodec.ENCODING_PLAIN;
+    private String eventCompression = CompactEventCodec.COMPRESSION_DEFLATE;
+    private String compactDictionaryAttributes = "currency,email,shippingAddress,billingAddress,itemNo";
+    private String trustedProxies = ClientIPResolver.DEFAULT_TRUSTED_PROXIES;
+    private boolean mockClientIPEnabled;
+    private String geoIPDatabase;
+    private int geoIPCacheCapacity = 65536;
+    private String fanOutPath = ExtractionPlan.DEFAULT_FAN_OUT_PATH;
+    private int fanOutMaxEntries = 256;
+    private boolean samplingEnabled;
+    private long samplingLatencySloMillis = 1000;
+    private double samplingMaxQueueFill = 0.5;
+    private long samplingIntervalMillis = 1000;
+    private double samplingMinRate = 0.01;
+    private double samplingRateIncrease = 0.05;
+    private double samplingRateDecrease = 0.5;
+    private double samplingKeepAmountAbove = 1000;
+    private String samplingAmountAttribute = "transactionAmount";
+    private long samplingFlaggedCardMillis = 3600000;
+    private String streamIdCacheFile;
+    private String publishFilters;
+    private String publishFilterDefault = PublishFilter.ACTION_PUBLISH;
+    private String[] streamAttributeNames = {"transactionId", "creditCardNumber", "transactionAmount", "currency", "email",
+                                             "shippingAddress", "billingAddress", "ip", "itemNo", "quantity", "timestamp"};
 
     public String getDasHost() {
         return dasHost;
@@ -58,4 +117,468 @@ public class DataPublisherConfig {
     public void setStreamVersion(String streamVersion) {
         this.streamVersion = streamVersion;
     }
+
+    public String getPayloadExtractionMode() {
+        return payloadExtractionMode;
+    }
+
+    public void setPayloadExtractionMode(String payloadExtractionMode) {
+        this.payloadExtractionMode = payloadExtractionMode;
+    }
+
+    public String getStreamMapping() {
+        return streamMapping;
+    }
+
+    public void setStreamMapping(String streamMapping) {
+        this.streamMapping = streamMapping;
+    }
+
+    public int getPublishQueueSize() {
+        return publishQueueSize;
+    }
+
+    public void setPublishQueueSize(int publishQueueSize) {
+        this.publishQueueSize = publishQueueSize;
+    }
+
+    public String getPublishQueueOverflowPolicy() {
+        return publishQueueOverflowPolicy;
+    }
+
+    public void setPublishQueueOverflowPolicy(String publishQueueOverflowPolicy) {
+        this.publishQueueOverflowPolicy = publishQueueOverflowPolicy;
+    }
+
+    public long getPublishQueueBlockTimeoutMillis() {
+        return publishQueueBlockTimeoutMillis;
+    }
+
+    public void setPublishQueueBlockTimeoutMillis(long publishQueueBlockTimeoutMillis) {
+        this.publishQueueBlockTimeoutMillis = publishQueueBlockTimeoutMillis;
+    }
+
+    public int getPublisherThreadCount() {
+        return publisherThreadCount;
+    }
+
+    public void setPublisherThreadCount(int publisherThreadCount) {
+        this.publisherThreadCount = publisherThreadCount;
+    }
+
+    public String getPublisherExecutor() {
+        return publisherExecutor;
+    }
+
+    public void setPublisherExecutor(String publisherExecutor) {
+        this.publisherExecutor = publisherExecutor;
+    }
+
+    public int getEndpointMaxConcurrency() {
+        return endpointMaxConcurrency;
+    }
+
+    public void setEndpointMaxConcurrency(int endpointMaxConcurrency) {
+        this.endpointMaxConcurrency = endpointMaxConcurrency;
+    }
+
+    public int getPublishBatchSize() {
+        return publishBatchSize;
+    }
+
+    public void setPublishBatchSize(int publishBatchSize) {
+        this.publishBatchSize = publishBatchSize;
+    }
+
+    public long getPublishBatchTimeoutMillis() {
+        return publishBatchTimeoutMillis;
+    }
+
+    public void setPublishBatchTimeoutMillis(long publishBatchTimeoutMillis) {
+        this.publishBatchTimeoutMillis = publishBatchTimeoutMillis;
+    }
+
+    public String getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    public void setSpillDirectory(String spillDirectory) {
+        this.spillDirectory = spillDirectory;
+    }
+
+    public int getSpillSegmentSize() {
+        return spillSegmentSize;
+    }
+
+    public void setSpillSegmentSize(int spillSegmentSize) {
+        this.spillSegmentSize = spillSegmentSize;
+    }
+
+    public int getSpillMaxSegments() {
+        return spillMaxSegments;
+    }
+
+    public void setSpillMaxSegments(int spillMaxSegments) {
+        this.spillMaxSegments = spillMaxSegments;
+    }
+
+    public long getReconnectInitialBackoffMillis() {
+        return reconnectInitialBackoffMillis;
+    }
+
+    public void setReconnectInitialBackoffMillis(long reconnectInitialBackoffMillis) {
+        this.reconnectInitialBackoffMillis = reconnectInitialBackoffMillis;
+    }
+
+    public long getReconnectMaxBackoffMillis() {
+        return reconnectMaxBackoffMillis;
+    }
+
+    public void setReconnectMaxBackoffMillis(long reconnectMaxBackoffMillis) {
+        this.reconnectMaxBackoffMillis = reconnectMaxBackoffMillis;
+    }
+
+    public String getDasEndpoints() {
+        return dasEndpoints;
+    }
+
+    public void setDasEndpoints(String dasEndpoints) {
+        this.dasEndpoints = dasEndpoints;
+    }
+
+    public String getPartitionKey() {
+        return partitionKey;
+    }
+
+    public void setPartitionKey(String partitionKey) {
+        this.partitionKey = partitionKey;
+    }
+
+    public int getPartitionVirtualNodes() {
+        return partitionVirtualNodes;
+    }
+
+    public void setPartitionVirtualNodes(int partitionVirtualNodes) {
+        this.partitionVirtualNodes = partitionVirtualNodes;
+    }
+
+    public String[] getStreamAttributeNames() {
+        return streamAttributeNames;
+    }
+
+    public void setStreamAttributeNames(String[] streamAttributeNames) {
+        this.streamAttributeNames = streamAttributeNames;
+    }
+
+    public boolean isMetricsEnabled() {
+        return metricsEnabled;
+    }
+
+    public void setMetricsEnabled(boolean metricsEnabled) {
+        this.metricsEnabled = metricsEnabled;
+    }
+
+    public int getMetricsSampleInterval() {
+        return metricsSampleInterval;
+    }
+
+    public void setMetricsSampleInterval(int metricsSampleInterval) {
+        this.metricsSampleInterval = metricsSampleInterval;
+    }
+
+    public long getDeduplicationWindowMillis() {
+        return deduplicationWindowMillis;
+    }
+
+    public void setDeduplicationWindowMillis(long deduplicationWindowMillis) {
+        this.deduplicationWindowMillis = deduplicationWindowMillis;
+    }
+
+    public int getDeduplicationCapacity() {
+        return deduplicationCapacity;
+    }
+
+    public void setDeduplicationCapacity(int deduplicationCapacity) {
+        this.deduplicationCapacity = deduplicationCapacity;
+    }
+
+    public String getDeduplicationKey() {
+        return deduplicationKey;
+    }
+
+    public void setDeduplicationKey(String deduplicationKey) {
+        this.deduplicationKey = deduplicationKey;
+    }
+
+    public int getVelocityMaxPerCard() {
+        return velocityMaxPerCard;
+    }
+
+    public void setVelocityMaxPerCard(int velocityMaxPerCard) {
+        this.velocityMaxPerCard = velocityMaxPerCard;
+    }
+
+    public int getVelocityMaxPerIP() {
+        return velocityMaxPerIP;
+    }
+
+    public void setVelocityMaxPerIP(int velocityMaxPerIP) {
+        this.velocityMaxPerIP = velocityMaxPerIP;
+    }
+
+    public long getVelocityWindowMillis() {
+        return velocityWindowMillis;
+    }
+
+    public void setVelocityWindowMillis(long velocityWindowMillis) {
+        this.velocityWindowMillis = velocityWindowMillis;
+    }
+
+    public int getVelocityBucketCount() {
+        return velocityBucketCount;
+    }
+
+    public void setVelocityBucketCount(int velocityBucketCount) {
+        this.velocityBucketCount = velocityBucketCount;
+    }
+
+    public String getVelocityAction() {
+        return velocityAction;
+    }
+
+    public void setVelocityAction(String velocityAction) {
+        this.velocityAction = velocityAction;
+    }
+
+    public int getVelocityCapacity() {
+        return velocityCapacity;
+    }
+
+    public void setVelocityCapacity(int velocityCapacity) {
+        this.velocityCapacity = velocityCapacity;
+    }
+
+    public boolean isVelocityOffHeap() {
+        return velocityOffHeap;
+    }
+
+    public void setVelocityOffHeap(boolean velocityOffHeap) {
+        this.velocityOffHeap = velocityOffHeap;
+    }
+
+    public String getVelocityCardAttribute() {
+        return velocityCardAttribute;
+    }
+
+    public void setVelocityCardAttribute(String velocityCardAttribute) {
+        this.velocityCardAttribute = velocityCardAttribute;
+    }
+
+    public String getVelocityIPAttribute() {
+        return velocityIPAttribute;
+    }
+
+    public void setVelocityIPAttribute(String velocityIPAttribute) {
+        this.velocityIPAttribute = velocityIPAttribute;
+    }
+
+    public String getPublishOn() {
+        return publishOn;
+    }
+
+    public void setPublishOn(String publishOn) {
+        this.publishOn = publishOn;
+    }
+
+    public long getResponseTimeoutMillis() {
+        return responseTimeoutMillis;
+    }
+
+    public void setResponseTimeoutMillis(long responseTimeoutMillis) {
+        this.responseTimeoutMillis = responseTimeoutMillis;
+    }
+
+    public int getPendingResponseCapacity() {
+        return pendingResponseCapacity;
+    }
+
+    public void setPendingResponseCapacity(int pendingResponseCapacity) {
+        this.pendingResponseCapacity = pendingResponseCapacity;
+    }
+
+    public String getEventEncoding() {
+        return eventEncoding;
+    }
+
+    public void setEventEncoding(String eventEncoding) {
+        this.eventEncoding = eventEncoding;
+    }
+
+    public String getEventCompression() {
+        return eventCompression;
+    }
+
+    public void setEventCompression(String eventCompression) {
+        this.eventCompression = eventCompression;
+    }
+
+    public String getCompactDictionaryAttributes() {
+        return compactDictionaryAttributes;
+    }
+
+    public void setCompactDictionaryAttributes(String compactDictionaryAttributes) {
+        this.compactDictionaryAttributes = compactDictionaryAttributes;
+    }
+
+    public String getTrustedProxies() {
+        return trustedProxies;
+    }
+
+    public void setTrustedProxies(String trustedProxies) {
+        this.trustedProxies = trustedProxies;
+    }
+
+    public boolean isMockClientIPEnabled() {
+        return mockClientIPEnabled;
+    }
+
+    public void setMockClientIPEnabled(boolean mockClientIPEnabled) {
+        this.mockClientIPEnabled = mockClientIPEnabled;
+    }
+
+    public String getGeoIPDatabase() {
+        return geoIPDatabase;
+    }
+
+    public void setGeoIPDatabase(String geoIPDatabase) {
+        this.geoIPDatabase = geoIPDatabase;
+    }
+
+    public int getGeoIPCacheCapacity() {
+        return geoIPCacheCapacity;
+    }
+
+    public void setGeoIPCacheCapacity(int geoIPCacheCapacity) {
+        this.geoIPCacheCapacity = geoIPCacheCapacity;
+    }
+
+    public String getFanOutPath() {
+        return fanOutPath;
+    }
+
+    public void setFanOutPath(String fanOutPath) {
+        this.fanOutPath = fanOutPath;
+    }
+
+    public int getFanOutMaxEntries() {
+        return fanOutMaxEntries;
+    }
+
+    public void setFanOutMaxEntries(int fanOutMaxEntries) {
+        this.fanOutMaxEntries = fanOutMaxEntries;
+    }
+
+    public boolean isSamplingEnabled() {
+        return samplingEnabled;
+    }
+
+    public void setSamplingEnabled(boolean samplingEnabled) {
+        this.samplingEnabled = samplingEnabled;
+    }
+
+    public long getSamplingLatencySloMillis() {
+        return samplingLatencySloMillis;
+    }
+
+    public void setSamplingLatencySloMillis(long samplingLatencySloMillis) {
+        this.samplingLatencySloMillis = samplingLatencySloMillis;
+    }
+
+    public double getSamplingMaxQueueFill() {
+        return samplingMaxQueueFill;
+    }
+
+    public void setSamplingMaxQueueFill(double samplingMaxQueueFill) {
+        this.samplingMaxQueueFill = samplingMaxQueueFill;
+    }
+
+    public long getSamplingIntervalMillis() {
+        return samplingIntervalMillis;
+    }
+
+    public void setSamplingIntervalMillis(long samplingIntervalMillis) {
+        this.samplingIntervalMillis = samplingIntervalMillis;
+    }
+
+    public double getSamplingMinRate() {
+        return samplingMinRate;
+    }
+
+    public void setSamplingMinRate(double samplingMinRate) {
+        this.samplingMinRate = samplingMinRate;
+    }
+
+    public double getSamplingRateIncrease() {
+        return samplingRateIncrease;
+    }
+
+    public void setSamplingRateIncrease(double samplingRateIncrease) {
+        this.samplingRateIncrease = samplingRateIncrease;
+    }
+
+    public double getSamplingRateDecrease() {
+        return samplingRateDecrease;
+    }
+
+    public void setSamplingRateDecrease(double samplingRateDecrease) {
+        this.samplingRateDecrease = samplingRateDecrease;
+    }
+
+    public double getSamplingKeepAmountAbove() {
+        return samplingKeepAmountAbove;
+    }
+
+    public void setSamplingKeepAmountAbove(double samplingKeepAmountAbove) {
+        this.samplingKeepAmountAbove = samplingKeepAmountAbove;
+    }
+
+    public String getSamplingAmountAttribute() {
+        return samplingAmountAttribute;
+    }
+
+    public void setSamplingAmountAttribute(String samplingAmountAttribute) {
+        this.samplingAmountAttribute = samplingAmountAttribute;
+    }
+
+    public long getSamplingFlaggedCardMillis() {
+        return samplingFlaggedCardMillis;
+    }
+
+    public void setSamplingFlaggedCardMillis(long samplingFlaggedCardMillis) {
+        this.samplingFlaggedCardMillis = samplingFlaggedCardMillis;
+    }
+
+    public String getStreamIdCacheFile() {
+        return streamIdCacheFile;
+    }
+
+    public void setStreamIdCacheFile(String streamIdCacheFile) {
+        this.streamIdCacheFile = streamIdCacheFile;
+    }
+
+    public String getPublishFilters() {
+        return publishFilters;
+    }
+
+    public void setPublishFilters(String publishFilters) {
+        this.publishFilters = publishFilters;
+    }
+
+    public String getPublishFilterDefault() {
+        return publishFilterDefault;
+    }
+
+    public void setPublishFilterDefault(String publishFilterDefault) {
+        this.publishFilterDefault = publishFilterDefault;
+    }
 }
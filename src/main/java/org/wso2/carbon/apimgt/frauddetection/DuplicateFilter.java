@@ -0,0 +1,166 @@
+/*
+ *  Copyright WSO2 Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.wso2.carbon.apimgt.frauddetection;
+
+/**
+ * Suppresses repeats of a transaction id within a time window, e.g. when a client retries a payment call.
+ *
+ * Ids are kept as 64-bit hashes in a fixed number of slots, so the memory used does not grow with the number of ids.
+ * The slots are split into lock striped segments. An id is looked up in a short run of slots after its home slot.
+ * A new id takes an empty or expired slot in that run, or else evicts the oldest id in it. An id evicted before its
+ * window ends is not recognized as a repeat any more. Two different ids are taken for each other only if their
+ * 64-bit hashes are equal.
+ */
+public class DuplicateFilter {
+
+    private static final int SEGMENT_COUNT = 64;
+    private static final int PROBE_LIMIT = 8;
+
+    private final long windowMillis;
+    private final Segment[] segments;
+
+    private final StripedCounter hitCount = new StripedCounter();
+    private final StripedCounter missCount = new StripedCounter();
+
+    private static class Segment {
+
+        private final long[] hashes;
+        private final long[] timestamps;
+        private final int mask;
+
+        private Segment(int size) {
+            this.hashes = new long[size];
+            this.timestamps = new long[size];
+            this.mask = size - 1;
+        }
+    }
+
+    /**
+     * Creates a filter remembering up to about the given number of ids, rounded up to a power of two, for the given time.
+     */
+    public DuplicateFilter(int capacity, long windowMillis) {
+
+        this.windowMillis = windowMillis;
+
+        int segmentSize = Integer.highestOneBit(Math.max(PROBE_LIMIT, (capacity + SEGMENT_COUNT - 1) / SEGMENT_COUNT) * 2 - 1);
+        segments = new Segment[SEGMENT_COUNT];
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment(segmentSize);
+        }
+    }
+
+    /**
+     * Returns true if the id was seen within the window before the given time. Otherwise the id is remembered as seen
+     * at that time and false is returned. A null id is never a duplicate.
+     */
+    public boolean isDuplicate(Object id, long now) {
+
+        if (id == null) {
+            return false;
+        }
+
+        long hash = hash(id);
+        Segment segment = segments[(int) (hash >>> 58) & (SEGMENT_COUNT - 1)];
+        int home = (int) hash & segment.mask;
+
+        synchronized (segment) {
+            // The whole run is searched for the id before a slot is picked for it: the first free slot, or else the oldest.
+            int victim = -1;
+            boolean victimFree = false;
+            for (int i = 0; i < PROBE_LIMIT; i++) {
+                int slot = (home + i) & segment.mask;
+
+                if (segment.hashes[slot] == hash) {
+                    if (now - segment.timestamps[slot] < windowMillis) {
+                        hitCount.increment();
+                        return true;
+                    }
+                    victim = slot;
+                    break;
+                }
+
+                boolean free = segment.hashes[slot] == 0 || now - segment.timestamps[slot] >= windowMillis;
+                if (victim < 0 || (!victimFree && (free || segment.timestamps[slot] < segment.timestamps[victim]))) {
+                    victim = slot;
+                    victimFree = free;
+                }
+            }
+
+            segment.hashes[victim] = hash;
+            segment.timestamps[victim] = now;
+        }
+        missCount.increment();
+        return false;
+    }
+
+    /**
+     * Returns true if the id was seen within the window before the given time, without remembering it or counting a
+     * hit or miss.
+     */
+    public boolean contains(Object id, long now) {
+
+        if (id == null) {
+            return false;
+        }
+
+        long hash = hash(id);
+        Segment segment = segments[(int) (hash >>> 58) & (SEGMENT_COUNT - 1)];
+        int home = (int) hash & segment.mask;
+
+        synchronized (segment) {
+            for (int i = 0; i < PROBE_LIMIT; i++) {
+                int slot = (home + i) & segment.mask;
+                if (segment.hashes[slot] == hash) {
+                    return now - segment.timestamps[slot] < windowMillis;
+                }
+            }
+        }
+        return false;
+    }
+
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    /**
+     * A 64-bit hash which does not allocate. 0 marks an empty slot, so it is never returned.
+     */
+    static long hash(Object id) {
+
+        long hash;
+        if (id instanceof Long || id instanceof Integer) {
+            hash = ((Number) id).longValue();
+        } else {
+            String value = id.toString();
+            hash = 0xcbf29ce484222325L;
+            for (int i = 0; i < value.length(); i++) {
+                hash ^= value.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+        }
+
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash != 0 ? hash : 1;
+    }
+}
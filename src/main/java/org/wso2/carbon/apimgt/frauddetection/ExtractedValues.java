@@ -0,0 +1,80 @@
+/*
+ *  Copyright WSO2 Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.wso2.carbon.apimgt.frauddetection;
+
+import java.util.Arrays;
+
+/**
+ * The values read from a request by an extraction plan. The fields under the fan-out array are read once for each of
+ * its entries, and all the other fields once for the request. An instance is reused by one request thread at a time.
+ */
+public class ExtractedValues {
+
+    private final String[] values;
+    private final int maxEntries;
+    private String[][] entries = new String[1][];
+    private int entryCount;
+
+    public ExtractedValues(int fieldCount, int maxEntries) {
+        this.values = new String[fieldCount];
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Returns the fields read once for the request, indexed by the slots of the plan.
+     */
+    public String[] getValues() {
+        return values;
+    }
+
+    public int getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * Returns the fields of an entry of the fan-out array. Only the fan-out slots are set.
+     */
+    public String[] getEntry(int index) {
+        return entries[index];
+    }
+
+    /**
+     * Starts a new, empty entry and returns its values, or returns null if the maximum number of entries is reached.
+     */
+    String[] addEntry() {
+
+        if (entryCount == maxEntries) {
+            return null;
+        }
+        if (entryCount == entries.length) {
+            entries = Arrays.copyOf(entries, Math.min(entries.length * 2, maxEntries));
+        }
+        String[] entry = entries[entryCount];
+        if (entry == null) {
+            entry = new String[values.length];
+            entries[entryCount] = entry;
+        } else {
+            Arrays.fill(entry, null);
+        }
+        entryCount++;
+        return entry;
+    }
+
+    public void clear() {
+        Arrays.fill(values, null);
+        entryCount = 0;
+    }
+}
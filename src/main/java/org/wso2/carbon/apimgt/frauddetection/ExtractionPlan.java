@@ -0,0 +1,696 @@
+/*
+ *  Copyright WSO2 Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.wso2.carbon.apimgt.frauddetection;
+
+import org.apache.axiom.om.OMElement;
+
+import javax.xml.namespace.QName;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compiled mapping from transaction payload paths to stream attributes.
+ *
+ * The mapping is a ';' separated list of attributes in stream order. Each attribute is written as
+ * name=TYPE:source[,source...] where the type is one of STRING, LONG, INT, DOUBLE, FLOAT or BOOL and a source is
+ * either a dot separated payload path, $clientIP, $clientCountry, $timestamp, $velocityFlag, $httpStatus,
+ * $backendLatency or $samplingWeight. The values of an attribute with more than one source are joined with ", ",
+ * leaving out the sources which have no value. The attribute has no value if none of its sources has. An attribute with
+ * a single $ source must be a STRING or have the type of the source : LONG for $timestamp, INT or LONG for $httpStatus
+ * and $backendLatency, BOOL for $velocityFlag and DOUBLE or FLOAT for $samplingWeight. $clientIP and $clientCountry
+ * are STRING only.
+ * $httpStatus and $backendLatency are -1 until the response is seen. $clientCountry is null unless a GeoIP database
+ * is configured. $samplingWeight is 1 unless the transactions are sampled.
+ *
+ * The payload paths are compiled once into a tree with interned names, which both the Axiom and the streaming
+ * extraction walk, so no names are built per request. Array elements are transparent and, like
+ * OMElement#getFirstChildWithName, only the first element of an array is looked at, except for the fan-out array.
+ * Every entry of the fan-out array (by default "transactions") is read, and one payload is built for each entry, with
+ * the fields outside the array shared by all of them.
+ */
+public class ExtractionPlan {
+
+    public static final String SOURCE_CLIENT_IP = "$clientIP";
+    public static final String SOURCE_TIMESTAMP = "$timestamp";
+    public static final String SOURCE_VELOCITY_FLAG = "$velocityFlag";
+    public static final String SOURCE_HTTP_STATUS = "$httpStatus";
+    public static final String SOURCE_BACKEND_LATENCY = "$backendLatency";
+    public static final String SOURCE_CLIENT_COUNTRY = "$clientCountry";
+    public static final String SOURCE_SAMPLING_WEIGHT = "$samplingWeight";
+
+    public static final String DEFAULT_FAN_OUT_PATH = "transactions";
+
+    public static final String DEFAULT_MAPPING =
+            "transactionId=STRING:id;" +
+            "creditCardNumber=LONG:payer.funding_instruments.credit_card.number;" +
+            "transactionAmount=DOUBLE:transactions.amount.total;" +
+            "currency=STRING:transactions.amount.currency;" +
+            "email=STRING:payer.email;" +
+            "shippingAddress=STRING:shipment.shipping_address.line1,shipment.shipping_address.city," +
+                "shipment.shipping_address.state,shipment.shipping_address.postal_code," +
+                "shipment.shipping_address.country_code;" +
+            "billingAddress=STRING:payer.funding_instruments.credit_card.billing_address.line1," +
+                "payer.funding_instruments.credit_card.billing_address.city," +
+                "payer.funding_instruments.credit_card.billing_address.state," +
+                "payer.funding_instruments.credit_card.billing_address.postal_code," +
+                "payer.funding_instruments.credit_card.billing_address.country_code;" +
+            "ip=STRING:$clientIP;" +
+            "itemNo=STRING:transactions.order.item_number;" +
+            "quantity=INT:transactions.order.quantity;" +
+            "timestamp=LONG:$timestamp";
+
+    private static final int SLOT_CLIENT_IP = -1;
+    private static final int SLOT_TIMESTAMP = -2;
+    private static final int SLOT_VELOCITY_FLAG = -3;
+    private static final int SLOT_HTTP_STATUS = -4;
+    private static final int SLOT_BACKEND_LATENCY = -5;
+    private static final int SLOT_CLIENT_COUNTRY = -6;
+    private static final int SLOT_SAMPLING_WEIGHT = -7;
+
+    // Reused by each request thread to join multi-source attributes such as addresses.
+    private static final ThreadLocal<StringBuilder> JOIN_BUFFER = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(256);
+        }
+    };
+
+    /**
+     * The type of a stream attribute, and how a payload value is converted to it.
+     */
+    public enum AttributeType {
+
+        STRING {
+            Object convert(String value) {
+                return value;
+            }
+        },
+        LONG {
+            Object convert(String value) {
+                return Long.parseLong(value.trim());
+            }
+        },
+        INT {
+            Object convert(String value) {
+                return Integer.parseInt(value.trim());
+            }
+        },
+        DOUBLE {
+            Object convert(String value) {
+                return Double.parseDouble(value.trim());
+            }
+        },
+        FLOAT {
+            Object convert(String value) {
+                return Float.parseFloat(value.trim());
+            }
+        },
+        BOOL {
+            Object convert(String value) {
+                return Boolean.parseBoolean(value.trim());
+            }
+        };
+
+        abstract Object convert(String value);
+    }
+
+    /**
+     * A node in the tree of payload paths. Leaf nodes carry the slot their value is extracted into.
+     */
+    static class PathNode {
+
+        final String name;
+        final QName qName;
+        final Map<String, PathNode> children = new LinkedHashMap<String, PathNode>();
+        PathNode[] childArray = new PathNode[0];
+        int slot = -1;
+        boolean fanOut;
+
+        private PathNode(String name) {
+            this.name = name;
+            this.qName = name != null ? new QName(null, name) : null;
+        }
+    }
+
+    private final String[] attributeNames;
+    private final AttributeType[] attributeTypes;
+    private final int[][] attributeSlots;
+    private final String[] fieldPaths;
+    private final PathNode root;
+    // The slots of the paths under the fan-out array. Empty if the mapping has no path under it.
+    private final int[] entrySlots;
+    // The attributes whose only source is a $ source, indexed by the negated slot of the source.
+    private final int[][] sourceAttributes;
+
+    private ExtractionPlan(String[] attributeNames, AttributeType[] attributeTypes, int[][] attributeSlots,
+                           String[] fieldPaths, PathNode root, int[] entrySlots) {
+        this.attributeNames = attributeNames;
+        this.attributeTypes = attributeTypes;
+        this.attributeSlots = attributeSlots;
+        this.fieldPaths = fieldPaths;
+        this.root = root;
+        this.entrySlots = entrySlots;
+
+        sourceAttributes = new int[-SLOT_SAMPLING_WEIGHT + 1][];
+        for (int slot = SLOT_CLIENT_IP; slot >= SLOT_SAMPLING_WEIGHT; slot--) {
+            List<Integer> attributes = new ArrayList<Integer>();
+            for (int i = 0; i < attributeSlots.length; i++) {
+                if (attributeSlots[i].length == 1 && attributeSlots[i][0] == slot) {
+                    attributes.add(i);
+                }
+            }
+            sourceAttributes[-slot] = new int[attributes.size()];
+            for (int i = 0; i < attributes.size(); i++) {
+                sourceAttributes[-slot][i] = attributes.get(i);
+            }
+        }
+    }
+
+    /**
+     * Compiles the given mapping without a fan-out array. Throws IllegalArgumentException if the mapping is not valid.
+     */
+    public static ExtractionPlan compile(String mapping) {
+        return compile(mapping, null);
+    }
+
+    /**
+     * Compiles the given mapping, with one payload built for each entry of the array at the given dot separated path.
+     * A null or empty path, or one that no attribute is read from, disables the fan-out. Throws
+     * IllegalArgumentException if the mapping is not valid.
+     */
+    public static ExtractionPlan compile(String mapping, String fanOutPath) {
+
+        List<String> names = new ArrayList<String>();
+        List<AttributeType> types = new ArrayList<AttributeType>();
+        List<int[]> slots = new ArrayList<int[]>();
+        List<String> paths = new ArrayList<String>();
+        PathNode root = new PathNode(null);
+
+        for (String entry : mapping.split(";")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+
+            int equals = entry.indexOf('=');
+            int colon = entry.indexOf(':', equals);
+            if (equals <= 0 || colon < 0) {
+                throw new IllegalArgumentException(String.format("Invalid stream mapping entry : '%s'", entry));
+            }
+
+            String name = entry.substring(0, equals).trim();
+            AttributeType type = AttributeType.valueOf(entry.substring(equals + 1, colon).trim().toUpperCase());
+            names.add(name);
+            types.add(type);
+
+            String[] sources = entry.substring(colon + 1).split(",");
+            int[] sourceSlots = new int[sources.length];
+            for (int i = 0; i < sources.length; i++) {
+                String source = sources[i].trim();
+                if (SOURCE_CLIENT_IP.equals(source)) {
+                    sourceSlots[i] = SLOT_CLIENT_IP;
+                } else if (SOURCE_TIMESTAMP.equals(source)) {
+                    sourceSlots[i] = SLOT_TIMESTAMP;
+                } else if (SOURCE_VELOCITY_FLAG.equals(source)) {
+                    sourceSlots[i] = SLOT_VELOCITY_FLAG;
+                } else if (SOURCE_HTTP_STATUS.equals(source)) {
+                    sourceSlots[i] = SLOT_HTTP_STATUS;
+                } else if (SOURCE_BACKEND_LATENCY.equals(source)) {
+                    sourceSlots[i] = SLOT_BACKEND_LATENCY;
+                } else if (SOURCE_CLIENT_COUNTRY.equals(source)) {
+                    sourceSlots[i] = SLOT_CLIENT_COUNTRY;
+                } else if (SOURCE_SAMPLING_WEIGHT.equals(source)) {
+                    sourceSlots[i] = SLOT_SAMPLING_WEIGHT;
+                } else {
+                    sourceSlots[i] = addPath(root, source, paths);
+                }
+            }
+            if (sourceSlots.length == 1 && !fits(type, sourceSlots[0])) {
+                throw new IllegalArgumentException(String.format("The type %s of the stream attribute '%s' does not fit " +
+                                                                 "its source '%s'", type, name, sources[0].trim()));
+            }
+            slots.add(sourceSlots);
+        }
+
+        if (names.isEmpty()) {
+            throw new IllegalArgumentException("Stream mapping does not define any attributes");
+        }
+
+        freeze(root);
+        int[] entrySlots = markFanOut(root, fanOutPath);
+        return new ExtractionPlan(names.toArray(new String[names.size()]), types.toArray(new AttributeType[types.size()]),
+                                  slots.toArray(new int[slots.size()][]), paths.toArray(new String[paths.size()]), root,
+                                  entrySlots);
+    }
+
+    /**
+     * Returns whether an attribute of the given type can hold the values of the given source. Any value can be written
+     * as a STRING, and a payload path is converted to the type of its attribute.
+     */
+    private static boolean fits(AttributeType type, int slot) {
+
+        if (slot >= 0 || type == AttributeType.STRING) {
+            return true;
+        }
+        switch (slot) {
+            case SLOT_TIMESTAMP:
+                return type == AttributeType.LONG;
+            case SLOT_HTTP_STATUS:
+            case SLOT_BACKEND_LATENCY:
+                return type == AttributeType.INT || type == AttributeType.LONG;
+            case SLOT_VELOCITY_FLAG:
+                return type == AttributeType.BOOL;
+            case SLOT_SAMPLING_WEIGHT:
+                return type == AttributeType.DOUBLE || type == AttributeType.FLOAT;
+            default:
+                return false;
+        }
+    }
+
+    public String[] getAttributeNames() {
+        return attributeNames.clone();
+    }
+
+    /**
+     * Returns whether any attribute is mapped to $clientIP, so the client IP only has to be resolved when it is used.
+     */
+    public boolean usesClientIP() {
+        return usesSlot(SLOT_CLIENT_IP);
+    }
+
+    /**
+     * Returns whether any attribute is mapped to $clientCountry.
+     */
+    public boolean usesClientCountry() {
+        return usesSlot(SLOT_CLIENT_COUNTRY);
+    }
+
+    /**
+     * Returns whether any attribute is mapped to $samplingWeight.
+     */
+    public boolean usesSamplingWeight() {
+        return usesSlot(SLOT_SAMPLING_WEIGHT);
+    }
+
+    /**
+     * Returns whether any attribute is mapped to $httpStatus or $backendLatency.
+     */
+    public boolean usesResponse() {
+        return usesSlot(SLOT_HTTP_STATUS) || usesSlot(SLOT_BACKEND_LATENCY);
+    }
+
+    private boolean usesSlot(int source) {
+        for (int[] slots : attributeSlots) {
+            for (int slot : slots) {
+                if (slot == source) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    public int getAttributeCount() {
+        return attributeNames.length;
+    }
+
+    /**
+     * Returns the position of the attribute in the stream payload, or -1 if there is no such attribute.
+     */
+    public int getAttributeIndex(String attributeName) {
+        for (int i = 0; i < attributeNames.length; i++) {
+            if (attributeNames[i].equals(attributeName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The number of distinct payload paths, i.e. the size of the value array filled by the extraction.
+     */
+    public int getFieldCount() {
+        return fieldPaths.length;
+    }
+
+    /**
+     * Returns whether a payload is built for each entry of a fan-out array.
+     */
+    public boolean hasFanOut() {
+        return entrySlots.length > 0;
+    }
+
+    /**
+     * The number of payload paths under the fan-out array, which are read once for each entry.
+     */
+    public int getEntryFieldCount() {
+        return entrySlots.length;
+    }
+
+    PathNode getRoot() {
+        return root;
+    }
+
+    /**
+     * Reads the values of all the payload paths from the Axiom tree. Each intermediate element is looked up once.
+     */
+    public String[] extract(OMElement payload) {
+        String[] values = new String[fieldPaths.length];
+        extract(payload, root, values);
+        return values;
+    }
+
+    /**
+     * Reads the values of all the payload paths from the Axiom tree into the given array, which must hold
+     * getFieldCount() values and be cleared by the caller.
+     */
+    public void extract(OMElement payload, String[] values) {
+        extract(payload, root, values);
+    }
+
+    /**
+     * Reads the values of all the payload paths from the Axiom tree into the given values, which must be cleared by the
+     * caller. The paths under the fan-out array are read for each of its elements, up to the maximum number of entries.
+     */
+    public void extract(OMElement payload, ExtractedValues values) {
+        extract(payload, root, values.getValues(), values);
+    }
+
+    /**
+     * Converts the extracted values to the stream payload.
+     */
+    public Object[] buildPayload(String[] values, String clientIP) {
+
+        Object[] payload = new Object[attributeNames.length];
+        for (int i = 0; i < payload.length; i++) {
+            int[] slots = attributeSlots[i];
+            if (slots.length == 1 && slots[0] < 0 && slots[0] != SLOT_CLIENT_IP) {
+                payload[i] = getInitialValue(attributeTypes[i], slots[0]);
+                continue;
+            }
+
+            String value = slots.length == 1 ? getValue(values, slots[0], clientIP) : join(values, slots, clientIP);
+            if (value == null) {
+                if (attributeTypes[i] != AttributeType.STRING) {
+                    throw new IllegalArgumentException(String.format("Transaction payload does not contain a value for '%s'",
+                                                                     attributeNames[i]));
+                }
+                payload[i] = null;
+            } else {
+                payload[i] = attributeTypes[i].convert(value);
+            }
+        }
+        return payload;
+    }
+
+    /**
+     * Converts the extracted values to one stream payload for each entry of the fan-out array, or to a single payload if
+     * there is no entry. The shared values are overwritten with the fields of each entry in turn.
+     */
+    public Object[][] buildPayloads(ExtractedValues values, String clientIP) {
+
+        String[] sharedValues = values.getValues();
+        int entryCount = values.getEntryCount();
+        if (entryCount == 0) {
+            return new Object[][]{buildPayload(sharedValues, clientIP)};
+        }
+
+        Object[][] payloads = new Object[entryCount][];
+        for (int i = 0; i < entryCount; i++) {
+            String[] entry = values.getEntry(i);
+            for (int slot : entrySlots) {
+                sharedValues[slot] = entry[slot];
+            }
+            payloads[i] = buildPayload(sharedValues, clientIP);
+        }
+        return payloads;
+    }
+
+    /**
+     * Sets the $velocityFlag attributes of a payload built by this plan, which are false until then.
+     */
+    public void markVelocityViolation(Object[] payload) {
+        for (int i : getAttributes(SLOT_VELOCITY_FLAG)) {
+            payload[i] = toType(attributeTypes[i], true);
+        }
+    }
+
+    /**
+     * Sets the $httpStatus and $backendLatency attributes of a payload built by this plan.
+     */
+    public void setResponse(Object[] payload, int httpStatus, long backendLatencyMillis) {
+        for (int i : getAttributes(SLOT_HTTP_STATUS)) {
+            payload[i] = toType(attributeTypes[i], httpStatus);
+        }
+        for (int i : getAttributes(SLOT_BACKEND_LATENCY)) {
+            payload[i] = toType(attributeTypes[i], backendLatencyMillis);
+        }
+    }
+
+    /**
+     * Sets the $clientCountry attributes of a payload built by this plan, which are null until then.
+     */
+    public void setClientCountry(Object[] payload, String country) {
+        if (country != null) {
+            for (int i : getAttributes(SLOT_CLIENT_COUNTRY)) {
+                payload[i] = country;
+            }
+        }
+    }
+
+    /**
+     * Sets the $samplingWeight attributes of a payload built by this plan, which are 1 until then.
+     */
+    public void setSamplingWeight(Object[] payload, double weight) {
+        for (int i : getAttributes(SLOT_SAMPLING_WEIGHT)) {
+            payload[i] = toType(attributeTypes[i], weight);
+        }
+    }
+
+    /**
+     * Returns the indexes of the attributes whose only source is the given one.
+     */
+    private int[] getAttributes(int source) {
+        return sourceAttributes[-source];
+    }
+
+    /**
+     * Returns the value of an attribute whose only source is the given $ source, other than $clientIP, before the
+     * request has been through the velocity rules, the sampler and the backend.
+     */
+    private static Object getInitialValue(AttributeType type, int slot) {
+
+        switch (slot) {
+            case SLOT_TIMESTAMP:
+                return toType(type, System.currentTimeMillis());
+            case SLOT_VELOCITY_FLAG:
+                return toType(type, false);
+            case SLOT_HTTP_STATUS:
+            case SLOT_BACKEND_LATENCY:
+                return toType(type, -1L);
+            case SLOT_SAMPLING_WEIGHT:
+                return toType(type, 1.0);
+            default:
+                return null;
+        }
+    }
+
+    private static Object toType(AttributeType type, long value) {
+        if (type == AttributeType.INT) {
+            return (int) value;
+        }
+        return type == AttributeType.LONG ? (Object) value : String.valueOf(value);
+    }
+
+    private static Object toType(AttributeType type, double value) {
+        if (type == AttributeType.FLOAT) {
+            return (float) value;
+        }
+        return type == AttributeType.DOUBLE ? (Object) value : String.valueOf(value);
+    }
+
+    private static Object toType(AttributeType type, boolean value) {
+        return type == AttributeType.BOOL ? (Object) value : String.valueOf(value);
+    }
+
+    private void extract(OMElement element, PathNode node, String[] values, ExtractedValues extractedValues) {
+
+        for (PathNode child : node.childArray) {
+            if (child.fanOut) {
+                extractEntries(element, child, extractedValues);
+                continue;
+            }
+            OMElement childElement = element.getFirstChildWithName(child.qName);
+            if (childElement == null) {
+                continue;
+            }
+            if (child.slot >= 0) {
+                values[child.slot] = childElement.getText();
+            }
+            if (child.childArray.length > 0) {
+                extract(childElement, child, values, extractedValues);
+            }
+        }
+    }
+
+    /**
+     * Reads each element of the fan-out array into an entry of its own. A JSON array is a run of sibling elements with
+     * the same name in the Axiom tree.
+     */
+    private void extractEntries(OMElement element, PathNode node, ExtractedValues extractedValues) {
+
+        Iterator iterator = element.getChildrenWithName(node.qName);
+        while (iterator.hasNext()) {
+            OMElement entryElement = (OMElement) iterator.next();
+            String[] entry = extractedValues.addEntry();
+            if (entry == null) {
+                return;
+            }
+            if (node.slot >= 0) {
+                entry[node.slot] = entryElement.getText();
+            }
+            extract(entryElement, node, entry);
+        }
+    }
+
+    private void extract(OMElement element, PathNode node, String[] values) {
+
+        for (PathNode child : node.childArray) {
+            OMElement childElement = element.getFirstChildWithName(child.qName);
+            if (childElement == null) {
+                continue;
+            }
+            if (child.slot >= 0) {
+                values[child.slot] = childElement.getText();
+            }
+            if (child.childArray.length > 0) {
+                extract(childElement, child, values);
+            }
+        }
+    }
+
+    private String getValue(String[] values, int slot, String clientIP) {
+        if (slot == SLOT_CLIENT_IP) {
+            return clientIP;
+        }
+        if (slot == SLOT_TIMESTAMP) {
+            return String.valueOf(System.currentTimeMillis());
+        }
+        if (slot == SLOT_VELOCITY_FLAG) {
+            return "false";
+        }
+        if (slot == SLOT_HTTP_STATUS || slot == SLOT_BACKEND_LATENCY) {
+            return "-1";
+        }
+        if (slot == SLOT_CLIENT_COUNTRY) {
+            return null;
+        }
+        if (slot == SLOT_SAMPLING_WEIGHT) {
+            return "1.0";
+        }
+        return values[slot];
+    }
+
+    /**
+     * Joins the values of the sources which have one, or returns null if none has, like a missing single source.
+     */
+    private String join(String[] values, int[] slots, String clientIP) {
+
+        StringBuilder builder = JOIN_BUFFER.get();
+        builder.setLength(0);
+        boolean found = false;
+        for (int i = 0; i < slots.length; i++) {
+            String value = getValue(values, slots[i], clientIP);
+            if (value == null) {
+                continue;
+            }
+            if (found) {
+                builder.append(", ");
+            }
+            builder.append(value);
+            found = true;
+        }
+        return found ? builder.toString() : null;
+    }
+
+    private static int addPath(PathNode root, String path, List<String> paths) {
+
+        PathNode node = root;
+        for (String name : path.split("\\.")) {
+            name = name.trim().intern();
+            if (name.isEmpty()) {
+                throw new IllegalArgumentException(String.format("Invalid payload path : '%s'", path));
+            }
+            PathNode child = node.children.get(name);
+            if (child == null) {
+                child = new PathNode(name);
+                node.children.put(name, child);
+            }
+            node = child;
+        }
+
+        if (node.slot < 0) {
+            node.slot = paths.size();
+            paths.add(path);
+        }
+        return node.slot;
+    }
+
+    /**
+     * Marks the node at the fan-out path and returns the slots of the paths under it.
+     */
+    private static int[] markFanOut(PathNode root, String fanOutPath) {
+
+        if (fanOutPath == null || fanOutPath.trim().isEmpty()) {
+            return new int[0];
+        }
+        PathNode node = root;
+        for (String name : fanOutPath.split("\\.")) {
+            node = node.children.get(name.trim());
+            if (node == null) {
+                return new int[0];
+            }
+        }
+
+        List<Integer> slots = new ArrayList<Integer>();
+        collectSlots(node, slots);
+        int[] entrySlots = new int[slots.size()];
+        for (int i = 0; i < entrySlots.length; i++) {
+            entrySlots[i] = slots.get(i);
+        }
+        node.fanOut = true;
+        return entrySlots;
+    }
+
+    private static void collectSlots(PathNode node, List<Integer> slots) {
+        if (node.slot >= 0) {
+            slots.add(node.slot);
+        }
+        for (PathNode child : node.childArray) {
+            collectSlots(child, slots);
+        }
+    }
+
+    private static void freeze(PathNode node) {
+        node.childArray = node.children.values().toArray(new PathNode[node.children.size()]);
+        for (PathNode child : node.childArray) {
+            freeze(child);
+        }
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ *  Copyright WSO2 Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.wso2.carbon.apimgt.frauddetection;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A read only database of IP ranges and their countries, memory mapped from a file so it does not take up heap. Lookups
+ * are binary searches over the mapped records and are safe from any number of threads.
+ *
+ * The file starts with a 16 byte header of [magic][version][IPv4 range count][IPv6 range count], followed by the IPv4
+ * ranges as [first][last][country] of 4 + 4 + 2 bytes and the IPv6 ranges as [first][last][country] of 16 + 16 + 2 bytes.
+ * Both are sorted by their first address and do not overlap. Countries are two letter ISO 3166 codes. A file is built
+ * from a CSV file of "first,last,country" lines with convert, or from the command line with main.
+ */
+public class GeoIPDatabase {
+
+    private static final Log log = LogFactory.getLog(GeoIPDatabase.class);
+
+    private static final int MAGIC = 0x46444750;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int IPV4_RECORD_SIZE = 10;
+    private static final int IPV6_RECORD_SIZE = 34;
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    // Country codes of two capital letters are shared, so a lookup does not allocate.
+    private static final String[] COUNTRY_CODES = new String[26 * 26];
+
+    static {
+        for (int i = 0; i < COUNTRY_CODES.length; i++) {
+            COUNTRY_CODES[i] = new String(new char[]{(char) ('A' + i / 26), (char) ('A' + i % 26)});
+        }
+    }
+
+    private final MappedByteBuffer buffer;
+    private final int ipv4Count;
+    private final int ipv6Count;
+    private final int ipv6Offset;
+
+    private GeoIPDatabase(MappedByteBuffer buffer, int ipv4Count, int ipv6Count) {
+        this.buffer = buffer;
+        this.ipv4Count = ipv4Count;
+        this.ipv6Count = ipv6Count;
+        this.ipv6Offset = HEADER_SIZE + ipv4Count * IPV4_RECORD_SIZE;
+    }
+
+    /**
+     * Maps the database file. Only the header is read, the ranges are paged in by the lookups.
+     */
+    public static GeoIPDatabase open(File file) throws IOException {
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            long size = randomAccessFile.length();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                throw new IOException(String.format("'%s' is not a GeoIP database", file.getAbsolutePath()));
+            }
+            MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IOException(String.format("'%s' is not a GeoIP database of version %d", file.getAbsolutePath(), VERSION));
+            }
+
+            int ipv4Count = buffer.getInt(8);
+            int ipv6Count = buffer.getInt(12);
+            if (ipv4Count < 0 || ipv6Count < 0 ||
+                    HEADER_SIZE + (long) ipv4Count * IPV4_RECORD_SIZE + (long) ipv6Count * IPV6_RECORD_SIZE != size) {
+                throw new IOException(String.format("GeoIP database '%s' is truncated", file.getAbsolutePath()));
+            }
+            log.info(String.format("Mapped the GeoIP database '%s' with %d IPv4 and %d IPv6 ranges.", file.getAbsolutePath(),
+                                   ipv4Count, ipv6Count));
+            // The mapping stays valid after the file is closed.
+            return new GeoIPDatabase(buffer, ipv4Count, ipv6Count);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Returns the country of the address, given as the two longs filled in by CidrTrie.parseAddress, or null if it is
+     * not in any range.
+     */
+    public String lookup(long high, long low) {
+
+        if (high == 0 && (low >>> 32) == 0xFFFF) {
+            return lookupIPv4(low & 0xFFFFFFFFL);
+        }
+        return lookupIPv6(high, low);
+    }
+
+    private String lookupIPv4(long address) {
+
+        // Finds the last range starting at or before the address.
+        int lowIndex = 0;
+        int highIndex = ipv4Count - 1;
+        int found = -1;
+        while (lowIndex <= highIndex) {
+            int middle = (lowIndex + highIndex) >>> 1;
+            long first = buffer.getInt(HEADER_SIZE + middle * IPV4_RECORD_SIZE) & 0xFFFFFFFFL;
+            if (first <= address) {
+                found = middle;
+                lowIndex = middle + 1;
+            } else {
+                highIndex = middle - 1;
+            }
+        }
+        if (found < 0) {
+            return null;
+        }
+        int record = HEADER_SIZE + found * IPV4_RECORD_SIZE;
+        if ((buffer.getInt(record + 4) & 0xFFFFFFFFL) < address) {
+            return null;
+        }
+        return getCountry(record + 8);
+    }
+
+    private String lookupIPv6(long high, long low) {
+
+        int lowIndex = 0;
+        int highIndex = ipv6Count - 1;
+        int found = -1;
+        while (lowIndex <= highIndex) {
+            int middle = (lowIndex + highIndex) >>> 1;
+            int record = ipv6Offset + middle * IPV6_RECORD_SIZE;
+            if (compare(buffer.getLong(record), buffer.getLong(record + 8), high, low) <= 0) {
+                found = middle;
+                lowIndex = middle + 1;
+            } else {
+                highIndex = middle - 1;
+            }
+        }
+        if (found < 0) {
+            return null;
+        }
+        int record = ipv6Offset + found * IPV6_RECORD_SIZE;
+        if (compare(buffer.getLong(record + 16), buffer.getLong(record + 24), high, low) < 0) {
+            return null;
+        }
+        return getCountry(record + 32);
+    }
+
+    private String getCountry(int offset) {
+
+        int first = buffer.get(offset) - 'A';
+        int second = buffer.get(offset + 1) - 'A';
+        if (first >= 0 && first < 26 && second >= 0 && second < 26) {
+            return COUNTRY_CODES[first * 26 + second];
+        }
+        return new String(new char[]{(char) buffer.get(offset), (char) buffer.get(offset + 1)});
+    }
+
+    /**
+     * Compares two 128 bit addresses as unsigned numbers.
+     */
+    private static int compare(long high1, long low1, long high2, long low2) {
+        if (high1 != high2) {
+            return high1 + Long.MIN_VALUE < high2 + Long.MIN_VALUE ? -1 : 1;
+        }
+        if (low1 != low2) {
+            return low1 + Long.MIN_VALUE < low2 + Long.MIN_VALUE ? -1 : 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Builds a database file from a CSV file of "first,last,country" lines, e.g. "1.0.0.0,1.0.0.255,AU". Blank lines and
+     * lines starting with '#' are skipped. Throws IllegalArgumentException for an invalid line.
+     */
+    public static void convert(File csvFile, File databaseFile) throws IOException {
+
+        List<long[]> ipv4Ranges = new ArrayList<long[]>();
+        List<long[]> ipv6Ranges = new ArrayList<long[]>();
+        List<String> countries = new ArrayList<String>();
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(csvFile), US_ASCII));
+        try {
+            String line;
+            int lineNumber = 0;
+            long[] first = new long[2];
+            long[] last = new long[2];
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+
+                int firstComma = line.indexOf(',');
+                int secondComma = line.indexOf(',', firstComma + 1);
+                if (firstComma < 0 || secondComma < 0 ||
+                        !CidrTrie.parseAddress(line, 0, CidrTrie.trimWhitespace(line, 0, firstComma), first) ||
+                        !CidrTrie.parseAddress(line, CidrTrie.skipWhitespace(line, firstComma + 1, secondComma),
+                                               CidrTrie.trimWhitespace(line, firstComma + 1, secondComma), last)) {
+                    throw new IllegalArgumentException(String.format("Invalid GeoIP range on line %d : '%s'", lineNumber, line));
+                }
+                String country = line.substring(secondComma + 1).trim().toUpperCase();
+                if (country.length() != 2 || compare(first[0], first[1], last[0], last[1]) > 0 ||
+                        isIPv4(first) != isIPv4(last)) {
+                    throw new IllegalArgumentException(String.format("Invalid GeoIP range on line %d : '%s'", lineNumber, line));
+                }
+
+                // The country is kept by its index, in the last slot of the range.
+                long[] range = new long[]{first[0], first[1], last[0], last[1], countries.size()};
+                countries.add(country);
+                (isIPv4(first) ? ipv4Ranges : ipv6Ranges).add(range);
+            }
+        } finally {
+            reader.close();
+        }
+
+        Comparator<long[]> byFirstAddress = new Comparator<long[]>() {
+            public int compare(long[] a, long[] b) {
+                return GeoIPDatabase.compare(a[0], a[1], b[0], b[1]);
+            }
+        };
+        Collections.sort(ipv4Ranges, byFirstAddress);
+        Collections.sort(ipv6Ranges, byFirstAddress);
+        checkOverlaps(ipv4Ranges);
+        checkOverlaps(ipv6Ranges);
+
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(databaseFile)));
+        try {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(ipv4Ranges.size());
+            output.writeInt(ipv6Ranges.size());
+            for (long[] range : ipv4Ranges) {
+                output.writeInt((int) range[1]);
+                output.writeInt((int) range[3]);
+                output.write(countries.get((int) range[4]).getBytes(US_ASCII));
+            }
+            for (long[] range : ipv6Ranges) {
+                output.writeLong(range[0]);
+                output.writeLong(range[1]);
+                output.writeLong(range[2]);
+                output.writeLong(range[3]);
+                output.write(countries.get((int) range[4]).getBytes(US_ASCII));
+            }
+        } finally {
+            output.close();
+        }
+    }
+
+    private static boolean isIPv4(long[] address) {
+        return address[0] == 0 && (address[1] >>> 32) == 0xFFFF;
+    }
+
+    private static void checkOverlaps(List<long[]> ranges) {
+        for (int i = 1; i < ranges.size(); i++) {
+            long[] previous = ranges.get(i - 1);
+            long[] range = ranges.get(i);
+            if (compare(previous[2], previous[3], range[0], range[1]) >= 0) {
+                throw new IllegalArgumentException("GeoIP ranges overlap");
+            }
+        }
+    }
+
+    /**
+     * Builds a database file from a CSV file. Usage : GeoIPDatabase <CSV file> <database file>
+     */
+    public static void main(String[] args) throws IOException {
+
+        if (args.length != 2) {
+            throw new IllegalArgumentException("Usage : GeoIPDatabase <CSV file> <database file>");
+        }
+        convert(new File(args[0]), new File(args[1]));
+        GeoIPDatabase database = open(new File(args[1]));
+        log.info(String.format("Wrote %d IPv4 and %d IPv6 ranges to '%s'", database.ipv4Count, database.ipv6Count, args[1]));
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ *  Copyright WSO2 Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.wso2.carbon.apimgt.frauddetection;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Resolves the country of a client IP from the GeoIP database, with a bounded cache of recently seen IPs in front of it.
+ * The cache is split into lock striped segments, each a small LRU map, so request threads rarely wait for each other.
+ */
+public class GeoIPLookup {
+
+    private static final Log log = LogFactory.getLog(GeoIPLookup.class);
+
+    private static final int SEGMENT_COUNT = 64;
+
+    // Cached for IPs which are in no range, so they are not searched for again.
+    private static final String UNKNOWN_COUNTRY = new String("");
+
+    private final GeoIPDatabase database;
+    private final Segment[] segments;
+
+    private static class Segment extends LinkedHashMap<String, String> {
+
+        private final int maxSize;
+
+        private Segment(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > maxSize;
+        }
+    }
+
+    /**
+     * Creates a lookup caching up to about the given number of IPs.
+     */
+    public GeoIPLookup(GeoIPDatabase database, int cacheCapacity) {
+
+        this.database = database;
+        int segmentSize = Math.max(1, (cacheCapacity + SEGMENT_COUNT - 1) / SEGMENT_COUNT);
+        segments = new Segment[SEGMENT_COUNT];
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment(segmentSize);
+        }
+    }
+
+    /**
+     * Returns the lookup for the $clientCountry attributes of the plan, or null if it has none or the database cannot
+     * be opened. Transactions are then published without the country.
+     */
+    public static GeoIPLookup create(DataPublisherConfig config, ExtractionPlan plan) {
+
+        if (!plan.usesClientCountry()) {
+            return null;
+        }
+        if (config.getGeoIPDatabase() == null || config.getGeoIPDatabase().trim().isEmpty()) {
+            log.warn(String.format("The stream mapping uses %s, but no 'geoIPDatabase' is set. The country is left null.",
+                                   ExtractionPlan.SOURCE_CLIENT_COUNTRY));
+            return null;
+        }
+
+        try {
+            GeoIPDatabase database = GeoIPDatabase.open(new File(config.getGeoIPDatabase().trim()));
+            return new GeoIPLookup(database, config.getGeoIPCacheCapacity());
+        } catch (IOException e) {
+            log.error(String.format("Cannot open the GeoIP database '%s'. The country is left null.",
+                                    config.getGeoIPDatabase()), e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the country code of the IP, or null if it is not known.
+     */
+    public String getCountry(String clientIP) {
+
+        if (clientIP == null) {
+            return null;
+        }
+
+        int hash = clientIP.hashCode();
+        Segment segment = segments[(hash ^ (hash >>> 16)) & (SEGMENT_COUNT - 1)];
+        String country;
+        synchronized (segment) {
+            country = segment.get(clientIP);
+        }
+        if (country == null) {
+            long[] address = new long[2];
+            country = CidrTrie.parseAddress(clientIP, 0, clientIP.length(), address) ?
+                    database.lookup(address[0], address[1]) : null;
+            if (country == null) {
+                country = UNKNOWN_COUNTRY;
+            }
+            synchronized (segment) {
+                segment.put(clientIP, country);
+            }
+        }
+        return country == UNKNOWN_COUNTRY ? null : country;
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ *  Copyright WSO2 Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.wso2.carbon.apimgt.frauddetection;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size histogram of latencies in nanoseconds, with log-linear buckets in the manner of an HDR histogram.
+ *
+ * Values below 32 ns get a bucket each. Above that, every power of two range is split into 32 buckets, so a value is
+ * reported within about 3% of what was recorded. Values above about an hour go into the last bucket. Recording
+ * is one atomic increment on a bucket of the calling thread's stripe and never allocates. The mean is worked out
+ * from the buckets, so it carries the same error.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 41;
+
+    static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) << SUB_BUCKET_BITS;
+
+    // Per stripe: the bucket counts, padded so that neighbouring stripes do not share a cache line.
+    private static final int STRIPE_SIZE = BUCKET_COUNT + 8;
+
+    private final AtomicLongArray stripes = new AtomicLongArray(StripedCounter.STRIPES * STRIPE_SIZE);
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        stripes.getAndIncrement(StripedCounter.stripe() * STRIPE_SIZE + bucketIndex(nanos));
+
+        long currentMax;
+        while (nanos > (currentMax = max.get()) && !max.compareAndSet(currentMax, nanos)) {
+            // Retry until the max is at least this value.
+        }
+    }
+
+    /**
+     * Returns the current counts. Recording goes on while the snapshot is taken, so a snapshot may miss the values
+     * recorded during it.
+     */
+    public Snapshot snapshot() {
+
+        long[] counts = new long[BUCKET_COUNT];
+        long count = 0;
+        long sum = 0;
+        for (int stripe = 0; stripe < StripedCounter.STRIPES; stripe++) {
+            int base = stripe * STRIPE_SIZE;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                counts[i] += stripes.get(base + i);
+            }
+        }
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += counts[i];
+            sum += counts[i] * bucketMidpoint(i);
+        }
+        return new Snapshot(counts, count, sum, max.get());
+    }
+
+    static int bucketIndex(long value) {
+
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int shift = exponent - SUB_BUCKET_BITS;
+        return ((shift + 1) << SUB_BUCKET_BITS) + (int) ((value >>> shift) - SUB_BUCKET_COUNT);
+    }
+
+    /**
+     * Returns the highest value which falls into the given bucket.
+     */
+    static long bucketUpperBound(int index) {
+
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index >>> SUB_BUCKET_BITS) - 1;
+        long lowerBound = (long) (SUB_BUCKET_COUNT + (index & (SUB_BUCKET_COUNT - 1))) << shift;
+        return lowerBound + (1L << shift) - 1;
+    }
+
+    private static long bucketMidpoint(int index) {
+        long lowerBound = index > 0 ? bucketUpperBound(index - 1) + 1 : 0;
+        return (lowerBound + bucketUpperBound(index)) / 2;
+    }
+
+    /**
+     * The counts of a histogram at a point in time. All values are in nanoseconds.
+     */
+    public static class Snapshot {
+
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMean() {
+            return count > 0 ? sum / count : 0;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public long getP50() {
+            return getValueAtPercentile(50);
+        }
+
+        public long getP90() {
+            return getValueAtPercentile(90);
+        }
+
+        public long getP99() {
+            return getValueAtPercentile(99);
+        }
+
+        public long getP999() {
+            return getValueAtPercentile(99.9);
+        }
+
+        /**
+         * Returns the value below which the given percentage of the values fall.
+         */
+        public long getValueAtPercentile(double percentile) {
+
+            if (count == 0) {
+                return 0;
+            }
+            long target = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+            long cumulative = 0;
+            for (int i = 0; i < counts.length; i++) {
+                cumulative += counts[i];
+                if (cumulative >= target) {
+                    return Math.min(bucketUpperBound(i), max);
+                }
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count=%d, mean=%d, p50=%d, p90=%d, p99=%d, p99.9=%d, max=%d", count, getMean(),
+                                 getP50(), getP90(), getP99(), getP999(), max);
+        }
+    }
+}
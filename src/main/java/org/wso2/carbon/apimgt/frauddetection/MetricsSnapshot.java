@@ -0,0 +1,155 @@
+/*
+ *  Copyright WSO2 Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.wso2.carbon.apimgt.frauddetection;
+
+import java.util.Map;
+
+/**
+ * The metrics of the transaction data publisher at a point in time.
+ */
+public class MetricsSnapshot {
+
+    private final boolean ready;
+    private final int queueDepth;
+    private final long publishedEventCount;
+    private final long failedEventCount;
+    private final long droppedEventCount;
+    private final long spilledEventCount;
+    private final long extractionFailureCount;
+    private final long duplicateEventCount;
+    private final long uniqueEventCount;
+    private final long velocityViolationCount;
+    private final long responseTimeoutCount;
+    private final long deliveryLatencyMillis;
+    private final long sampledOutEventCount;
+    private final long filteredOutRequestCount;
+    private final Map<String, Long> filterHitCounts;
+    private final LatencyHistogram.Snapshot messageBuildLatency;
+    private final LatencyHistogram.Snapshot fieldExtractionLatency;
+    private final LatencyHistogram.Snapshot clientIPResolutionLatency;
+    private final LatencyHistogram.Snapshot publishLatency;
+
+    MetricsSnapshot(TransactionDataPublisherMXBean publisher) {
+        this.ready = publisher.isReady();
+        this.queueDepth = publisher.getQueueDepth();
+        this.publishedEventCount = publisher.getPublishedEventCount();
+        this.failedEventCount = publisher.getFailedEventCount();
+        this.droppedEventCount = publisher.getDroppedEventCount();
+        this.spilledEventCount = publisher.getSpilledEventCount();
+        this.extractionFailureCount = publisher.getExtractionFailureCount();
+        this.duplicateEventCount = publisher.getDuplicateEventCount();
+        this.uniqueEventCount = publisher.getUniqueEventCount();
+        this.velocityViolationCount = publisher.getVelocityViolationCount();
+        this.responseTimeoutCount = publisher.getResponseTimeoutCount();
+        this.deliveryLatencyMillis = publisher.getDeliveryLatencyMillis();
+        this.sampledOutEventCount = publisher.getSampledOutEventCount();
+        this.filteredOutRequestCount = publisher.getFilteredOutRequestCount();
+        this.filterHitCounts = publisher.getFilterHitCounts();
+        this.messageBuildLatency = publisher.getMessageBuildLatency();
+        this.fieldExtractionLatency = publisher.getFieldExtractionLatency();
+        this.clientIPResolutionLatency = publisher.getClientIPResolutionLatency();
+        this.publishLatency = publisher.getPublishLatency();
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public long getPublishedEventCount() {
+        return publishedEventCount;
+    }
+
+    public long getFailedEventCount() {
+        return failedEventCount;
+    }
+
+    public long getDroppedEventCount() {
+        return droppedEventCount;
+    }
+
+    public long getSpilledEventCount() {
+        return spilledEventCount;
+    }
+
+    public long getExtractionFailureCount() {
+        return extractionFailureCount;
+    }
+
+    public long getDuplicateEventCount() {
+        return duplicateEventCount;
+    }
+
+    public long getUniqueEventCount() {
+        return uniqueEventCount;
+    }
+
+    public long getVelocityViolationCount() {
+        return velocityViolationCount;
+    }
+
+    public long getResponseTimeoutCount() {
+        return responseTimeoutCount;
+    }
+
+    public long getDeliveryLatencyMillis() {
+        return deliveryLatencyMillis;
+    }
+
+    public long getSampledOutEventCount() {
+        return sampledOutEventCount;
+    }
+
+    public long getFilteredOutRequestCount() {
+        return filteredOutRequestCount;
+    }
+
+    public Map<String, Long> getFilterHitCounts() {
+        return filterHitCounts;
+    }
+
+    public LatencyHistogram.Snapshot getMessageBuildLatency() {
+        return messageBuildLatency;
+    }
+
+    public LatencyHistogram.Snapshot getFieldExtractionLatency() {
+        return fieldExtractionLatency;
+    }
+
+    public LatencyHistogram.Snapshot getClientIPResolutionLatency() {
+        return clientIPResolutionLatency;
+    }
+
+    public LatencyHistogram.Snapshot getPublishLatency() {
+        return publishLatency;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ready=%s, queueDepth=%d, published=%d, failed=%d, dropped=%d, spilled=%d, extractionFailures=%d, " +
+                             "duplicates=%d, unique=%d, velocityViolations=%d, responseTimeouts=%d, deliveryLatencyMillis=%d, " +
+                             "sampledOut=%d, filteredOut=%d, filterHits=%s, " +
+                             "messageBuild=[%s], fieldExtraction=[%s], clientIPResolution=[%s], publish=[%s]",
+                             ready, queueDepth, publishedEventCount, failedEventCount, droppedEventCount, spilledEventCount,
+                             extractionFailureCount, duplicateEventCount, uniqueEventCount, velocityViolationCount,
+                             responseTimeoutCount, deliveryLatencyMillis, sampledOutEventCount, filteredOutRequestCount,
+                             filterHitCounts, messageBuildLatency, fieldExtractionLatency, clientIPResolutionLatency,
+                             publishLatency);
+    }
+}
@@ -0,0 +1,478 @@
+/*
+ *  Copyright WSO2 Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.wso2.carbon.apimgt.frauddetection;
+
+import org.apache.synapse.MessageContext;
+import org.apache.synapse.core.axis2.Axis2MessageContext;
+import org.apache.synapse.rest.RESTConstants;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Decides from the method, the resource path and the headers of a request whether its transactions are published, so
+ * requests which carry no transaction are passed on before their body is built or read.
+ *
+ * The filters are a ';' separated list, in order, each written as name=ACTION:condition[,condition...] where the action
+ * is publish or skip. A request takes the action of the first filter whose conditions all hold, or the default action
+ * if none does. A condition is key=value[|value...], and holds if any of its values matches :
+ * method=POST|PUT : The HTTP method.
+ * path=/payments|/payments/{@literal *}/capture : The resource path within the API, without the query. A '*' segment
+ * matches any one segment, and a trailing '**' any number of them, including none.
+ * contentType=application/json|text/* : The media type of the Content-Type header, without its parameters. A trailing
+ * '*' matches any rest. Compared ignoring case.
+ * header.Name=value|prefix*|* : A request header. A lone '*' matches any value of a header which is present.
+ *
+ * The filters are compiled into a bit mask of the filters per method and a trie of the path patterns, so the filters
+ * which accept the method and the path of a request are found with one map lookup and one walk of the path. The
+ * content type and header conditions are only checked for those, in order, until one holds.
+ */
+public class PublishFilter {
+
+    public static final String ACTION_PUBLISH = "publish";
+    public static final String ACTION_SKIP = "skip";
+    public static final int MAX_FILTERS = 64;
+
+    private static final String CONDITION_METHOD = "method";
+    private static final String CONDITION_PATH = "path";
+    private static final String CONDITION_CONTENT_TYPE = "contentType";
+    private static final String CONDITION_HEADER_PREFIX = "header.";
+    private static final String HTTP_METHOD_PROPERTY = "HTTP_METHOD";
+    private static final String CONTENT_TYPE_HEADER = "Content-Type";
+
+    /**
+     * A node of the path trie. The masks hold the filters whose pattern ends at the node, or goes on with '**'.
+     */
+    private static final class PathNode {
+
+        private Map<String, PathNode> children;
+        private PathNode anySegment;
+        private long endMask;
+        private long restMask;
+
+        private PathNode child(String segment) {
+
+            if ("*".equals(segment)) {
+                if (anySegment == null) {
+                    anySegment = new PathNode();
+                }
+                return anySegment;
+            }
+            if (children == null) {
+                children = new HashMap<String, PathNode>();
+            }
+            PathNode child = children.get(segment);
+            if (child == null) {
+                child = new PathNode();
+                children.put(segment, child);
+            }
+            return child;
+        }
+    }
+
+    /**
+     * The values of a content type or header condition : exact values, prefixes, or any value.
+     */
+    private static final class ValueMatcher {
+
+        private final List<String> values = new ArrayList<String>();
+        private final List<String> prefixes = new ArrayList<String>();
+        private final boolean ignoreCase;
+        private boolean any;
+
+        private ValueMatcher(String alternatives, boolean ignoreCase) {
+
+            this.ignoreCase = ignoreCase;
+            for (String value : splitAlternatives(alternatives)) {
+                if (ignoreCase) {
+                    value = value.toLowerCase(Locale.ENGLISH);
+                }
+                if ("*".equals(value)) {
+                    any = true;
+                } else if (value.endsWith("*")) {
+                    prefixes.add(value.substring(0, value.length() - 1));
+                } else {
+                    values.add(value);
+                }
+            }
+        }
+
+        private boolean matches(String value) {
+
+            if (value == null) {
+                return false;
+            }
+            if (any) {
+                return true;
+            }
+            if (ignoreCase) {
+                value = value.toLowerCase(Locale.ENGLISH);
+            }
+            for (int i = 0; i < values.size(); i++) {
+                if (values.get(i).equals(value)) {
+                    return true;
+                }
+            }
+            for (int i = 0; i < prefixes.size(); i++) {
+                if (value.startsWith(prefixes.get(i))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private final PublisherMetrics metrics;
+    private final boolean defaultPublish;
+    private final boolean[] publish;
+    private final StripedCounter[] hitCounters;
+
+    private final Map<String, Long> methodMasks = new HashMap<String, Long>();
+    private long anyMethodMask;
+    private final PathNode pathRoot = new PathNode();
+    private long anyPathMask;
+
+    // Per filter, its content type and header conditions, or null if it has none.
+    private final ValueMatcher[] contentTypeMatchers;
+    private final String[][] headerNames;
+    private final ValueMatcher[][] headerMatchers;
+    private long headerConditionMask;
+
+    private PublishFilter(String filters, String defaultAction, PublisherMetrics metrics) {
+
+        this.metrics = metrics;
+        this.defaultPublish = isPublish(defaultAction);
+
+        String[] definitions = filters.split(";");
+        List<String> names = new ArrayList<String>();
+        List<String> actionsAndConditions = new ArrayList<String>();
+        for (String definition : definitions) {
+            definition = definition.trim();
+            if (definition.isEmpty()) {
+                continue;
+            }
+            int equals = definition.indexOf('=');
+            if (equals <= 0) {
+                throw new IllegalArgumentException("Publish filter has no name : " + definition);
+            }
+            String name = definition.substring(0, equals).trim();
+            if (names.contains(name)) {
+                throw new IllegalArgumentException("Publish filter is defined more than once : " + name);
+            }
+            names.add(name);
+            actionsAndConditions.add(definition.substring(equals + 1).trim());
+        }
+        if (names.size() > MAX_FILTERS) {
+            throw new IllegalArgumentException(String.format("At most %d publish filters can be defined, but found %d.",
+                                                             MAX_FILTERS, names.size()));
+        }
+
+        int count = names.size();
+        this.publish = new boolean[count];
+        this.hitCounters = new StripedCounter[count];
+        this.contentTypeMatchers = new ValueMatcher[count];
+        this.headerNames = new String[count][];
+        this.headerMatchers = new ValueMatcher[count][];
+        for (int i = 0; i < count; i++) {
+            compile(i, names.get(i), actionsAndConditions.get(i));
+            hitCounters[i] = metrics.getFilterHitCounter(names.get(i));
+        }
+    }
+
+    /**
+     * Returns the compiled filters of the given config, or null if none are defined. Throws IllegalArgumentException if
+     * a filter or the default action is not valid.
+     */
+    public static PublishFilter create(DataPublisherConfig config, PublisherMetrics metrics) {
+
+        String filters = config.getPublishFilters();
+        if (filters == null || filters.trim().isEmpty()) {
+            return null;
+        }
+        return new PublishFilter(filters, config.getPublishFilterDefault(), metrics);
+    }
+
+    /**
+     * Returns true if the transactions of the request are to be published. Reads only the properties and the transport
+     * headers of the message context, never its body.
+     */
+    public boolean accept(MessageContext messageContext) {
+
+        long candidates = anyMethodMask;
+        if (!methodMasks.isEmpty()) {
+            String method = getMethod(messageContext);
+            Long methodMask = method != null ? methodMasks.get(method) : null;
+            if (methodMask != null) {
+                candidates |= methodMask;
+            }
+        }
+        // The path is only walked if one of the filters left has a path condition.
+        if ((candidates & ~anyPathMask) != 0) {
+            candidates &= anyPathMask | matchPath(getPath(messageContext));
+        }
+
+        Map headers = null;
+        while (candidates != 0) {
+            int index = Long.numberOfTrailingZeros(candidates);
+            if ((headerConditionMask & (1L << index)) != 0) {
+                if (headers == null) {
+                    headers = getTransportHeaders(messageContext);
+                }
+                if (!matchesHeaders(index, headers)) {
+                    candidates &= candidates - 1;
+                    continue;
+                }
+            }
+            hitCounters[index].increment();
+            return result(publish[index]);
+        }
+        return result(defaultPublish);
+    }
+
+    private boolean result(boolean publish) {
+
+        if (!publish) {
+            metrics.onFilteredOut();
+        }
+        return publish;
+    }
+
+    private void compile(int index, String name, String actionAndConditions) {
+
+        long bit = 1L << index;
+        int colon = actionAndConditions.indexOf(':');
+        String action = colon < 0 ? actionAndConditions : actionAndConditions.substring(0, colon);
+        publish[index] = isPublish(action);
+
+        boolean hasMethod = false;
+        boolean hasPath = false;
+        List<String> names = new ArrayList<String>();
+        List<ValueMatcher> matchers = new ArrayList<ValueMatcher>();
+        String conditions = colon < 0 ? "" : actionAndConditions.substring(colon + 1);
+        for (String condition : conditions.split(",")) {
+            condition = condition.trim();
+            if (condition.isEmpty()) {
+                continue;
+            }
+            int equals = condition.indexOf('=');
+            if (equals <= 0) {
+                throw new IllegalArgumentException(String.format("Invalid condition of publish filter %s : %s", name,
+                                                                 condition));
+            }
+            String key = condition.substring(0, equals).trim();
+            String value = condition.substring(equals + 1).trim();
+
+            if (CONDITION_METHOD.equals(key)) {
+                hasMethod = true;
+                for (String method : splitAlternatives(value)) {
+                    method = method.toUpperCase(Locale.ENGLISH);
+                    Long mask = methodMasks.get(method);
+                    methodMasks.put(method, (mask != null ? mask : 0L) | bit);
+                }
+            } else if (CONDITION_PATH.equals(key)) {
+                hasPath = true;
+                for (String pattern : splitAlternatives(value)) {
+                    addPathPattern(name, pattern, bit);
+                }
+            } else if (CONDITION_CONTENT_TYPE.equals(key)) {
+                contentTypeMatchers[index] = new ValueMatcher(value, true);
+            } else if (key.startsWith(CONDITION_HEADER_PREFIX) && key.length() > CONDITION_HEADER_PREFIX.length()) {
+                names.add(key.substring(CONDITION_HEADER_PREFIX.length()));
+                matchers.add(new ValueMatcher(value, false));
+            } else {
+                throw new IllegalArgumentException(String.format("Unknown condition of publish filter %s : %s", name,
+                                                                 key));
+            }
+        }
+
+        if (!hasMethod) {
+            anyMethodMask |= bit;
+        }
+        if (!hasPath) {
+            anyPathMask |= bit;
+        }
+        if (!names.isEmpty()) {
+            headerNames[index] = names.toArray(new String[names.size()]);
+            headerMatchers[index] = matchers.toArray(new ValueMatcher[matchers.size()]);
+        }
+        if (contentTypeMatchers[index] != null || headerNames[index] != null) {
+            headerConditionMask |= bit;
+        }
+    }
+
+    private void addPathPattern(String name, String pattern, long bit) {
+
+        String[] segments = pattern.split("/");
+        PathNode node = pathRoot;
+        for (int i = 0; i < segments.length; i++) {
+            String segment = segments[i].trim();
+            if (segment.isEmpty()) {
+                continue;
+            }
+            if ("**".equals(segment)) {
+                if (i != segments.length - 1) {
+                    throw new IllegalArgumentException(String.format("'**' can only end a path of publish filter %s : %s",
+                                                                     name, pattern));
+                }
+                node.restMask |= bit;
+                return;
+            }
+            node = node.child(segment);
+        }
+        node.endMask |= bit;
+    }
+
+    /**
+     * Returns the filters whose path pattern matches the path, which may have a query.
+     */
+    private long matchPath(String path) {
+
+        if (path == null) {
+            return 0;
+        }
+        int end = path.indexOf('?');
+        return matchPath(pathRoot, path, 0, end < 0 ? path.length() : end);
+    }
+
+    private static long matchPath(PathNode node, String path, int start, int end) {
+
+        // Empty segments, such as those of a leading, trailing or doubled '/', are skipped.
+        while (start < end && path.charAt(start) == '/') {
+            start++;
+        }
+        long mask = node.restMask;
+        if (start >= end) {
+            return mask | node.endMask;
+        }
+
+        int segmentEnd = path.indexOf('/', start);
+        if (segmentEnd < 0 || segmentEnd > end) {
+            segmentEnd = end;
+        }
+        if (node.children != null) {
+            PathNode child = node.children.get(path.substring(start, segmentEnd));
+            if (child != null) {
+                mask |= matchPath(child, path, segmentEnd, end);
+            }
+        }
+        if (node.anySegment != null) {
+            mask |= matchPath(node.anySegment, path, segmentEnd, end);
+        }
+        return mask;
+    }
+
+    private boolean matchesHeaders(int index, Map headers) {
+
+        if (contentTypeMatchers[index] != null &&
+                !contentTypeMatchers[index].matches(getMediaType(getHeader(headers, CONTENT_TYPE_HEADER)))) {
+            return false;
+        }
+        String[] names = headerNames[index];
+        if (names != null) {
+            for (int i = 0; i < names.length; i++) {
+                if (!headerMatchers[index][i].matches(getHeader(headers, names[i]))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static String getMethod(MessageContext messageContext) {
+
+        Object method = messageContext.getProperty(RESTConstants.REST_METHOD);
+        if (method == null && messageContext instanceof Axis2MessageContext) {
+            method = ((Axis2MessageContext) messageContext).getAxis2MessageContext().getProperty(HTTP_METHOD_PROPERTY);
+        }
+        return method != null ? method.toString() : null;
+    }
+
+    private static String getPath(MessageContext messageContext) {
+
+        Object path = messageContext.getProperty(RESTConstants.REST_SUB_REQUEST_PATH);
+        if (path == null) {
+            path = messageContext.getProperty(RESTConstants.REST_FULL_REQUEST_PATH);
+        }
+        return path != null ? path.toString() : null;
+    }
+
+    private static Map getTransportHeaders(MessageContext messageContext) {
+
+        if (!(messageContext instanceof Axis2MessageContext)) {
+            return null;
+        }
+        Object headers = ((Axis2MessageContext) messageContext).getAxis2MessageContext()
+                .getProperty(org.apache.axis2.context.MessageContext.TRANSPORT_HEADERS);
+        return headers instanceof Map ? (Map) headers : null;
+    }
+
+    /**
+     * Returns the value of the header, looked up ignoring case if the map of headers does not.
+     */
+    private static String getHeader(Map headers, String name) {
+
+        if (headers == null) {
+            return null;
+        }
+        Object value = headers.get(name);
+        if (value == null) {
+            for (Object entry : headers.entrySet()) {
+                Map.Entry header = (Map.Entry) entry;
+                if (name.equalsIgnoreCase(String.valueOf(header.getKey()))) {
+                    value = header.getValue();
+                    break;
+                }
+            }
+        }
+        return value != null ? value.toString() : null;
+    }
+
+    private static String getMediaType(String contentType) {
+
+        if (contentType == null) {
+            return null;
+        }
+        int semicolon = contentType.indexOf(';');
+        return (semicolon < 0 ? contentType : contentType.substring(0, semicolon)).trim();
+    }
+
+    private static boolean isPublish(String action) {
+
+        String value = action == null ? ACTION_PUBLISH : action.trim().toLowerCase(Locale.ENGLISH);
+        if (ACTION_PUBLISH.equals(value)) {
+            return true;
+        }
+        if (ACTION_SKIP.equals(value)) {
+            return false;
+        }
+        throw new IllegalArgumentException("Unknown publish filter action : " + action);
+    }
+
+    private static List<String> splitAlternatives(String alternatives) {
+
+        List<String> values = new ArrayList<String>();
+        for (String value : alternatives.split("\\|")) {
+            value = value.trim();
+            if (!value.isEmpty()) {
+                values.add(value);
+            }
+        }
+        return values;
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ *  Copyright WSO2 Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.wso2.carbon.apimgt.frauddetection;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, lock-free, multi-producer multi-consumer ring buffer which hands events over from the request threads
+ * to the publisher threads.
+ *
+ * Each slot carries a sequence number which tells producers and consumers whether the slot is free for the current
+ * lap of the ring, so a successful CAS on the enqueue or dequeue position is all it takes to claim a slot.
+ */
+public class PublishQueue<E> {
+
+    /**
+     * What to do with an event when the queue is full.
+     */
+    public enum OverflowPolicy {
+
+        DROP_NEWEST, DROP_OLDEST, BLOCK;
+
+        public static OverflowPolicy fromString(String value) {
+            return valueOf(value.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final AtomicReferenceArray<E> buffer;
+    private final AtomicLongArray sequences;
+    private final int mask;
+
+    private final AtomicLong enqueuePosition = new AtomicLong();
+    private final AtomicLong dequeuePosition = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    private final OverflowPolicy overflowPolicy;
+    private final long blockTimeoutNanos;
+
+    public PublishQueue(int capacity, OverflowPolicy overflowPolicy, long blockTimeoutMillis) {
+
+        if (capacity < 1) {
+            throw new IllegalArgumentException(String.format("Invalid publish queue capacity : %d", capacity));
+        }
+
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+
+        this.buffer = new AtomicReferenceArray<E>(size);
+        this.sequences = new AtomicLongArray(size);
+        this.mask = size - 1;
+        this.overflowPolicy = overflowPolicy;
+        this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis);
+
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Adds the event according to the overflow policy. Returns false if the event (or, with DROP_OLDEST, an older
+     * one) had to be dropped.
+     */
+    public boolean put(E event) {
+
+        if (offer(event)) {
+            return true;
+        }
+
+        switch (overflowPolicy) {
+            case DROP_OLDEST:
+                while (!offer(event)) {
+                    if (poll() != null) {
+                        droppedCount.incrementAndGet();
+                    }
+                }
+                return false;
+            case BLOCK:
+                long deadline = System.nanoTime() + blockTimeoutNanos;
+                while (System.nanoTime() < deadline) {
+                    LockSupport.parkNanos(BLOCK_PARK_NANOS);
+                    if (offer(event)) {
+                        return true;
+                    }
+                }
+                droppedCount.incrementAndGet();
+                return false;
+            default:
+                droppedCount.incrementAndGet();
+                return false;
+        }
+    }
+
+    /**
+     * Adds the event if there is room in the queue.
+     */
+    public boolean offer(E event) {
+
+        long position = enqueuePosition.get();
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+
+            if (difference == 0) {
+                if (enqueuePosition.compareAndSet(position, position + 1)) {
+                    buffer.lazySet(index, event);
+                    sequences.lazySet(index, position + 1);
+                    return true;
+                }
+                position = enqueuePosition.get();
+            } else if (difference < 0) {
+                // The slot still holds an event from the previous lap. The queue is full.
+                return false;
+            } else {
+                position = enqueuePosition.get();
+            }
+        }
+    }
+
+    /**
+     * Adds the events according to the overflow policy, in consecutive slots if there is room for all of them at once,
+     * so the publisher threads see them together. Otherwise they are put one by one. Returns false if any event had to
+     * be dropped.
+     */
+    public boolean putAll(E[] events) {
+
+        if (offerAll(events)) {
+            return true;
+        }
+        boolean added = true;
+        for (E event : events) {
+            if (!put(event)) {
+                added = false;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Adds all the events in consecutive slots, claimed with a single CAS, if there is room for all of them.
+     */
+    public boolean offerAll(E[] events) {
+
+        int count = events.length;
+        if (count > mask + 1) {
+            return false;
+        }
+
+        long position = enqueuePosition.get();
+        retry:
+        while (true) {
+            for (int i = 0; i < count; i++) {
+                long difference = sequences.get((int) (position + i) & mask) - (position + i);
+                if (difference < 0) {
+                    return false;
+                }
+                if (difference > 0) {
+                    // Another producer claimed the slot since the position was read.
+                    position = enqueuePosition.get();
+                    continue retry;
+                }
+            }
+
+            // A free slot stays free until the position it belongs to is claimed, so the CAS claims all of them.
+            if (enqueuePosition.compareAndSet(position, position + count)) {
+                for (int i = 0; i < count; i++) {
+                    int index = (int) (position + i) & mask;
+                    buffer.lazySet(index, events[i]);
+                    sequences.lazySet(index, position + i + 1);
+                }
+                return true;
+            }
+            position = enqueuePosition.get();
+        }
+    }
+
+    /**
+     * Removes the oldest event, or returns null if the queue is empty.
+     */
+    public E poll() {
+
+        long position = dequeuePosition.get();
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - (position + 1);
+
+            if (difference == 0) {
+                if (dequeuePosition.compareAndSet(position, position + 1)) {
+                    E event = buffer.get(index);
+                    buffer.lazySet(index, null);
+                    sequences.lazySet(index, position + mask + 1);
+                    return event;
+                }
+                position = dequeuePosition.get();
+            } else if (difference < 0) {
+                return null;
+            } else {
+                position = dequeuePosition.get();
+            }
+        }
+    }
+
+    public int size() {
+        long size = enqueuePosition.get() - dequeuePosition.get();
+        return (int) Math.max(0, Math.min(size, capacity()));
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * The number of events added to the queue so far, including any dropped later by the DROP_OLDEST policy.
+     */
+    public long getEnqueuedCount() {
+        return enqueuePosition.get();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+}
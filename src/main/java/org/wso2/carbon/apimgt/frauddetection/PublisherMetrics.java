@@ -0,0 +1,254 @@
+/*
+ *  Copyright WSO2 Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.wso2.carbon.apimgt.frauddetection;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The counters and stage latencies of the publishing pipeline.
+ *
+ * The counters are exact. Reading the clock costs tens of nanoseconds, so the stages are only timed for every
+ * sampleInterval-th request of each thread. The stages of a sampled request are timed back to back: each timing method
+ * takes the start time of the stage and returns its end time, which is the start time of the next stage. For requests
+ * which are not sampled, the timing methods get and return 0 and the clock is not read.
+ */
+public class PublisherMetrics {
+
+    public static final int DEFAULT_SAMPLE_INTERVAL = 8;
+
+    private volatile boolean enabled = true;
+    private volatile int sampleMask = DEFAULT_SAMPLE_INTERVAL - 1;
+
+    // Per thread: the number of requests seen, and whether the current request is sampled.
+    private final ThreadLocal<int[]> samplingState = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[]{0, 1};
+        }
+    };
+
+    private final StripedCounter publishedCount = new StripedCounter();
+    private final StripedCounter failedCount = new StripedCounter();
+    private final StripedCounter extractionFailureCount = new StripedCounter();
+    private final StripedCounter velocityViolationCount = new StripedCounter();
+    private final StripedCounter responseTimeoutCount = new StripedCounter();
+    private final StripedCounter sampledOutCount = new StripedCounter();
+    private final StripedCounter filteredOutCount = new StripedCounter();
+    // Per publish filter name. Filters of the same name in different APIs count together.
+    private final ConcurrentMap<String, StripedCounter> filterHitCounts = new ConcurrentHashMap<String, StripedCounter>();
+
+    private final LatencyHistogram messageBuildLatency = new LatencyHistogram();
+    private final LatencyHistogram fieldExtractionLatency = new LatencyHistogram();
+    private final LatencyHistogram clientIPResolutionLatency = new LatencyHistogram();
+    private final LatencyHistogram publishLatency = new LatencyHistogram();
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Turns the latency timing on or off. The counters are always kept.
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public int getSampleInterval() {
+        return sampleMask + 1;
+    }
+
+    /**
+     * Times every given number of requests per thread. The interval is rounded up to a power of two.
+     */
+    public void setSampleInterval(int sampleInterval) {
+        sampleMask = Integer.highestOneBit(Math.max(1, sampleInterval) * 2 - 1) - 1;
+    }
+
+    /**
+     * Starts a new request, and returns the current time if the request is sampled or 0 if it is not.
+     */
+    public long startTimer() {
+
+        if (!enabled) {
+            return 0;
+        }
+        int[] state = samplingState.get();
+        state[1] = ++state[0] & sampleMask;
+        return state[1] == 0 ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Returns the current time if the request last started on this thread is sampled, or 0 if it is not. This lets a
+     * later stage of the same request be timed without passing the start time along.
+     */
+    public long resumeTimer() {
+        return enabled && samplingState.get()[1] == 0 ? System.nanoTime() : 0;
+    }
+
+    public long recordMessageBuild(long startNanos) {
+        return record(messageBuildLatency, startNanos);
+    }
+
+    public long recordFieldExtraction(long startNanos) {
+        return record(fieldExtractionLatency, startNanos);
+    }
+
+    public long recordClientIPResolution(long startNanos) {
+        return record(clientIPResolutionLatency, startNanos);
+    }
+
+    public long recordPublish(long startNanos) {
+        return record(publishLatency, startNanos);
+    }
+
+    /**
+     * An event was accepted by a DAS endpoint.
+     */
+    public void onPublished() {
+        publishedCount.increment();
+    }
+
+    /**
+     * A DAS endpoint accepted a block of events in the compact encoding.
+     */
+    public void onPublished(int count) {
+        publishedCount.add(count);
+    }
+
+    /**
+     * A DAS endpoint failed to take an event.
+     */
+    public void onPublishFailure() {
+        failedCount.increment();
+    }
+
+    /**
+     * No stream payload could be extracted from a request.
+     */
+    public void onExtractionFailure() {
+        extractionFailureCount.increment();
+    }
+
+    /**
+     * A transaction broke a velocity rule.
+     */
+    public void onVelocityViolation() {
+        velocityViolationCount.increment();
+    }
+
+    /**
+     * A transaction was published without its response, because none came within the timeout.
+     */
+    public void onResponseTimeout() {
+        responseTimeoutCount.increment();
+    }
+
+    /**
+     * Transactions were not published, because they were left out of the sample while DAS was falling behind.
+     */
+    public void onSampledOut(int transactionCount) {
+        sampledOutCount.add(transactionCount);
+    }
+
+    /**
+     * A request was not published, because a publish filter skipped it.
+     */
+    public void onFilteredOut() {
+        filteredOutCount.increment();
+    }
+
+    /**
+     * Returns the counter of the requests taking the action of the named publish filter.
+     */
+    public StripedCounter getFilterHitCounter(String filterName) {
+
+        StripedCounter counter = filterHitCounts.get(filterName);
+        if (counter == null) {
+            StripedCounter newCounter = new StripedCounter();
+            counter = filterHitCounts.putIfAbsent(filterName, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        return counter;
+    }
+
+    public long getPublishedCount() {
+        return publishedCount.sum();
+    }
+
+    public long getFailedCount() {
+        return failedCount.sum();
+    }
+
+    public long getExtractionFailureCount() {
+        return extractionFailureCount.sum();
+    }
+
+    public long getVelocityViolationCount() {
+        return velocityViolationCount.sum();
+    }
+
+    public long getResponseTimeoutCount() {
+        return responseTimeoutCount.sum();
+    }
+
+    public long getSampledOutCount() {
+        return sampledOutCount.sum();
+    }
+
+    public long getFilteredOutCount() {
+        return filteredOutCount.sum();
+    }
+
+    public Map<String, Long> getFilterHitCounts() {
+
+        Map<String, Long> counts = new TreeMap<String, Long>();
+        for (Map.Entry<String, StripedCounter> entry : filterHitCounts.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().sum());
+        }
+        return counts;
+    }
+
+    public LatencyHistogram getMessageBuildLatency() {
+        return messageBuildLatency;
+    }
+
+    public LatencyHistogram getFieldExtractionLatency() {
+        return fieldExtractionLatency;
+    }
+
+    public LatencyHistogram getClientIPResolutionLatency() {
+        return clientIPResolutionLatency;
+    }
+
+    public LatencyHistogram getPublishLatency() {
+        return publishLatency;
+    }
+
+    private long record(LatencyHistogram histogram, long startNanos) {
+
+        if (startNanos == 0) {
+            return 0;
+        }
+        long endNanos = System.nanoTime();
+        histogram.record(endNanos - startNanos);
+        return endNanos;
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ *  Copyright WSO2 Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.wso2.carbon.apimgt.frauddetection;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The transaction data publishers of the gateway, one per DAS endpoint list, user and stream version. Each publisher
+ * has its own connections, publish queue and publisher threads, so APIs or tenants which publish to different streams
+ * or DAS nodes do not contend with each other.
+ *
+ * Handlers and mediators acquire an entry once, when they are initialized, and read its publisher on each request.
+ * That read is a single volatile read. Entries are created, reloaded and released under the registry lock. A new
+ * publisher connects to DAS in the background, so the request which creates it does not wait for the connection.
+ */
+public class PublisherRegistry {
+
+    private static final Log log = LogFactory.getLog(PublisherRegistry.class);
+
+    private static final PublisherRegistry instance = new PublisherRegistry();
+
+    /**
+     * A registered publisher. The publisher is replaced when the entry is reloaded, so it is read on each use.
+     */
+    public static final class Entry {
+
+        private volatile String key;
+        private volatile TransactionDataPublisher publisher;
+        private int references;
+
+        private Entry(String key, TransactionDataPublisher publisher) {
+            this.key = key;
+            this.publisher = publisher;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public TransactionDataPublisher getPublisher() {
+            return publisher;
+        }
+    }
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    PublisherRegistry() {
+    }
+
+    public static PublisherRegistry getInstance() {
+        return instance;
+    }
+
+    /**
+     * Returns the key of the publisher of the given config, i.e. its DAS endpoints, user and stream version.
+     */
+    public static String keyOf(DataPublisherConfig config) {
+
+        StringBuilder key = new StringBuilder();
+        for (String receiverUrl : TransactionDataPublisher.getReceiverUrls(config)) {
+            if (key.length() > 0) {
+                key.append(',');
+            }
+            key.append(receiverUrl);
+        }
+        return key.append('|').append(config.getDasUsername())
+                  .append('|').append(config.getStreamName()).append(':').append(config.getStreamVersion()).toString();
+    }
+
+    /**
+     * Returns the entry of the publisher for the given config, creating the publisher if there is none yet. The stream
+     * attribute names must be set on the config. Each call has to be paired with a release.
+     */
+    public synchronized Entry acquire(DataPublisherConfig config) {
+
+        String key = keyOf(config);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            // A spill log has a single writer, so each publisher needs a spill directory of its own.
+            if (config.getSpillDirectory() != null && isSpillDirectoryInUse(config.getSpillDirectory())) {
+                config.setSpillDirectory(new File(config.getSpillDirectory(),
+                                                  key.replaceAll("[^A-Za-z0-9._-]", "_")).getPath());
+                log.info(String.format("Events of '%s' are spilled to '%s'.", key, config.getSpillDirectory()));
+            }
+            TransactionDataPublisher publisher = new TransactionDataPublisher();
+            publisher.init(config, true);
+            entry = new Entry(key, publisher);
+            entries.put(key, entry);
+            log.info(String.format("Created a transaction data publisher for '%s'.", key));
+        }
+        entry.references++;
+        return entry;
+    }
+
+    /**
+     * Releases an entry. The publisher of the entry is shut down when it is no longer used.
+     */
+    public synchronized void release(Entry entry) {
+
+        if (--entry.references > 0) {
+            return;
+        }
+        entries.remove(entry.key, entry);
+        entry.publisher.shutdown();
+    }
+
+    /**
+     * Swaps a publisher built from the given config in for the publisher of the entry, unless the entry has been
+     * reloaded since the expected publisher was read from it. Returns the replaced publisher, which the caller shuts
+     * down once no request thread can see it, or null if the entry was not reloaded.
+     */
+    public synchronized TransactionDataPublisher reload(Entry entry, DataPublisherConfig config,
+                                                        TransactionDataPublisher expected) {
+
+        TransactionDataPublisher current = entry.publisher;
+        if (current != expected || entry.references == 0) {
+            return null;
+        }
+
+        String key = keyOf(config);
+        if (!key.equals(entry.key)) {
+            entries.remove(entry.key, entry);
+            if (entries.putIfAbsent(key, entry) != null) {
+                log.warn(String.format("A transaction data publisher for '%s' already exists. The reloaded publisher is " +
+                                       "kept apart from it.", key));
+            }
+            entry.key = key;
+        }
+
+        entry.publisher = current.createSuccessor(config);
+        return current;
+    }
+
+    private boolean isSpillDirectoryInUse(String spillDirectory) {
+
+        File directory = new File(spillDirectory).getAbsoluteFile();
+        for (Entry entry : entries.values()) {
+            String used = entry.publisher.getSpillDirectory();
+            if (used != null && new File(used).getAbsoluteFile().equals(directory)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the publishers which are in use.
+     */
+    public List<TransactionDataPublisher> getPublishers() {
+
+        List<TransactionDataPublisher> publishers = new ArrayList<TransactionDataPublisher>();
+        for (Entry entry : entries.values()) {
+            publishers.add(entry.publisher);
+        }
+        return publishers;
+    }
+}
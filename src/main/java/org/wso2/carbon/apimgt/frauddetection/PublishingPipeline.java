@@ -0,0 +1,234 @@
+/*
+ *  Copyright WSO2 Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.wso2.carbon.apimgt.frauddetection;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.synapse.MessageContext;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Everything built from one version of the config to publish the transactions of requests : the publish filter, the
+ * payload extractor, the velocity rules, the sampler and the response correlator, on a publisher of the
+ * PublisherRegistry. The handler and the mediator each hold one and swap it as a whole.
+ *
+ * Requests enter the pipeline before they use it and exit it after. A replaced pipeline is retired once the requests
+ * which entered it are through, and only then is what it replaced shut down.
+ */
+final class PublishingPipeline {
+
+    private static final Log log = LogFactory.getLog(PublishingPipeline.class);
+
+    // How long a replaced pipeline waits for the requests still using it before it is retired anyway.
+    private static final long RETIRE_TIMEOUT_MILLIS = 30000;
+
+    // Logged with the message of the IllegalArgumentException thrown for a config which is not valid.
+    static final String INVALID_CONFIG_MESSAGE = "Invalid fraud detection configuration : %s.";
+
+    private final PublisherRegistry.Entry publisherEntry;
+    // The publisher of the entry when the pipeline was built, so a reload replaces it only once.
+    private final TransactionDataPublisher publisher;
+    private final PublishFilter publishFilter;
+    private final TransactionPayloadExtractor payloadExtractor;
+    private final VelocityRules velocityRules;
+    private final AdaptiveSampler sampler;
+    private final ResponseCorrelator responseCorrelator;
+    // The requests using the pipeline. Also the monitor a retiring pipeline waits on.
+    private final AtomicInteger users = new AtomicInteger();
+    private volatile boolean retiring;
+
+    private PublishingPipeline(PublisherRegistry.Entry publisherEntry, PublishFilter publishFilter,
+                               TransactionPayloadExtractor payloadExtractor, VelocityRules velocityRules,
+                               AdaptiveSampler sampler, ResponseCorrelator responseCorrelator) {
+        this.publisherEntry = publisherEntry;
+        this.publisher = publisherEntry.getPublisher();
+        this.publishFilter = publishFilter;
+        this.payloadExtractor = payloadExtractor;
+        this.velocityRules = velocityRules;
+        this.sampler = sampler;
+        this.responseCorrelator = responseCorrelator;
+    }
+
+    /**
+     * Compiles the config and builds a pipeline on the publisher of its DAS endpoints and stream, which is acquired
+     * from the registry. The mapping is compiled first, so the publisher sees its attribute names. Throws
+     * IllegalArgumentException if the config is not valid, in which case nothing is acquired.
+     */
+    static PublishingPipeline create(DataPublisherConfig config) {
+
+        ExtractionPlan plan = compile(config);
+        PublisherRegistry.Entry publisherEntry = PublisherRegistry.getInstance().acquire(config);
+        try {
+            return create(config, plan, publisherEntry);
+        } catch (IllegalArgumentException e) {
+            PublisherRegistry.getInstance().release(publisherEntry);
+            throw e;
+        }
+    }
+
+    /**
+     * Builds a pipeline from the changed config on the publisher entry of this one, and replaces the publisher of the
+     * entry, unless another pipeline on the entry has already done so. The replaced publisher is added to the given
+     * list. Throws IllegalArgumentException if the config is not valid, in which case nothing is replaced.
+     */
+    PublishingPipeline reload(DataPublisherConfig config, List<TransactionDataPublisher> replacedPublishers) {
+
+        // The new publisher records into the metrics of the current one, so the pipeline can be built up front.
+        PublishingPipeline newPipeline = create(config, compile(config), publisherEntry);
+
+        TransactionDataPublisher replacedPublisher = PublisherRegistry.getInstance().reload(publisherEntry, config,
+                                                                                            publisher);
+        if (replacedPublisher != null) {
+            replacedPublishers.add(replacedPublisher);
+        }
+        return new PublishingPipeline(publisherEntry, newPipeline.publishFilter, newPipeline.payloadExtractor,
+                                      newPipeline.velocityRules, newPipeline.sampler, newPipeline.responseCorrelator);
+    }
+
+    private static ExtractionPlan compile(DataPublisherConfig config) {
+
+        ExtractionPlan plan = ExtractionPlan.compile(config.getStreamMapping(), config.getFanOutPath());
+        config.setStreamAttributeNames(plan.getAttributeNames());
+        ResponseCorrelator.validate(config);
+        CompactEventCodec.validate(config);
+        return plan;
+    }
+
+    private static PublishingPipeline create(DataPublisherConfig config, ExtractionPlan plan,
+                                             PublisherRegistry.Entry publisherEntry) {
+
+        PublisherMetrics metrics = publisherEntry.getPublisher().getMetrics();
+        return new PublishingPipeline(publisherEntry,
+                                      PublishFilter.create(config, metrics),
+                                      new TransactionPayloadExtractor(plan, config.getPayloadExtractionMode(),
+                                                                      config.getFanOutMaxEntries(),
+                                                                      ClientIPResolver.create(config),
+                                                                      GeoIPLookup.create(config, plan), metrics),
+                                      VelocityRules.create(config, plan, metrics),
+                                      AdaptiveSampler.create(config, plan, publisherEntry),
+                                      ResponseCorrelator.create(config, plan, publisherEntry));
+    }
+
+    PublisherRegistry.Entry getPublisherEntry() {
+        return publisherEntry;
+    }
+
+    /**
+     * Registers a request as a user of the pipeline until it calls exit. Returns false if the pipeline is being retired,
+     * in which case the caller reads the current pipeline again.
+     */
+    boolean enter() {
+
+        users.incrementAndGet();
+        if (retiring) {
+            exit();
+            return false;
+        }
+        return true;
+    }
+
+    void exit() {
+
+        if (users.decrementAndGet() == 0 && retiring) {
+            synchronized (users) {
+                users.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Turns away new users and waits for the requests using the pipeline to be through. The pipeline is swapped out
+     * before, so the requests which are turned away find its replacement. Returns false if some were still using it
+     * after RETIRE_TIMEOUT_MILLIS.
+     */
+    boolean retire() {
+
+        retiring = true;
+        long deadline = System.currentTimeMillis() + RETIRE_TIMEOUT_MILLIS;
+        synchronized (users) {
+            while (users.get() > 0) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                try {
+                    users.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Publishes the transaction of the request, or holds it back for the response, unless the request is filtered out.
+     * A filtered out request is passed on before its body is touched. Returns false if the request has to be rejected
+     * by a velocity rule.
+     */
+    boolean publish(MessageContext messageContext) {
+
+        if (publishFilter != null && !publishFilter.accept(messageContext)) {
+            return true;
+        }
+
+        Object[][] transactionStreamPayloads = payloadExtractor.extract(messageContext);
+        boolean accepted = true;
+
+        if (transactionStreamPayloads != null) {
+            if (velocityRules != null) {
+                accepted = velocityRules.apply(messageContext, transactionStreamPayloads);
+            }
+            if (log.isDebugEnabled()) {
+                log.debug(String.format("transaction stream payloads => %s", Arrays.deepToString(transactionStreamPayloads)));
+            }
+            if (sampler != null && !sampler.sample(messageContext, transactionStreamPayloads)) {
+                return accepted;
+            }
+            if (responseCorrelator == null) {
+                publisherEntry.getPublisher().publish(transactionStreamPayloads);
+            } else if (accepted) {
+                responseCorrelator.onRequest(messageContext, transactionStreamPayloads);
+            } else {
+                // A rejected request never reaches the backend, so there is no response to wait for.
+                responseCorrelator.publish(transactionStreamPayloads, VelocityRules.REJECTION_STATUS_CODE, 0);
+            }
+        }
+        return accepted;
+    }
+
+    /**
+     * Publishes the transactions still waiting for their responses without them. The publisher entry is kept.
+     */
+    void shutdownResponseCorrelator() {
+        if (responseCorrelator != null) {
+            responseCorrelator.shutdown();
+        }
+    }
+
+    /**
+     * Shuts the response correlator down and releases the publisher entry, which is shut down once no other handler
+     * or mediator uses it.
+     */
+    void release() {
+        shutdownResponseCorrelator();
+        PublisherRegistry.getInstance().release(publisherEntry);
+    }
+}
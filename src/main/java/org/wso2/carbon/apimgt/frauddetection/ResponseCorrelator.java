@@ -0,0 +1,290 @@
+/*
+ *  Copyright WSO2 Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.wso2.carbon.apimgt.frauddetection;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.synapse.MessageContext;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Holds back the transaction of a request until its response is seen, so the HTTP status and the backend latency can
+ * be published with it.
+ *
+ * The pending transaction is stashed on the message context of the request, which Synapse carries over to the
+ * response. It is also queued, in arrival order, for a sweeper thread. As every transaction has the same timeout, the
+ * queue is in deadline order and the sweeper only ever waits on its head. A transaction whose response has not come
+ * by its deadline is published without one. Whichever of the response and the sweeper comes first publishes the
+ * transaction. When the queue is full, a new transaction is published straight away, without its response.
+ */
+public class ResponseCorrelator {
+
+    private static final Log log = LogFactory.getLog(ResponseCorrelator.class);
+
+    public static final String PUBLISH_ON_REQUEST = "request";
+    public static final String PUBLISH_ON_RESPONSE = "response";
+    public static final int NO_RESPONSE = -1;
+
+    static final String PENDING_TRANSACTION_PROPERTY = "FRAUD_DETECTION_PENDING_TRANSACTION";
+
+    private static final long MAX_SWEEP_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * A transaction waiting for its response. It can be completed only once.
+     */
+    static final class PendingTransaction {
+
+        private static final AtomicIntegerFieldUpdater<PendingTransaction> COMPLETED =
+                AtomicIntegerFieldUpdater.newUpdater(PendingTransaction.class, "completed");
+
+        private final ResponseCorrelator correlator;
+        private final long requestNanos;
+        private final long deadlineNanos;
+        private volatile Object[][] payloads;
+        private volatile int completed;
+
+        private PendingTransaction(ResponseCorrelator correlator, Object[][] payloads, long requestNanos,
+                                   long deadlineNanos) {
+            this.correlator = correlator;
+            this.payloads = payloads;
+            this.requestNanos = requestNanos;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        /**
+         * Returns the payloads to the first caller, and null to any later one. The payloads are let go, so a completed
+         * transaction which is still queued for the sweeper holds no memory to speak of.
+         */
+        private Object[][] complete() {
+            if (!COMPLETED.compareAndSet(this, 0, 1)) {
+                return null;
+            }
+            Object[][] transactionStreamPayloads = payloads;
+            payloads = null;
+            return transactionStreamPayloads;
+        }
+    }
+
+    private final ExtractionPlan plan;
+    private final PublisherRegistry.Entry publisherEntry;
+    private final long timeoutNanos;
+    private final PublishQueue<PendingTransaction> pendingTransactions;
+    private final Thread sweeperThread;
+    private volatile boolean running = true;
+
+    // Only touched by the sweeper thread, and by shutdown once the sweeper has stopped.
+    private PendingTransaction sweepHead;
+
+    /**
+     * Creates a correlator which publishes through the current publisher of the given entry, so transactions held back
+     * across a reload are published by the new publisher.
+     */
+    public ResponseCorrelator(ExtractionPlan plan, PublisherRegistry.Entry publisherEntry, long timeoutMillis, int capacity) {
+
+        this.plan = plan;
+        this.publisherEntry = publisherEntry;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.pendingTransactions = new PublishQueue<PendingTransaction>(capacity, PublishQueue.OverflowPolicy.DROP_NEWEST, 0);
+
+        sweeperThread = new Thread(new Runnable() {
+            public void run() {
+                sweep();
+            }
+        }, "fraud-detection-response-sweeper");
+        sweeperThread.setDaemon(true);
+        sweeperThread.start();
+    }
+
+    /**
+     * Returns a correlator if the config publishes on the response path, or null if it publishes on the request path.
+     * Throws IllegalArgumentException if the 'publishOn' value is not known.
+     */
+    public static ResponseCorrelator create(DataPublisherConfig config, ExtractionPlan plan,
+                                            PublisherRegistry.Entry publisherEntry) {
+
+        if (!isPublishOnResponse(config)) {
+            return null;
+        }
+
+        if (!plan.usesResponse()) {
+            log.warn(String.format("Transactions are published on the response path, but no stream attribute is mapped to %s " +
+                                   "or %s.", ExtractionPlan.SOURCE_HTTP_STATUS, ExtractionPlan.SOURCE_BACKEND_LATENCY));
+        }
+        log.info("Transaction data is published on the response path.");
+        return new ResponseCorrelator(plan, publisherEntry, config.getResponseTimeoutMillis(),
+                                      config.getPendingResponseCapacity());
+    }
+
+    /**
+     * Returns whether the config publishes on the response path. Throws IllegalArgumentException if the 'publishOn'
+     * value is not known.
+     */
+    public static boolean isPublishOnResponse(DataPublisherConfig config) {
+
+        String publishOn = config.getPublishOn() != null ? config.getPublishOn().trim() : PUBLISH_ON_REQUEST;
+        if (PUBLISH_ON_REQUEST.equalsIgnoreCase(publishOn)) {
+            return false;
+        }
+        if (!PUBLISH_ON_RESPONSE.equalsIgnoreCase(publishOn)) {
+            throw new IllegalArgumentException(String.format("Unknown 'publishOn' value : '%s'", publishOn));
+        }
+        return true;
+    }
+
+    /**
+     * Throws IllegalArgumentException if the 'publishOn' value of the config is not known.
+     */
+    public static void validate(DataPublisherConfig config) {
+        isPublishOnResponse(config);
+    }
+
+    /**
+     * Holds the transactions of the request back until its response is seen or it times out. Once the correlator has
+     * been shut down, they are published straight away, without the response.
+     */
+    public void onRequest(MessageContext messageContext, Object[][] transactionStreamPayloads) {
+
+        if (!running) {
+            publish(transactionStreamPayloads, NO_RESPONSE, NO_RESPONSE);
+            return;
+        }
+
+        long now = System.nanoTime();
+        PendingTransaction pendingTransaction = new PendingTransaction(this, transactionStreamPayloads, now,
+                                                                       now + timeoutNanos);
+        messageContext.setProperty(PENDING_TRANSACTION_PROPERTY, pendingTransaction);
+
+        if (!pendingTransactions.offer(pendingTransaction)) {
+            Object[][] payloads = pendingTransaction.complete();
+            if (payloads != null) {
+                log.debug("Too many transactions are waiting for their responses. Publishing a transaction without its response.");
+                publish(payloads, NO_RESPONSE, NO_RESPONSE);
+            }
+        } else if (!running) {
+            // The shutdown may have drained the queue before the offer, so the transaction is not left behind in it.
+            Object[][] payloads = pendingTransaction.complete();
+            if (payloads != null) {
+                publish(payloads, NO_RESPONSE, NO_RESPONSE);
+            }
+        }
+    }
+
+    /**
+     * Publishes the transaction held back for the request of this response, with the HTTP status and the time since
+     * the request. Returns false if the message does not carry a pending transaction.
+     */
+    public static boolean onResponse(MessageContext messageContext) {
+
+        Object property = messageContext.getProperty(PENDING_TRANSACTION_PROPERTY);
+        if (!(property instanceof PendingTransaction)) {
+            return false;
+        }
+
+        PendingTransaction pendingTransaction = (PendingTransaction) property;
+        Object[][] payloads = pendingTransaction.complete();
+        if (payloads != null) {
+            long backendLatencyMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - pendingTransaction.requestNanos);
+            pendingTransaction.correlator.publish(payloads, Util.getHttpStatusCode(messageContext), backendLatencyMillis);
+        }
+        return true;
+    }
+
+    /**
+     * Publishes the transactions of a request with the given response values.
+     */
+    public void publish(Object[][] transactionStreamPayloads, int httpStatus, long backendLatencyMillis) {
+
+        for (Object[] payload : transactionStreamPayloads) {
+            plan.setResponse(payload, httpStatus, backendLatencyMillis);
+        }
+        if (log.isDebugEnabled()) {
+            log.debug(String.format("transaction stream payloads => %s", Arrays.deepToString(transactionStreamPayloads)));
+        }
+        publisherEntry.getPublisher().publish(transactionStreamPayloads);
+    }
+
+    /**
+     * Stops the sweeper and publishes the transactions which are still waiting, without their responses.
+     */
+    public void shutdown() {
+
+        running = false;
+        LockSupport.unpark(sweeperThread);
+        try {
+            sweeperThread.join(TimeUnit.NANOSECONDS.toMillis(MAX_SWEEP_PARK_NANOS) * 10);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        int count = sweepHead != null && expire(sweepHead) ? 1 : 0;
+        sweepHead = null;
+        PendingTransaction pendingTransaction;
+        while ((pendingTransaction = pendingTransactions.poll()) != null) {
+            if (expire(pendingTransaction)) {
+                count++;
+            }
+        }
+        if (count > 0) {
+            log.info(String.format("Published %d transactions without their responses on shutdown.", count));
+        }
+    }
+
+    public int getPendingCount() {
+        return pendingTransactions.size();
+    }
+
+    private void sweep() {
+
+        while (running) {
+            if (sweepHead == null) {
+                sweepHead = pendingTransactions.poll();
+                if (sweepHead == null) {
+                    LockSupport.parkNanos(MAX_SWEEP_PARK_NANOS);
+                    continue;
+                }
+            }
+
+            long waitNanos = sweepHead.deadlineNanos - System.nanoTime();
+            if (waitNanos > 0 && sweepHead.completed == 0) {
+                LockSupport.parkNanos(Math.min(waitNanos, MAX_SWEEP_PARK_NANOS));
+                continue;
+            }
+
+            try {
+                expire(sweepHead);
+            } catch (RuntimeException e) {
+                log.error("Cannot publish a transaction without its response.", e);
+            }
+            sweepHead = null;
+        }
+    }
+
+    private boolean expire(PendingTransaction pendingTransaction) {
+
+        Object[][] payloads = pendingTransaction.complete();
+        if (payloads == null) {
+            return false;
+        }
+        publisherEntry.getPublisher().getMetrics().onResponseTimeout();
+        publish(payloads, NO_RESPONSE, NO_RESPONSE);
+        return true;
+    }
+}
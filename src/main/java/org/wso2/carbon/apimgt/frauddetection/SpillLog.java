@@ -0,0 +1,482 @@
+/*
+ *  Copyright WSO2 Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.wso2.carbon.apimgt.frauddetection;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only, segmented spill log for transaction events which could not be published to DAS.
+ *
+ * Segments are fixed size, memory-mapped files. Every record is written as [length][crc32][body] and is followed by
+ * a zero length marker, so the end of a segment can be found on recovery even when the file is a recycled one.
+ * A replayed or corrupted record has its length negated, so it is not replayed again after a restart. Segments are
+ * only forced to disk when they are sealed or when the log is closed, never per record.
+ *
+ * Records are replayed by reading a batch and committing the part of it which was published. Only reading and
+ * committing hold the lock of the log, so appending never waits for the records to be published.
+ *
+ * Disk usage is bounded by segmentSize * maxSegments. When the log is full, the oldest segment is discarded.
+ * Segments which have been replayed completely are kept as free files and recycled for new segments.
+ */
+public class SpillLog {
+
+    private static final Log log = LogFactory.getLog(SpillLog.class);
+
+    private static final String SEGMENT_FILE_PREFIX = "spill-";
+    private static final String SEGMENT_FILE_SUFFIX = ".log";
+    private static final String FREE_FILE_SUFFIX = ".free";
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_LONG = 2;
+    private static final byte TYPE_DOUBLE = 3;
+    private static final byte TYPE_INTEGER = 4;
+    private static final byte TYPE_BOOLEAN = 5;
+    private static final byte TYPE_FLOAT = 6;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * A spilled transaction event, and where it is in the log.
+     */
+    public static final class Record {
+
+        private final Segment segment;
+        private final int position;
+        private final long timestamp;
+        private final Object[] payload;
+
+        private Record(Segment segment, int position, long timestamp, Object[] payload) {
+            this.segment = segment;
+            this.position = position;
+            this.timestamp = timestamp;
+            this.payload = payload;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public Object[] getPayload() {
+            return payload;
+        }
+    }
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+
+    // Segments in write order. The last one is the one being written to.
+    private final Deque<Segment> segments = new ArrayDeque<Segment>();
+    private final Deque<File> freeFiles = new ArrayDeque<File>();
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer recordBuffer = ByteBuffer.allocate(1024);
+    private long nextSegmentId;
+    private long discardedCount;
+
+    public SpillLog(File directory, int segmentSize, int maxSegments) throws IOException {
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException(String.format("Cannot create the spill directory '%s'", directory.getAbsolutePath()));
+        }
+
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = Math.max(2, maxSegments);
+
+        recover();
+    }
+
+    /**
+     * Appends a record to the active segment, rolling over to a new segment when it is full.
+     */
+    public synchronized void append(long timestamp, Object[] payload) throws IOException {
+
+        encode(timestamp, payload);
+        int bodyLength = recordBuffer.remaining();
+        if (RECORD_HEADER_SIZE + bodyLength + 4 > segmentSize) {
+            throw new IOException(String.format("Spill record of %d bytes does not fit in a segment", bodyLength));
+        }
+
+        Segment segment = segments.peekLast();
+        if (segment == null || segment.writePosition + RECORD_HEADER_SIZE + bodyLength + 4 > segmentSize) {
+            segment = rollSegment();
+        }
+
+        crc.reset();
+        crc.update(recordBuffer.array(), 0, bodyLength);
+
+        MappedByteBuffer buffer = segment.buffer;
+        int position = segment.writePosition;
+        buffer.putInt(position + 4, (int) crc.getValue());
+        ByteBuffer body = buffer.duplicate();
+        body.position(position + RECORD_HEADER_SIZE);
+        body.put(recordBuffer.array(), 0, bodyLength);
+        buffer.putInt(position + RECORD_HEADER_SIZE + bodyLength, 0);
+        // The length goes in last, so a torn write leaves an end marker behind.
+        buffer.putInt(position, bodyLength);
+
+        segment.writePosition = position + RECORD_HEADER_SIZE + bodyLength;
+        segment.recordCount++;
+    }
+
+    /**
+     * Reads up to maxRecords records from where the replay has got to, in the order they were appended, without
+     * consuming them. The same records are read again until they are committed. A corrupted record is marked on disk as
+     * consumed and skipped, so it is not read again, even after a restart.
+     */
+    public synchronized List<Record> read(int maxRecords) {
+
+        List<Record> records = new ArrayList<Record>();
+        Iterator<Segment> iterator = segments.iterator();
+        while (records.size() < maxRecords && iterator.hasNext()) {
+
+            Segment segment = iterator.next();
+            int position = segment.readPosition;
+            while (records.size() < maxRecords && position < segment.writePosition) {
+
+                MappedByteBuffer buffer = segment.buffer;
+                int bodyLength = buffer.getInt(position);
+                if (bodyLength < 0) {
+                    position += RECORD_HEADER_SIZE - bodyLength;
+                    continue;
+                }
+                int checksum = buffer.getInt(position + 4);
+
+                byte[] body = new byte[bodyLength];
+                ByteBuffer source = buffer.duplicate();
+                source.position(position + RECORD_HEADER_SIZE);
+                source.get(body);
+
+                crc.reset();
+                crc.update(body, 0, bodyLength);
+                if ((int) crc.getValue() != checksum) {
+                    log.warn(String.format("Corrupted record in the spill segment '%s' at %d. Skipping it.",
+                                           segment.file.getName(), position));
+                    buffer.putInt(position, -bodyLength);
+                    segment.recordCount--;
+                    discardedCount++;
+                } else {
+                    ByteBuffer record = ByteBuffer.wrap(body);
+                    long timestamp = record.getLong();
+                    records.add(new Record(segment, position, timestamp, decode(record)));
+                }
+                position += RECORD_HEADER_SIZE + bodyLength;
+            }
+        }
+        if (records.isEmpty()) {
+            // Only corrupted records were left, so there is nothing to commit to move past them.
+            advanceReadPositions();
+        }
+        return records;
+    }
+
+    /**
+     * Marks the given records, read in order from the start of the last read, as consumed, so they are not read again.
+     * Records whose segment was discarded meanwhile, because the log was full, are ignored.
+     */
+    public synchronized void commit(List<Record> records) {
+
+        for (Record record : records) {
+            Segment segment = record.segment;
+            if (record.position < segment.readPosition || !segments.contains(segment)) {
+                continue;
+            }
+            int bodyLength = segment.buffer.getInt(record.position);
+            if (bodyLength > 0) {
+                segment.buffer.putInt(record.position, -bodyLength);
+                segment.recordCount--;
+            }
+        }
+        advanceReadPositions();
+    }
+
+    public synchronized boolean hasPendingRecords() {
+        for (Segment segment : segments) {
+            if (segment.readPosition < segment.writePosition) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized long getPendingRecordCount() {
+        long count = 0;
+        for (Segment segment : segments) {
+            count += segment.recordCount;
+        }
+        return count;
+    }
+
+    /**
+     * The number of records thrown away because the log had reached its size limit or was corrupted.
+     */
+    public synchronized long getDiscardedCount() {
+        return discardedCount;
+    }
+
+    public synchronized void close() {
+        Segment segment = segments.peekLast();
+        if (segment != null) {
+            segment.buffer.force();
+        }
+    }
+
+    /**
+     * Moves the read position of each segment past its consumed records, and recycles the segments before the active
+     * one which have been consumed completely.
+     */
+    private void advanceReadPositions() {
+
+        for (Segment segment : segments) {
+            MappedByteBuffer buffer = segment.buffer;
+            int position = segment.readPosition;
+            int bodyLength;
+            while (position < segment.writePosition && (bodyLength = buffer.getInt(position)) < 0) {
+                position += RECORD_HEADER_SIZE - bodyLength;
+            }
+            segment.readPosition = position;
+        }
+
+        Segment segment;
+        while ((segment = segments.peekFirst()) != null && segment != segments.peekLast() &&
+                segment.readPosition >= segment.writePosition) {
+            recycle(segments.pollFirst());
+        }
+    }
+
+    private Segment rollSegment() throws IOException {
+
+        Segment active = segments.peekLast();
+        if (active != null) {
+            active.buffer.force();
+        }
+
+        if (segments.size() >= maxSegments) {
+            Segment oldest = segments.pollFirst();
+            discardedCount += oldest.recordCount;
+            log.warn(String.format("Spill log is full. Discarded %d events in the segment '%s'.",
+                                   oldest.recordCount, oldest.file.getName()));
+            recycle(oldest);
+        }
+
+        File file = new File(directory, SEGMENT_FILE_PREFIX + String.format("%019d", nextSegmentId++) + SEGMENT_FILE_SUFFIX);
+        File freeFile = freeFiles.pollFirst();
+        if (freeFile != null && !freeFile.renameTo(file)) {
+            log.warn(String.format("Cannot recycle the spill segment '%s'", freeFile.getName()));
+        }
+
+        Segment segment = new Segment(file, map(file));
+        segment.buffer.putInt(0, 0);
+        segments.addLast(segment);
+        return segment;
+    }
+
+    private void recycle(Segment segment) {
+
+        File freeFile = new File(directory, segment.file.getName() + FREE_FILE_SUFFIX);
+        if (segment.file.renameTo(freeFile)) {
+            freeFiles.addLast(freeFile);
+        }
+    }
+
+    private MappedByteBuffer map(File file) throws IOException {
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(segmentSize);
+            return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        } finally {
+            // The mapping stays valid after the channel is closed.
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Picks up the segments left behind by a previous run, so spilled events survive a restart.
+     */
+    private void recover() throws IOException {
+
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.startsWith(SEGMENT_FILE_PREFIX)) {
+                continue;
+            }
+
+            if (name.endsWith(FREE_FILE_SUFFIX)) {
+                freeFiles.addLast(file);
+            } else if (name.endsWith(SEGMENT_FILE_SUFFIX) && file.length() == segmentSize) {
+                long id = Long.parseLong(name.substring(SEGMENT_FILE_PREFIX.length(),
+                                                        name.length() - SEGMENT_FILE_SUFFIX.length()));
+                nextSegmentId = Math.max(nextSegmentId, id + 1);
+
+                Segment segment = new Segment(file, map(file));
+                scan(segment);
+                if (segment.recordCount > 0) {
+                    segments.addLast(segment);
+                } else {
+                    recycle(segment);
+                }
+            }
+        }
+
+        if (!segments.isEmpty()) {
+            log.info(String.format("Recovered %d spilled transaction events from '%s'.", getPendingRecordCount(),
+                                   directory.getAbsolutePath()));
+        }
+    }
+
+    private void scan(Segment segment) {
+
+        MappedByteBuffer buffer = segment.buffer;
+        int position = 0;
+        while (position + RECORD_HEADER_SIZE <= segmentSize) {
+            int bodyLength = buffer.getInt(position);
+            boolean replayed = bodyLength < 0;
+            if (replayed) {
+                bodyLength = -bodyLength;
+            }
+            if (bodyLength == 0 || position + RECORD_HEADER_SIZE + bodyLength > segmentSize) {
+                break;
+            }
+
+            position += RECORD_HEADER_SIZE + bodyLength;
+            if (!replayed) {
+                segment.recordCount++;
+            } else if (segment.recordCount == 0) {
+                segment.readPosition = position;
+            }
+        }
+        segment.writePosition = position;
+    }
+
+    private void encode(long timestamp, Object[] payload) {
+
+        recordBuffer.clear();
+        ensureCapacity(10);
+        recordBuffer.putLong(timestamp);
+        recordBuffer.putShort((short) payload.length);
+
+        for (Object value : payload) {
+            if (value == null) {
+                ensureCapacity(1);
+                recordBuffer.put(TYPE_NULL);
+            } else if (value instanceof String) {
+                byte[] bytes = ((String) value).getBytes(UTF_8);
+                ensureCapacity(5 + bytes.length);
+                recordBuffer.put(TYPE_STRING).putInt(bytes.length).put(bytes);
+            } else if (value instanceof Long) {
+                ensureCapacity(9);
+                recordBuffer.put(TYPE_LONG).putLong((Long) value);
+            } else if (value instanceof Double) {
+                ensureCapacity(9);
+                recordBuffer.put(TYPE_DOUBLE).putDouble((Double) value);
+            } else if (value instanceof Integer) {
+                ensureCapacity(5);
+                recordBuffer.put(TYPE_INTEGER).putInt((Integer) value);
+            } else if (value instanceof Boolean) {
+                ensureCapacity(2);
+                recordBuffer.put(TYPE_BOOLEAN).put((byte) (((Boolean) value) ? 1 : 0));
+            } else if (value instanceof Float) {
+                ensureCapacity(5);
+                recordBuffer.put(TYPE_FLOAT).putFloat((Float) value);
+            } else {
+                throw new IllegalArgumentException(String.format("Unsupported attribute type : %s", value.getClass()));
+            }
+        }
+
+        recordBuffer.flip();
+    }
+
+    private Object[] decode(ByteBuffer record) {
+
+        Object[] payload = new Object[record.getShort()];
+        for (int i = 0; i < payload.length; i++) {
+            byte type = record.get();
+            switch (type) {
+                case TYPE_STRING:
+                    byte[] bytes = new byte[record.getInt()];
+                    record.get(bytes);
+                    payload[i] = new String(bytes, UTF_8);
+                    break;
+                case TYPE_LONG:
+                    payload[i] = record.getLong();
+                    break;
+                case TYPE_DOUBLE:
+                    payload[i] = record.getDouble();
+                    break;
+                case TYPE_INTEGER:
+                    payload[i] = record.getInt();
+                    break;
+                case TYPE_BOOLEAN:
+                    payload[i] = record.get() == 1;
+                    break;
+                case TYPE_FLOAT:
+                    payload[i] = record.getFloat();
+                    break;
+                default:
+                    payload[i] = null;
+            }
+        }
+        return payload;
+    }
+
+    private void ensureCapacity(int bytes) {
+        if (recordBuffer.remaining() < bytes) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(recordBuffer.capacity() * 2, recordBuffer.position() + bytes));
+            recordBuffer.flip();
+            larger.put(recordBuffer);
+            recordBuffer = larger;
+        }
+    }
+
+    private static class Segment {
+
+        private final File file;
+        private final MappedByteBuffer buffer;
+        private int readPosition;
+        private int writePosition;
+        private long recordCount;
+
+        private Segment(File file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+}
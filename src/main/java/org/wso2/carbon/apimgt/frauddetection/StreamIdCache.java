@@ -0,0 +1,139 @@
+/*
+ *  Copyright WSO2 Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.wso2.carbon.apimgt.frauddetection;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Remembers the stream ids resolved from each DAS receiver in a small properties file, so a restarted publisher can
+ * accept events before it has reached DAS, and connect without looking the streams up again.
+ *
+ * An id is stored with the definition it was resolved for, i.e. the attribute names of the stream mapping, and is not
+ * used once the mapping has changed. The publishers of the same file share one cache.
+ */
+public class StreamIdCache {
+
+    private static final Log log = LogFactory.getLog(StreamIdCache.class);
+
+    private static final String DEFINITION_SUFFIX = ".definition";
+    private static final Map<String, StreamIdCache> caches = new HashMap<String, StreamIdCache>();
+
+    private final File file;
+    private final Properties properties = new Properties();
+
+    private StreamIdCache(File file) {
+        this.file = file;
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            InputStream inputStream = new FileInputStream(file);
+            try {
+                properties.load(inputStream);
+            } finally {
+                inputStream.close();
+            }
+        } catch (IOException e) {
+            log.warn(String.format("Cannot read the stream id cache '%s'. The streams are looked up in DAS.",
+                                   file.getAbsolutePath()), e);
+        }
+    }
+
+    /**
+     * Returns the cache of the config's streamIdCacheFile, or null if none is set.
+     */
+    public static StreamIdCache create(DataPublisherConfig config) {
+
+        String path = config.getStreamIdCacheFile();
+        if (path == null || path.trim().isEmpty()) {
+            return null;
+        }
+        File file = new File(path.trim()).getAbsoluteFile();
+        synchronized (caches) {
+            StreamIdCache cache = caches.get(file.getPath());
+            if (cache == null) {
+                cache = new StreamIdCache(file);
+                caches.put(file.getPath(), cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Returns the id of the stream last resolved from the receiver for the same definition, or null.
+     */
+    public synchronized String get(String receiverUrl, String username, String streamName, String streamVersion,
+                                   String definition) {
+
+        String key = keyOf(receiverUrl, username, streamName, streamVersion);
+        return definition.equals(properties.getProperty(key + DEFINITION_SUFFIX)) ? properties.getProperty(key) : null;
+    }
+
+    /**
+     * Stores a resolved stream id, and writes the file if it has changed.
+     */
+    public synchronized void put(String receiverUrl, String username, String streamName, String streamVersion,
+                                 String definition, String streamId) {
+
+        String key = keyOf(receiverUrl, username, streamName, streamVersion);
+        if (streamId.equals(properties.getProperty(key)) && definition.equals(properties.getProperty(key + DEFINITION_SUFFIX))) {
+            return;
+        }
+        properties.setProperty(key, streamId);
+        properties.setProperty(key + DEFINITION_SUFFIX, definition);
+        save();
+    }
+
+    /**
+     * Writes a temporary file and moves it over the cache, so a crash leaves either version of it.
+     */
+    private void save() {
+
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        try {
+            File directory = file.getParentFile();
+            if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Cannot create the directory " + directory);
+            }
+            FileOutputStream outputStream = new FileOutputStream(temporaryFile);
+            try {
+                properties.store(outputStream, "Stream ids resolved from DAS");
+            } finally {
+                outputStream.close();
+            }
+            Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn(String.format("Cannot write the stream id cache '%s'.", file.getAbsolutePath()), e);
+        }
+    }
+
+    private static String keyOf(String receiverUrl, String username, String streamName, String streamVersion) {
+        return receiverUrl + '|' + username + '|' + streamName + ':' + streamVersion;
+    }
+}
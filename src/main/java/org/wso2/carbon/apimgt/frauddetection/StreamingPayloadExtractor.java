@@ -0,0 +1,343 @@
+/*
+ *  Copyright WSO2 Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.wso2.carbon.apimgt.frauddetection;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.synapse.MessageContext;
+import org.apache.synapse.commons.json.JsonUtil;
+import org.apache.synapse.core.axis2.Axis2MessageContext;
+import org.apache.synapse.transport.passthru.PassThroughConstants;
+import org.apache.synapse.transport.passthru.Pipe;
+import org.apache.synapse.transport.passthru.util.RelayUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.SequenceInputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Extracts the transaction fields by pull-parsing the raw JSON request stream instead of building the Axiom tree.
+ *
+ * Only the paths of the extraction plan are visited. Every other subtree is skipped, and parsing stops as soon as all the
+ * fields have been found. Every entry of the plan's fan-out array is read, and the array counts as one field. The bytes
+ * read from the pass-through pipe are recorded and handed back to the message context together with the unread
+ * remainder, so the backend receives the request unchanged.
+ */
+public class StreamingPayloadExtractor {
+
+    public static final String EXTRACTION_MODE_OM = "om";
+    public static final String EXTRACTION_MODE_STREAMING = "streaming";
+    public static final String JSON_MEDIA_TYPE = "application/json";
+
+    private static final Log log = LogFactory.getLog(StreamingPayloadExtractor.class);
+    private static final String CONTENT_TYPE_PROPERTY = "ContentType";
+    private static final String CONTENT_TYPE_HEADER = "Content-Type";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ExtractionPlan.PathNode root;
+    private final int fieldCount;
+    // The fields to find when the fan-out array is read in full. The fields under it are found together with it.
+    private final int fanOutFieldCount;
+
+    public StreamingPayloadExtractor(ExtractionPlan plan) {
+        this.root = plan.getRoot();
+        this.fieldCount = plan.getFieldCount();
+        this.fanOutFieldCount = plan.hasFanOut() ? fieldCount - plan.getEntryFieldCount() + 1 : fieldCount;
+    }
+
+    /**
+     * Returns whether the message can be read in streaming mode, i.e. it is JSON and the body is still in the
+     * pass-through pipe, not built by an earlier handler or mediator.
+     */
+    public boolean canExtract(MessageContext messageContext) {
+
+        org.apache.axis2.context.MessageContext axis2MessageContext = ((Axis2MessageContext) messageContext).
+                getAxis2MessageContext();
+
+        return !Boolean.TRUE.equals(axis2MessageContext.getProperty(PassThroughConstants.MESSAGE_BUILDER_INVOKED)) &&
+                axis2MessageContext.getProperty(PassThroughConstants.PASS_THROUGH_PIPE) != null &&
+                JSON_MEDIA_TYPE.equalsIgnoreCase(getMediaType(axis2MessageContext));
+    }
+
+    /**
+     * Returns the media type of the request, without its parameters, or null if it has no content type.
+     */
+    private static String getMediaType(org.apache.axis2.context.MessageContext axis2MessageContext) {
+
+        Object contentType = axis2MessageContext.getProperty(CONTENT_TYPE_PROPERTY);
+        if (contentType == null) {
+            Object headers = axis2MessageContext.getProperty(org.apache.axis2.context.MessageContext.TRANSPORT_HEADERS);
+            if (headers instanceof Map) {
+                // The pass-through transport keeps the headers in a case insensitive map.
+                contentType = ((Map) headers).get(CONTENT_TYPE_HEADER);
+            }
+        }
+        if (contentType == null) {
+            return null;
+        }
+        String value = contentType.toString();
+        int semicolon = value.indexOf(';');
+        return (semicolon < 0 ? value : value.substring(0, semicolon)).trim();
+    }
+
+    /**
+     * Reads the values of the plan's payload paths from the pass-through pipe. The consumed part of the pipe is always
+     * put back onto the message context, even if the extraction fails.
+     */
+    public void extract(MessageContext messageContext, ExtractedValues values) throws IOException {
+
+        org.apache.axis2.context.MessageContext axis2MessageContext = ((Axis2MessageContext) messageContext).
+                getAxis2MessageContext();
+
+        Pipe pipe = (Pipe) axis2MessageContext.getProperty(PassThroughConstants.PASS_THROUGH_PIPE);
+        InputStream pipeInputStream = pipe.getInputStream();
+        RecordingInputStream recordingInputStream = new RecordingInputStream(pipeInputStream);
+
+        boolean extracted = false;
+        try {
+            extract(new InputStreamReader(recordingInputStream, UTF_8), values);
+            extracted = true;
+        } finally {
+            InputStream originalStream = new SequenceInputStream(
+                    new ByteArrayInputStream(recordingInputStream.buffer, 0, recordingInputStream.count),
+                    pipeInputStream);
+            if (extracted) {
+                JsonUtil.getNewJsonPayload(axis2MessageContext, originalStream, true, true);
+                axis2MessageContext.setProperty(PassThroughConstants.MESSAGE_BUILDER_INVOKED, Boolean.TRUE);
+            } else {
+                restore(axis2MessageContext, originalStream);
+            }
+        }
+    }
+
+    /**
+     * Hands a body which could not be read back to the message builder of its content type, as the pass-through
+     * transport would, rather than making it a JSON payload. A failure here is only logged, so it does not hide the
+     * failure of the extraction.
+     */
+    private static void restore(org.apache.axis2.context.MessageContext axis2MessageContext, InputStream originalStream) {
+
+        try {
+            RelayUtils.builldMessage(axis2MessageContext, false, originalStream);
+            axis2MessageContext.setProperty(PassThroughConstants.MESSAGE_BUILDER_INVOKED, Boolean.TRUE);
+        } catch (Exception e) {
+            log.warn("Cannot hand the request message back after its transaction fields could not be read.", e);
+        }
+    }
+
+    /**
+     * Pull-parses the given JSON document and returns the values of the configured paths, indexed in the order
+     * the paths were given. Missing fields are left as null.
+     */
+    public String[] extract(Reader reader) throws IOException {
+        String[] values = new String[fieldCount];
+        extract(reader, values);
+        return values;
+    }
+
+    /**
+     * Pull-parses the given JSON document into the given array, which must hold getFieldCount() values of the plan
+     * and be cleared by the caller. Only the first entry of the fan-out array is read.
+     */
+    public void extract(Reader reader, String[] values) throws IOException {
+
+        JsonReader jsonReader = new JsonReader(reader);
+
+        if (jsonReader.peek() == JsonToken.BEGIN_OBJECT) {
+            readObject(jsonReader, root, values, null, fieldCount);
+        }
+    }
+
+    /**
+     * Pull-parses the given JSON document into the given values, which must be cleared by the caller. Every entry of
+     * the fan-out array is read, up to the maximum number of entries.
+     */
+    public void extract(Reader reader, ExtractedValues values) throws IOException {
+
+        JsonReader jsonReader = new JsonReader(reader);
+
+        if (jsonReader.peek() == JsonToken.BEGIN_OBJECT) {
+            readObject(jsonReader, root, values.getValues(), values, fanOutFieldCount);
+        }
+    }
+
+    /**
+     * Reads the members of the current object and returns the number of fields still to be found. Once that drops
+     * to zero, the callers stop reading without consuming the rest of the document.
+     */
+    private int readObject(JsonReader jsonReader, ExtractionPlan.PathNode node, String[] values,
+                           ExtractedValues extractedValues, int remaining) throws IOException {
+
+        jsonReader.beginObject();
+        while (jsonReader.hasNext()) {
+            ExtractionPlan.PathNode child = node.children.get(jsonReader.nextName());
+            if (child == null) {
+                jsonReader.skipValue();
+            } else if ((remaining = readValue(jsonReader, child, values, extractedValues, remaining)) <= 0) {
+                return remaining;
+            }
+        }
+        jsonReader.endObject();
+        return remaining;
+    }
+
+    /**
+     * Reads the current value. The extracted values are null inside the fan-out array, so it is only read in full once.
+     */
+    private int readValue(JsonReader jsonReader, ExtractionPlan.PathNode node, String[] values,
+                          ExtractedValues extractedValues, int remaining) throws IOException {
+
+        if (node.fanOut && extractedValues != null) {
+            return readEntries(jsonReader, node, extractedValues, remaining);
+        }
+
+        switch (jsonReader.peek()) {
+            case BEGIN_OBJECT:
+                return readObject(jsonReader, node, values, extractedValues, remaining);
+            case BEGIN_ARRAY:
+                jsonReader.beginArray();
+                if (jsonReader.hasNext() &&
+                        (remaining = readValue(jsonReader, node, values, extractedValues, remaining)) <= 0) {
+                    return remaining;
+                }
+                while (jsonReader.hasNext()) {
+                    jsonReader.skipValue();
+                }
+                jsonReader.endArray();
+                return remaining;
+            case NULL:
+                jsonReader.nextNull();
+                return remaining;
+            case BOOLEAN:
+                return setValue(node, jsonReader.nextBoolean() ? "true" : "false", values, remaining);
+            default:
+                // Strings and numbers. Numbers are returned as they appear in the payload.
+                return setValue(node, jsonReader.nextString(), values, remaining);
+        }
+    }
+
+    /**
+     * Reads each element of the fan-out array into an entry of its own, or a single value as one entry. Elements beyond
+     * the maximum number of entries are skipped.
+     */
+    private int readEntries(JsonReader jsonReader, ExtractionPlan.PathNode node, ExtractedValues extractedValues,
+                            int remaining) throws IOException {
+
+        if (jsonReader.peek() != JsonToken.BEGIN_ARRAY) {
+            readEntry(jsonReader, node, extractedValues);
+        } else {
+            jsonReader.beginArray();
+            while (jsonReader.hasNext()) {
+                readEntry(jsonReader, node, extractedValues);
+            }
+            jsonReader.endArray();
+        }
+        return remaining - 1;
+    }
+
+    private void readEntry(JsonReader jsonReader, ExtractionPlan.PathNode node, ExtractedValues extractedValues)
+            throws IOException {
+
+        if (jsonReader.peek() == JsonToken.NULL) {
+            jsonReader.nextNull();
+            return;
+        }
+        String[] entry = extractedValues.addEntry();
+        if (entry == null) {
+            jsonReader.skipValue();
+        } else {
+            // Every field of the entry is read, so the entry never ends the parsing early.
+            readValue(jsonReader, node, entry, null, Integer.MAX_VALUE);
+        }
+    }
+
+    private int setValue(ExtractionPlan.PathNode node, String value, String[] values, int remaining) {
+
+        if (node.slot >= 0 && values[node.slot] == null) {
+            values[node.slot] = value;
+            return remaining - 1;
+        }
+        return remaining;
+    }
+
+    /**
+     * Keeps a copy of every byte read from the underlying stream, so the consumed part can be replayed.
+     */
+    private static class RecordingInputStream extends FilterInputStream {
+
+        private byte[] buffer = new byte[4096];
+        private int count;
+
+        private RecordingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                ensureCapacity(1);
+                buffer[count++] = (byte) b;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                ensureCapacity(n);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Skipped bytes would be lost for the backend, so read them instead.
+            byte[] skipBuffer = new byte[(int) Math.min(n, 4096)];
+            int read = read(skipBuffer, 0, skipBuffer.length);
+            return read < 0 ? 0 : read;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+            // The pipe stream is still needed to forward the message.
+        }
+
+        private void ensureCapacity(int n) {
+            if (count + n > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + n));
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ *  Copyright WSO2 Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.wso2.carbon.apimgt.frauddetection;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter which is cheap to update from many threads. Each thread adds to one of several cells, picked by its id,
+ * and the cells are only summed when the counter is read. The cells are a cache line apart so that threads updating
+ * different cells do not contend.
+ */
+public class StripedCounter {
+
+    // 8 longs = 64 bytes, i.e. one cell per cache line.
+    private static final int CELL_SPACING = 8;
+
+    static final int STRIPES = stripes();
+    static final int STRIPE_MASK = STRIPES - 1;
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * CELL_SPACING);
+
+    public void increment() {
+        cells.getAndIncrement(stripe() * CELL_SPACING);
+    }
+
+    public void add(long value) {
+        cells.getAndAdd(stripe() * CELL_SPACING, value);
+    }
+
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * CELL_SPACING);
+        }
+        return sum;
+    }
+
+    static int stripe() {
+        return (int) Thread.currentThread().getId() & STRIPE_MASK;
+    }
+
+    private static int stripes() {
+        int processors = Math.min(Runtime.getRuntime().availableProcessors(), 64);
+        return Integer.highestOneBit(processors * 2 - 1);
+    }
+}
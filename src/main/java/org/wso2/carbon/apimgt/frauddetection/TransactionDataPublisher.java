@@ -2,22 +2,38 @@ package org.wso2.carbon.apimgt.frauddetection;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.wso2.carbon.databridge.agent.thrift.DataPublisher;
 import org.wso2.carbon.databridge.agent.thrift.exception.AgentException;
 import org.wso2.carbon.databridge.commons.Event;
-import org.wso2.carbon.databridge.commons.exception.AuthenticationException;
-import org.wso2.carbon.databridge.commons.exception.TransportException;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.net.MalformedURLException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * This class publishes transaction data to WSO2 DAS.
  */
-public class TransactionDataPublisher {
+public class TransactionDataPublisher implements TransactionDataPublisherMXBean {
 
     private static final Log log = LogFactory.getLog(TransactionDataPublisher.class);
 
@@ -29,84 +45,926 @@ public class TransactionDataPublisher {
     public String streamName;
     public String streamVersion;
 
-    private String streamId;
-    private boolean ready;
-    private boolean initialized;
-    private DataPublisher dataPublisher;
+    public static final String EXECUTOR_PLATFORM = "platform";
+    public static final String EXECUTOR_VIRTUAL = "virtual";
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long SHUTDOWN_DRAIN_TIMEOUT_MILLIS = 30000;
+    private static final String MBEAN_NAME = "org.wso2.carbon.apimgt.frauddetection:type=TransactionDataPublisher";
+
+    private volatile boolean initialized;
+
+    private ConsistentHashRing endpointRing;
+    private int partitionKeyIndex;
+    private boolean compactEncoding;
+    private DuplicateFilter duplicateFilter;
+    private int deduplicationKeyIndex;
+    private ScheduledExecutorService reconnectExecutor;
+    private final StripedCounter rejectedCount = new StripedCounter();
+    private final PublisherMetrics metrics;
+
+    private PublishQueue<Event> publishQueue;
+    private Thread[] publisherThreads;
+    private volatile boolean running;
+    private int batchSize;
+    private long batchTimeoutNanos;
+    private volatile long deliveryLatencyMillis;
+    private final AtomicLong flushedCount = new AtomicLong();
+
+    // Only set in the virtual executor mode, where each batch is flushed on a virtual thread of its own.
+    private ThreadFactory flushThreadFactory;
+    private Semaphore flushPermits;
+    private int maxFlushes;
+
+    private SpillLog spillLog;
+    private String spillDirectory;
+    // Replays the spill log, one run at a time, whenever an endpoint connects. Only set if the spill log is enabled.
+    private ExecutorService spillReplayExecutor;
+    private final AtomicBoolean spillReplayScheduled = new AtomicBoolean();
+    private volatile TransactionDataPublisher successor;
+    private String mbeanName = MBEAN_NAME;
+
+
+    /**
+     * Publishers are created by the PublisherRegistry, one per DAS endpoint list, user and stream version.
+     */
+    protected TransactionDataPublisher() {
+        this(new PublisherMetrics());
+    }
 
-    private static TransactionDataPublisher instance = null;
+    private TransactionDataPublisher(PublisherMetrics metrics) {
+        this.metrics = metrics;
+    }
 
 
-    protected TransactionDataPublisher() {
+    /**
+     * Sets up the publisher threads and connects to DAS. If DAS cannot be reached, reconnecting is left to a
+     * background thread and the publisher stays usable.
+     */
+    protected void init(DataPublisherConfig config) {
+        init(config, false);
     }
 
-    public static TransactionDataPublisher getInstance() {
-        if (instance == null) {
-            synchronized (TransactionDataPublisher.class) {
-                if (instance == null) {
-                    instance = new TransactionDataPublisher();
+    /**
+     * Sets up the publisher threads and connects to DAS, on a background thread if connectInBackground is set. Events
+     * published before the connection is up are handled as if DAS were unreachable.
+     */
+    void init(DataPublisherConfig config, boolean connectInBackground) {
+
+        if(config == null){
+            log.error(String.format("DataPublisherConfig is null. Cannot initialize TransactionDataPublisher"));
+            return;
+        }
+
+        setDataPublisherConfig(config);
+        String[] receiverUrls = getReceiverUrls(config);
+
+        // Reconnecting blocks on the network. On virtual threads, each endpoint can reconnect without waiting for another.
+        ThreadFactory reconnectThreadFactory = isVirtualExecutor(config) ?
+                VirtualThreads.newThreadFactory("fraud-detection-reconnect-") : null;
+        if(reconnectThreadFactory != null){
+            reconnectExecutor = Executors.newScheduledThreadPool(receiverUrls.length, reconnectThreadFactory);
+        }else{
+            reconnectExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "fraud-detection-reconnect");
+                    thread.setDaemon(true);
+                    return thread;
                 }
-            }
+            });
+        }
+
+        DasEndpoint[] endpoints = new DasEndpoint[receiverUrls.length];
+        for(int i = 0; i < receiverUrls.length; i++){
+            endpoints[i] = new DasEndpoint(receiverUrls[i], config, reconnectExecutor);
         }
-        return instance;
+        init(config, endpoints, connectInBackground);
     }
 
+    /**
+     * Initializes the publisher with the given endpoints. The benchmarks use this to plug in stand-in endpoints.
+     */
+    void init(DataPublisherConfig config, DasEndpoint[] endpoints) {
+        init(config, endpoints, false);
+    }
 
-    protected void init(DataPublisherConfig config) {
+    private void init(DataPublisherConfig config, DasEndpoint[] endpoints, boolean connectInBackground) {
 
-        try {
+        endpointRing = new ConsistentHashRing(endpoints, config.getPartitionVirtualNodes());
+        partitionKeyIndex = Arrays.asList(config.getStreamAttributeNames()).indexOf(config.getPartitionKey());
+        if(partitionKeyIndex < 0){
+            log.warn(String.format("Unknown partition key '%s'. Events are routed by their transaction id.", config.getPartitionKey()));
+            partitionKeyIndex = 0;
+        }
 
-            if(config == null){
-                log.error(String.format("DataPublisherConfig is null. Cannot initialize TransactionDataPublisher"));
-                return;
+        compactEncoding = CompactEventCodec.isCompact(config);
+
+        if(isVirtualExecutor(config)){
+            flushThreadFactory = VirtualThreads.newThreadFactory("fraud-detection-flush-");
+            if(flushThreadFactory == null){
+                log.warn("Virtual threads are not available on this JVM. Batches are flushed by the publisher threads.");
+            }else{
+                int endpointMaxConcurrency = Math.max(1, config.getEndpointMaxConcurrency());
+                for(DasEndpoint endpoint : endpoints){
+                    endpoint.limitConcurrency(endpointMaxConcurrency);
+                }
+                maxFlushes = endpointMaxConcurrency * endpoints.length;
+                flushPermits = new Semaphore(maxFlushes);
+                log.info(String.format("Batches are flushed on virtual threads, up to %d at a time per DAS endpoint.",
+                                       endpointMaxConcurrency));
             }
+        }
 
-            setDataPublisherConfig(config);
-            dataPublisher = new DataPublisher(String.format("tcp://%s:%s", dasHost, dasPort), dasUsername, dasPassword);
-            streamId = dataPublisher.findStreamId(streamName, streamVersion);
+        if(config.getDeduplicationWindowMillis() > 0){
+            deduplicationKeyIndex = Arrays.asList(config.getStreamAttributeNames()).indexOf(config.getDeduplicationKey());
+            if(deduplicationKeyIndex < 0){
+                log.warn(String.format("Unknown deduplication key '%s'. Duplicate transactions are not suppressed.",
+                                       config.getDeduplicationKey()));
+            }else{
+                duplicateFilter = new DuplicateFilter(config.getDeduplicationCapacity(), config.getDeduplicationWindowMillis());
+            }
+        }
 
-            if(streamId != null){
-                this.ready = true;
-                log.info("Transaction data publisher has been initialized.");
+        metrics.setEnabled(config.isMetricsEnabled());
+        metrics.setSampleInterval(config.getMetricsSampleInterval());
+        startPublisherThreads(config);
+        initialized = true;
+        mbeanName = MBEAN_NAME + ",name=" + ObjectName.quote(PublisherRegistry.keyOf(config));
+        registerMBean();
+
+        DasEndpoint.ConnectionListener connectionListener = new DasEndpoint.ConnectionListener() {
+            public void onConnected(DasEndpoint endpoint) {
+                scheduleSpillReplay();
+            }
+        };
+        for(DasEndpoint endpoint : endpoints){
+            endpoint.setConnectionListener(connectionListener);
+        }
+        for(final DasEndpoint endpoint : endpoints){
+            if(connectInBackground){
+                reconnectExecutor.execute(new Runnable() {
+                    public void run() {
+                        endpoint.start();
+                    }
+                });
+            }else{
+                endpoint.start();
             }
+        }
+        // Stand-in endpoints are available without connecting, so they never report it.
+        scheduleSpillReplay();
+        log.info(String.format("Transaction data publisher has been initialized with %d DAS endpoint(s).", endpoints.length));
+    }
+
+    public boolean isInitialized() {
+        return initialized;
+    }
+
+    String getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    /**
+     * Creates and initializes a publisher for the given config which takes over from this one. The new publisher
+     * records into the same metrics and, if the spill directory is the same, shares the spill log of this one. It also
+     * takes over the MBean if the stream is the same. Shut this publisher down once no request thread can see it, and
+     * it drains its queue without closing what was handed over.
+     */
+    public TransactionDataPublisher createSuccessor(DataPublisherConfig config) {
+
+        TransactionDataPublisher newPublisher = new TransactionDataPublisher(metrics);
+        if(spillLog != null && config.getSpillDirectory() != null &&
+                new File(spillDirectory).getAbsoluteFile().equals(new File(config.getSpillDirectory()).getAbsoluteFile())){
+            newPublisher.spillLog = spillLog;
+            if(!(config.getStreamName() + ":" + config.getStreamVersion()).equals(streamName + ":" + streamVersion) &&
+                    spillLog.hasPendingRecords()){
+                log.warn(String.format("The stream has changed from '%s:%s'. The spilled events will be replayed to the new stream.",
+                                       streamName, streamVersion));
+            }
+        }
+        newPublisher.init(config);
+        successor = newPublisher;
+        return newPublisher;
+    }
+
+    /**
+     * Returns the receiver URLs from the 'dasEndpoints' list, or from the single 'dasHost'/'dasPort' pair.
+     */
+    static String[] getReceiverUrls(DataPublisherConfig config) {
 
-        } catch (MalformedURLException e) {
-            logInitializationError(e);
-        } catch (AgentException e) {
-            logInitializationError(e);
-        } catch (AuthenticationException e) {
-            logInitializationError(e);
-        } catch (TransportException e) {
-            logInitializationError(e);
+        String dasEndpoints = config.getDasEndpoints();
+        if(dasEndpoints == null || dasEndpoints.trim().isEmpty()){
+            return new String[]{String.format("tcp://%s:%s", config.getDasHost(), config.getDasPort())};
         }
 
+        List<String> receiverUrls = new ArrayList<String>();
+        for(String endpoint : dasEndpoints.split(",")){
+            endpoint = endpoint.trim();
+            if(!endpoint.isEmpty()){
+                receiverUrls.add(endpoint.startsWith("tcp://") ? endpoint : "tcp://" + endpoint);
+            }
+        }
+        return receiverUrls.toArray(new String[receiverUrls.size()]);
     }
 
+    /**
+     * Drains the queue and stops the publisher. Later publishes go to the successor, if the publisher was replaced, or
+     * are dropped.
+     */
     public void shutdown() {
-        dataPublisher.stop();
+
+        initialized = false;
+        if(reconnectExecutor != null){
+            reconnectExecutor.shutdownNow();
+        }
+
+        // Let the publisher threads drain the queue before the connection is closed.
+        running = false;
+        if(publisherThreads != null){
+            long deadline = System.currentTimeMillis() + SHUTDOWN_DRAIN_TIMEOUT_MILLIS;
+            for(Thread publisherThread : publisherThreads){
+                LockSupport.unpark(publisherThread);
+                try {
+                    publisherThread.join(Math.max(1, deadline - System.currentTimeMillis()));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+
+            if(flushPermits != null && !awaitFlushes(deadline)){
+                log.warn("Some batches were still being flushed at the shutdown.");
+            }
+
+            // The replay stops after its current batch, so a successor sharing the spill log never replays alongside it.
+            if(spillReplayExecutor != null){
+                spillReplayExecutor.shutdownNow();
+                try {
+                    if(!spillReplayExecutor.awaitTermination(Math.max(1, deadline - System.currentTimeMillis()),
+                                                             TimeUnit.MILLISECONDS)){
+                        log.warn("Spilled events were still being replayed at the shutdown.");
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            if(!publishQueue.isEmpty()){
+                log.warn(String.format("%d transaction events were not published before the shutdown.", publishQueue.size()));
+            }
+        }
+
+        TransactionDataPublisher successor = this.successor;
+        if(spillLog != null){
+            if(successor != null && successor.spillLog == spillLog){
+                // Events spilled while draining are replayed by the successor.
+                successor.scheduleSpillReplay();
+            }else{
+                spillLog.close();
+            }
+        }
+
+        if(endpointRing != null){
+            for(DasEndpoint endpoint : endpointRing.getEndpoints()){
+                endpoint.stop();
+            }
+        }
+        if(successor == null || !successor.mbeanName.equals(mbeanName)){
+            unregisterMBean();
+        }
         log.info("Transaction data publisher has been shutdown.");
     }
 
+    /**
+     * Publishes to the successor the payloads of a request which read this publisher before it was replaced and shut
+     * down.
+     */
+    private void publishToSuccessor(Object[][] transactionStreamPayloads) {
+
+        TransactionDataPublisher successor = this.successor;
+        if(successor == null){
+            log.error("Transaction data publisher has not been initialized properly or has been shut down. Cannot publish data");
+            return;
+        }
+        successor.publish(transactionStreamPayloads);
+    }
+
+    /**
+     * Hands the payload over to the publisher threads. This never blocks on DAS. Depending on the overflow policy it
+     * may wait for room in the queue for a bounded time. While DAS is unreachable, events are still accepted if the
+     * spill log is enabled, or while the first connection is made with cached stream ids. If deduplication is enabled,
+     * a transaction already published within the window is skipped.
+     */
     public void publish(Object[] transactionStreamPayload) {
 
-        if(isReady()){
+        if(!initialized){
+            publishToSuccessor(new Object[][]{transactionStreamPayload});
+            return;
+        }
 
-            Event transactionEvent = new Event(streamId, System.currentTimeMillis(), null, null, transactionStreamPayload);
-            try {
-                dataPublisher.publish(transactionEvent);
-                log.debug(String.format("Published event : %s", transactionEvent.toString()));
-            } catch (AgentException e) {
-               this.ready = false;
-               log.error("Cannot publish transaction stream payload to DAS", e);
+        long startNanos = metrics.resumeTimer();
+        long now = System.currentTimeMillis();
+
+        if(duplicateFilter != null && duplicateFilter.isDuplicate(transactionStreamPayload[deduplicationKeyIndex], now)){
+            if(log.isDebugEnabled()){
+                log.debug(String.format("Skipped a repeat of the transaction '%s'.", transactionStreamPayload[deduplicationKeyIndex]));
+            }
+        }else if(isReady() || spillLog != null || isStarting()){
+
+            Event transactionEvent = new Event(null, now, null, null, transactionStreamPayload);
+            if(!publishQueue.put(transactionEvent) && log.isDebugEnabled()){
+                log.debug(String.format("Publish queue is full. Dropped a transaction event as per the '%s' policy.",
+                                        publishQueue.getOverflowPolicy()));
             }
         }else{
-            log.error("Transaction data publisher has not been initialized properly. Cannot publish data");
+            rejectedCount.increment();
+            if(log.isDebugEnabled()){
+                log.debug("DAS is not reachable. Dropped a transaction event.");
+            }
         }
+        metrics.recordPublish(startNanos);
 
     }
 
+    /**
+     * Hands the payloads of the transactions of one request over to the publisher threads together, so they are
+     * usually published in the same batch. Like publish(Object[]), this never blocks on DAS. The transactions share the
+     * deduplication key of the request, so they are skipped or published as a group.
+     */
+    public void publish(Object[][] transactionStreamPayloads) {
+
+        if(transactionStreamPayloads.length == 0){
+            return;
+        }
+        if(transactionStreamPayloads.length == 1){
+            publish(transactionStreamPayloads[0]);
+            return;
+        }
+        if(!initialized){
+            publishToSuccessor(transactionStreamPayloads);
+            return;
+        }
+
+        long startNanos = metrics.resumeTimer();
+        long now = System.currentTimeMillis();
+
+        if(duplicateFilter != null && duplicateFilter.isDuplicate(transactionStreamPayloads[0][deduplicationKeyIndex], now)){
+            if(log.isDebugEnabled()){
+                log.debug(String.format("Skipped a repeat of the transaction '%s'.",
+                                        transactionStreamPayloads[0][deduplicationKeyIndex]));
+            }
+        }else if(isReady() || spillLog != null || isStarting()){
+
+            Event[] transactionEvents = new Event[transactionStreamPayloads.length];
+            for(int i = 0; i < transactionEvents.length; i++){
+                transactionEvents[i] = new Event(null, now, null, null, transactionStreamPayloads[i]);
+            }
+            if(!publishQueue.putAll(transactionEvents) && log.isDebugEnabled()){
+                log.debug(String.format("Publish queue is full. Dropped transaction events as per the '%s' policy.",
+                                        publishQueue.getOverflowPolicy()));
+            }
+        }else{
+            rejectedCount.add(transactionStreamPayloads.length);
+            if(log.isDebugEnabled()){
+                log.debug(String.format("DAS is not reachable. Dropped %d transaction events.", transactionStreamPayloads.length));
+            }
+        }
+        metrics.recordPublish(startNanos);
+    }
+
+    /**
+     * Returns whether at least one DAS endpoint is available.
+     */
     public boolean isReady() {
-        return ready;
+
+        if(endpointRing == null){
+            return false;
+        }
+        for(DasEndpoint endpoint : endpointRing.getEndpoints()){
+            if(endpoint.isAvailable()){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether no endpoint is available yet, but one is making its first connection with stream ids from the
+     * cache. Events are accepted and held in the queue meanwhile, and published once it is connected.
+     */
+    public boolean isStarting() {
+
+        if(endpointRing == null){
+            return false;
+        }
+        boolean starting = false;
+        for(DasEndpoint endpoint : endpointRing.getEndpoints()){
+            if(endpoint.isAvailable()){
+                return false;
+            }
+            starting |= endpoint.isStarting();
+        }
+        return starting;
+    }
+
+    public Map<String, CircuitBreaker.State> getEndpointStates() {
+
+        Map<String, CircuitBreaker.State> states = new LinkedHashMap<String, CircuitBreaker.State>();
+        if(endpointRing != null){
+            for(DasEndpoint endpoint : endpointRing.getEndpoints()){
+                states.put(endpoint.getReceiverUrl(), endpoint.getState());
+            }
+        }
+        return states;
+    }
+
+    public int getQueueDepth() {
+        return publishQueue != null ? publishQueue.size() : 0;
+    }
+
+    public int getQueueCapacity() {
+        return publishQueue != null ? publishQueue.capacity() : 0;
+    }
+
+    /**
+     * The time the oldest event of the last flushed batch spent between being published and being handed to DAS.
+     */
+    public long getDeliveryLatencyMillis() {
+        return deliveryLatencyMillis;
+    }
+
+    /**
+     * The number of events handed to the publish queue so far.
+     */
+    public long getQueuedEventCount() {
+        return publishQueue != null ? publishQueue.getEnqueuedCount() : 0;
+    }
+
+    /**
+     * The number of queued events which have left the publisher so far, i.e. were sent to DAS, spilled or dropped. Once
+     * it reaches a value read from getQueuedEventCount(), the events queued before that read have left too, unless
+     * batches are still in flight on other publisher threads.
+     */
+    public long getFlushedEventCount() {
+        long count = flushedCount.get();
+        if(publishQueue != null && publishQueue.getOverflowPolicy() == PublishQueue.OverflowPolicy.DROP_OLDEST){
+            count += publishQueue.getDroppedCount();
+        }
+        return count;
+    }
+
+    public long getDroppedEventCount() {
+        long droppedCount = rejectedCount.sum() + (publishQueue != null ? publishQueue.getDroppedCount() : 0);
+        return spillLog != null ? droppedCount + spillLog.getDiscardedCount() : droppedCount;
+    }
+
+    public long getSpilledEventCount() {
+        return spillLog != null ? spillLog.getPendingRecordCount() : 0;
+    }
+
+    public long getPublishedEventCount() {
+        return metrics.getPublishedCount();
+    }
+
+    public long getFailedEventCount() {
+        return metrics.getFailedCount();
+    }
+
+    public long getExtractionFailureCount() {
+        return metrics.getExtractionFailureCount();
+    }
+
+    public long getVelocityViolationCount() {
+        return metrics.getVelocityViolationCount();
+    }
+
+    public long getResponseTimeoutCount() {
+        return metrics.getResponseTimeoutCount();
+    }
+
+    public long getSampledOutEventCount() {
+        return metrics.getSampledOutCount();
+    }
+
+    public long getFilteredOutRequestCount() {
+        return metrics.getFilteredOutCount();
+    }
+
+    public Map<String, Long> getFilterHitCounts() {
+        return metrics.getFilterHitCounts();
+    }
+
+    public long getDuplicateEventCount() {
+        return duplicateFilter != null ? duplicateFilter.getHitCount() : 0;
+    }
+
+    public long getUniqueEventCount() {
+        return duplicateFilter != null ? duplicateFilter.getMissCount() : 0;
+    }
+
+    public LatencyHistogram.Snapshot getMessageBuildLatency() {
+        return metrics.getMessageBuildLatency().snapshot();
+    }
+
+    public LatencyHistogram.Snapshot getFieldExtractionLatency() {
+        return metrics.getFieldExtractionLatency().snapshot();
+    }
+
+    public LatencyHistogram.Snapshot getClientIPResolutionLatency() {
+        return metrics.getClientIPResolutionLatency().snapshot();
+    }
+
+    public LatencyHistogram.Snapshot getPublishLatency() {
+        return metrics.getPublishLatency().snapshot();
+    }
+
+    /**
+     * Returns all the counters and latencies of the publisher, for polling by monitoring code.
+     */
+    public MetricsSnapshot getMetricsSnapshot() {
+        return new MetricsSnapshot(this);
+    }
+
+    /**
+     * The metrics the extraction stages record into.
+     */
+    public PublisherMetrics getMetrics() {
+        return metrics;
+    }
+
+    private void startPublisherThreads(DataPublisherConfig config) {
+
+        if(publisherThreads != null){
+            return;
+        }
+
+        publishQueue = new PublishQueue<Event>(config.getPublishQueueSize(),
+                                               PublishQueue.OverflowPolicy.fromString(config.getPublishQueueOverflowPolicy()),
+                                               config.getPublishQueueBlockTimeoutMillis());
+        batchSize = Math.max(1, config.getPublishBatchSize());
+        batchTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.getPublishBatchTimeoutMillis());
+
+        spillDirectory = config.getSpillDirectory();
+        if(spillDirectory != null && spillLog == null){
+            try {
+                spillLog = new SpillLog(new File(spillDirectory), config.getSpillSegmentSize(), config.getSpillMaxSegments());
+            } catch (IOException e) {
+                log.error(String.format("Cannot open the spill log in '%s'. Events will be lost while DAS is unreachable.",
+                                        spillDirectory), e);
+            }
+        }
+        if(spillLog != null){
+            spillReplayExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "fraud-detection-spill-replay");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        running = true;
+
+        Thread[] threads = new Thread[config.getPublisherThreadCount()];
+        for(int i = 0; i < threads.length; i++){
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    publishQueuedEvents();
+                }
+            }, "fraud-detection-publisher-" + i);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+        publisherThreads = threads;
+    }
+
+    /**
+     * Collects queued events into a batch and flushes it when either the batch size is reached or the oldest event in
+     * the batch has waited for the batch timeout, whichever comes first.
+     */
+    private void publishQueuedEvents() {
+
+        List<Event> batch = new ArrayList<Event>(batchSize);
+        long batchDeadline = 0;
+
+        while(running || !publishQueue.isEmpty()){
+
+            // Events accepted before the first connection wait for it, rather than being spilled or dropped.
+            if(running && isStarting()){
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+
+            Event transactionEvent = publishQueue.poll();
+            if(transactionEvent == null){
+                if(!batch.isEmpty() && System.nanoTime() - batchDeadline >= 0){
+                    dispatch(batch);
+                }else{
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+                continue;
+            }
+
+            if(batch.isEmpty()){
+                batchDeadline = System.nanoTime() + batchTimeoutNanos;
+            }
+            batch.add(transactionEvent);
+
+            if(batch.size() >= batchSize || System.nanoTime() - batchDeadline >= 0){
+                dispatch(batch);
+            }
+        }
+
+        if(!batch.isEmpty()){
+            dispatch(batch);
+        }
+    }
+
+    /**
+     * Flushes the batch on this thread, or in the virtual executor mode hands it to a virtual thread of its own once
+     * fewer than the maximum number of batches are in flight. Waiting for that holds the queue back, so the overflow
+     * policy still applies when DAS is slow.
+     */
+    private void dispatch(List<Event> batch) {
+
+        if(flushThreadFactory == null){
+            flush(batch);
+            return;
+        }
+
+        flushPermits.acquireUninterruptibly();
+        final List<Event> inFlightBatch = new ArrayList<Event>(batch);
+        batch.clear();
+        flushThreadFactory.newThread(new Runnable() {
+            public void run() {
+                try {
+                    flush(inFlightBatch);
+                } finally {
+                    flushPermits.release();
+                }
+            }
+        }).start();
+    }
+
+    /**
+     * Waits until the batches in flight are flushed, or the deadline passes. Returns false if it passed.
+     */
+    private boolean awaitFlushes(long deadline) {
+
+        try {
+            if(flushPermits.tryAcquire(maxFlushes, Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)){
+                flushPermits.release(maxFlushes);
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    /**
+     * Hands the whole batch to the data publishers back to back, so the agents send it to DAS in as few Thrift event
+     * bundles as possible. Each event goes to the endpoint owning its partition key, or to the next available
+     * endpoint on the ring if that one is down.
+     */
+    private void flush(List<Event> batch) {
+
+        List<Event> unpublished;
+        if(compactEncoding){
+            unpublished = publishCompact(batch);
+        }else{
+            int published = 0;
+            for(Event transactionEvent : batch){
+                if(!publishToEndpoint(transactionEvent)){
+                    break;
+                }
+                published++;
+            }
+            unpublished = batch.subList(published, batch.size());
+        }
+
+        if(log.isDebugEnabled()){
+            log.debug(String.format("Published %d of %d transaction events in the batch", batch.size() - unpublished.size(),
+                                    batch.size()));
+        }
+
+        if(!unpublished.isEmpty()){
+            if(spillLog != null){
+                spill(unpublished);
+            }else{
+                rejectedCount.add(unpublished.size());
+            }
+        }
+        deliveryLatencyMillis = System.currentTimeMillis() - batch.get(0).getTimeStamp();
+        flushedCount.addAndGet(batch.size());
+        batch.clear();
+    }
+
+    /**
+     * Splits the batch by the endpoint owning each partition key and sends each part as one compact block. The parts
+     * an endpoint fails to take are routed again, as the ring then selects the next available endpoint. Returns the
+     * events no endpoint could take.
+     */
+    private List<Event> publishCompact(List<Event> batch) {
+
+        List<Event> remaining = batch;
+        int endpointCount = endpointRing.getEndpoints().length;
+        for(int attempt = 0; attempt < endpointCount && !remaining.isEmpty(); attempt++){
+            Map<DasEndpoint, List<Event>> parts = new IdentityHashMap<DasEndpoint, List<Event>>();
+            List<Event> failed = new ArrayList<Event>();
+            for(Event transactionEvent : remaining){
+                DasEndpoint endpoint = endpointRing.select(transactionEvent.getPayloadData()[partitionKeyIndex]);
+                if(endpoint == null){
+                    failed.add(transactionEvent);
+                    continue;
+                }
+                List<Event> part = parts.get(endpoint);
+                if(part == null){
+                    part = new ArrayList<Event>(remaining.size());
+                    parts.put(endpoint, part);
+                }
+                part.add(transactionEvent);
+            }
+
+            for(Map.Entry<DasEndpoint, List<Event>> part : parts.entrySet()){
+                try {
+                    publishCompact(part.getKey(), part.getValue());
+                    metrics.onPublished(part.getValue().size());
+                } catch (AgentException e) {
+                    metrics.onPublishFailure();
+                    part.getKey().onPublishFailure(e);
+                    failed.addAll(part.getValue());
+                }
+            }
+
+            if(parts.isEmpty()){
+                return failed;
+            }
+            remaining = failed;
+        }
+        return remaining;
+    }
+
+    /**
+     * Publishes the event to an available endpoint. Returns false if no endpoint could take it.
+     */
+    private boolean publishToEndpoint(Event transactionEvent) {
+
+        Object partitionKey = transactionEvent.getPayloadData()[partitionKeyIndex];
+        DasEndpoint endpoint;
+        while((endpoint = endpointRing.select(partitionKey)) != null){
+            try {
+                endpoint.acquirePublishPermit();
+                try {
+                    endpoint.publish(transactionEvent);
+                } finally {
+                    endpoint.releasePublishPermit();
+                }
+                metrics.onPublished();
+                return true;
+            } catch (AgentException e) {
+                metrics.onPublishFailure();
+                endpoint.onPublishFailure(e);
+            }
+        }
+        return false;
+    }
+
+    private static void publishCompact(DasEndpoint endpoint, List<Event> transactionEvents) throws AgentException {
+
+        endpoint.acquirePublishPermit();
+        try {
+            endpoint.publishCompact(transactionEvents);
+        } finally {
+            endpoint.releasePublishPermit();
+        }
+    }
+
+    /**
+     * Returns whether the config asks for the virtual executor mode. Throws IllegalArgumentException if the
+     * 'publisherExecutor' value is not known.
+     */
+    static boolean isVirtualExecutor(DataPublisherConfig config) {
+
+        String executor = config.getPublisherExecutor() != null ? config.getPublisherExecutor().trim() : EXECUTOR_PLATFORM;
+        if(EXECUTOR_PLATFORM.equalsIgnoreCase(executor)){
+            return false;
+        }
+        if(!EXECUTOR_VIRTUAL.equalsIgnoreCase(executor)){
+            throw new IllegalArgumentException(String.format("Unknown 'publisherExecutor' value : '%s'", executor));
+        }
+        return true;
+    }
+
+    private void spill(List<Event> events) {
+
+        try {
+            for(Event transactionEvent : events){
+                spillLog.append(transactionEvent.getTimeStamp(), transactionEvent.getPayloadData());
+            }
+            // An endpoint may have connected since the batch failed, in which case no connection will trigger the replay.
+            scheduleSpillReplay();
+        } catch (IOException e) {
+            log.error(String.format("Cannot write %d transaction events to the spill log", events.size()), e);
+        }
+    }
+
+    /**
+     * Starts replaying the spill log on the replay thread, unless it is empty, no endpoint is available or a replay is
+     * already running.
+     */
+    private void scheduleSpillReplay() {
+
+        if(spillReplayExecutor == null || !spillLog.hasPendingRecords() || !isReady() ||
+                !spillReplayScheduled.compareAndSet(false, true)){
+            return;
+        }
+        try {
+            spillReplayExecutor.execute(new Runnable() {
+                public void run() {
+                    boolean drained = false;
+                    try {
+                        drained = replaySpilledEvents();
+                    } finally {
+                        spillReplayScheduled.set(false);
+                    }
+                    // Events spilled after the log was drained, but before the flag was cleared, start another run.
+                    if(drained){
+                        scheduleSpillReplay();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            spillReplayScheduled.set(false);
+        }
+    }
+
+    /**
+     * Replays the spilled events in the order they were spilled, a batch at a time, until the log is empty, DAS fails
+     * again or the publisher shuts down. The lock of the spill log is only held to read and commit a batch, never while
+     * it is published, so the publisher threads can keep spilling. Returns true if the log was drained.
+     */
+    private boolean replaySpilledEvents() {
+
+        long replayed = 0;
+        try {
+            while(!Thread.currentThread().isInterrupted()){
+                List<SpillLog.Record> records = spillLog.read(batchSize);
+                if(records.isEmpty()){
+                    return true;
+                }
+
+                int published = 0;
+                for(SpillLog.Record record : records){
+                    if(!publishToEndpoint(new Event(null, record.getTimestamp(), null, null, record.getPayload()))){
+                        break;
+                    }
+                    published++;
+                }
+                spillLog.commit(records.subList(0, published));
+                replayed += published;
+
+                if(published < records.size()){
+                    log.warn("Replaying spilled transaction events stopped as no DAS endpoint is available.");
+                    return false;
+                }
+            }
+            return false;
+        } catch (RuntimeException e) {
+            log.error("Cannot read spilled transaction events", e);
+            return false;
+        } finally {
+            if(replayed > 0){
+                log.info(String.format("Replayed %d spilled transaction events to DAS.", replayed));
+            }
+        }
+    }
+
+    private void registerMBean() {
+
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(mbeanName);
+            if(mBeanServer.isRegistered(objectName)){
+                mBeanServer.unregisterMBean(objectName);
+            }
+            mBeanServer.registerMBean(this, objectName);
+        } catch (JMException e) {
+            log.warn("Cannot register the transaction data publisher MBean. Metrics are not available over JMX.", e);
+        }
+    }
+
+    private void unregisterMBean() {
+
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(mbeanName);
+            if(mBeanServer.isRegistered(objectName)){
+                mBeanServer.unregisterMBean(objectName);
+            }
+        } catch (JMException e) {
+            log.warn("Cannot unregister the transaction data publisher MBean.", e);
+        }
     }
 
     private void setDataPublisherConfig(DataPublisherConfig config){
@@ -125,9 +983,5 @@ public class TransactionDataPublisher {
     }
 
 
-    private void logInitializationError(Exception e) {
-        log.error("Cannot initialize TransactionDataPublisher.", e);
-    }
-
    
 }
@@ -0,0 +1,87 @@
+/*
+ *  Copyright WSO2 Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.wso2.carbon.apimgt.frauddetection;
+
+import java.util.Map;
+
+/**
+ * The JMX view of the transaction data publisher. Latencies are in nanoseconds.
+ */
+public interface TransactionDataPublisherMXBean {
+
+    boolean isReady();
+
+    int getQueueDepth();
+
+    long getPublishedEventCount();
+
+    long getFailedEventCount();
+
+    long getDroppedEventCount();
+
+    long getSpilledEventCount();
+
+    long getExtractionFailureCount();
+
+    /**
+     * The number of events skipped as repeats of a transaction, i.e. deduplication hits.
+     */
+    long getDuplicateEventCount();
+
+    /**
+     * The number of events checked for repeats which were not, i.e. deduplication misses.
+     */
+    long getUniqueEventCount();
+
+    /**
+     * The number of transactions which broke a velocity rule.
+     */
+    long getVelocityViolationCount();
+
+    /**
+     * The number of transactions published without a response, when publishing on the response path.
+     */
+    long getResponseTimeoutCount();
+
+    /**
+     * The time the oldest event of the last flushed batch took from being published to being handed to DAS, in
+     * milliseconds.
+     */
+    long getDeliveryLatencyMillis();
+
+    /**
+     * The number of transactions left out of the sample while DAS was falling behind.
+     */
+    long getSampledOutEventCount();
+
+    /**
+     * The number of requests skipped by a publish filter, whose bodies were never built.
+     */
+    long getFilteredOutRequestCount();
+
+    /**
+     * The number of requests which took the action of each publish filter, by filter name.
+     */
+    Map<String, Long> getFilterHitCounts();
+
+    LatencyHistogram.Snapshot getMessageBuildLatency();
+
+    LatencyHistogram.Snapshot getFieldExtractionLatency();
+
+    LatencyHistogram.Snapshot getClientIPResolutionLatency();
+
+    LatencyHistogram.Snapshot getPublishLatency();
+}
@@ -15,80 +15,242 @@
  */
 package org.wso2.carbon.apimgt.frauddetection;
 
-import org.apache.axiom.om.OMElement;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.synapse.ManagedLifecycle;
 import org.apache.synapse.MessageContext;
 import org.apache.synapse.core.SynapseEnvironment;
-import org.apache.synapse.core.axis2.Axis2MessageContext;
 import org.apache.synapse.rest.AbstractHandler;
-import org.apache.synapse.transport.passthru.util.RelayUtils;
 
-import javax.xml.namespace.QName;
-import javax.xml.stream.XMLStreamException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * An API handler which publishes transaction data to DAS for fraud detection.
+ *
+ * Every API has its own handler instance. The instances share the publisher of the properties file through the
+ * PublisherRegistry. The file is watched, and when it changes a new publisher is built in the background and swapped
+ * in. Request threads read the publisher and everything built from the config through volatile references, so they
+ * never wait for a reload. The old publisher is drained once the requests which could still see it are through.
  */
 public class TransactionDataPublishingHandler extends AbstractHandler implements ManagedLifecycle {
 
     private static final Log log = LogFactory.getLog(TransactionDataPublishingHandler.class);
 
-    private volatile TransactionDataPublisher transactionDataPublisher;
+    static final String CONFIG_FILE_PROPERTY = "fraud.detection.config.file";
+    private static final String DEFAULT_CONFIG_FILE = "repository/conf/etc/fraud-detection/fraud-detection.properties";
 
-    public void init(SynapseEnvironment synapseEnvironment) {
+    // The initialized handlers, which are reloaded together by a single watcher.
+    private static final List<TransactionDataPublishingHandler> handlers =
+            new CopyOnWriteArrayList<TransactionDataPublishingHandler>();
+    private static ConfigFileWatcher configFileWatcher;
 
-        transactionDataPublisher = TransactionDataPublisher.getInstance();
+    private volatile PublishingPipeline pipeline;
+    // Guarded by this handler, so a reload does not build a pipeline for a destroyed handler.
+    private boolean destroyed;
+
+    /**
+     * Builds the pipeline of the handler from the properties file, and registers the handler to be reloaded when the
+     * file changes. The handler is registered even if the file is missing or not valid, so fixing the file starts the
+     * publishing without a restart.
+     */
+    public void init(SynapseEnvironment synapseEnvironment) {
 
-        if(!transactionDataPublisher.isReady()){
-            DataPublisherConfig config = getDataPublisherConfig();
-            transactionDataPublisher.init(config);
+        DataPublisherConfig config = getDataPublisherConfig();
+        if(config == null){
+            log.error("Fraud detection DAS properties are not available. Transaction data will not be published until " +
+                      "the properties file is changed.");
+        }else{
+            createPipeline(config);
         }
 
+        synchronized (TransactionDataPublishingHandler.class){
+            handlers.add(this);
+            if(configFileWatcher == null){
+                try {
+                    configFileWatcher = new ConfigFileWatcher(getConfigFile(), new ConfigFileWatcher.ChangeListener() {
+                        public void onChange(File file) {
+                            reloadHandlers();
+                        }
+                    });
+                    configFileWatcher.start();
+                } catch (IOException e) {
+                    log.warn("Cannot watch the Fraud detection DAS properties file. Changes need a restart.", e);
+                }
+            }
+        }
     }
 
     public void destroy() {
-        transactionDataPublisher.shutdown();
+
+        synchronized (TransactionDataPublishingHandler.class){
+            handlers.remove(this);
+            if(handlers.isEmpty() && configFileWatcher != null){
+                configFileWatcher.stop();
+                configFileWatcher = null;
+            }
+        }
+
+        PublishingPipeline pipeline;
+        synchronized (this){
+            destroyed = true;
+            pipeline = this.pipeline;
+            this.pipeline = null;
+        }
+        if(pipeline != null){
+            pipeline.retire();
+            pipeline.release();
+        }
     }
 
     public boolean handleRequest(MessageContext messageContext) {
         log.debug("START : TransactionDataPublishingHandler::handleRequest()");
-        publishTransactionData(messageContext);
+        // A pipeline turns requests away once it is retired, and by then the handler holds its replacement.
+        PublishingPipeline pipeline;
+        do {
+            pipeline = this.pipeline;
+        } while(pipeline != null && !pipeline.enter());
+
+        boolean accepted = true;
+        if(pipeline != null){
+            try {
+                accepted = pipeline.publish(messageContext);
+            } finally {
+                pipeline.exit();
+            }
+        }
         log.debug("END : TransactionDataPublishingHandler::handleRequest()");
-        return true;
+
+        if(!accepted){
+            Util.sendRejection(messageContext, VelocityRules.REJECTION_STATUS_CODE);
+        }
+        return accepted;
     }
 
     public boolean handleResponse(MessageContext messageContext) {
+        // The transaction is completed by the correlator which held it back, even if the config was reloaded since.
+        ResponseCorrelator.onResponse(messageContext);
         return true;
     }
 
+    /**
+     * The publisher this handler currently publishes to, or null if the handler was not initialized.
+     */
+    TransactionDataPublisher getTransactionDataPublisher() {
+        PublishingPipeline pipeline = this.pipeline;
+        return pipeline != null ? pipeline.getPublisherEntry().getPublisher() : null;
+    }
+
+    /**
+     * Applies the changed properties file to all the handlers, then drains what was replaced once the requests which
+     * could still see it are through.
+     */
+    private static void reloadHandlers() {
 
-    private void publishTransactionData(MessageContext messageContext){
+        DataPublisherConfig config = getDataPublisherConfig();
+        if(config == null){
+            log.warn("Cannot reload the Fraud detection DAS properties. The current configuration is kept.");
+            return;
+        }
+
+        List<PublishingPipeline> replacedPipelines = new ArrayList<PublishingPipeline>();
+        List<TransactionDataPublisher> replacedPublishers = new ArrayList<TransactionDataPublisher>();
+        for(TransactionDataPublishingHandler handler : handlers){
+            PublishingPipeline replaced = handler.reload(config, replacedPublishers);
+            if(replaced != null){
+                replacedPipelines.add(replaced);
+            }
+        }
+        if(replacedPipelines.isEmpty()){
+            return;
+        }
+        log.info("Fraud detection DAS properties were reloaded.");
+
+        // Transactions still waiting for their responses are published without them.
+        for(PublishingPipeline replaced : replacedPipelines){
+            if(!replaced.retire()){
+                log.warn("Requests were still using the replaced Fraud detection configuration. It is shut down anyway.");
+            }
+            replaced.shutdownResponseCorrelator();
+        }
+        for(TransactionDataPublisher publisher : replacedPublishers){
+            publisher.shutdown();
+        }
+    }
+
+    /**
+     * Builds a new pipeline from the config and swaps it in. The publisher of the handler's registry entry is replaced
+     * by the first handler to reload, and added to the given list. Returns the replaced pipeline, or null if there was
+     * none or the config is not valid, in which case the current one is kept. A handler without a pipeline, because
+     * its config was missing or not valid so far, builds its first one.
+     */
+    private synchronized PublishingPipeline reload(DataPublisherConfig config,
+                                                   List<TransactionDataPublisher> replacedPublishers) {
+
+        PublishingPipeline current = pipeline;
+        if(destroyed){
+            return null;
+        }
+        if(current == null){
+            if(createPipeline(config)){
+                log.info("Fraud detection DAS properties were loaded. Transaction data is published from now on.");
+            }
+            return null;
+        }
+
+        try {
+            pipeline = current.reload(config, replacedPublishers);
+        } catch (IllegalArgumentException e) {
+            log.error(String.format(PublishingPipeline.INVALID_CONFIG_MESSAGE + " The current configuration is kept.",
+                                    e.getMessage()), e);
+            return null;
+        }
+        return current;
+    }
 
-        OMElement transactionInfoPayload = getTransactionInfoPayload(messageContext);
+    /**
+     * Builds the first pipeline of the handler from the config, and returns false if the config is not valid.
+     */
+    private boolean createPipeline(DataPublisherConfig config) {
 
-        if(transactionInfoPayload != null){
-            Object[] transactionStreamPayload = buildTransactionStreamPayload(transactionInfoPayload, messageContext);
-            log.debug(String.format("transaction stream payload => %s", Arrays.toString(transactionStreamPayload)));
-            transactionDataPublisher.publish((transactionStreamPayload));
+        try {
+            pipeline = PublishingPipeline.create(config);
+        } catch (IllegalArgumentException e) {
+            log.error(String.format(PublishingPipeline.INVALID_CONFIG_MESSAGE + " Transaction data will not be published " +
+                                    "until the properties file is changed.", e.getMessage()), e);
+            return false;
         }
+        if(StreamingPayloadExtractor.EXTRACTION_MODE_STREAMING.equals(config.getPayloadExtractionMode())){
+            log.info("Transaction data is extracted in streaming mode.");
+        }
+        return true;
     }
 
-    private DataPublisherConfig getDataPublisherConfig() {
+    private static File getConfigFile() {
+        return new File(System.getProperty(CONFIG_FILE_PROPERTY, DEFAULT_CONFIG_FILE));
+    }
+
+    /**
+     * Reads the properties file given by the CONFIG_FILE_PROPERTY system property, or returns null if it cannot be read.
+     */
+    static DataPublisherConfig getDataPublisherConfig() {
 
 
         DataPublisherConfig config = new DataPublisherConfig();
 
-        File dasPropertiesFile = new File("repository/conf/etc/fraud-detection/fraud-detection.properties");
+        File dasPropertiesFile = getConfigFile();
 
         try {
             Properties properties = new Properties();
-            properties.load(new FileInputStream(dasPropertiesFile));
+            FileInputStream inputStream = new FileInputStream(dasPropertiesFile);
+            try {
+                properties.load(inputStream);
+            } finally {
+                inputStream.close();
+            }
 
             config.setDasHost(properties.getProperty("dasHost"));
             config.setDasPort(properties.getProperty("dasPort"));
@@ -98,6 +260,86 @@ public class TransactionDataPublishingHandler extends AbstractHandler implements
             config.setStreamName(properties.getProperty("streamName"));
             config.setStreamVersion(properties.getProperty("streamVersion"));
 
+            config.setPayloadExtractionMode(properties.getProperty("payloadExtractionMode",
+                                                                  StreamingPayloadExtractor.EXTRACTION_MODE_OM));
+            config.setStreamMapping(properties.getProperty("streamMapping", config.getStreamMapping()));
+
+            config.setPublishQueueSize(getIntProperty(properties, "publishQueueSize", config.getPublishQueueSize()));
+            config.setPublishQueueOverflowPolicy(properties.getProperty("publishQueueOverflowPolicy",
+                                                                        config.getPublishQueueOverflowPolicy()));
+            config.setPublishQueueBlockTimeoutMillis(getLongProperty(properties, "publishQueueBlockTimeoutMillis",
+                                                                     config.getPublishQueueBlockTimeoutMillis()));
+            config.setPublisherThreadCount(getIntProperty(properties, "publisherThreadCount", config.getPublisherThreadCount()));
+            config.setPublisherExecutor(properties.getProperty("publisherExecutor", config.getPublisherExecutor()));
+            config.setEndpointMaxConcurrency(getIntProperty(properties, "endpointMaxConcurrency",
+                                                            config.getEndpointMaxConcurrency()));
+            config.setPublishBatchSize(getIntProperty(properties, "publishBatchSize", config.getPublishBatchSize()));
+            config.setPublishBatchTimeoutMillis(getLongProperty(properties, "publishBatchTimeoutMillis",
+                                                                config.getPublishBatchTimeoutMillis()));
+
+            config.setSpillDirectory(properties.getProperty("spillDirectory"));
+            config.setSpillSegmentSize(getIntProperty(properties, "spillSegmentSize", config.getSpillSegmentSize()));
+            config.setSpillMaxSegments(getIntProperty(properties, "spillMaxSegments", config.getSpillMaxSegments()));
+
+            config.setReconnectInitialBackoffMillis(getLongProperty(properties, "reconnectInitialBackoffMillis",
+                                                                    config.getReconnectInitialBackoffMillis()));
+            config.setReconnectMaxBackoffMillis(getLongProperty(properties, "reconnectMaxBackoffMillis",
+                                                                config.getReconnectMaxBackoffMillis()));
+
+            config.setDasEndpoints(properties.getProperty("dasEndpoints"));
+            config.setPartitionKey(properties.getProperty("partitionKey", config.getPartitionKey()));
+            config.setPartitionVirtualNodes(getIntProperty(properties, "partitionVirtualNodes", config.getPartitionVirtualNodes()));
+            config.setMetricsEnabled(Boolean.parseBoolean(properties.getProperty("metricsEnabled",
+                                                                                 String.valueOf(config.isMetricsEnabled()))));
+            config.setMetricsSampleInterval(getIntProperty(properties, "metricsSampleInterval", config.getMetricsSampleInterval()));
+            config.setDeduplicationWindowMillis(getLongProperty(properties, "deduplicationWindowMillis",
+                                                                config.getDeduplicationWindowMillis()));
+            config.setDeduplicationCapacity(getIntProperty(properties, "deduplicationCapacity", config.getDeduplicationCapacity()));
+            config.setDeduplicationKey(properties.getProperty("deduplicationKey", config.getDeduplicationKey()));
+            config.setVelocityMaxPerCard(getIntProperty(properties, "velocityMaxPerCard", config.getVelocityMaxPerCard()));
+            config.setVelocityMaxPerIP(getIntProperty(properties, "velocityMaxPerIP", config.getVelocityMaxPerIP()));
+            config.setVelocityWindowMillis(getLongProperty(properties, "velocityWindowMillis", config.getVelocityWindowMillis()));
+            config.setVelocityBucketCount(getIntProperty(properties, "velocityBucketCount", config.getVelocityBucketCount()));
+            config.setVelocityAction(properties.getProperty("velocityAction", config.getVelocityAction()));
+            config.setVelocityCapacity(getIntProperty(properties, "velocityCapacity", config.getVelocityCapacity()));
+            config.setVelocityOffHeap(Boolean.parseBoolean(properties.getProperty("velocityOffHeap",
+                                                                                  String.valueOf(config.isVelocityOffHeap()))));
+            config.setVelocityCardAttribute(properties.getProperty("velocityCardAttribute", config.getVelocityCardAttribute()));
+            config.setVelocityIPAttribute(properties.getProperty("velocityIPAttribute", config.getVelocityIPAttribute()));
+            config.setPublishOn(properties.getProperty("publishOn", config.getPublishOn()));
+            config.setResponseTimeoutMillis(getLongProperty(properties, "responseTimeoutMillis", config.getResponseTimeoutMillis()));
+            config.setPendingResponseCapacity(getIntProperty(properties, "pendingResponseCapacity",
+                                                             config.getPendingResponseCapacity()));
+            config.setEventEncoding(properties.getProperty("eventEncoding", config.getEventEncoding()));
+            config.setEventCompression(properties.getProperty("eventCompression", config.getEventCompression()));
+            config.setCompactDictionaryAttributes(properties.getProperty("compactDictionaryAttributes",
+                                                                         config.getCompactDictionaryAttributes()));
+            config.setTrustedProxies(properties.getProperty("trustedProxies", config.getTrustedProxies()));
+            config.setMockClientIPEnabled(Boolean.parseBoolean(properties.getProperty("mockClientIPEnabled",
+                                                                                      String.valueOf(config.isMockClientIPEnabled()))));
+            config.setGeoIPDatabase(properties.getProperty("geoIPDatabase", config.getGeoIPDatabase()));
+            config.setGeoIPCacheCapacity(getIntProperty(properties, "geoIPCacheCapacity", config.getGeoIPCacheCapacity()));
+            config.setFanOutPath(properties.getProperty("fanOutPath", config.getFanOutPath()));
+            config.setFanOutMaxEntries(getIntProperty(properties, "fanOutMaxEntries", config.getFanOutMaxEntries()));
+            config.setSamplingEnabled(Boolean.parseBoolean(properties.getProperty("samplingEnabled",
+                                                                                  String.valueOf(config.isSamplingEnabled()))));
+            config.setSamplingLatencySloMillis(getLongProperty(properties, "samplingLatencySloMillis",
+                                                               config.getSamplingLatencySloMillis()));
+            config.setSamplingMaxQueueFill(getDoubleProperty(properties, "samplingMaxQueueFill", config.getSamplingMaxQueueFill()));
+            config.setSamplingIntervalMillis(getLongProperty(properties, "samplingIntervalMillis", config.getSamplingIntervalMillis()));
+            config.setSamplingMinRate(getDoubleProperty(properties, "samplingMinRate", config.getSamplingMinRate()));
+            config.setSamplingRateIncrease(getDoubleProperty(properties, "samplingRateIncrease", config.getSamplingRateIncrease()));
+            config.setSamplingRateDecrease(getDoubleProperty(properties, "samplingRateDecrease", config.getSamplingRateDecrease()));
+            config.setSamplingKeepAmountAbove(getDoubleProperty(properties, "samplingKeepAmountAbove",
+                                                                config.getSamplingKeepAmountAbove()));
+            config.setSamplingAmountAttribute(properties.getProperty("samplingAmountAttribute",
+                                                                     config.getSamplingAmountAttribute()));
+            config.setSamplingFlaggedCardMillis(getLongProperty(properties, "samplingFlaggedCardMillis",
+                                                                config.getSamplingFlaggedCardMillis()));
+            config.setStreamIdCacheFile(properties.getProperty("streamIdCacheFile", config.getStreamIdCacheFile()));
+            config.setPublishFilters(properties.getProperty("publishFilters", config.getPublishFilters()));
+            config.setPublishFilterDefault(properties.getProperty("publishFilterDefault", config.getPublishFilterDefault()));
+
             log.debug(String.format("Fraud detection DAS properties were read from the file : '%s'", dasPropertiesFile.getAbsolutePath()));
 
             return config;
@@ -106,95 +348,28 @@ public class TransactionDataPublishingHandler extends AbstractHandler implements
             log.warn(String.format("Cannot read Fraud detection DAS properties from the file : '%s'.",
                     dasPropertiesFile.getAbsolutePath()));
             return null;
-        }
-
-
-    }
-
-    private OMElement getTransactionInfoPayload(MessageContext messageContext) {
-
-        org.apache.axis2.context.MessageContext axis2MessageContext = ((Axis2MessageContext) messageContext).
-                getAxis2MessageContext();
-
-        try {
-            RelayUtils.buildMessage(axis2MessageContext);
-        } catch (IOException e) {
-            logDataPublishingException("Cannot build the incoming request message", e);
-            return null;
-        } catch (XMLStreamException e) {
-            logDataPublishingException("Cannot build the incoming request message", e);
+        } catch (NumberFormatException e) {
+            log.warn(String.format("Invalid numeric value in the Fraud detection DAS properties file : '%s'.",
+                    dasPropertiesFile.getAbsolutePath()), e);
             return null;
         }
 
-        Iterator iterator = messageContext.getEnvelope().getBody().getChildElements();
-
-        OMElement payload = null;
-        if(iterator.hasNext()){
-            payload = (OMElement) iterator.next();
-        }
-
-        return payload;
-    }
-
-    private Object[] buildTransactionStreamPayload(OMElement transactionInfoPayload, MessageContext messageContext) {
-
-
-        // Extract credit card info
-        OMElement creditCardInfo = transactionInfoPayload.getFirstChildWithName(new QName(null, "payer")).
-                                    getFirstChildWithName(new QName(null, "funding_instruments")).
-                                    getFirstChildWithName(new QName("credit_card"));
 
-        // Extract shipping info
-        OMElement shippingInfo = transactionInfoPayload.getFirstChildWithName(new QName(null, "shipment")).getFirstChildWithName(new QName("shipping_address"));
-
-        // Extract transaction info
-        OMElement transactionAmountInfo = transactionInfoPayload.getFirstChildWithName(new QName(null, "transactions")).getFirstChildWithName(new QName("amount"));
-
-        // Extract order info
-        OMElement orderInfo = transactionInfoPayload.getFirstChildWithName(new QName(null, "transactions")).getFirstChildWithName(new QName("order"));
-
-        String transactionId = transactionInfoPayload.getFirstChildWithName(new QName(null, "id")).getText();
-        long creditCardNumber = Long.parseLong(creditCardInfo.getFirstChildWithName(new QName(null, "number")).getText());
-        double transactionAmount = Double.parseDouble(transactionAmountInfo.getFirstChildWithName(new QName(null, "total")).getText());
-        String currency = transactionAmountInfo.getFirstChildWithName(new QName(null, "currency")).getText();
-        String email = transactionInfoPayload.getFirstChildWithName(new QName(null, "payer")).getFirstChildWithName(new QName(null,"email")).getText();
-        String shippingAddress = getShippingAddress(shippingInfo);
-        String billingAddress = getBillingAddress(creditCardInfo);
-        String ip = getClientIPAddress(messageContext);
-        String itemNo = orderInfo.getFirstChildWithName(new QName(null,"item_number")).getText();
-        int quantity = Integer.parseInt(orderInfo.getFirstChildWithName(new QName(null, "quantity")).getText());
-        long timestamp = System.currentTimeMillis();
-
-        return new Object[]{transactionId, creditCardNumber, transactionAmount, currency, email, shippingAddress, billingAddress, ip, itemNo, quantity, timestamp};
-
-    }
-
-    private String getClientIPAddress(MessageContext messageContext) {
-        return Util.getClientIPAddress(messageContext);
     }
 
-    private String getBillingAddress(OMElement creditCardInfo) {
-        OMElement billingAddressInfo = creditCardInfo.getFirstChildWithName(new QName(null, "billing_address"));
-        return String.format("%s, %s, %s, %s, %s",
-                                billingAddressInfo.getFirstChildWithName(new QName(null, "line1")).getText(),
-                                billingAddressInfo.getFirstChildWithName(new QName(null, "city")).getText(),
-                                billingAddressInfo.getFirstChildWithName(new QName(null, "state")).getText(),
-                                billingAddressInfo.getFirstChildWithName(new QName(null, "postal_code")).getText(),
-                                billingAddressInfo.getFirstChildWithName(new QName(null, "country_code")).getText());
+    private static int getIntProperty(Properties properties, String name, int defaultValue) {
+        String value = properties.getProperty(name);
+        return value != null ? Integer.parseInt(value.trim()) : defaultValue;
     }
 
-    private String getShippingAddress(OMElement shippingInfo) {
-        return String.format("%s, %s, %s, %s, %s",
-                shippingInfo.getFirstChildWithName(new QName(null, "line1")).getText(),
-                shippingInfo.getFirstChildWithName(new QName(null, "city")).getText(),
-                shippingInfo.getFirstChildWithName(new QName(null, "state")).getText(),
-                shippingInfo.getFirstChildWithName(new QName(null, "postal_code")).getText(),
-                shippingInfo.getFirstChildWithName(new QName(null, "country_code")).getText());
+    private static long getLongProperty(Properties properties, String name, long defaultValue) {
+        String value = properties.getProperty(name);
+        return value != null ? Long.parseLong(value.trim()) : defaultValue;
     }
 
-
-    private void logDataPublishingException(String reason, Exception e) {
-        log.error(String.format("Cannot publish transaction data. Reason : %s", reason), e);
+    private static double getDoubleProperty(Properties properties, String name, double defaultValue) {
+        String value = properties.getProperty(name);
+        return value != null ? Double.parseDouble(value.trim()) : defaultValue;
     }
 
 }
@@ -1,21 +1,14 @@
 package org.wso2.carbon.apimgt.frauddetection;
 
-import org.apache.axiom.om.OMElement;
+import org.apache.synapse.ManagedLifecycle;
 import org.apache.synapse.MessageContext;
-import org.apache.synapse.core.axis2.Axis2MessageContext;
+import org.apache.synapse.core.SynapseEnvironment;
 import org.apache.synapse.mediators.AbstractMediator;
-import org.apache.synapse.transport.passthru.util.RelayUtils;
-
-import javax.xml.namespace.QName;
-import javax.xml.stream.XMLStreamException;
-import java.io.IOException;
-import java.util.Arrays;
-import java.util.Iterator;
 
 /**
  * The mediator which publisher transaction data to WSO2 DAS.
  */
-public class TransactionDataPublishingMediator extends AbstractMediator{
+public class TransactionDataPublishingMediator extends AbstractMediator implements ManagedLifecycle {
 
     private String dasHost;
     private String dasPort;
@@ -25,24 +18,80 @@ public class TransactionDataPublishingMediator extends AbstractMediator{
     public String streamName;
     public String streamVersion;
 
-    public boolean mediate(MessageContext messageContext) {
+    private String payloadExtractionMode = StreamingPayloadExtractor.EXTRACTION_MODE_OM;
 
-        TransactionDataPublisher publisher = getTransactionDataPublisher();
-        publishTransactionData(publisher, messageContext);
-        return true;
+    // Holds the publisher tuning properties. The connection properties are copied in when the publisher is initialized.
+    private final DataPublisherConfig config = new DataPublisherConfig();
+    private volatile PublishingPipeline pipeline;
+    private volatile boolean invalidStreamMapping;
+    private volatile boolean destroyed;
+
+    public void init(SynapseEnvironment synapseEnvironment) {
+        // The publisher is acquired on the first request, once all the properties of the mediator are set.
     }
 
-    private void publishTransactionData(TransactionDataPublisher publisher, MessageContext messageContext) {
+    /**
+     * Releases the publisher of this mediator, which is shut down once no other mediator or handler uses it, and
+     * publishes the transactions still waiting for their responses without them.
+     */
+    public void destroy() {
+
+        PublishingPipeline pipeline;
+        synchronized (this){
+            destroyed = true;
+            pipeline = this.pipeline;
+            this.pipeline = null;
+        }
+        if(pipeline != null){
+            pipeline.retire();
+            pipeline.release();
+        }
+    }
 
-        OMElement transactionInfoPayload = getTransactionInfoPayload(messageContext);
+    public boolean mediate(MessageContext messageContext) {
 
-        if(transactionInfoPayload != null){
-            Object[] transactionStreamPayload = buildTransactionStreamPayload(transactionInfoPayload, messageContext);
-            log.debug(String.format("transaction stream payload => %s", Arrays.toString(transactionStreamPayload)));
-            publisher.publish((transactionStreamPayload));
+        // In the out sequence, publish the transaction held back by this mediator in the in sequence.
+        if(messageContext.isResponse() && ResponseCorrelator.onResponse(messageContext)){
+            return true;
         }
 
+        // A pipeline turns requests away once the mediator is destroyed.
+        PublishingPipeline pipeline = getPipeline();
+        if(pipeline == null || !pipeline.enter()){
+            return true;
+        }
+        boolean accepted;
+        try {
+            accepted = pipeline.publish(messageContext);
+        } finally {
+            pipeline.exit();
+        }
+        if(!accepted){
+            Util.sendRejection(messageContext, VelocityRules.REJECTION_STATUS_CODE);
+        }
+        return accepted;
+    }
 
+    /**
+     * Builds the pipeline of this mediator on the first request, once all the properties of the mediator are set. The
+     * publisher of its DAS endpoints and stream connects to DAS in the background.
+     */
+    private PublishingPipeline getPipeline() {
+
+        if(pipeline == null && !invalidStreamMapping && !destroyed){
+            synchronized (this){
+                if(pipeline == null && !invalidStreamMapping && !destroyed){
+                    try {
+                        pipeline = PublishingPipeline.create(getDataPublisherConfig());
+                    } catch (IllegalArgumentException e) {
+                        invalidStreamMapping = true;
+                        log.error(String.format(PublishingPipeline.INVALID_CONFIG_MESSAGE + " Transaction data will not be published.",
+                                                e.getMessage()), e);
+                    }
+                }
+            }
+        }
+        return pipeline;
     }
 
     public String getDasHost() {
@@ -93,107 +142,463 @@ public class TransactionDataPublishingMediator extends AbstractMediator{
         this.streamVersion = streamVersion;
     }
 
-    private Object[] buildTransactionStreamPayload(OMElement transactionInfoPayload, MessageContext messageContext) {
+    public String getPayloadExtractionMode() {
+        return payloadExtractionMode;
+    }
 
-        // Extract credit card info
-        OMElement creditCardInfo = transactionInfoPayload.getFirstChildWithName(new QName(null, "payer")).
-                getFirstChildWithName(new QName(null, "funding_instruments")).
-                getFirstChildWithName(new QName("credit_card"));
+    public void setPayloadExtractionMode(String payloadExtractionMode) {
+        this.payloadExtractionMode = payloadExtractionMode;
+    }
 
-        // Extract shipping info
-        OMElement shippingInfo = transactionInfoPayload.getFirstChildWithName(new QName(null, "shipment")).getFirstChildWithName(new QName("shipping_address"));
+    public String getStreamMapping() {
+        return config.getStreamMapping();
+    }
 
-        // Extract transaction info
-        OMElement transactionAmountInfo = transactionInfoPayload.getFirstChildWithName(new QName(null, "transactions")).getFirstChildWithName(new QName("amount"));
+    public void setStreamMapping(String streamMapping) {
+        config.setStreamMapping(streamMapping);
+    }
+
+    public int getPublishQueueSize() {
+        return config.getPublishQueueSize();
+    }
 
-        // Extract order info
-        OMElement orderInfo = transactionInfoPayload.getFirstChildWithName(new QName(null, "transactions")).getFirstChildWithName(new QName("order"));
+    public void setPublishQueueSize(int publishQueueSize) {
+        config.setPublishQueueSize(publishQueueSize);
+    }
 
-        String transactionId = transactionInfoPayload.getFirstChildWithName(new QName(null, "id")).getText();
-        long creditCardNumber = Long.parseLong(creditCardInfo.getFirstChildWithName(new QName(null, "number")).getText());
-        double transactionAmount = Double.parseDouble(transactionAmountInfo.getFirstChildWithName(new QName(null, "total")).getText());
-        String currency = transactionAmountInfo.getFirstChildWithName(new QName(null, "currency")).getText();
-        String email = transactionInfoPayload.getFirstChildWithName(new QName(null, "payer")).getFirstChildWithName(new QName(null,"email")).getText();
-        String shippingAddress = getShippingAddress(shippingInfo);
-        String billingAddress = getBillingAddress(creditCardInfo);
-        String ip = getClientIPAddress(messageContext);
-        String itemNo = orderInfo.getFirstChildWithName(new QName(null,"item_number")).getText();
-        int quantity = Integer.parseInt(orderInfo.getFirstChildWithName(new QName(null, "quantity")).getText());
-        long timestamp = System.currentTimeMillis();
+    public String getPublishQueueOverflowPolicy() {
+        return config.getPublishQueueOverflowPolicy();
+    }
 
-        return new Object[]{transactionId, creditCardNumber, transactionAmount, currency, email, shippingAddress, billingAddress, ip, itemNo, quantity, timestamp};
+    public void setPublishQueueOverflowPolicy(String publishQueueOverflowPolicy) {
+        config.setPublishQueueOverflowPolicy(publishQueueOverflowPolicy);
+    }
 
+    public long getPublishQueueBlockTimeoutMillis() {
+        return config.getPublishQueueBlockTimeoutMillis();
     }
 
-    private String getClientIPAddress(MessageContext messageContext) {
-        return Util.getClientIPAddress(messageContext);
+    public void setPublishQueueBlockTimeoutMillis(long publishQueueBlockTimeoutMillis) {
+        config.setPublishQueueBlockTimeoutMillis(publishQueueBlockTimeoutMillis);
     }
 
-    private String getBillingAddress(OMElement creditCardInfo) {
-        OMElement billingAddressInfo = creditCardInfo.getFirstChildWithName(new QName(null, "billing_address"));
-        return String.format("%s, %s, %s, %s, %s",
-                billingAddressInfo.getFirstChildWithName(new QName(null, "line1")).getText(),
-                billingAddressInfo.getFirstChildWithName(new QName(null, "city")).getText(),
-                billingAddressInfo.getFirstChildWithName(new QName(null, "state")).getText(),
-                billingAddressInfo.getFirstChildWithName(new QName(null, "postal_code")).getText(),
-                billingAddressInfo.getFirstChildWithName(new QName(null, "country_code")).getText());
+    public int getPublisherThreadCount() {
+        return config.getPublisherThreadCount();
     }
 
-    private String getShippingAddress(OMElement shippingInfo) {
-        return String.format("%s, %s, %s, %s, %s",
-                shippingInfo.getFirstChildWithName(new QName(null, "line1")).getText(),
-                shippingInfo.getFirstChildWithName(new QName(null, "city")).getText(),
-                shippingInfo.getFirstChildWithName(new QName(null, "state")).getText(),
-                shippingInfo.getFirstChildWithName(new QName(null, "postal_code")).getText(),
-                shippingInfo.getFirstChildWithName(new QName(null, "country_code")).getText());
+    public void setPublisherThreadCount(int publisherThreadCount) {
+        config.setPublisherThreadCount(publisherThreadCount);
     }
 
-    private OMElement getTransactionInfoPayload(MessageContext messageContext) {
+    public String getPublisherExecutor() {
+        return config.getPublisherExecutor();
+    }
 
-        org.apache.axis2.context.MessageContext axis2MessageContext = ((Axis2MessageContext) messageContext).
-                getAxis2MessageContext();
+    public void setPublisherExecutor(String publisherExecutor) {
+        config.setPublisherExecutor(publisherExecutor);
+    }
 
-        try {
-            RelayUtils.buildMessage(axis2MessageContext);
-        } catch (IOException e) {
-            logDataPublishingException("Cannot build the incoming request message", e);
-            return null;
-        } catch (XMLStreamException e) {
-            logDataPublishingException("Cannot build the incoming request message", e);
-            return null;
-        }
+    public int getEndpointMaxConcurrency() {
+        return config.getEndpointMaxConcurrency();
+    }
 
-        Iterator iterator = messageContext.getEnvelope().getBody().getChildElements();
+    public void setEndpointMaxConcurrency(int endpointMaxConcurrency) {
+        config.setEndpointMaxConcurrency(endpointMaxConcurrency);
+    }
 
-        OMElement payload = null;
-        if(iterator.hasNext()){
-            payload = (OMElement) iterator.next();
-        }
+    public int getPublishBatchSize() {
+        return config.getPublishBatchSize();
+    }
 
-        return payload;
+    public void setPublishBatchSize(int publishBatchSize) {
+        config.setPublishBatchSize(publishBatchSize);
     }
 
-    private TransactionDataPublisher getTransactionDataPublisher() {
+    public long getPublishBatchTimeoutMillis() {
+        return config.getPublishBatchTimeoutMillis();
+    }
 
-        TransactionDataPublisher publisher = TransactionDataPublisher.getInstance();
+    public void setPublishBatchTimeoutMillis(long publishBatchTimeoutMillis) {
+        config.setPublishBatchTimeoutMillis(publishBatchTimeoutMillis);
+    }
 
-        if(!publisher.isReady()){
+    public String getSpillDirectory() {
+        return config.getSpillDirectory();
+    }
 
-            synchronized (publisher){
-                if(!publisher.isReady()){
-                    DataPublisherConfig config = getDataPublisherConfig();
-                    publisher.init(config);
-                }
-            }
+    public void setSpillDirectory(String spillDirectory) {
+        config.setSpillDirectory(spillDirectory);
+    }
 
-        }
+    public int getSpillSegmentSize() {
+        return config.getSpillSegmentSize();
+    }
 
-        return publisher;
+    public void setSpillSegmentSize(int spillSegmentSize) {
+        config.setSpillSegmentSize(spillSegmentSize);
     }
 
-    private DataPublisherConfig getDataPublisherConfig() {
+    public int getSpillMaxSegments() {
+        return config.getSpillMaxSegments();
+    }
+
+    public void setSpillMaxSegments(int spillMaxSegments) {
+        config.setSpillMaxSegments(spillMaxSegments);
+    }
+
+    public long getReconnectInitialBackoffMillis() {
+        return config.getReconnectInitialBackoffMillis();
+    }
+
+    public void setReconnectInitialBackoffMillis(long reconnectInitialBackoffMillis) {
+        config.setReconnectInitialBackoffMillis(reconnectInitialBackoffMillis);
+    }
+
+    public long getReconnectMaxBackoffMillis() {
+        return config.getReconnectMaxBackoffMillis();
+    }
+
+    public void setReconnectMaxBackoffMillis(long reconnectMaxBackoffMillis) {
+        config.setReconnectMaxBackoffMillis(reconnectMaxBackoffMillis);
+    }
+
+    public String getDasEndpoints() {
+        return config.getDasEndpoints();
+    }
+
+    public void setDasEndpoints(String dasEndpoints) {
+        config.setDasEndpoints(dasEndpoints);
+    }
 
-        DataPublisherConfig config = new DataPublisherConfig();
+    public String getPartitionKey() {
+        return config.getPartitionKey();
+    }
+
+    public void setPartitionKey(String partitionKey) {
+        config.setPartitionKey(partitionKey);
+    }
+
+    public int getPartitionVirtualNodes() {
+        return config.getPartitionVirtualNodes();
+    }
+
+    public void setPartitionVirtualNodes(int partitionVirtualNodes) {
+        config.setPartitionVirtualNodes(partitionVirtualNodes);
+    }
+
+    public boolean isMetricsEnabled() {
+        return config.isMetricsEnabled();
+    }
+
+    public void setMetricsEnabled(boolean metricsEnabled) {
+        config.setMetricsEnabled(metricsEnabled);
+    }
+
+    public int getMetricsSampleInterval() {
+        return config.getMetricsSampleInterval();
+    }
+
+    public void setMetricsSampleInterval(int metricsSampleInterval) {
+        config.setMetricsSampleInterval(metricsSampleInterval);
+    }
+
+    public long getDeduplicationWindowMillis() {
+        return config.getDeduplicationWindowMillis();
+    }
+
+    public void setDeduplicationWindowMillis(long deduplicationWindowMillis) {
+        config.setDeduplicationWindowMillis(deduplicationWindowMillis);
+    }
+
+    public int getDeduplicationCapacity() {
+        return config.getDeduplicationCapacity();
+    }
+
+    public void setDeduplicationCapacity(int deduplicationCapacity) {
+        config.setDeduplicationCapacity(deduplicationCapacity);
+    }
+
+    public String getDeduplicationKey() {
+        return config.getDeduplicationKey();
+    }
+
+    public void setDeduplicationKey(String deduplicationKey) {
+        config.setDeduplicationKey(deduplicationKey);
+    }
+
+    public int getVelocityMaxPerCard() {
+        return config.getVelocityMaxPerCard();
+    }
+
+    public void setVelocityMaxPerCard(int velocityMaxPerCard) {
+        config.setVelocityMaxPerCard(velocityMaxPerCard);
+    }
+
+    public int getVelocityMaxPerIP() {
+        return config.getVelocityMaxPerIP();
+    }
+
+    public void setVelocityMaxPerIP(int velocityMaxPerIP) {
+        config.setVelocityMaxPerIP(velocityMaxPerIP);
+    }
+
+    public long getVelocityWindowMillis() {
+        return config.getVelocityWindowMillis();
+    }
+
+    public void setVelocityWindowMillis(long velocityWindowMillis) {
+        config.setVelocityWindowMillis(velocityWindowMillis);
+    }
+
+    public int getVelocityBucketCount() {
+        return config.getVelocityBucketCount();
+    }
+
+    public void setVelocityBucketCount(int velocityBucketCount) {
+        config.setVelocityBucketCount(velocityBucketCount);
+    }
+
+    public String getVelocityAction() {
+        return config.getVelocityAction();
+    }
+
+    public void setVelocityAction(String velocityAction) {
+        config.setVelocityAction(velocityAction);
+    }
+
+    public int getVelocityCapacity() {
+        return config.getVelocityCapacity();
+    }
+
+    public void setVelocityCapacity(int velocityCapacity) {
+        config.setVelocityCapacity(velocityCapacity);
+    }
+
+    public boolean isVelocityOffHeap() {
+        return config.isVelocityOffHeap();
+    }
+
+    public void setVelocityOffHeap(boolean velocityOffHeap) {
+        config.setVelocityOffHeap(velocityOffHeap);
+    }
+
+    public String getVelocityCardAttribute() {
+        return config.getVelocityCardAttribute();
+    }
+
+    public void setVelocityCardAttribute(String velocityCardAttribute) {
+        config.setVelocityCardAttribute(velocityCardAttribute);
+    }
+
+    public String getVelocityIPAttribute() {
+        return config.getVelocityIPAttribute();
+    }
+
+    public void setVelocityIPAttribute(String velocityIPAttribute) {
+        config.setVelocityIPAttribute(velocityIPAttribute);
+    }
+
+    public String getPublishOn() {
+        return config.getPublishOn();
+    }
+
+    public void setPublishOn(String publishOn) {
+        config.setPublishOn(publishOn);
+    }
+
+    public long getResponseTimeoutMillis() {
+        return config.getResponseTimeoutMillis();
+    }
+
+    public void setResponseTimeoutMillis(long responseTimeoutMillis) {
+        config.setResponseTimeoutMillis(responseTimeoutMillis);
+    }
+
+    public int getPendingResponseCapacity() {
+        return config.getPendingResponseCapacity();
+    }
+
+    public void setPendingResponseCapacity(int pendingResponseCapacity) {
+        config.setPendingResponseCapacity(pendingResponseCapacity);
+    }
+
+    public String getEventEncoding() {
+        return config.getEventEncoding();
+    }
+
+    public void setEventEncoding(String eventEncoding) {
+        config.setEventEncoding(eventEncoding);
+    }
+
+    public String getEventCompression() {
+        return config.getEventCompression();
+    }
+
+    public void setEventCompression(String eventCompression) {
+        config.setEventCompression(eventCompression);
+    }
+
+    public String getCompactDictionaryAttributes() {
+        return config.getCompactDictionaryAttributes();
+    }
+
+    public void setCompactDictionaryAttributes(String compactDictionaryAttributes) {
+        config.setCompactDictionaryAttributes(compactDictionaryAttributes);
+    }
+
+    public String getTrustedProxies() {
+        return config.getTrustedProxies();
+    }
+
+    public void setTrustedProxies(String trustedProxies) {
+        config.setTrustedProxies(trustedProxies);
+    }
+
+    public boolean isMockClientIPEnabled() {
+        return config.isMockClientIPEnabled();
+    }
+
+    public void setMockClientIPEnabled(boolean mockClientIPEnabled) {
+        config.setMockClientIPEnabled(mockClientIPEnabled);
+    }
+
+    public String getGeoIPDatabase() {
+        return config.getGeoIPDatabase();
+    }
+
+    public void setGeoIPDatabase(String geoIPDatabase) {
+        config.setGeoIPDatabase(geoIPDatabase);
+    }
+
+    public int getGeoIPCacheCapacity() {
+        return config.getGeoIPCacheCapacity();
+    }
+
+    public void setGeoIPCacheCapacity(int geoIPCacheCapacity) {
+        config.setGeoIPCacheCapacity(geoIPCacheCapacity);
+    }
+
+    public String getFanOutPath() {
+        return config.getFanOutPath();
+    }
+
+    public void setFanOutPath(String fanOutPath) {
+        config.setFanOutPath(fanOutPath);
+    }
+
+    public int getFanOutMaxEntries() {
+        return config.getFanOutMaxEntries();
+    }
+
+    public void setFanOutMaxEntries(int fanOutMaxEntries) {
+        config.setFanOutMaxEntries(fanOutMaxEntries);
+    }
+
+    public boolean isSamplingEnabled() {
+        return config.isSamplingEnabled();
+    }
+
+    public void setSamplingEnabled(boolean samplingEnabled) {
+        config.setSamplingEnabled(samplingEnabled);
+    }
+
+    public long getSamplingLatencySloMillis() {
+        return config.getSamplingLatencySloMillis();
+    }
+
+    public void setSamplingLatencySloMillis(long samplingLatencySloMillis) {
+        config.setSamplingLatencySloMillis(samplingLatencySloMillis);
+    }
+
+    public double getSamplingMaxQueueFill() {
+        return config.getSamplingMaxQueueFill();
+    }
+
+    public void setSamplingMaxQueueFill(double samplingMaxQueueFill) {
+        config.setSamplingMaxQueueFill(samplingMaxQueueFill);
+    }
+
+    public long getSamplingIntervalMillis() {
+        return config.getSamplingIntervalMillis();
+    }
+
+    public void setSamplingIntervalMillis(long samplingIntervalMillis) {
+        config.setSamplingIntervalMillis(samplingIntervalMillis);
+    }
+
+    public double getSamplingMinRate() {
+        return config.getSamplingMinRate();
+    }
+
+    public void setSamplingMinRate(double samplingMinRate) {
+        config.setSamplingMinRate(samplingMinRate);
+    }
+
+    public double getSamplingRateIncrease() {
+        return config.getSamplingRateIncrease();
+    }
+
+    public void setSamplingRateIncrease(double samplingRateIncrease) {
+        config.setSamplingRateIncrease(samplingRateIncrease);
+    }
+
+    public double getSamplingRateDecrease() {
+        return config.getSamplingRateDecrease();
+    }
+
+    public void setSamplingRateDecrease(double samplingRateDecrease) {
+        config.setSamplingRateDecrease(samplingRateDecrease);
+    }
+
+    public double getSamplingKeepAmountAbove() {
+        return config.getSamplingKeepAmountAbove();
+    }
+
+    public void setSamplingKeepAmountAbove(double samplingKeepAmountAbove) {
+        config.setSamplingKeepAmountAbove(samplingKeepAmountAbove);
+    }
+
+    public String getSamplingAmountAttribute() {
+        return config.getSamplingAmountAttribute();
+    }
+
+    public void setSamplingAmountAttribute(String samplingAmountAttribute) {
+        config.setSamplingAmountAttribute(samplingAmountAttribute);
+    }
+
+    public long getSamplingFlaggedCardMillis() {
+        return config.getSamplingFlaggedCardMillis();
+    }
+
+    public void setSamplingFlaggedCardMillis(long samplingFlaggedCardMillis) {
+        config.setSamplingFlaggedCardMillis(samplingFlaggedCardMillis);
+    }
+
+    public String getStreamIdCacheFile() {
+        return config.getStreamIdCacheFile();
+    }
+
+    public void setStreamIdCacheFile(String streamIdCacheFile) {
+        config.setStreamIdCacheFile(streamIdCacheFile);
+    }
+
+    public String getPublishFilters() {
+        return config.getPublishFilters();
+    }
+
+    public void setPublishFilters(String publishFilters) {
+        config.setPublishFilters(publishFilters);
+    }
+
+    public String getPublishFilterDefault() {
+        return config.getPublishFilterDefault();
+    }
+
+    public void setPublishFilterDefault(String publishFilterDefault) {
+        config.setPublishFilterDefault(publishFilterDefault);
+    }
+
+    private DataPublisherConfig getDataPublisherConfig() {
 
         config.setDasHost(dasHost);
         config.setDasPort(dasPort);
@@ -201,12 +606,9 @@ public class TransactionDataPublishingMediator extends AbstractMediator{
         config.setDasPassword(dasPassword);
         config.setStreamName(streamName);
         config.setStreamVersion(streamVersion);
+        config.setPayloadExtractionMode(payloadExtractionMode);
 
         return config;
     }
 
-    private void logDataPublishingException(String reason, Exception e) {
-        log.error(String.format("Cannot publish transaction data. Reason : %s", reason), e);
-    }
-
 }
@@ -0,0 +1,201 @@
+/*
+ *  Copyright WSO2 Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.wso2.carbon.apimgt.frauddetection;
+
+import org.apache.axiom.om.OMElement;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.synapse.MessageContext;
+import org.apache.synapse.core.axis2.Axis2MessageContext;
+import org.apache.synapse.transport.passthru.util.RelayUtils;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Iterator;
+
+/**
+ * Builds the transaction stream payload from a request, using a compiled extraction plan. This is shared by the API
+ * handler and the mediator.
+ */
+public class TransactionPayloadExtractor {
+
+    private static final Log log = LogFactory.getLog(TransactionPayloadExtractor.class);
+
+    private final ExtractionPlan plan;
+    private final StreamingPayloadExtractor streamingPayloadExtractor;
+    // Reads captured request bodies, whatever the extraction mode of the requests.
+    private final StreamingPayloadExtractor documentPayloadExtractor;
+    private final ClientIPResolver clientIPResolver;
+    private final GeoIPLookup geoIPLookup;
+    private final PublisherMetrics metrics;
+
+    private final int fanOutMaxEntries;
+
+    // Scratch values for the extraction, reused by each request thread.
+    private final ThreadLocal<ExtractedValues> extractedValues = new ThreadLocal<ExtractedValues>() {
+        @Override
+        protected ExtractedValues initialValue() {
+            return new ExtractedValues(plan.getFieldCount(), fanOutMaxEntries);
+        }
+    };
+
+    public TransactionPayloadExtractor(ExtractionPlan plan, String extractionMode, int fanOutMaxEntries,
+                                       ClientIPResolver clientIPResolver, GeoIPLookup geoIPLookup,
+                                       PublisherMetrics metrics) {
+        this.plan = plan;
+        this.fanOutMaxEntries = Math.max(1, fanOutMaxEntries);
+        this.metrics = metrics;
+        this.geoIPLookup = geoIPLookup;
+        this.clientIPResolver = plan.usesClientIP() || geoIPLookup != null ? clientIPResolver : null;
+        this.streamingPayloadExtractor = StreamingPayloadExtractor.EXTRACTION_MODE_STREAMING.equals(extractionMode) ?
+                new StreamingPayloadExtractor(plan) : null;
+        this.documentPayloadExtractor = streamingPayloadExtractor != null ? streamingPayloadExtractor :
+                new StreamingPayloadExtractor(plan);
+    }
+
+    /**
+     * Compiles the stream mapping of the given config, and sets the resulting attribute names on the config so the
+     * publisher knows the stream layout. The extraction stages are timed into the given metrics. Throws
+     * IllegalArgumentException if the stream mapping or a trusted proxy CIDR block is invalid.
+     */
+    public static TransactionPayloadExtractor create(DataPublisherConfig config, PublisherMetrics metrics) {
+
+        ExtractionPlan plan = ExtractionPlan.compile(config.getStreamMapping(), config.getFanOutPath());
+        config.setStreamAttributeNames(plan.getAttributeNames());
+        return new TransactionPayloadExtractor(plan, config.getPayloadExtractionMode(), config.getFanOutMaxEntries(),
+                                               ClientIPResolver.create(config), GeoIPLookup.create(config, plan), metrics);
+    }
+
+    public ExtractionPlan getPlan() {
+        return plan;
+    }
+
+    /**
+     * Returns the stream payloads of the transactions in the request, one for each entry of the fan-out array and at
+     * least one, or null if they cannot be extracted.
+     */
+    public Object[][] extract(MessageContext messageContext) {
+
+        ExtractedValues values = extractedValues.get();
+        values.clear();
+
+        try {
+            // The client IP does not depend on the body, so it is resolved first and the stages can be timed back to back.
+            // Its country is looked up in the same stage.
+            long stageStartNanos = metrics.startTimer();
+            String clientIP = null;
+            String clientCountry = null;
+            if (clientIPResolver != null) {
+                clientIP = clientIPResolver.resolve(messageContext);
+                if (geoIPLookup != null) {
+                    clientCountry = geoIPLookup.getCountry(clientIP);
+                }
+                stageStartNanos = metrics.recordClientIPResolution(stageStartNanos);
+            }
+
+            if (streamingPayloadExtractor != null && streamingPayloadExtractor.canExtract(messageContext)) {
+                // Streaming reads the fields while the message is read, so there is no separate build stage.
+                streamingPayloadExtractor.extract(messageContext, values);
+            } else {
+                OMElement transactionInfoPayload = getTransactionInfoPayload(messageContext);
+                stageStartNanos = metrics.recordMessageBuild(stageStartNanos);
+                if (transactionInfoPayload == null) {
+                    metrics.onExtractionFailure();
+                    return null;
+                }
+                plan.extract(transactionInfoPayload, values);
+            }
+
+            Object[][] payloads = plan.buildPayloads(values, clientIP);
+            if (geoIPLookup != null) {
+                for (Object[] payload : payloads) {
+                    plan.setClientCountry(payload, clientCountry);
+                }
+            }
+            metrics.recordFieldExtraction(stageStartNanos);
+            return payloads;
+
+        } catch (IOException e) {
+            logDataPublishingException("Cannot read the incoming request message", e);
+        } catch (XMLStreamException e) {
+            logDataPublishingException("Cannot build the incoming request message", e);
+        } catch (RuntimeException e) {
+            logDataPublishingException("Cannot extract transaction data from the incoming request message", e);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the stream payloads of the transactions in a captured JSON request body, like extract(MessageContext),
+     * or null if they cannot be extracted. The client IP is the one recorded with the capture, or null. Failures are
+     * counted but only logged at debug level, as a capture may hold many broken requests.
+     */
+    public Object[][] extract(Reader reader, String clientIP) {
+
+        ExtractedValues values = extractedValues.get();
+        values.clear();
+
+        try {
+            long stageStartNanos = metrics.startTimer();
+            documentPayloadExtractor.extract(reader, values);
+
+            Object[][] payloads = plan.buildPayloads(values, clientIP);
+            if (geoIPLookup != null) {
+                String clientCountry = geoIPLookup.getCountry(clientIP);
+                for (Object[] payload : payloads) {
+                    plan.setClientCountry(payload, clientCountry);
+                }
+            }
+            metrics.recordFieldExtraction(stageStartNanos);
+            return payloads;
+
+        } catch (IOException e) {
+            metrics.onExtractionFailure();
+            if (log.isDebugEnabled()) {
+                log.debug("Cannot read a captured request message", e);
+            }
+        } catch (RuntimeException e) {
+            metrics.onExtractionFailure();
+            if (log.isDebugEnabled()) {
+                log.debug("Cannot extract transaction data from a captured request message", e);
+            }
+        }
+        return null;
+    }
+
+    private OMElement getTransactionInfoPayload(MessageContext messageContext) throws IOException, XMLStreamException {
+
+        org.apache.axis2.context.MessageContext axis2MessageContext = ((Axis2MessageContext) messageContext).
+                getAxis2MessageContext();
+
+        RelayUtils.buildMessage(axis2MessageContext);
+
+        Iterator iterator = messageContext.getEnvelope().getBody().getChildElements();
+
+        OMElement payload = null;
+        if(iterator.hasNext()){
+            payload = (OMElement) iterator.next();
+        }
+
+        return payload;
+    }
+
+    private void logDataPublishingException(String reason, Exception e) {
+        metrics.onExtractionFailure();
+        log.error(String.format("Cannot publish transaction data. Reason : %s", reason), e);
+    }
+}
@@ -0,0 +1,631 @@
+/*
+ *  Copyright WSO2 Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.wso2.carbon.apimgt.frauddetection;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.CharArrayReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replays captured transaction requests through the extraction pipeline and the batching publisher, to backfill DAS
+ * after an outage or a change of the model.
+ *
+ * A capture is a file of JSON request bodies, one per line. It is read through memory-mapped windows and cut into
+ * chunks of whole lines, which are extracted and published in parallel on a fork-join pool. At most maxInFlightChunks
+ * chunks are queued or being extracted at a time, so the reader never runs far ahead of the publisher. While DAS is
+ * unreachable, the replay waits for it.
+ *
+ * Progress is saved to a checkpoint file, as the offset of each capture below which every request has been published
+ * and has left the publisher. An interrupted replay resumes from there, so a request may be published twice but is not
+ * lost. The flushed event count of the publisher only says that every event queued before it has left when the events
+ * leave in queue order, so the publisher must have a single platform publisher thread. The requests have no message context, so $clientIP and $clientCountry are null, and velocity rules and sampling
+ * are not applied.
+ */
+public class TransactionReplayer {
+
+    private static final Log log = LogFactory.getLog(TransactionReplayer.class);
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+    private static final long READY_POLL_MILLIS = 100;
+    private static final long FLUSH_TIMEOUT_MILLIS = 60000;
+
+    private final TransactionPayloadExtractor payloadExtractor;
+    private final TransactionDataPublisher publisher;
+    private final File checkpointFile;
+
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private int maxInFlightChunks = parallelism * 4;
+    private int chunkSize = 256 * 1024;
+    private long checkpointIntervalMillis = 5000;
+
+    // The offsets reached in each capture, by absolute path. Every request below an offset has been published.
+    private final Map<String, Long> offsets = new ConcurrentHashMap<String, Long>();
+    private Snapshot pendingCheckpoint;
+
+    private final AtomicLong replayedRequestCount = new AtomicLong();
+    private final AtomicLong replayedEventCount = new AtomicLong();
+    private final AtomicLong skippedRequestCount = new AtomicLong();
+    private volatile boolean stopped;
+    private volatile Throwable failure;
+
+    // Scratch space to decode a line, reused by each pool thread.
+    private final ThreadLocal<LineDecoder> lineDecoders = new ThreadLocal<LineDecoder>() {
+        @Override
+        protected LineDecoder initialValue() {
+            return new LineDecoder();
+        }
+    };
+
+    public TransactionReplayer(TransactionPayloadExtractor payloadExtractor, TransactionDataPublisher publisher,
+                               File checkpointFile) {
+        this.payloadExtractor = payloadExtractor;
+        this.publisher = publisher;
+        this.checkpointFile = checkpointFile;
+    }
+
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    public void setMaxInFlightChunks(int maxInFlightChunks) {
+        this.maxInFlightChunks = maxInFlightChunks;
+    }
+
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    public void setCheckpointIntervalMillis(long checkpointIntervalMillis) {
+        this.checkpointIntervalMillis = checkpointIntervalMillis;
+    }
+
+    /**
+     * Replays the captures in order, starting from the offsets of the checkpoint file if it exists, and saves the
+     * final checkpoint once the published events have left the publisher. Returns false if the replay was stopped
+     * before the end.
+     */
+    public boolean replay(List<File> captureFiles) throws IOException, InterruptedException {
+
+        loadCheckpoint();
+        final long totalSize = totalSize(captureFiles);
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        Semaphore inFlight = new Semaphore(maxInFlightChunks);
+        final long startNanos = System.nanoTime();
+        Thread checkpointer = new Thread(new Runnable() {
+            public void run() {
+                while (!Thread.currentThread().isInterrupted()) {
+                    try {
+                        Thread.sleep(checkpointIntervalMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    checkpoint();
+                    logProgress(totalSize, startNanos);
+                }
+            }
+        }, "transaction-replay-checkpointer");
+        checkpointer.setDaemon(true);
+        checkpointer.start();
+
+        try {
+            for (File captureFile : captureFiles) {
+                if (stopped || failure != null) {
+                    break;
+                }
+                replay(captureFile, pool, inFlight);
+            }
+            // Every chunk has finished once all the permits are back.
+            inFlight.acquire(maxInFlightChunks);
+            inFlight.release(maxInFlightChunks);
+        } finally {
+            checkpointer.interrupt();
+            checkpointer.join();
+            pool.shutdown();
+        }
+
+        // The offsets only cover the chunks which were replayed in full, so they are saved even if one failed.
+        awaitFlushed();
+        logProgress(totalSize, startNanos);
+        if (failure != null) {
+            throw new IOException("The replay failed", failure);
+        }
+        return !stopped;
+    }
+
+    /**
+     * Stops the replay after the chunks being extracted. Their progress is still saved.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    public long getReplayedRequestCount() {
+        return replayedRequestCount.get();
+    }
+
+    public long getReplayedEventCount() {
+        return replayedEventCount.get();
+    }
+
+    public long getSkippedRequestCount() {
+        return skippedRequestCount.get();
+    }
+
+    private void replay(File captureFile, ForkJoinPool pool, Semaphore inFlight) throws IOException, InterruptedException {
+
+        String path = captureFile.getAbsolutePath();
+        Long checkpointOffset = offsets.get(path);
+        long position = checkpointOffset != null ? checkpointOffset : 0;
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(captureFile, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            long size = channel.size();
+            if (position >= size) {
+                log.info(String.format("The capture '%s' has been replayed already.", path));
+                offsets.put(path, size);
+                return;
+            }
+            log.info(String.format("Replaying the capture '%s' from offset %d of %d.", path, position, size));
+            offsets.put(path, position);
+            Progress progress = new Progress(path, position);
+
+            while (position < size && !stopped && failure == null) {
+                int windowSize = (int) Math.min(WINDOW_SIZE, size - position);
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, windowSize);
+
+                // A window ends at its last line break, unless it is the end of the file.
+                int windowEnd = windowSize;
+                if (position + windowSize < size) {
+                    windowEnd = lineEnd(window, 0, windowSize, true);
+                    if (windowEnd < 0) {
+                        throw new IOException(String.format("A line of '%s' after offset %d is longer than %d bytes.",
+                                                            path, position, WINDOW_SIZE));
+                    }
+                }
+
+                int chunkStart = 0;
+                while (chunkStart < windowEnd && !stopped && failure == null) {
+                    int chunkEnd = lineEnd(window, Math.min(chunkStart + chunkSize, windowEnd) - 1, windowEnd, false);
+                    if (chunkEnd < 0) {
+                        chunkEnd = windowEnd;
+                    }
+                    awaitReady();
+                    inFlight.acquire();
+                    pool.execute(new Chunk(window, chunkStart, chunkEnd, position, progress, inFlight));
+                    chunkStart = chunkEnd;
+                }
+                position += chunkStart;
+            }
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Returns the index after the line break at or after the given index, or, searching backwards, the last one in the
+     * range. Returns -1 if there is none.
+     */
+    private static int lineEnd(ByteBuffer buffer, int from, int limit, boolean backwards) {
+
+        if (backwards) {
+            for (int i = limit - 1; i >= from; i--) {
+                if (buffer.get(i) == '\n') {
+                    return i + 1;
+                }
+            }
+        } else {
+            for (int i = from; i < limit; i++) {
+                if (buffer.get(i) == '\n') {
+                    return i + 1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Extracts and publishes the requests of a chunk. Returns false if the replay was stopped before all of them were
+     * published.
+     */
+    private boolean replay(ByteBuffer chunk, int start, int end) throws InterruptedException {
+
+        LineDecoder lineDecoder = lineDecoders.get();
+        int lineStart = start;
+        while (lineStart < end) {
+            int lineEnd = lineEnd(chunk, lineStart, end, false);
+            if (lineEnd < 0) {
+                lineEnd = end;
+            }
+
+            CharArrayReader reader = lineDecoder.decode(chunk, lineStart, lineEnd);
+            if (reader != null) {
+                Object[][] transactionStreamPayloads = payloadExtractor.extract(reader, null);
+                if (transactionStreamPayloads == null) {
+                    skippedRequestCount.incrementAndGet();
+                } else {
+                    // Events are rejected while DAS is unreachable, so they are only published once it is back.
+                    while (!publisher.isReady()) {
+                        if (stopped) {
+                            return false;
+                        }
+                        Thread.sleep(READY_POLL_MILLIS);
+                    }
+                    publisher.publish(transactionStreamPayloads);
+                    replayedRequestCount.incrementAndGet();
+                    replayedEventCount.addAndGet(transactionStreamPayloads.length);
+                }
+            }
+            lineStart = lineEnd;
+        }
+        return true;
+    }
+
+    private void awaitReady() throws InterruptedException {
+
+        if (publisher.isReady()) {
+            return;
+        }
+        log.warn("DAS is not reachable. The replay waits for it.");
+        while (!publisher.isReady() && !stopped) {
+            Thread.sleep(READY_POLL_MILLIS);
+        }
+    }
+
+    /**
+     * Saves the offsets taken at the previous checkpoint once the events published until then have left the publisher,
+     * and takes the offsets for the next one.
+     */
+    private void checkpoint() {
+
+        if (pendingCheckpoint != null && publisher.getFlushedEventCount() >= pendingCheckpoint.queuedEventCount) {
+            saveCheckpoint(pendingCheckpoint.offsets);
+            pendingCheckpoint = null;
+        }
+        if (pendingCheckpoint == null) {
+            // The offsets are read first, so the queued event count covers all their events.
+            Map<String, Long> currentOffsets = new HashMap<String, Long>(offsets);
+            pendingCheckpoint = new Snapshot(currentOffsets, publisher.getQueuedEventCount());
+        }
+    }
+
+    /**
+     * Waits for the published events to leave the publisher, and saves the final checkpoint.
+     */
+    private void awaitFlushed() throws InterruptedException {
+
+        Map<String, Long> finalOffsets = new HashMap<String, Long>(offsets);
+        long queuedEventCount = publisher.getQueuedEventCount();
+        long deadline = System.currentTimeMillis() + FLUSH_TIMEOUT_MILLIS;
+        while (publisher.getFlushedEventCount() < queuedEventCount) {
+            if (System.currentTimeMillis() > deadline) {
+                log.warn("The replayed events did not leave the publisher in time. The final checkpoint is not saved.");
+                return;
+            }
+            Thread.sleep(READY_POLL_MILLIS);
+        }
+        saveCheckpoint(finalOffsets);
+    }
+
+    private void loadCheckpoint() throws IOException {
+
+        if (!checkpointFile.exists()) {
+            return;
+        }
+        Properties properties = new Properties();
+        InputStream inputStream = new FileInputStream(checkpointFile);
+        try {
+            properties.load(inputStream);
+        } finally {
+            inputStream.close();
+        }
+        for (String path : properties.stringPropertyNames()) {
+            offsets.put(path, Long.parseLong(properties.getProperty(path).trim()));
+        }
+        log.info(String.format("Resuming from the checkpoint '%s'.", checkpointFile.getAbsolutePath()));
+    }
+
+    /**
+     * Writes the checkpoint to a temporary file and moves it over the previous one, so a crash leaves either of them.
+     */
+    private void saveCheckpoint(Map<String, Long> checkpointOffsets) {
+
+        Properties properties = new Properties();
+        for (Map.Entry<String, Long> offset : checkpointOffsets.entrySet()) {
+            properties.setProperty(offset.getKey(), String.valueOf(offset.getValue()));
+        }
+
+        File temporaryFile = new File(checkpointFile.getAbsolutePath() + ".tmp");
+        try {
+            FileOutputStream outputStream = new FileOutputStream(temporaryFile);
+            try {
+                properties.store(outputStream, "Transaction replay checkpoint");
+                outputStream.getFD().sync();
+            } finally {
+                outputStream.close();
+            }
+            Files.move(temporaryFile.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.error(String.format("Cannot save the replay checkpoint '%s'.", checkpointFile.getAbsolutePath()), e);
+        }
+    }
+
+    private void logProgress(long totalSize, long startNanos) {
+
+        long offset = 0;
+        for (Long captureOffset : offsets.values()) {
+            offset += captureOffset;
+        }
+        double seconds = Math.max(1, System.nanoTime() - startNanos) / 1e9;
+        log.info(String.format("Replayed %d requests, %d events (%.0f events/s), %d requests skipped, %.1f%% of the captures.",
+                               replayedRequestCount.get(), replayedEventCount.get(), replayedEventCount.get() / seconds,
+                               skippedRequestCount.get(), totalSize > 0 ? offset * 100.0 / totalSize : 100.0));
+    }
+
+    private static long totalSize(List<File> captureFiles) throws IOException {
+
+        long totalSize = 0;
+        for (File captureFile : captureFiles) {
+            if (!captureFile.isFile()) {
+                throw new IOException(String.format("Cannot read the capture '%s'.", captureFile.getAbsolutePath()));
+            }
+            totalSize += captureFile.length();
+        }
+        return totalSize;
+    }
+
+    /**
+     * Replays captures with the publisher of the properties file, until they are done or the JVM is asked to stop.
+     *
+     * Usage : TransactionReplayer [-config file] [-checkpoint file] [-parallelism n] [-maxInFlight n] [-chunkSize bytes]
+     * [-checkpointInterval ms] capture...
+     *
+     * The config defaults to the properties file of the handler, and the checkpoint to the first capture with a
+     * .checkpoint suffix. The publish queue always blocks when it is full, so no event is dropped for lack of room, and
+     * a single platform publisher thread is used, so the events leave the publisher in the order of the checkpoints.
+     */
+    public static void main(String[] args) throws Exception {
+
+        Map<String, String> options = new HashMap<String, String>();
+        List<File> captureFiles = new ArrayList<File>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("-") && i + 1 < args.length) {
+                options.put(args[i].substring(1), args[++i]);
+            } else {
+                captureFiles.add(new File(args[i]));
+            }
+        }
+        if (captureFiles.isEmpty()) {
+            throw new IllegalArgumentException("No capture file was given.");
+        }
+
+        if (options.containsKey("config")) {
+            System.setProperty(TransactionDataPublishingHandler.CONFIG_FILE_PROPERTY, options.get("config"));
+        }
+        DataPublisherConfig config = TransactionDataPublishingHandler.getDataPublisherConfig();
+        if (config == null) {
+            throw new IllegalArgumentException("Fraud detection DAS properties are not available.");
+        }
+        config.setPublishQueueOverflowPolicy(PublishQueue.OverflowPolicy.BLOCK.name());
+        config.setPublishQueueBlockTimeoutMillis(TimeUnit.DAYS.toMillis(1));
+        if (config.getPublisherThreadCount() != 1 ||
+                !TransactionDataPublisher.EXECUTOR_PLATFORM.equalsIgnoreCase(config.getPublisherExecutor())) {
+            log.info("The replay publishes on a single platform publisher thread, so its checkpoints stay in order.");
+        }
+        config.setPublisherThreadCount(1);
+        config.setPublisherExecutor(TransactionDataPublisher.EXECUTOR_PLATFORM);
+
+        ExtractionPlan plan = ExtractionPlan.compile(config.getStreamMapping(), config.getFanOutPath());
+        config.setStreamAttributeNames(plan.getAttributeNames());
+        CompactEventCodec.validate(config);
+
+        PublisherRegistry.Entry publisherEntry = PublisherRegistry.getInstance().acquire(config);
+        TransactionDataPublisher publisher = publisherEntry.getPublisher();
+        TransactionPayloadExtractor payloadExtractor = new TransactionPayloadExtractor(
+                plan, StreamingPayloadExtractor.EXTRACTION_MODE_STREAMING, config.getFanOutMaxEntries(), null,
+                GeoIPLookup.create(config, plan), publisher.getMetrics());
+
+        String checkpointPath = options.containsKey("checkpoint") ? options.get("checkpoint") :
+                captureFiles.get(0).getPath() + ".checkpoint";
+        final TransactionReplayer replayer = new TransactionReplayer(payloadExtractor, publisher, new File(checkpointPath));
+        if (options.containsKey("parallelism")) {
+            replayer.setParallelism(Integer.parseInt(options.get("parallelism")));
+            replayer.setMaxInFlightChunks(replayer.parallelism * 4);
+        }
+        if (options.containsKey("maxInFlight")) {
+            replayer.setMaxInFlightChunks(Integer.parseInt(options.get("maxInFlight")));
+        }
+        if (options.containsKey("chunkSize")) {
+            replayer.setChunkSize(Integer.parseInt(options.get("chunkSize")));
+        }
+        if (options.containsKey("checkpointInterval")) {
+            replayer.setCheckpointIntervalMillis(Long.parseLong(options.get("checkpointInterval")));
+        }
+
+        // On an interrupt, the replay stops, saves its checkpoint and drains the publisher before the JVM exits.
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread shutdownHook = new Thread(new Runnable() {
+            public void run() {
+                replayer.stop();
+                try {
+                    done.await(FLUSH_TIMEOUT_MILLIS * 2, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "transaction-replay-shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+
+        try {
+            if (replayer.replay(captureFiles)) {
+                log.info("The captures have been replayed.");
+            } else {
+                log.info(String.format("The replay was stopped. Run it again to resume from the checkpoint '%s'.",
+                                       checkpointPath));
+            }
+        } finally {
+            PublisherRegistry.getInstance().release(publisherEntry);
+            done.countDown();
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // The JVM is shutting down already.
+            }
+        }
+    }
+
+    /**
+     * Tracks the chunks of a capture which have been replayed, which may finish out of order, and moves its offset up
+     * to the end of the chunks finished without a gap.
+     */
+    private final class Progress {
+
+        private final String path;
+        private long offset;
+        private final TreeMap<Long, Long> finishedChunks = new TreeMap<Long, Long>();
+
+        private Progress(String path, long offset) {
+            this.path = path;
+            this.offset = offset;
+        }
+
+        private synchronized void onFinished(long start, long end) {
+
+            if (start != offset) {
+                finishedChunks.put(start, end);
+                return;
+            }
+            offset = end;
+            Long next;
+            while ((next = finishedChunks.remove(offset)) != null) {
+                offset = next;
+            }
+            offsets.put(path, offset);
+        }
+    }
+
+    private final class Chunk implements Runnable {
+
+        private final ByteBuffer window;
+        private final int start;
+        private final int end;
+        private final long windowOffset;
+        private final Progress progress;
+        private final Semaphore inFlight;
+
+        private Chunk(ByteBuffer window, int start, int end, long windowOffset, Progress progress, Semaphore inFlight) {
+            this.window = window;
+            this.start = start;
+            this.end = end;
+            this.windowOffset = windowOffset;
+            this.progress = progress;
+            this.inFlight = inFlight;
+        }
+
+        public void run() {
+            try {
+                if (replay(window, start, end)) {
+                    progress.onFinished(windowOffset + start, windowOffset + end);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                log.error("Cannot replay a chunk of a capture. The replay is stopped.", e);
+                failure = e;
+            } finally {
+                inFlight.release();
+            }
+        }
+    }
+
+    /**
+     * Decodes a UTF-8 line into a reused character buffer.
+     */
+    private static final class LineDecoder {
+
+        private final CharsetDecoder decoder = UTF_8.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private CharBuffer chars = CharBuffer.allocate(4096);
+
+        /**
+         * Returns a reader over the line, or null if it is blank.
+         */
+        private CharArrayReader decode(ByteBuffer buffer, int start, int end) {
+
+            while (end > start && (buffer.get(end - 1) & 0xff) <= ' ') {
+                end--;
+            }
+            if (end == start) {
+                return null;
+            }
+
+            ByteBuffer line = buffer.duplicate();
+            line.limit(end);
+            line.position(start);
+            // A UTF-8 line never has more characters than bytes.
+            if (chars.capacity() < end - start) {
+                chars = CharBuffer.allocate(end - start);
+            }
+            chars.clear();
+            decoder.reset();
+            decoder.decode(line, chars, true);
+            decoder.flush(chars);
+            return new CharArrayReader(chars.array(), 0, chars.position());
+        }
+    }
+
+    private static final class Snapshot {
+
+        private final Map<String, Long> offsets;
+        private final long queuedEventCount;
+
+        private Snapshot(Map<String, Long> offsets, long queuedEventCount) {
+            this.offsets = offsets;
+            this.queuedEventCount = queuedEventCount;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ *  Copyright WSO2 Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.wso2.carbon.apimgt.frauddetection;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Counts events per long key over a sliding time window, in a fixed amount of memory which may be off the heap.
+ *
+ * The window is split into time buckets. Every key has a slot holding the key, the last bucket it was counted in
+ * and a count per bucket. Buckets which have slid out of the window are cleared when the key is next counted. The slots
+ * are split into lock striped segments, and a key is looked up in a short run of slots after its home slot. A new key
+ * takes an empty or expired slot in that run, or else evicts the key counted least recently. Counting never allocates.
+ */
+public class VelocityCounter {
+
+    private static final int SEGMENT_COUNT = 64;
+    private static final int PROBE_LIMIT = 8;
+
+    // Slot layout : key (8 bytes), last bucket (8 bytes, 0 for an empty slot), then one int count per bucket.
+    private static final int KEY_OFFSET = 0;
+    private static final int BUCKET_OFFSET = 8;
+    private static final int COUNTS_OFFSET = 16;
+
+    private final long bucketMillis;
+    private final int bucketCount;
+    private final int slotSize;
+    private final Segment[] segments;
+
+    private static class Segment {
+
+        private final ByteBuffer slots;
+        private final int mask;
+
+        private Segment(ByteBuffer slots, int slotCount) {
+            this.slots = slots;
+            this.mask = slotCount - 1;
+        }
+    }
+
+    /**
+     * Creates a counter for about the given number of keys, rounded up to a power of two. The window is split into
+     * the given number of buckets, so it slides in steps of windowMillis / bucketCount.
+     */
+    public VelocityCounter(int capacity, long windowMillis, int bucketCount, boolean offHeap) {
+
+        this.bucketCount = Math.max(1, bucketCount);
+        this.bucketMillis = Math.max(1, windowMillis / this.bucketCount);
+        this.slotSize = COUNTS_OFFSET + 4 * this.bucketCount;
+
+        int slotsPerSegment = Integer.highestOneBit(Math.max(PROBE_LIMIT, (capacity + SEGMENT_COUNT - 1) / SEGMENT_COUNT) * 2 - 1);
+        segments = new Segment[SEGMENT_COUNT];
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            int size = slotsPerSegment * slotSize;
+            segments[i] = new Segment(offHeap ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size), slotsPerSegment);
+        }
+    }
+
+    /**
+     * Counts an event for the key at the given time, and returns the number of events of the key within the window,
+     * including this one.
+     */
+    public int increment(long key, long now) {
+
+        long bucket = now / bucketMillis + 1;
+        long hash = mix(key);
+        Segment segment = segments[(int) (hash >>> 58) & (SEGMENT_COUNT - 1)];
+        ByteBuffer slots = segment.slots;
+        int home = (int) hash & segment.mask;
+
+        synchronized (segment) {
+            int slot = -1;
+            int victim = -1;
+            long victimBucket = Long.MAX_VALUE;
+            for (int i = 0; i < PROBE_LIMIT; i++) {
+                int candidate = ((home + i) & segment.mask) * slotSize;
+                long lastBucket = slots.getLong(candidate + BUCKET_OFFSET);
+                if (lastBucket != 0 && slots.getLong(candidate + KEY_OFFSET) == key) {
+                    slot = candidate;
+                    break;
+                }
+                // Empty and expired slots have the oldest last bucket, so they are taken first.
+                long age = lastBucket == 0 || bucket - lastBucket >= bucketCount ? Long.MIN_VALUE : lastBucket;
+                if (age < victimBucket) {
+                    victim = candidate;
+                    victimBucket = age;
+                }
+            }
+
+            if (slot < 0) {
+                slot = victim;
+                slots.putLong(slot + KEY_OFFSET, key);
+                slots.putLong(slot + BUCKET_OFFSET, 0);
+            }
+            return count(slots, slot, bucket);
+        }
+    }
+
+    private int count(ByteBuffer slots, int slot, long bucket) {
+
+        long lastBucket = slots.getLong(slot + BUCKET_OFFSET);
+        long elapsed = lastBucket == 0 ? bucketCount : bucket - lastBucket;
+
+        // Clear the buckets which were passed since the key was last counted.
+        if (elapsed > 0) {
+            long cleared = Math.min(elapsed, bucketCount);
+            for (long b = bucket - cleared + 1; b <= bucket; b++) {
+                slots.putInt(countOffset(slot, b), 0);
+            }
+            slots.putLong(slot + BUCKET_OFFSET, bucket);
+        } else if (elapsed < 0) {
+            // The clock went back. Count into the latest bucket.
+            bucket = lastBucket;
+        }
+
+        int current = countOffset(slot, bucket);
+        slots.putInt(current, slots.getInt(current) + 1);
+
+        int total = 0;
+        for (int i = 0; i < bucketCount; i++) {
+            total += slots.getInt(slot + COUNTS_OFFSET + 4 * i);
+        }
+        return total;
+    }
+
+    private int countOffset(int slot, long bucket) {
+        return slot + COUNTS_OFFSET + 4 * (int) (bucket % bucketCount);
+    }
+
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+}
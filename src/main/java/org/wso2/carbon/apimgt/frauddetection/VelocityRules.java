@@ -0,0 +1,173 @@
+/*
+ *  Copyright WSO2 Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.wso2.carbon.apimgt.frauddetection;
+
+import org.apache.synapse.MessageContext;
+
+/**
+ * Gateway side velocity rules: the number of transactions per credit card and per client IP within a sliding window.
+ *
+ * A transaction breaking a rule is flagged, i.e. its $velocityFlag stream attributes are set and the rule is put on the
+ * message context, and with the reject action the request is also refused. Flagged transactions are still published,
+ * so DAS sees the attempts.
+ */
+public class VelocityRules {
+
+    public static final String VIOLATION_PROPERTY = "FRAUD_DETECTION_VELOCITY_VIOLATION";
+    public static final String RULE_CARD = "card";
+    public static final String RULE_IP = "ip";
+    public static final int REJECTION_STATUS_CODE = 429;
+
+    /**
+     * What happens to a request breaking a rule.
+     */
+    public enum Action {
+
+        FLAG, REJECT;
+
+        public static Action fromString(String action) {
+            return action == null ? FLAG : valueOf(action.trim().toUpperCase());
+        }
+    }
+
+    private final ExtractionPlan plan;
+    private final PublisherMetrics metrics;
+    private final Action action;
+
+    private final VelocityCounter cardCounter;
+    private final int cardIndex;
+    private final int maxPerCard;
+
+    private final VelocityCounter ipCounter;
+    private final int ipIndex;
+    private final int maxPerIP;
+
+    private VelocityRules(DataPublisherConfig config, ExtractionPlan plan, PublisherMetrics metrics) {
+
+        this.plan = plan;
+        this.metrics = metrics;
+        this.action = Action.fromString(config.getVelocityAction());
+
+        this.maxPerCard = config.getVelocityMaxPerCard();
+        this.cardIndex = getAttributeIndex(plan, config.getVelocityCardAttribute(), maxPerCard);
+        this.cardCounter = maxPerCard > 0 ? createCounter(config) : null;
+
+        this.maxPerIP = config.getVelocityMaxPerIP();
+        this.ipIndex = getAttributeIndex(plan, config.getVelocityIPAttribute(), maxPerIP);
+        this.ipCounter = maxPerIP > 0 ? createCounter(config) : null;
+    }
+
+    /**
+     * Returns the rules of the given config, or null if no rule is enabled. Throws IllegalArgumentException if a rule
+     * refers to an attribute which is not in the stream mapping, or the action is not known.
+     */
+    public static VelocityRules create(DataPublisherConfig config, ExtractionPlan plan, PublisherMetrics metrics) {
+
+        if (config.getVelocityMaxPerCard() <= 0 && config.getVelocityMaxPerIP() <= 0) {
+            return null;
+        }
+        return new VelocityRules(config, plan, metrics);
+    }
+
+    /**
+     * Counts the transactions of a request against the rules, once for the request, with the card and IP of its first
+     * transaction. A violation marks all of them. Returns false if the request has to be rejected.
+     */
+    public boolean apply(MessageContext messageContext, Object[][] transactionStreamPayloads) {
+
+        Object[] transactionStreamPayload = transactionStreamPayloads[0];
+        long now = System.currentTimeMillis();
+        String violatedRule = null;
+
+        if (cardCounter != null && transactionStreamPayload[cardIndex] != null &&
+                cardCounter.increment(toKey(transactionStreamPayload[cardIndex]), now) > maxPerCard) {
+            violatedRule = RULE_CARD;
+        }
+        if (ipCounter != null && transactionStreamPayload[ipIndex] != null &&
+                ipCounter.increment(toKey(transactionStreamPayload[ipIndex]), now) > maxPerIP && violatedRule == null) {
+            violatedRule = RULE_IP;
+        }
+
+        if (violatedRule == null) {
+            return true;
+        }
+
+        metrics.onVelocityViolation();
+        for (Object[] payload : transactionStreamPayloads) {
+            plan.markVelocityViolation(payload);
+        }
+        messageContext.setProperty(VIOLATION_PROPERTY, violatedRule);
+        return action != Action.REJECT;
+    }
+
+    /**
+     * Card numbers are used as they are. IPv4 addresses are packed into a long, and any other value is hashed.
+     */
+    static long toKey(Object value) {
+
+        if (value instanceof Long || value instanceof Integer) {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof String) {
+            long address = parseIPv4((String) value);
+            if (address >= 0) {
+                return address;
+            }
+        }
+        return DuplicateFilter.hash(value);
+    }
+
+    /**
+     * Returns the IPv4 address as a number, or -1 if the value is not an IPv4 address.
+     */
+    static long parseIPv4(String value) {
+
+        long address = 0;
+        int octet = -1;
+        int dots = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= '0' && c <= '9') {
+                octet = (octet < 0 ? 0 : octet * 10) + (c - '0');
+                if (octet > 255) {
+                    return -1;
+                }
+            } else if (c == '.' && octet >= 0 && dots < 3) {
+                address = (address << 8) | octet;
+                octet = -1;
+                dots++;
+            } else {
+                return -1;
+            }
+        }
+        return dots == 3 && octet >= 0 ? (address << 8) | octet : -1;
+    }
+
+    private static VelocityCounter createCounter(DataPublisherConfig config) {
+        return new VelocityCounter(config.getVelocityCapacity(), config.getVelocityWindowMillis(),
+                                   config.getVelocityBucketCount(), config.isVelocityOffHeap());
+    }
+
+    private static int getAttributeIndex(ExtractionPlan plan, String attributeName, int limit) {
+
+        int index = plan.getAttributeIndex(attributeName);
+        if (limit > 0 && index < 0) {
+            throw new IllegalArgumentException(String.format("Velocity rule attribute '%s' is not in the stream mapping",
+                                                             attributeName));
+        }
+        return index;
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ *  Copyright WSO2 Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.wso2.carbon.apimgt.frauddetection;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates virtual threads on JDKs which have them (21 and later). The JDK API is looked up reflectively, so the
+ * publisher still builds for and runs on older JDKs.
+ */
+final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    public static boolean isAvailable() {
+        return newThreadFactory("fraud-detection-probe-") != null;
+    }
+
+    /**
+     * Returns a factory of virtual threads named with the given prefix and a counter, or null if the JDK has no virtual
+     * threads, or has them only as a preview feature which is not enabled.
+     */
+    public static ThreadFactory newThreadFactory(String namePrefix) {
+
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
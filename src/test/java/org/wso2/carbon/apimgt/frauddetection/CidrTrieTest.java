@@ -0,0 +1,209 @@
+/*
+ *  Copyright WSO2 Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.wso2.carbon.apimgt.frauddetection;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CidrTrieTest {
+
+    @Test
+    public void parsesIPv4AsAnIPv4MappedAddress() throws Exception {
+
+        assertArrayEquals(new long[]{0, 0xFFFFC0000201L}, parse("192.0.2.1"));
+        assertArrayEquals(expected("::ffff:0.0.0.0"), parse("0.0.0.0"));
+        assertArrayEquals(expected("::ffff:255.255.255.255"), parse("255.255.255.255"));
+    }
+
+    @Test
+    public void parsesCompressedIPv6() throws Exception {
+
+        assertArrayEquals(new long[]{0, 0}, parse("::"));
+        assertArrayEquals(new long[]{0, 1}, parse("::1"));
+        assertArrayEquals(new long[]{0x0001000000000000L, 0}, parse("1::"));
+        assertArrayEquals(expected("2001:db8::1"), parse("2001:db8::1"));
+        assertArrayEquals(expected("2001:db8::1"), parse("2001:DB8::1"));
+        assertArrayEquals(expected("::2:3:4:5:6:7:8"), parse("::2:3:4:5:6:7:8"));
+        assertArrayEquals(expected("1:2:3:4:5:6:7::"), parse("1:2:3:4:5:6:7::"));
+        assertArrayEquals(expected("1:2:3::6:7:8"), parse("1:2:3::6:7:8"));
+    }
+
+    @Test
+    public void parsesFullIPv6() throws Exception {
+
+        assertArrayEquals(expected("2001:db8:0:0:0:0:2:1"), parse("2001:db8:0:0:0:0:2:1"));
+        assertArrayEquals(new long[]{-1L, -1L}, parse("ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff"));
+        assertArrayEquals(expected("2001:db8::2:1"), parse("2001:0db8:0000:0000:0000:0000:0002:0001"));
+    }
+
+    @Test
+    public void parsesAnEmbeddedIPv4LastGroup() throws Exception {
+
+        assertArrayEquals(parse("192.0.2.1"), parse("::ffff:192.0.2.1"));
+        assertArrayEquals(expected("64:ff9b::c000:221"), parse("64:ff9b::192.0.2.33"));
+        assertArrayEquals(expected("1:2:3:4:5:6:c000:201"), parse("1:2:3:4:5:6:192.0.2.1"));
+    }
+
+    @Test
+    public void ignoresPortsBracketsAndZones() throws Exception {
+
+        assertArrayEquals(parse("192.0.2.1"), parse("192.0.2.1:8080"));
+        assertArrayEquals(expected("2001:db8::1"), parse("[2001:db8::1]"));
+        assertArrayEquals(expected("2001:db8::1"), parse("[2001:db8::1]:443"));
+        assertArrayEquals(expected("fe80::1"), parse("fe80::1%eth0"));
+        assertArrayEquals(expected("fe80::1"), parse("[fe80::1%25eth0]:8243"));
+    }
+
+    @Test
+    public void parsesOnlyTheGivenRange() throws Exception {
+
+        long[] address = new long[2];
+        assertTrue(CidrTrie.parseAddress("for 2001:db8::1, 10.0.0.1", 4, 15, address));
+        assertArrayEquals(expected("2001:db8::1"), address);
+        assertTrue(CidrTrie.parseAddress("for 2001:db8::1, 10.0.0.1", 17, 25, address));
+        assertArrayEquals(parse("10.0.0.1"), address);
+    }
+
+    @Test
+    public void rejectsMalformedAddresses() {
+
+        String[] malformed = {
+                "", ":", ":::", "1.2.3", "1.2.3.4.5", "256.1.1.1", "1.2.3.-4", "1..2.3", "a.b.c.d",
+                "1:2:3:4:5:6:7:", "2001:db8::1:", ":1:2:3:4:5:6:7:8", "1:2:3:4:5:6:7", "1:2:3:4:5:6:7:8:9",
+                "1:2:3:4:5:6:7:8::", "1::2::3", "12345::", "2001:db8::g", "::ffff:1.2.3", "::ffff:256.0.0.1",
+                "1:2:3:4:5:6:7:1.2.3.4", "::1.2.3.4:5", "[2001:db8::1", "[2001:db8::1]x", "%eth0"
+        };
+        for (String value : malformed) {
+            assertNull("'" + value + "' should not parse", parse(value));
+        }
+    }
+
+    @Test
+    public void matchesIPv4PrefixBoundaries() {
+
+        CidrTrie trie = CidrTrie.compile("10.0.0.0/8,192.168.1.0/31,203.0.113.7");
+        assertTrue(contains(trie, "10.0.0.0"));
+        assertTrue(contains(trie, "10.255.255.255"));
+        assertFalse(contains(trie, "9.255.255.255"));
+        assertFalse(contains(trie, "11.0.0.0"));
+        assertTrue(contains(trie, "192.168.1.0"));
+        assertTrue(contains(trie, "192.168.1.1"));
+        assertFalse(contains(trie, "192.168.1.2"));
+        assertFalse(contains(trie, "192.168.0.255"));
+        assertTrue(contains(trie, "203.0.113.7"));
+        assertFalse(contains(trie, "203.0.113.6"));
+        assertFalse(contains(trie, "203.0.113.8"));
+        // An IPv4 block matches the IPv4-mapped form of its addresses, but no other IPv6 address.
+        assertTrue(contains(trie, "::ffff:10.1.2.3"));
+        assertFalse(contains(trie, "::10.1.2.3"));
+        assertFalse(contains(trie, "2001:db8::1"));
+    }
+
+    @Test
+    public void matchesIPv6PrefixBoundaries() {
+
+        CidrTrie trie = CidrTrie.compile("2001:db8::/32, 2001:db8:0:1::/64, fd00::/65, ::1/128");
+        assertTrue(contains(trie, "2001:db8::"));
+        assertTrue(contains(trie, "2001:db8:ffff:ffff:ffff:ffff:ffff:ffff"));
+        assertFalse(contains(trie, "2001:db9::"));
+        assertFalse(contains(trie, "2001:db7:ffff:ffff:ffff:ffff:ffff:ffff"));
+        assertTrue(contains(trie, "fd00::7fff:ffff:ffff:ffff"));
+        assertFalse(contains(trie, "fd00::8000:0:0:0"));
+        assertFalse(contains(trie, "fd00:0:0:1::"));
+        assertTrue(contains(trie, "::1"));
+        assertFalse(contains(trie, "::"));
+        assertFalse(contains(trie, "::2"));
+        assertFalse(contains(trie, "127.0.0.1"));
+    }
+
+    @Test
+    public void matchesEverythingWithAZeroPrefix() {
+
+        CidrTrie ipv4 = CidrTrie.compile("0.0.0.0/0");
+        assertTrue(contains(ipv4, "0.0.0.0"));
+        assertTrue(contains(ipv4, "255.255.255.255"));
+        assertFalse(contains(ipv4, "2001:db8::1"));
+
+        CidrTrie all = CidrTrie.compile("::/0");
+        assertTrue(contains(all, "2001:db8::1"));
+        assertTrue(contains(all, "192.0.2.1"));
+        assertTrue(contains(all, "ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff"));
+    }
+
+    @Test
+    public void isEmptyWithoutBlocks() {
+
+        assertTrue(CidrTrie.compile("").isEmpty());
+        assertTrue(CidrTrie.compile(" , ").isEmpty());
+        assertFalse(contains(CidrTrie.compile(""), "10.0.0.1"));
+        assertFalse(CidrTrie.compile("10.0.0.0/8").isEmpty());
+    }
+
+    @Test
+    public void rejectsInvalidBlocks() {
+
+        String[] invalid = {"10.0.0.0/33", "::/129", "10.0.0.0/-1", "10.0.0.0/", "10.0.0.0/x", "10.0.0/8", "/8",
+                            "2001:db8::1:/64", "10.0.0.0/8, nonsense"};
+        for (String value : invalid) {
+            try {
+                CidrTrie.compile(value);
+                fail("'" + value + "' should not compile");
+            } catch (IllegalArgumentException expected) {
+                // The block is rejected.
+            }
+        }
+    }
+
+    private static long[] parse(String value) {
+
+        long[] address = new long[2];
+        return CidrTrie.parseAddress(value, 0, value.length(), address) ? address : null;
+    }
+
+    private static boolean contains(CidrTrie trie, String value) {
+
+        long[] address = parse(value);
+        return trie.contains(address[0], address[1]);
+    }
+
+    /**
+     * Returns the address of an IPv6 literal as the JDK parses it, which never resolves a name.
+     */
+    private static long[] expected(String literal) throws Exception {
+
+        byte[] bytes = InetAddress.getByName(literal).getAddress();
+        if (bytes.length == 4) {
+            return new long[]{0, 0xFFFF00000000L | (toLong(bytes, 0, 4) & 0xFFFFFFFFL)};
+        }
+        return new long[]{toLong(bytes, 0, 8), toLong(bytes, 8, 8)};
+    }
+
+    private static long toLong(byte[] bytes, int offset, int length) {
+
+        long value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            value = (value << 8) | (bytes[i] & 0xFF);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ *  Copyright WSO2 Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.wso2.carbon.apimgt.frauddetection;
+
+import org.apache.synapse.core.axis2.Axis2MessageContext;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ClientIPResolverTest {
+
+    private final ClientIPResolver resolver =
+            new ClientIPResolver(CidrTrie.compile(ClientIPResolver.DEFAULT_TRUSTED_PROXIES), false);
+
+    @Test
+    public void believesTheHeaderFromATrustedPeer() {
+
+        assertEquals("203.0.113.7", resolver.resolve(request("10.0.0.1", "203.0.113.7, 10.0.0.2")));
+    }
+
+    @Test
+    public void ignoresTheHeaderFromAnUntrustedPeer() {
+
+        assertEquals("198.51.100.1", resolver.resolve(request("198.51.100.1", "203.0.113.7")));
+    }
+
+    @Test
+    public void ignoresTheHeaderWithoutAPeer() {
+
+        assertNull(resolver.resolve(request(null, "203.0.113.7")));
+    }
+
+    @Test
+    public void walksBackToTheFirstUntrustedHop() {
+
+        long[] address = new long[2];
+        assertEquals("198.51.100.1", resolver.getFirstUntrustedHop("203.0.113.7, 198.51.100.1, 10.0.0.2 ,", address));
+        assertEquals("not-an-ip", resolver.getFirstUntrustedHop("203.0.113.7,not-an-ip,[::1]:8080", address));
+        assertEquals("10.0.0.3", resolver.getFirstUntrustedHop("10.0.0.3, 192.168.0.1", address));
+        assertNull(resolver.getFirstUntrustedHop(" , ", address));
+    }
+
+    private static Axis2MessageContext request(String remoteAddress, String xForwardedFor) {
+
+        org.apache.axis2.context.MessageContext axis2MessageContext = new org.apache.axis2.context.MessageContext();
+        Map<String, String> transportHeaders = new HashMap<String, String>();
+        transportHeaders.put("X-Forwarded-For", xForwardedFor);
+        axis2MessageContext.setProperty(org.apache.axis2.context.MessageContext.TRANSPORT_HEADERS, transportHeaders);
+        axis2MessageContext.setProperty(org.apache.axis2.context.MessageContext.REMOTE_ADDR, remoteAddress);
+        return new Axis2MessageContext(axis2MessageContext, null, null);
+    }
+}
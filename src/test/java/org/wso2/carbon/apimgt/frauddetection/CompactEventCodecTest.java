@@ -0,0 +1,278 @@
+/*
+ *  Copyright WSO2 Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.wso2.carbon.apimgt.frauddetection;
+
+import org.apache.axiom.util.base64.Base64Utils;
+import org.junit.Test;
+import org.wso2.carbon.databridge.commons.Event;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CompactEventCodecTest {
+
+    private static final String[] ATTRIBUTE_NAMES = {"transactionId", "amount", "currency", "quantity", "flagged"};
+
+    @Test
+    public void roundTripsEveryValueType() {
+        assertRoundTrip(false);
+    }
+
+    @Test
+    public void roundTripsDeflatedBlocks() {
+        assertRoundTrip(true);
+    }
+
+    @Test
+    public void roundTripsVarintBoundaries() {
+
+        long[] values = {0, 1, -1, 63, -64, 64, -65, 127, 128, 16383, 16384, Integer.MAX_VALUE, Integer.MIN_VALUE,
+                         Long.MAX_VALUE, Long.MIN_VALUE};
+        List<Event> events = new ArrayList<Event>();
+        for (long value : values) {
+            // The timestamps are delta coded, so they go up and down by the same amounts.
+            events.add(event(value, "tx", value, null, (int) value, null));
+        }
+
+        List<Object[]> decoded = new ArrayList<Object[]>();
+        List<Long> timestamps = new ArrayList<Long>();
+        CompactEventCodec.Encoder encoder = new CompactEventCodec.Encoder(ATTRIBUTE_NAMES,
+                                                                          Collections.<String>emptySet(), false);
+        new CompactEventCodec.Decoder().decode(encoder.encode(events), collect(decoded, timestamps));
+
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(values[i], timestamps.get(i).longValue());
+            assertEquals(values[i], decoded.get(i)[1]);
+            assertEquals((int) values[i], decoded.get(i)[3]);
+        }
+    }
+
+    @Test
+    public void codesRepeatedValuesOfDictionaryAttributesByReference() {
+
+        CompactEventCodec.Encoder dictionaryEncoder = new CompactEventCodec.Encoder(ATTRIBUTE_NAMES,
+                                                                                    Arrays.asList("currency"), false);
+        CompactEventCodec.Encoder plainEncoder = new CompactEventCodec.Encoder(ATTRIBUTE_NAMES,
+                                                                               Collections.<String>emptySet(), false);
+        List<Event> events = new ArrayList<Event>();
+        for (int i = 0; i < 50; i++) {
+            events.add(event(i, "tx-" + i, 10L, "Sri Lankan Rupee", 1, false));
+        }
+
+        String first = dictionaryEncoder.encode(events);
+        String second = dictionaryEncoder.encode(events);
+        assertTrue(first.length() < plainEncoder.encode(events).length());
+        // The second block only refers to the entry defined by the first.
+        assertTrue(second.length() < first.length());
+
+        CompactEventCodec.Decoder decoder = new CompactEventCodec.Decoder();
+        List<Object[]> decoded = new ArrayList<Object[]>();
+        assertEquals(50, decoder.decode(first, collect(decoded, null)));
+        assertEquals(50, decoder.decode(second, collect(decoded, null)));
+        assertEquals("Sri Lankan Rupee", decoded.get(99)[2]);
+    }
+
+    @Test
+    public void decodesBlocksReorderedWithinTheWindow() {
+
+        CompactEventCodec.Encoder encoder = new CompactEventCodec.Encoder(ATTRIBUTE_NAMES, Arrays.asList("currency"),
+                                                                          false);
+        List<String> blocks = new ArrayList<String>();
+        for (int i = 0; i < 4; i++) {
+            blocks.add(encoder.encode(Collections.singletonList(event(i, "tx-" + i, 10L, "USD", 1, false))));
+        }
+
+        CompactEventCodec.Decoder decoder = new CompactEventCodec.Decoder();
+        List<Object[]> decoded = new ArrayList<Object[]>();
+        assertEquals(0, decoder.decode(blocks.get(2), collect(decoded, null)));
+        assertEquals(0, decoder.decode(blocks.get(1), collect(decoded, null)));
+        // The block which defines the dictionary entry releases the ones held back for it, in order.
+        assertEquals(3, decoder.decode(blocks.get(0), collect(decoded, null)));
+        assertEquals(1, decoder.decode(blocks.get(3), collect(decoded, null)));
+        for (int i = 0; i < 4; i++) {
+            assertEquals("tx-" + i, decoded.get(i)[0]);
+        }
+
+        // A block which comes after the window has moved past it is counted, not decoded.
+        assertEquals(0, decoder.decode(blocks.get(1), collect(decoded, null)));
+        assertEquals(1, decoder.getUndecodableEventCount());
+    }
+
+    @Test
+    public void skipsReferencesToALostBlockUntilTheNextEpoch() {
+
+        CompactEventCodec.Encoder encoder = new CompactEventCodec.Encoder(ATTRIBUTE_NAMES, Arrays.asList("currency"),
+                                                                          false);
+        encoder.encode(Collections.singletonList(event(0, "tx-0", 10L, "USD", 1, false)));
+
+        CompactEventCodec.Decoder decoder = new CompactEventCodec.Decoder();
+        List<Object[]> decoded = new ArrayList<Object[]>();
+        int lostBlockWindow = CompactEventCodec.Decoder.REORDER_WINDOW + 1;
+        for (int i = 1; i <= lostBlockWindow; i++) {
+            decoder.decode(encoder.encode(Collections.singletonList(event(i, "tx-" + i, 10L, "USD", 1, false))),
+                           collect(decoded, null));
+        }
+        assertTrue(decoded.isEmpty());
+        assertEquals(lostBlockWindow, decoder.getUndecodableEventCount());
+
+        // A new epoch starts with empty dictionaries, so it does not depend on the lost block.
+        encoder.reset();
+        assertEquals(1, decoder.decode(encoder.encode(Collections.singletonList(event(0, "tx", 10L, "USD", 1, false))),
+                                       collect(decoded, null)));
+        assertEquals("USD", decoded.get(0)[2]);
+    }
+
+    @Test
+    public void startsANewEpochAfterTheResetInterval() {
+
+        CompactEventCodec.Encoder encoder = new CompactEventCodec.Encoder(ATTRIBUTE_NAMES, Arrays.asList("currency"),
+                                                                          false);
+        List<Event> events = Collections.singletonList(event(0, "tx", 10L, "USD", 1, false));
+        String first = encoder.encode(events);
+        for (int i = 1; i < CompactEventCodec.DICTIONARY_RESET_BLOCKS - 1; i++) {
+            encoder.encode(events);
+        }
+        String last = encoder.encode(events);
+        String next = encoder.encode(events);
+
+        assertEquals(getEpoch(first), getEpoch(last));
+        assertFalse(getEpoch(first) == getEpoch(next));
+
+        // The first block of the new epoch defines its entries again, so it decodes on its own.
+        List<Object[]> decoded = new ArrayList<Object[]>();
+        assertEquals(1, new CompactEventCodec.Decoder().decode(next, collect(decoded, null)));
+        assertEquals("USD", decoded.get(0)[2]);
+    }
+
+    @Test
+    public void rejectsABlockOfAnotherVersion() {
+
+        byte[] block = Base64Utils.decode(encode(false));
+        block[0] = 99;
+        try {
+            new CompactEventCodec.Decoder().decode(Base64Utils.encode(block, 0, block.length), collect(null, null));
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("Unknown compact block version", e.getMessage());
+        }
+    }
+
+    @Test
+    public void skipsTruncatedBlocks() {
+
+        for (boolean deflate : new boolean[]{false, true}) {
+            byte[] block = Base64Utils.decode(encode(deflate));
+            // Every cut past the header leaves a block which is skipped, never one which hangs or throws. Only the
+            // trailing checksum of a deflated body can be cut off without losing any of the events.
+            for (int length = 11; length < block.length; length++) {
+                List<Object[]> decoded = new ArrayList<Object[]>();
+                int count = new CompactEventCodec.Decoder().decode(Base64Utils.encode(block, 0, length),
+                                                                   collect(decoded, null));
+                if (count > 0) {
+                    assertTrue(deflate);
+                    assertArrayEquals(new Object[]{"tx-1", 4111111111111111L, "USD", 3, true}, decoded.get(0));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void skipsCorruptedBlocks() {
+
+        for (boolean deflate : new boolean[]{false, true}) {
+            byte[] block = Base64Utils.decode(encode(deflate));
+            for (int position = 11; position < block.length; position++) {
+                for (int bit = 0; bit < 8; bit++) {
+                    byte[] corrupted = block.clone();
+                    corrupted[position] ^= 1 << bit;
+                    CompactEventCodec.Decoder decoder = new CompactEventCodec.Decoder();
+                    // A flipped bit may still decode to other values, but must not break the decoder.
+                    decoder.decode(Base64Utils.encode(corrupted, 0, corrupted.length), collect(null, null));
+                    // A block of another encoder is in a new epoch, so it still decodes.
+                    assertEquals(1, decoder.decode(encode(deflate), collect(null, null)));
+                }
+            }
+        }
+    }
+
+    private static void assertRoundTrip(boolean deflate) {
+
+        CompactEventCodec.Encoder encoder = new CompactEventCodec.Encoder(ATTRIBUTE_NAMES, Arrays.asList("currency"),
+                                                                          deflate);
+        List<Event> events = Arrays.asList(event(1000L, "tx-1", 4111111111111111L, "USD", 3, true),
+                                           event(999L, "tx-2", -5L, "USD", Integer.MIN_VALUE, false),
+                                           event(5000L, null, 0L, null, 0, null));
+        events.get(1).getPayloadData()[4] = 12.5d;
+        events.get(2).getPayloadData()[4] = 1.5f;
+
+        List<Object[]> decoded = new ArrayList<Object[]>();
+        List<Long> timestamps = new ArrayList<Long>();
+        CompactEventCodec.Decoder decoder = new CompactEventCodec.Decoder();
+        for (int i = 0; i < 2; i++) {
+            assertEquals(events.size(), decoder.decode(encoder.encode(events), collect(decoded, timestamps)));
+        }
+
+        for (int i = 0; i < decoded.size(); i++) {
+            Event event = events.get(i % events.size());
+            assertEquals(event.getTimeStamp(), timestamps.get(i).longValue());
+            assertArrayEquals(event.getPayloadData(), decoded.get(i));
+        }
+        assertEquals(2 * events.size(), decoder.getDecodedEventCount());
+        assertEquals(0, decoder.getUndecodableEventCount());
+    }
+
+    private static String encode(boolean deflate) {
+        return new CompactEventCodec.Encoder(ATTRIBUTE_NAMES, Arrays.asList("currency"), deflate)
+                .encode(Collections.singletonList(event(1000L, "tx-1", 4111111111111111L, "USD", 3, true)));
+    }
+
+    private static long getEpoch(String encodedBlock) {
+
+        byte[] block = Base64Utils.decode(encodedBlock);
+        long epoch = 0;
+        for (int i = 2; i < 10; i++) {
+            epoch = (epoch << 8) | (block[i] & 0xFF);
+        }
+        return epoch;
+    }
+
+    private static Event event(long timestamp, String transactionId, Long amount, String currency, Integer quantity,
+                               Object flagged) {
+        return new Event(null, timestamp, null, null, new Object[]{transactionId, amount, currency, quantity, flagged});
+    }
+
+    private static CompactEventCodec.EventHandler collect(final List<Object[]> payloads, final List<Long> timestamps) {
+
+        return new CompactEventCodec.EventHandler() {
+            public void handle(long timestamp, Object[] payload) {
+                if (payloads != null) {
+                    payloads.add(payload);
+                }
+                if (timestamps != null) {
+                    timestamps.add(timestamp);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ *  Copyright WSO2 Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.wso2.carbon.apimgt.frauddetection;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DuplicateFilterTest {
+
+    private static final long WINDOW_MILLIS = 100;
+
+    @Test
+    public void findsARepeatWithinTheWindow() {
+
+        DuplicateFilter filter = new DuplicateFilter(1024, WINDOW_MILLIS);
+        assertFalse(filter.isDuplicate("tx-1", 1000));
+        assertTrue(filter.isDuplicate("tx-1", 1000 + WINDOW_MILLIS - 1));
+        assertFalse(filter.isDuplicate("tx-2", 1000));
+        assertEquals(1, filter.getHitCount());
+        assertEquals(2, filter.getMissCount());
+    }
+
+    @Test
+    public void forgetsAnIdAtTheEndOfTheWindow() {
+
+        DuplicateFilter filter = new DuplicateFilter(1024, WINDOW_MILLIS);
+        assertFalse(filter.isDuplicate("tx-1", 1000));
+        assertFalse(filter.isDuplicate("tx-1", 1000 + WINDOW_MILLIS));
+        // The late repeat is remembered from its own time.
+        assertTrue(filter.isDuplicate("tx-1", 1000 + WINDOW_MILLIS + 50));
+    }
+
+    @Test
+    public void neverFindsANullId() {
+
+        DuplicateFilter filter = new DuplicateFilter(1024, WINDOW_MILLIS);
+        assertFalse(filter.isDuplicate(null, 1000));
+        assertFalse(filter.isDuplicate(null, 1000));
+        assertFalse(filter.contains(null, 1000));
+        assertEquals(0, filter.getMissCount());
+    }
+
+    @Test
+    public void containsNeitherRemembersNorCounts() {
+
+        DuplicateFilter filter = new DuplicateFilter(1024, WINDOW_MILLIS);
+        assertFalse(filter.contains("tx-1", 1000));
+        assertFalse(filter.isDuplicate("tx-1", 1000));
+        assertTrue(filter.contains("tx-1", 1050));
+        assertFalse(filter.contains("tx-1", 1000 + WINDOW_MILLIS));
+        assertEquals(0, filter.getHitCount());
+        assertEquals(1, filter.getMissCount());
+    }
+
+    @Test
+    public void treatsNumericIdsByValue() {
+
+        DuplicateFilter filter = new DuplicateFilter(1024, WINDOW_MILLIS);
+        assertFalse(filter.isDuplicate(4111111111111111L, 1000));
+        assertTrue(filter.isDuplicate(4111111111111111L, 1001));
+        assertFalse(filter.isDuplicate(42, 1000));
+        assertTrue(filter.isDuplicate(42L, 1001));
+    }
+
+    @Test
+    public void keepsTheRecentIdsWhenOverCapacity() {
+
+        DuplicateFilter filter = new DuplicateFilter(64, Long.MAX_VALUE / 2);
+        int count = 10000;
+        for (int i = 0; i < count; i++) {
+            assertFalse(filter.isDuplicate("tx-" + i, i));
+        }
+
+        // The oldest entry of a full probe run is replaced first, so the latest ids are all still there.
+        for (int i = count - 8; i < count; i++) {
+            assertTrue(filter.contains("tx-" + i, count));
+        }
+        int remembered = 0;
+        for (int i = 0; i < count; i++) {
+            if (filter.contains("tx-" + i, count)) {
+                remembered++;
+            }
+        }
+        // Each of the 64 segments has at least one probe run of 8 slots.
+        assertTrue(remembered <= 64 * 8);
+    }
+
+    @Test
+    public void reusesExpiredSlots() {
+
+        DuplicateFilter filter = new DuplicateFilter(64, WINDOW_MILLIS);
+        for (int round = 0; round < 10; round++) {
+            long now = round * WINDOW_MILLIS;
+            for (int i = 0; i < 64; i++) {
+                assertFalse(filter.isDuplicate("tx-" + round + "-" + i, now));
+            }
+        }
+        assertTrue(filter.isDuplicate("tx-9-0", 9 * WINDOW_MILLIS + 1));
+    }
+}
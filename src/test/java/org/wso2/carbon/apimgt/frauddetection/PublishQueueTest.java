@@ -0,0 +1,179 @@
+/*
+ *  Copyright WSO2 Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.wso2.carbon.apimgt.frauddetection;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PublishQueueTest {
+
+    @Test
+    public void roundsTheCapacityUpToAPowerOfTwo() {
+        assertEquals(4, new PublishQueue<Integer>(3, PublishQueue.OverflowPolicy.DROP_NEWEST, 0).capacity());
+        assertEquals(8, new PublishQueue<Integer>(8, PublishQueue.OverflowPolicy.DROP_NEWEST, 0).capacity());
+        assertEquals(1, new PublishQueue<Integer>(1, PublishQueue.OverflowPolicy.DROP_NEWEST, 0).capacity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnEmptyCapacity() {
+        new PublishQueue<Integer>(0, PublishQueue.OverflowPolicy.DROP_NEWEST, 0);
+    }
+
+    @Test
+    public void parsesThePolicyNamesOfTheProperties() {
+        assertEquals(PublishQueue.OverflowPolicy.DROP_NEWEST, PublishQueue.OverflowPolicy.fromString("drop-newest"));
+        assertEquals(PublishQueue.OverflowPolicy.DROP_OLDEST, PublishQueue.OverflowPolicy.fromString(" drop_oldest "));
+        assertEquals(PublishQueue.OverflowPolicy.BLOCK, PublishQueue.OverflowPolicy.fromString("Block"));
+    }
+
+    @Test
+    public void dropsTheNewestEventWhenFull() {
+
+        PublishQueue<Integer> queue = fill(PublishQueue.OverflowPolicy.DROP_NEWEST, 0);
+        assertFalse(queue.put(4));
+        assertEquals(1, queue.getDroppedCount());
+        assertEquals(4, queue.getEnqueuedCount());
+        assertPolls(queue, 0, 1, 2, 3);
+    }
+
+    @Test
+    public void dropsTheOldestEventWhenFull() {
+
+        PublishQueue<Integer> queue = fill(PublishQueue.OverflowPolicy.DROP_OLDEST, 0);
+        assertFalse(queue.put(4));
+        assertEquals(1, queue.getDroppedCount());
+        assertEquals(5, queue.getEnqueuedCount());
+        assertPolls(queue, 1, 2, 3, 4);
+    }
+
+    @Test
+    public void dropsABlockedEventAfterTheTimeout() {
+
+        PublishQueue<Integer> queue = fill(PublishQueue.OverflowPolicy.BLOCK, 20);
+        long start = System.nanoTime();
+        assertFalse(queue.put(4));
+        assertTrue(System.nanoTime() - start >= 20000000L);
+        assertEquals(1, queue.getDroppedCount());
+        assertPolls(queue, 0, 1, 2, 3);
+    }
+
+    @Test
+    public void blocksUntilThereIsRoom() throws InterruptedException {
+
+        final PublishQueue<Integer> queue = fill(PublishQueue.OverflowPolicy.BLOCK, 10000);
+        Thread consumer = new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                queue.poll();
+            }
+        };
+        consumer.start();
+
+        assertTrue(queue.put(4));
+        consumer.join();
+        assertEquals(0, queue.getDroppedCount());
+        assertPolls(queue, 1, 2, 3, 4);
+    }
+
+    @Test
+    public void putsABatchInConsecutiveSlots() {
+
+        PublishQueue<Integer> queue = new PublishQueue<Integer>(4, PublishQueue.OverflowPolicy.DROP_NEWEST, 0);
+        assertTrue(queue.offerAll(new Integer[]{0, 1, 2}));
+        assertFalse(queue.offerAll(new Integer[]{3, 4}));
+        assertEquals(3, queue.size());
+
+        // Without room for the whole batch, the events are put one by one under the policy.
+        assertFalse(queue.putAll(new Integer[]{3, 4}));
+        assertEquals(1, queue.getDroppedCount());
+        assertPolls(queue, 0, 1, 2, 3);
+        assertFalse(queue.offerAll(new Integer[]{0, 1, 2, 3, 4}));
+    }
+
+    @Test
+    public void handsEveryEventToExactlyOneConsumer() throws InterruptedException {
+
+        final int producerCount = 4;
+        final int eventsPerProducer = 50000;
+        final PublishQueue<Integer> queue = new PublishQueue<Integer>(64, PublishQueue.OverflowPolicy.BLOCK, 60000);
+        final AtomicIntegerArray received = new AtomicIntegerArray(producerCount * eventsPerProducer);
+        final CountDownLatch done = new CountDownLatch(producerCount * eventsPerProducer);
+
+        Thread[] threads = new Thread[producerCount * 2];
+        for (int p = 0; p < producerCount; p++) {
+            final int producer = p;
+            threads[p] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < eventsPerProducer; i += 2) {
+                        int event = producer * eventsPerProducer + i;
+                        queue.putAll(new Integer[]{event, event + 1});
+                    }
+                }
+            };
+            threads[producerCount + p] = new Thread() {
+                public void run() {
+                    while (done.getCount() > 0) {
+                        Integer event = queue.poll();
+                        if (event != null) {
+                            received.incrementAndGet(event);
+                            done.countDown();
+                        }
+                    }
+                }
+            };
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        for (int i = 0; i < received.length(); i++) {
+            assertEquals(1, received.get(i));
+        }
+        assertEquals(0, queue.getDroppedCount());
+        assertTrue(queue.isEmpty());
+    }
+
+    private static PublishQueue<Integer> fill(PublishQueue.OverflowPolicy overflowPolicy, long blockTimeoutMillis) {
+
+        PublishQueue<Integer> queue = new PublishQueue<Integer>(4, overflowPolicy, blockTimeoutMillis);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.put(i));
+        }
+        assertEquals(4, queue.size());
+        return queue;
+    }
+
+    private static void assertPolls(PublishQueue<Integer> queue, int... events) {
+        for (int event : events) {
+            assertEquals(Integer.valueOf(event), queue.poll());
+        }
+        assertNull(queue.poll());
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ *  Copyright WSO2 Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.wso2.carbon.apimgt.frauddetection;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SpillLogTest {
+
+    private static final int SEGMENT_SIZE = 4096;
+    private static final int SMALL_SEGMENT_SIZE = 256;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void roundTripsEveryAttributeType() throws IOException {
+
+        SpillLog spillLog = new SpillLog(folder.getRoot(), SEGMENT_SIZE, 4);
+        Object[] payload = {"tx-1", 4111111111111111L, 12.5d, 3, true, 1.5f, null, "é中"};
+        spillLog.append(1000L, payload);
+
+        List<SpillLog.Record> records = spillLog.read(10);
+        assertEquals(1, records.size());
+        assertEquals(1000L, records.get(0).getTimestamp());
+        assertArrayEquals(payload, records.get(0).getPayload());
+    }
+
+    @Test
+    public void readsTheSameRecordsUntilTheyAreCommitted() throws IOException {
+
+        SpillLog spillLog = new SpillLog(folder.getRoot(), SEGMENT_SIZE, 4);
+        for (int i = 0; i < 3; i++) {
+            spillLog.append(i, new Object[]{"tx-" + i});
+        }
+
+        List<SpillLog.Record> records = spillLog.read(2);
+        assertEquals("tx-0", spillLog.read(2).get(0).getPayload()[0]);
+        spillLog.commit(records);
+
+        assertEquals(1, spillLog.getPendingRecordCount());
+        List<SpillLog.Record> rest = spillLog.read(10);
+        assertEquals(1, rest.size());
+        assertEquals("tx-2", rest.get(0).getPayload()[0]);
+
+        spillLog.commit(rest);
+        assertFalse(spillLog.hasPendingRecords());
+        assertTrue(spillLog.read(10).isEmpty());
+    }
+
+    @Test
+    public void recoversTheUncommittedRecordsAfterARestart() throws IOException {
+
+        SpillLog spillLog = new SpillLog(folder.getRoot(), SEGMENT_SIZE, 4);
+        for (int i = 0; i < 3; i++) {
+            spillLog.append(i, new Object[]{"tx-" + i});
+        }
+        // The commit marker is the negated record length, written in place.
+        spillLog.commit(spillLog.read(1));
+        spillLog.close();
+
+        SpillLog recovered = new SpillLog(folder.getRoot(), SEGMENT_SIZE, 4);
+        assertEquals(2, recovered.getPendingRecordCount());
+        List<SpillLog.Record> records = recovered.read(10);
+        assertEquals(2, records.size());
+        assertEquals("tx-1", records.get(0).getPayload()[0]);
+        assertEquals("tx-2", records.get(1).getPayload()[0]);
+    }
+
+    @Test
+    public void skipsACorruptedRecordOnceAndForAll() throws IOException {
+
+        SpillLog spillLog = new SpillLog(folder.getRoot(), SEGMENT_SIZE, 4);
+        for (int i = 0; i < 3; i++) {
+            spillLog.append(i, new Object[]{"tx-" + i});
+        }
+        spillLog.close();
+
+        File segment = getSegmentFiles()[0];
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            // Flip the last byte of the body of the second record.
+            int secondRecord = 8 + file.readInt();
+            file.seek(secondRecord);
+            int bodyEnd = secondRecord + 8 + file.readInt() - 1;
+            file.seek(bodyEnd);
+            byte value = file.readByte();
+            file.seek(bodyEnd);
+            file.writeByte(value ^ 0xff);
+        } finally {
+            file.close();
+        }
+
+        SpillLog recovered = new SpillLog(folder.getRoot(), SEGMENT_SIZE, 4);
+        List<SpillLog.Record> records = recovered.read(10);
+        assertEquals(2, records.size());
+        assertEquals("tx-0", records.get(0).getPayload()[0]);
+        assertEquals("tx-2", records.get(1).getPayload()[0]);
+        assertEquals(1, recovered.getDiscardedCount());
+        recovered.close();
+
+        // The corrupted record was marked as consumed on disk, so it is not found again.
+        SpillLog reopened = new SpillLog(folder.getRoot(), SEGMENT_SIZE, 4);
+        assertEquals(2, reopened.read(10).size());
+        assertEquals(0, reopened.getDiscardedCount());
+    }
+
+    @Test
+    public void stopsAtATornRecord() throws IOException {
+
+        SpillLog spillLog = new SpillLog(folder.getRoot(), SEGMENT_SIZE, 4);
+        for (int i = 0; i < 3; i++) {
+            spillLog.append(i, new Object[]{"tx-" + i});
+        }
+        spillLog.close();
+
+        RandomAccessFile file = new RandomAccessFile(getSegmentFiles()[0], "rw");
+        try {
+            // A write torn before its length went in leaves a zero length, which ends the segment.
+            int secondRecord = 8 + file.readInt();
+            file.seek(secondRecord);
+            int thirdRecord = secondRecord + 8 + file.readInt();
+            file.seek(thirdRecord);
+            file.writeInt(0);
+        } finally {
+            file.close();
+        }
+
+        SpillLog recovered = new SpillLog(folder.getRoot(), SEGMENT_SIZE, 4);
+        assertEquals(2, recovered.getPendingRecordCount());
+        assertEquals(2, recovered.read(10).size());
+    }
+
+    @Test
+    public void ignoresATruncatedSegment() throws IOException {
+
+        SpillLog spillLog = new SpillLog(folder.getRoot(), SEGMENT_SIZE, 4);
+        spillLog.append(0, new Object[]{"tx-0"});
+        spillLog.close();
+
+        RandomAccessFile file = new RandomAccessFile(getSegmentFiles()[0], "rw");
+        try {
+            file.setLength(SEGMENT_SIZE / 2);
+        } finally {
+            file.close();
+        }
+
+        SpillLog recovered = new SpillLog(folder.getRoot(), SEGMENT_SIZE, 4);
+        assertFalse(recovered.hasPendingRecords());
+        recovered.append(1, new Object[]{"tx-1"});
+        assertEquals("tx-1", recovered.read(10).get(0).getPayload()[0]);
+    }
+
+    @Test
+    public void discardsTheOldestSegmentWhenFull() throws IOException {
+
+        SpillLog spillLog = new SpillLog(folder.getRoot(), SMALL_SEGMENT_SIZE, 2);
+        int count = 0;
+        while (spillLog.getDiscardedCount() == 0) {
+            spillLog.append(count, new Object[]{"tx-" + count++});
+        }
+
+        assertEquals(count, spillLog.getPendingRecordCount() + spillLog.getDiscardedCount());
+        List<SpillLog.Record> records = spillLog.read(count);
+        assertEquals(spillLog.getPendingRecordCount(), records.size());
+        assertEquals("tx-" + (count - 1), records.get(records.size() - 1).getPayload()[0]);
+        assertEquals(2, getSegmentFiles().length);
+    }
+
+    @Test
+    public void recyclesConsumedSegments() throws IOException {
+
+        SpillLog spillLog = new SpillLog(folder.getRoot(), SMALL_SEGMENT_SIZE, 8);
+        for (int i = 0; i < 20; i++) {
+            spillLog.append(i, new Object[]{"tx-" + i});
+        }
+        assertTrue(getSegmentFiles().length > 2);
+
+        List<SpillLog.Record> records = spillLog.read(20);
+        assertEquals(20, records.size());
+        spillLog.commit(records);
+
+        // Every segment but the active one is renamed to a free file, which the next segment reuses.
+        File[] freeFiles = getFiles(".free");
+        assertEquals(1, getSegmentFiles().length);
+        assertTrue(freeFiles.length > 0);
+
+        for (int i = 0; i < 20; i++) {
+            spillLog.append(i, new Object[]{"tx-" + i});
+        }
+        assertTrue(getFiles(".free").length < freeFiles.length);
+        assertEquals(20, spillLog.getPendingRecordCount());
+        assertEquals(0, spillLog.getDiscardedCount());
+    }
+
+    @Test
+    public void ignoresCommitsOfDiscardedSegments() throws IOException {
+
+        SpillLog spillLog = new SpillLog(folder.getRoot(), SMALL_SEGMENT_SIZE, 2);
+        spillLog.append(0, new Object[]{"tx-0"});
+        List<SpillLog.Record> records = spillLog.read(1);
+
+        int count = 1;
+        while (spillLog.getDiscardedCount() == 0) {
+            spillLog.append(count, new Object[]{"tx-" + count++});
+        }
+        long pending = spillLog.getPendingRecordCount();
+        spillLog.commit(records);
+        assertEquals(pending, spillLog.getPendingRecordCount());
+    }
+
+    private File[] getSegmentFiles() {
+        return getFiles(".log");
+    }
+
+    private File[] getFiles(final String suffix) {
+
+        File[] files = folder.getRoot().listFiles(new FilenameFilter() {
+            public boolean accept(File directory, String name) {
+                return name.endsWith(suffix);
+            }
+        });
+        Arrays.sort(files);
+        return files;
+    }
+}